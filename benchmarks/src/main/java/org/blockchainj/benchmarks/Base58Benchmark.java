@@ -0,0 +1,60 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.blockchainj.benchmarks;
+
+import org.blockchainj.core.Address;
+import org.blockchainj.core.AddressFormatException;
+import org.blockchainj.core.Base58;
+import org.blockchainj.core.ECKey;
+import org.openjdk.jmh.annotations.*;
+
+import java.math.BigInteger;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encodes and decodes an address, which is how Base58 is mostly used.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class Base58Benchmark {
+    private byte[] addressBytes;
+    private String address;
+
+    @Setup
+    public void setUp() throws AddressFormatException {
+        address = ECKey.fromPrivate(BigInteger.valueOf(1000)).toAddress(Fixtures.PARAMS).toBase58();
+        addressBytes = Base58.decode(address);
+    }
+
+    @Benchmark
+    public String encode() {
+        return Base58.encode(addressBytes);
+    }
+
+    @Benchmark
+    public byte[] decode() throws AddressFormatException {
+        return Base58.decode(address);
+    }
+
+    /** Decodes the address and checks its checksum. */
+    @Benchmark
+    public byte[] decodeChecked() throws AddressFormatException {
+        return Base58.decodeChecked(address);
+    }
+}
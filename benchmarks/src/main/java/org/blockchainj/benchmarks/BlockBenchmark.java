@@ -0,0 +1,59 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.blockchainj.benchmarks;
+
+import org.blockchainj.core.Block;
+import org.blockchainj.core.MessageSerializer;
+import org.blockchainj.core.Sha256Hash;
+import org.blockchainj.core.Transaction;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parses a full mainnet block, as done for every block downloaded.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BlockBenchmark {
+    private MessageSerializer serializer;
+    private byte[] blockBytes;
+
+    @Setup
+    public void setUp() throws IOException {
+        Fixtures.propagateContext();
+        serializer = Fixtures.PARAMS.getDefaultSerializer();
+        blockBytes = Fixtures.block370661();
+    }
+
+    @Benchmark
+    public Block parse() {
+        return serializer.makeBlock(blockBytes);
+    }
+
+    /** Parses the block and works out the hash of each of its transactions, like checking the merkle root needs. */
+    @Benchmark
+    public Sha256Hash parseAndHashTransactions() {
+        Sha256Hash last = null;
+        for (Transaction tx : serializer.makeBlock(blockBytes).getTransactions())
+            last = tx.getHash();
+        return last;
+    }
+}
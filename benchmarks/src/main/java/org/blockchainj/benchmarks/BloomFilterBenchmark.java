@@ -0,0 +1,65 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.blockchainj.benchmarks;
+
+import org.blockchainj.core.BloomFilter;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Looks up keys in a bloom filter the size of a large wallet's. Filters are checked against every script element of
+ * every transaction a peer sends, and most lookups miss.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BloomFilterBenchmark {
+    private static final int ELEMENTS = 10000;
+
+    private BloomFilter filter;
+    private final byte[][] inserted = new byte[ELEMENTS][];
+    private final byte[][] absent = new byte[ELEMENTS][];
+    private int next;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(1);
+        filter = new BloomFilter(ELEMENTS, 0.0001, random.nextLong());
+        for (int i = 0; i < ELEMENTS; i++) {
+            inserted[i] = new byte[20];
+            random.nextBytes(inserted[i]);
+            filter.insert(inserted[i]);
+            absent[i] = new byte[20];
+            random.nextBytes(absent[i]);
+        }
+    }
+
+    @Benchmark
+    public boolean containsInserted() {
+        next = (next + 1) % ELEMENTS;
+        return filter.contains(inserted[next]);
+    }
+
+    @Benchmark
+    public boolean containsAbsent() {
+        next = (next + 1) % ELEMENTS;
+        return filter.contains(absent[next]);
+    }
+}
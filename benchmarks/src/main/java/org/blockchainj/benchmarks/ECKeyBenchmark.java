@@ -0,0 +1,63 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.blockchainj.benchmarks;
+
+import org.blockchainj.core.ECKey;
+import org.blockchainj.core.Sha256Hash;
+import org.openjdk.jmh.annotations.*;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Verifies ECDSA signatures one at a time and in a batch, see {@link ECKey#verify(List)}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ECKeyBenchmark {
+    private static final int BATCH_SIZE = 64;
+
+    private final List<ECKey.SignatureCheck> checks = new ArrayList<ECKey.SignatureCheck>();
+    private int next;
+
+    @Setup
+    public void setUp() {
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            ECKey key = ECKey.fromPrivate(BigInteger.valueOf(1000 + i));
+            Sha256Hash hash = Sha256Hash.of(BigInteger.valueOf(i).toByteArray());
+            checks.add(new ECKey.SignatureCheck(hash.getBytes(), key.sign(hash), key.getPubKey()));
+        }
+    }
+
+    @Benchmark
+    public boolean verify() {
+        ECKey.SignatureCheck check = checks.get(next);
+        next = (next + 1) % BATCH_SIZE;
+        return ECKey.verify(check.data, check.signature, check.pub);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public BitSet verifyBatch() {
+        return ECKey.verify(checks);
+    }
+}
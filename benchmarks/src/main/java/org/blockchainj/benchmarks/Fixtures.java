@@ -0,0 +1,119 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.blockchainj.benchmarks;
+
+import org.blockchainj.core.*;
+import org.blockchainj.params.MainNetParams;
+import org.blockchainj.script.Script;
+import org.blockchainj.utils.BlockFileLoader;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The blocks and transactions the benchmarks run on. They are the fixtures of the core module's tests, which the
+ * build copies into this module's resources.
+ */
+public class Fixtures {
+    static {
+        // The fixtures are Bitcoin blocks.
+        NetworkParametersGetter.setSupportedBlockchain(SupportedBlockchain.BITCOIN);
+    }
+
+    public static final NetworkParameters PARAMS = MainNetParams.get();
+
+    /** A full mainnet block of nearly 400KB, with about a thousand transactions. */
+    public static final String BLOCK_370661 = "/org/blockchainj/core/block370661.dat";
+    /** The first mainnet blocks, in the format of the reference client's block files. */
+    public static final String FIRST_BLOCKS = "/org/blockchainj/core/first-100k-blocks.dat";
+
+    /** An input of a transaction together with the output script it spends. */
+    public static class Spend {
+        public final Transaction tx;
+        public final int index;
+        public final Script scriptPubKey;
+
+        public Spend(Transaction tx, int index, Script scriptPubKey) {
+            this.tx = tx;
+            this.index = index;
+            this.scriptPubKey = scriptPubKey;
+        }
+    }
+
+    /** Sets up the context the core classes expect to find on the running thread. */
+    public static void propagateContext() {
+        Context.propagate(new Context(PARAMS));
+    }
+
+    public static byte[] resource(String name) throws IOException {
+        InputStream stream = Fixtures.class.getResourceAsStream(name);
+        if (stream == null)
+            throw new IOException("Missing fixture " + name);
+        try {
+            return ByteStreams.toByteArray(stream);
+        } finally {
+            stream.close();
+        }
+    }
+
+    /** Returns the serialized form of block 370661. */
+    public static byte[] block370661() throws IOException {
+        return resource(BLOCK_370661);
+    }
+
+    /** Returns the transaction of the given block with the largest serialized size. */
+    public static Transaction largestTransaction(Block block) {
+        Transaction largest = null;
+        for (Transaction tx : block.getTransactions()) {
+            if (largest == null || tx.getMessageSize() > largest.getMessageSize())
+                largest = tx;
+        }
+        return largest;
+    }
+
+    /**
+     * Returns every spend in the first blocks of the chain, which are spends of pay to pubkey outputs, with the output
+     * scripts they spend taken from the same blocks.
+     */
+    public static List<Spend> firstSpends() throws IOException {
+        // BlockFileLoader wants files, and the fixture may well be inside a jar.
+        File file = File.createTempFile("blocks", ".dat");
+        file.deleteOnExit();
+        Files.write(resource(FIRST_BLOCKS), file);
+        List<Spend> spends = new ArrayList<Spend>();
+        Map<TransactionOutPoint, Script> outputs = new HashMap<TransactionOutPoint, Script>();
+        for (Block block : new BlockFileLoader(PARAMS, Collections.singletonList(file))) {
+            for (Transaction tx : block.getTransactions()) {
+                if (!tx.isCoinBase()) {
+                    for (int i = 0; i < tx.getInputs().size(); i++)
+                        spends.add(new Spend(tx, i, outputs.get(tx.getInput(i).getOutpoint())));
+                }
+                for (int i = 0; i < tx.getOutputs().size(); i++)
+                    outputs.put(new TransactionOutPoint(PARAMS, i, tx.getHash()), tx.getOutput(i).getScriptPubKey());
+            }
+        }
+        file.delete();
+        return spends;
+    }
+}
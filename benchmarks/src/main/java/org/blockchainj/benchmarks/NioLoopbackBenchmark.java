@@ -0,0 +1,154 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.blockchainj.benchmarks;
+
+import org.blockchainj.core.Message;
+import org.blockchainj.core.PeerSocketHandler;
+import org.blockchainj.core.Ping;
+import org.blockchainj.core.Pong;
+import org.blockchainj.net.NioClientManager;
+import org.blockchainj.net.NioServer;
+import org.blockchainj.net.StreamConnection;
+import org.blockchainj.net.StreamConnectionFactory;
+import org.openjdk.jmh.annotations.*;
+
+import com.google.common.util.concurrent.SettableFuture;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends pings over loopback connections from a {@link NioClientManager} to a {@link NioServer}, which answers each of
+ * them with a pong, for different numbers of connections and of selector threads on both sides. The score is the number
+ * of pongs that came back per second, over all connections.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NioLoopbackBenchmark {
+    // How many pings are sent, spread over the connections, before waiting for their pongs.
+    private static final int BATCH = 1024;
+
+    @Param({"1", "16", "128"})
+    public int connections;
+
+    @Param({"1", "4"})
+    public int selectorThreads;
+
+    private NioServer server;
+    private NioClientManager clientManager;
+    private final List<Pinger> pingers = new ArrayList<Pinger>();
+    private final Semaphore pongs = new Semaphore(0);
+
+    /** Answers every ping with a pong. */
+    private static class Ponger extends PeerSocketHandler {
+        Ponger(InetSocketAddress remoteIp) {
+            super(Fixtures.PARAMS, remoteIp);
+        }
+
+        @Override
+        public void connectionOpened() {
+        }
+
+        @Override
+        public void connectionClosed() {
+        }
+
+        @Override
+        protected void processMessage(Message m) {
+            if (m instanceof Ping)
+                sendMessage(new Pong(((Ping) m).getNonce()));
+        }
+    }
+
+    /** Counts the pongs it receives. */
+    private class Pinger extends PeerSocketHandler {
+        private final SettableFuture<Void> opened = SettableFuture.create();
+
+        Pinger(InetSocketAddress remoteIp) {
+            super(Fixtures.PARAMS, remoteIp);
+        }
+
+        @Override
+        public void connectionOpened() {
+            opened.set(null);
+        }
+
+        @Override
+        public void connectionClosed() {
+        }
+
+        @Override
+        protected void processMessage(Message m) {
+            if (m instanceof Pong)
+                pongs.release();
+        }
+    }
+
+    @Setup
+    public void setUp() throws Exception {
+        Fixtures.propagateContext();
+        InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(), freePort());
+        server = new NioServer(new StreamConnectionFactory() {
+            @Override
+            public StreamConnection getNewConnection(InetAddress inetAddress, int port) {
+                return new Ponger(new InetSocketAddress(inetAddress, port));
+            }
+        }, address, selectorThreads);
+        server.startAsync().awaitRunning();
+        clientManager = new NioClientManager(selectorThreads);
+        clientManager.startAsync().awaitRunning();
+        for (int i = 0; i < connections; i++) {
+            Pinger pinger = new Pinger(address);
+            clientManager.openConnection(address, pinger);
+            pingers.add(pinger);
+        }
+        for (Pinger pinger : pingers)
+            pinger.opened.get();
+    }
+
+    @TearDown
+    public void tearDown() {
+        clientManager.stopAsync().awaitTerminated();
+        server.stopAsync().awaitTerminated();
+        pingers.clear();
+    }
+
+    private static int freePort() throws IOException {
+        ServerSocket socket = new ServerSocket(0);
+        try {
+            return socket.getLocalPort();
+        } finally {
+            socket.close();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void pingPong() throws InterruptedException {
+        for (int i = 0; i < BATCH; i++)
+            pingers.get(i % connections).sendMessage(new Ping(i));
+        pongs.acquire(BATCH);
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.blockchainj.benchmarks;
+
+import org.blockchainj.core.*;
+import org.blockchainj.core.Transaction.SigHash;
+import org.blockchainj.crypto.TransactionSignature;
+import org.blockchainj.script.Script;
+import org.blockchainj.script.ScriptBuilder;
+import org.blockchainj.script.SignatureCache;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs {@link Script#correctlySpends(Transaction, long, Script, Set)} on the spends of pay to pubkey outputs
+ * at the start of the chain, and on pay to address and 2-of-3 pay to script hash multisig spends built at setup.
+ * With the signature cache the signatures are only verified once, so what is left is the cost of running the scripts
+ * and hashing the transactions.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ScriptBenchmark {
+    private static final Set<Script.VerifyFlag> NO_VERIFY_FLAGS = EnumSet.noneOf(Script.VerifyFlag.class);
+
+    @Param({"false", "true"})
+    public boolean signatureCache;
+
+    private SignatureCache previousCache;
+    private List<Fixtures.Spend> chainSpends;
+    private int next;
+    private Fixtures.Spend payToAddress;
+    private Fixtures.Spend payToScriptHash;
+
+    @Setup
+    public void setUp() throws IOException {
+        Fixtures.propagateContext();
+        previousCache = Script.getSignatureCache();
+        Script.setSignatureCache(signatureCache ? new SignatureCache() : null);
+        chainSpends = Fixtures.firstSpends();
+
+        NetworkParameters params = Fixtures.PARAMS;
+        List<ECKey> keys = Arrays.asList(ECKey.fromPrivate(BigInteger.valueOf(1001)),
+                ECKey.fromPrivate(BigInteger.valueOf(1002)), ECKey.fromPrivate(BigInteger.valueOf(1003)));
+        // In the order of the redeem script, which the signatures have to follow.
+        Collections.sort(keys, ECKey.PUBKEY_COMPARATOR);
+
+        Transaction tx = spendingTransaction(params, keys.get(0));
+        Script scriptPubKey = ScriptBuilder.createOutputScript(keys.get(0).toAddress(params));
+        TransactionSignature sig = tx.calculateSignature(0, keys.get(0), scriptPubKey, SigHash.ALL, false);
+        tx.getInput(0).setScriptSig(ScriptBuilder.createInputScript(sig, keys.get(0)));
+        payToAddress = new Fixtures.Spend(tx, 0, scriptPubKey);
+
+        tx = spendingTransaction(params, keys.get(1));
+        Script redeemScript = ScriptBuilder.createRedeemScript(2, keys);
+        List<TransactionSignature> sigs = Arrays.asList(
+                tx.calculateSignature(0, keys.get(0), redeemScript, SigHash.ALL, false),
+                tx.calculateSignature(0, keys.get(2), redeemScript, SigHash.ALL, false));
+        tx.getInput(0).setScriptSig(ScriptBuilder.createP2SHMultiSigInputScript(sigs, redeemScript));
+        payToScriptHash = new Fixtures.Spend(tx, 0, ScriptBuilder.createP2SHOutputScript(redeemScript));
+    }
+
+    @TearDown
+    public void tearDown() {
+        Script.setSignatureCache(previousCache);
+    }
+
+    // A transaction with one input, which does not need to exist, and one output.
+    private static Transaction spendingTransaction(NetworkParameters params, ECKey to) {
+        Transaction tx = new Transaction(params);
+        tx.addInput(new TransactionInput(params, tx, new byte[0],
+                new TransactionOutPoint(params, 0, Sha256Hash.twiceOf(to.getPubKey()))));
+        tx.addOutput(Coin.COIN, to);
+        return tx;
+    }
+
+    private static Fixtures.Spend check(Fixtures.Spend spend, Set<Script.VerifyFlag> verifyFlags) {
+        spend.tx.getInput(spend.index).getScriptSig().correctlySpends(spend.tx, spend.index, spend.scriptPubKey,
+                verifyFlags);
+        return spend;
+    }
+
+    @Benchmark
+    public Fixtures.Spend payToPubKeyFromChain() {
+        Fixtures.Spend spend = chainSpends.get(next);
+        next = (next + 1) % chainSpends.size();
+        // Signatures were not held to the later encoding rules back then.
+        return check(spend, NO_VERIFY_FLAGS);
+    }
+
+    @Benchmark
+    public Fixtures.Spend payToAddress() {
+        return check(payToAddress, Script.ALL_VERIFY_FLAGS);
+    }
+
+    @Benchmark
+    public Fixtures.Spend payToScriptHashMultiSig() {
+        return check(payToScriptHash, Script.ALL_VERIFY_FLAGS);
+    }
+}
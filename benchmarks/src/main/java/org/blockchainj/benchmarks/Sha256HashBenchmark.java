@@ -0,0 +1,84 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.blockchainj.benchmarks;
+
+import org.blockchainj.core.Sha256Hash;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Double SHA-256 of inputs of the sizes that get hashed most: 64 bytes for the nodes of merkle trees, 80 bytes for
+ * block headers, and a few hundred bytes to a megabyte for transactions and blocks. {@link #newDigestEachTime()} is
+ * how hashing used to be done, a new digest and an array between the two rounds for every hash, to compare against.
+ * With {@code pureJava} set, 64 and 80 byte inputs are hashed by the plain Java SHA-256d.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class Sha256HashBenchmark {
+    @Param({"64", "80", "250", "1000000"})
+    public int size;
+
+    @Param({"false", "true"})
+    public boolean pureJava;
+
+    private byte[] input;
+    private ByteBuffer directInput;
+    private final byte[] output = new byte[32];
+
+    @Setup
+    public void setUp() {
+        input = new byte[size];
+        new Random(size).nextBytes(input);
+        directInput = ByteBuffer.allocateDirect(size);
+        directInput.put(input).flip();
+        Sha256Hash.setPureJavaHashing(pureJava);
+    }
+
+    @TearDown
+    public void tearDown() {
+        Sha256Hash.setPureJavaHashing(false);
+    }
+
+    @Benchmark
+    public Sha256Hash twiceOf() {
+        return Sha256Hash.twiceOf(input);
+    }
+
+    @Benchmark
+    public byte[] hashTwiceIntoArray() {
+        Sha256Hash.hashTwice(input, 0, input.length, output, 0);
+        return output;
+    }
+
+    @Benchmark
+    public byte[] hashTwiceOfDirectBuffer() {
+        return Sha256Hash.hashTwice(directInput);
+    }
+
+    @Benchmark
+    public byte[] newDigestEachTime() {
+        MessageDigest digest = Sha256Hash.newDigest();
+        digest.update(input);
+        return digest.digest(digest.digest());
+    }
+}
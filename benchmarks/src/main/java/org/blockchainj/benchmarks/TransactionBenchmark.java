@@ -0,0 +1,66 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.blockchainj.benchmarks;
+
+import org.blockchainj.core.Block;
+import org.blockchainj.core.ECKey;
+import org.blockchainj.core.Sha256Hash;
+import org.blockchainj.core.Transaction;
+import org.blockchainj.script.ScriptBuilder;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Computes signature hashes, which OP_CHECKSIG does for every signature it checks. The cost grows with the size of
+ * the transaction, so it is measured on the smallest and the largest transaction of a mainnet block.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TransactionBenchmark {
+    private Transaction small;
+    private Transaction large;
+    private byte[] connectedScript;
+
+    @Setup
+    public void setUp() throws IOException {
+        Fixtures.propagateContext();
+        Block block = Fixtures.PARAMS.getDefaultSerializer().makeBlock(Fixtures.block370661());
+        for (Transaction tx : block.getTransactions()) {
+            if (!tx.isCoinBase() && (small == null || tx.getMessageSize() < small.getMessageSize()))
+                small = tx;
+        }
+        large = Fixtures.largestTransaction(block);
+        // The outputs spent are not in the fixture. Any pay to address script costs the same to hash.
+        ECKey key = ECKey.fromPrivate(BigInteger.valueOf(1000));
+        connectedScript = ScriptBuilder.createOutputScript(key.toAddress(Fixtures.PARAMS)).getProgram();
+    }
+
+    @Benchmark
+    public Sha256Hash hashForSignatureSmall() {
+        return small.hashForSignature(0, connectedScript, (byte) Transaction.SigHash.ALL.value);
+    }
+
+    @Benchmark
+    public Sha256Hash hashForSignatureLarge() {
+        return large.hashForSignature(0, connectedScript, (byte) Transaction.SigHash.ALL.value);
+    }
+}
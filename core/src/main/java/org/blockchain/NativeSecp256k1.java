@@ -21,6 +21,7 @@ import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 
 import java.math.BigInteger;
+import java.util.BitSet;
 import com.google.common.base.Preconditions;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
@@ -74,6 +75,49 @@ public class NativeSecp256k1 {
         }
     }
 
+    /**
+     * Verifies a batch of secp256k1 signatures in native code. All of them are packed into one direct buffer and the
+     * context lock is taken once, rather than once per signature. Calling when enabled == false is undefined.
+     *
+     * @param data The data which was signed, each exactly 32 bytes
+     * @param signatures The signatures, in the same order
+     * @param pubs The public keys which did the signing, in the same order
+     * @return a set with the indexes of the valid signatures
+     */
+    public static BitSet verifyBatch(byte[][] data, byte[][] signatures, byte[][] pubs) throws AssertFailException {
+        Preconditions.checkArgument(data.length == signatures.length && data.length == pubs.length);
+        int size = 0;
+        for (int i = 0; i < data.length; i++) {
+            Preconditions.checkArgument(data[i].length == 32 && signatures[i].length <= 520 && pubs[i].length <= 520);
+            size += data[i].length + signatures[i].length + pubs[i].length;
+        }
+
+        ByteBuffer byteBuff = ByteBuffer.allocateDirect(size);
+        byteBuff.order(ByteOrder.nativeOrder());
+        for (int i = 0; i < data.length; i++) {
+            byteBuff.put(data[i]);
+            byteBuff.put(signatures[i]);
+            byteBuff.put(pubs[i]);
+        }
+
+        BitSet valid = new BitSet(data.length);
+        r.lock();
+        try {
+            long context = Secp256k1Context.getContext();
+            int offset = 0;
+            for (int i = 0; i < data.length; i++) {
+                // A slice shares the buffer's memory and starts at the tuple, which is where the native side reads.
+                byteBuff.position(offset);
+                if (secp256k1_ecdsa_verify(byteBuff.slice(), context, signatures[i].length, pubs[i].length) == 1)
+                    valid.set(i);
+                offset += data[i].length + signatures[i].length + pubs[i].length;
+            }
+        } finally {
+            r.unlock();
+        }
+        return valid;
+    }
+
     /**
      * libsecp256k1 Create an ECDSA signature.
      *
@@ -392,7 +392,137 @@ public abstract class AbstractBlockChain {
                     block.toString(), e);
         }
     }
-    
+
+    /**
+     * <p>Adds a run of block headers, each following the one before, such as those of a {@link HeadersMessage}. This
+     * is the same as adding them one by one with {@link #add(Block)}, but much cheaper while syncing headers: when the
+     * run extends the best chain, the headers are checked in one pass under one lock, written to the block store
+     * together and the chain head moves once, so listeners hear of the last header only.</p>
+     *
+     * <p>If a header fails verification, the headers before it are still added before the exception is thrown.
+     * Headers that do not extend the best chain, or carry transactions, are added one by one.</p>
+     *
+     * @return true if all the headers were connected to the chain, false if some of them are orphans
+     */
+    public boolean addHeaders(List<Block> headers) throws VerificationException, PrunedException {
+        lock.lock();
+        try {
+            int added = 0;
+            if (!shouldVerifyTransactions()) {
+                try {
+                    added = addHeadersToBestChain(headers);
+                } catch (BlockStoreException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            boolean connected = true;
+            for (Block header : headers.subList(added, headers.size()))
+                connected &= add(header);
+            return connected;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Adds as many of the headers as extend the best chain in a row, returning how many that was.
+    private int addHeadersToBestChain(List<Block> headers)
+            throws BlockStoreException, VerificationException {
+        checkState(lock.isHeldByCurrentThread());
+        StoredBlock head = getChainHead();
+        PendingHeaders pending = new PendingHeaders(blockStore);
+        StoredBlock storedPrev = head;
+        VerificationException failure = null;
+        for (Block header : headers) {
+            if (header.transactions != null || !header.getPrevBlockHash().equals(storedPrev.getHeader().getHash()))
+                break;
+            int height = storedPrev.getHeight() + 1;
+            try {
+                header.verifyHeader();
+                if (!params.passesCheckpoint(height, header.getHash()))
+                    throw new VerificationException("Block failed checkpoint lockin at " + height);
+                params.checkDifficultyTransitions(storedPrev, header, pending);
+                // BIP 66 & 65, as in connectBlock().
+                if (header.getVersion() == Block.BLOCK_VERSION_BIP34
+                        || header.getVersion() == Block.BLOCK_VERSION_BIP66) {
+                    final Integer count = versionTally.getCountAtOrAbove(header.getVersion() + 1);
+                    if (count != null && count >= params.getMajorityRejectBlockOutdated())
+                        throw new VerificationException.BlockVersionOutOfDate(header.getVersion());
+                }
+            } catch (VerificationException e) {
+                log.error("Failed to verify block: ", e);
+                log.error(header.getHashAsString());
+                failure = new VerificationException("Could not verify block:\n" + header.toString(), e);
+                break;
+            }
+            storedPrev = storedPrev.build(header);
+            pending.put(storedPrev);
+            versionTally.add(header.getVersion());
+        }
+        if (!pending.blocks.isEmpty()) {
+            addToBlockStore(pending.blocks);
+            setChainHead(storedPrev);
+            log.debug("Chain is now {} blocks high after {} headers, running listeners", storedPrev.getHeight(),
+                    pending.blocks.size());
+            informListenersForNewBlock(storedPrev.getHeader(), NewBlockType.BEST_CHAIN, null, null, storedPrev);
+        }
+        if (failure != null)
+            throw failure;
+        return pending.blocks.size();
+    }
+
+    /**
+     * Adds the given headers, which follow one another and extend the best chain, to the block store. Used by
+     * {@link #addHeaders(List)}, and only in SPV mode. Stores that can write several headers at once should do so.
+     */
+    protected void addToBlockStore(List<StoredBlock> headers) throws BlockStoreException {
+        for (StoredBlock header : headers)
+            blockStore.put(header);
+    }
+
+    // The block store as it will be once a run of headers is written, for checking difficulty transitions within the
+    // run. Nothing is written to the underlying store.
+    private static class PendingHeaders implements BlockStore {
+        private final BlockStore store;
+        private final List<StoredBlock> blocks = new ArrayList<StoredBlock>();
+        private final Map<Sha256Hash, StoredBlock> byHash = new HashMap<Sha256Hash, StoredBlock>();
+
+        PendingHeaders(BlockStore store) {
+            this.store = store;
+        }
+
+        @Override
+        public void put(StoredBlock block) {
+            blocks.add(block);
+            byHash.put(block.getHeader().getHash(), block);
+        }
+
+        @Override
+        public StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+            StoredBlock block = byHash.get(hash);
+            return block != null ? block : store.get(hash);
+        }
+
+        @Override
+        public StoredBlock getChainHead() throws BlockStoreException {
+            return blocks.isEmpty() ? store.getChainHead() : blocks.get(blocks.size() - 1);
+        }
+
+        @Override
+        public void setChainHead(StoredBlock chainHead) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void close() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public NetworkParameters getParams() {
+            return store.getParams();
+        }
+    }
+
     /**
      * Whether or not we are maintaining a set of unspent outputs and are verifying all transactions.
      * Also indicates that all calls to add() should provide a block containing transactions
@@ -814,16 +944,17 @@ public abstract class AbstractBlockChain {
     }
 
     /**
-     * Returns the set of contiguous blocks between 'higher' and 'lower'. Higher is included, lower is not.
+     * Returns the set of contiguous blocks between 'higher' and 'lower'. Higher is included, lower is not, so the set
+     * is empty if they are the same block. That is the case for the old chain when the chain head is behind the blocks
+     * in the store, as after a full pruned store lost the head it had not flushed yet.
      */
     private static LinkedList<StoredBlock> getPartialChain(StoredBlock higher, StoredBlock lower, BlockStore store) throws BlockStoreException {
-        checkArgument(higher.getHeight() > lower.getHeight(), "higher and lower are reversed");
+        checkArgument(higher.getHeight() >= lower.getHeight(), "higher and lower are reversed");
         LinkedList<StoredBlock> results = new LinkedList<StoredBlock>();
         StoredBlock cursor = higher;
-        while (true) {
+        while (!cursor.equals(lower)) {
             results.add(cursor);
             cursor = checkNotNull(cursor.getPrev(store), "Ran off the end of the chain");
-            if (cursor.equals(lower)) break;
         }
         return results;
     }
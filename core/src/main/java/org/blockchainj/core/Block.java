@@ -21,6 +21,7 @@ import com.google.common.annotations.*;
 import com.google.common.base.*;
 import com.google.common.collect.*;
 import org.blockchainj.script.*;
+import org.blockchainj.utils.*;
 import org.slf4j.*;
 
 import javax.annotation.*;
@@ -60,6 +61,9 @@ public class Block extends Message {
 
     static final long ALLOWED_TIME_DRIFT = 2 * 60 * 60; // Same value as Blockchain Core.
 
+    // Fewest transactions parsed by a thread when the transactions of a block are parsed in parallel.
+    static final int PARALLEL_PARSE_GRAIN = 64;
+
     /**
      * A constant shared by the entire network: how large in bytes a block is allowed to be. One day we may have to
      * upgrade everyone to change this, so Blockchain can continue to grow. For now it exists as an anti-DoS measure to
@@ -253,8 +257,10 @@ public class Block extends Message {
         int numTransactions = (int) readVarInt();
         optimalEncodingMessageSize += VarInt.sizeOf(numTransactions);
         transactions = new ArrayList<Transaction>(numTransactions);
+        Transaction[] parsed = parseTransactionsInParallel(numTransactions);
         for (int i = 0; i < numTransactions; i++) {
-            Transaction tx = new Transaction(params, payload, cursor, this, serializer, UNKNOWN_LENGTH);
+            Transaction tx = parsed != null ? parsed[i] :
+                    new Transaction(params, payload, cursor, this, serializer, UNKNOWN_LENGTH);
             // Label the transaction as coming from the P2P network, so code that cares where we first saw it knows.
             tx.getConfidence().setSource(TransactionConfidence.Source.NETWORK);
             transactions.add(tx);
@@ -264,6 +270,48 @@ public class Block extends Message {
         transactionBytesValid = serializer.isParseRetainMode();
     }
 
+    /**
+     * Parses the transactions starting at the cursor on the threads of the default {@link ParallelLoop}, each thread
+     * hashing the transactions it parses. The transactions are found beforehand by reading just their lengths. Returns
+     * null, having parsed nothing, if there are too few transactions for this to be worth it or their lengths do not
+     * add up, in which case they are parsed one after the other and any problem is found there.
+     */
+    @Nullable
+    private Transaction[] parseTransactionsInParallel(final int numTransactions) throws ProtocolException {
+        ParallelLoop loop = ParallelLoop.getDefault();
+        // A transaction takes at least 10 bytes, which also bounds the number claimed by a broken message.
+        if (numTransactions < 2 * PARALLEL_PARSE_GRAIN || loop.getParallelism() < 2
+                || numTransactions > (payload.length - cursor) / 10)
+            return null;
+        final int[] offsets = new int[numTransactions];
+        int end = cursor;
+        try {
+            for (int i = 0; i < numTransactions; i++) {
+                offsets[i] = end;
+                end += Transaction.calcLength(payload, end);
+                if (end <= offsets[i] || end > payload.length)
+                    return null;
+            }
+        } catch (RuntimeException e) {
+            return null; // Read past the end, a broken message.
+        }
+        final Transaction[] parsed = new Transaction[numTransactions];
+        try {
+            loop.run(numTransactions, PARALLEL_PARSE_GRAIN, new ParallelLoop.Body() {
+                @Override
+                public void run(int from, int to) throws ProtocolException {
+                    for (int i = from; i < to; i++)
+                        parsed[i] = new Transaction(params, payload, offsets[i], Block.this, serializer, UNKNOWN_LENGTH);
+                }
+            });
+        } catch (ProtocolException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RuntimeException(e); // Cannot happen.
+        }
+        return parsed;
+    }
+
     @Override
     protected void parse() throws ProtocolException {
         // header
@@ -598,11 +646,10 @@ public class Block extends Message {
     }
 
     private Sha256Hash calculateMerkleRoot() {
-        List<byte[]> tree = buildMerkleTree();
-        return Sha256Hash.wrap(tree.get(tree.size() - 1));
+        return buildMerkleTree().getRoot();
     }
 
-    private List<byte[]> buildMerkleTree() {
+    private MerkleTree buildMerkleTree() {
         // The Merkle root is based on a tree of hashes calculated from the transactions:
         //
         //     root
@@ -611,7 +658,7 @@ public class Block extends Message {
         //  / \    / \
         // t1 t2 t3 t4
         //
-        // The tree is represented as a list: t1,t2,t3,t4,A,B,root where each
+        // The tree is kept in one array, see MerkleTree: t1,t2,t3,t4,A,B,root where each
         // entry is a hash.
         //
         // The hashing algorithm is double SHA-256. The leaves are a hash of the serialized contents of the transaction.
@@ -633,27 +680,12 @@ public class Block extends Message {
         //    2     3    4  4
         //  / \   / \   / \
         // t1 t2 t3 t4 t5 t5
-        ArrayList<byte[]> tree = new ArrayList<byte[]>();
+        int count = transactions.size();
+        byte[] nodes = MerkleTree.allocate(count);
         // Start by adding all the hashes of the transactions as leaves of the tree.
-        for (Transaction t : transactions) {
-            tree.add(t.getHash().getBytes());
-        }
-        int levelOffset = 0; // Offset in the list where the currently processed level starts.
-        // Step through each level, stopping when we reach the root (levelSize == 1).
-        for (int levelSize = transactions.size(); levelSize > 1; levelSize = (levelSize + 1) / 2) {
-            // For each pair of nodes on that level:
-            for (int left = 0; left < levelSize; left += 2) {
-                // The right hand node can be the same as the left hand, in the case where we don't have enough
-                // transactions.
-                int right = Math.min(left + 1, levelSize - 1);
-                byte[] leftBytes = Utils.reverseBytes(tree.get(levelOffset + left));
-                byte[] rightBytes = Utils.reverseBytes(tree.get(levelOffset + right));
-                tree.add(Utils.reverseBytes(hashTwice(leftBytes, 0, 32, rightBytes, 0, 32)));
-            }
-            // Move to the next level.
-            levelOffset += levelSize;
-        }
-        return tree;
+        for (int i = 0; i < count; i++)
+            MerkleTree.setLeaf(nodes, i, transactions.get(i).getHash());
+        return MerkleTree.build(nodes, count);
     }
 
     /**
@@ -21,6 +21,7 @@ import static com.google.common.base.Preconditions.checkArgument;
 
 import org.blockchainj.store.BlockStore;
 import org.blockchainj.store.BlockStoreException;
+import org.blockchainj.store.SPVBlockStore;
 import org.blockchainj.wallet.Wallet;
 
 import java.util.ArrayList;
@@ -98,6 +99,14 @@ public class BlockChain extends AbstractBlockChain {
         return newBlock;
     }
 
+    @Override
+    protected void addToBlockStore(List<StoredBlock> headers) throws BlockStoreException {
+        if (blockStore instanceof SPVBlockStore)
+            ((SPVBlockStore) blockStore).put(headers);
+        else
+            super.addToBlockStore(headers);
+    }
+
     @Override
     protected void rollbackBlockStore(int height) throws BlockStoreException {
         lock.lock();
@@ -28,6 +28,7 @@ import java.util.HashMap;
 import java.util.Map;
 
 import static org.blockchainj.core.Utils.*;
+import static com.google.common.base.Preconditions.checkArgument;
 
 /**
  * <p>Methods to serialize and de-serialize messages to the Blockchain network format as defined in
@@ -161,12 +162,33 @@ public class BlockchainSerializer extends MessageSerializer {
      */
     @Override
     public Message deserializePayload(BlockchainPacketHeader header, ByteBuffer in) throws ProtocolException, BufferUnderflowException {
+        // The buffer is usually a connection's read buffer, which is reused, so the payload has to be copied out.
         byte[] payloadBytes = new byte[header.size];
         in.get(payloadBytes, 0, header.size);
+        return deserializePayload(header, payloadBytes);
+    }
+
+    /**
+     * Deserialize a payload that was read into an array of its own, which is parsed in place rather than copied.
+     * Large messages such as blocks are read this way by {@link PeerSocketHandler}.
+     */
+    @Override
+    public Message deserializePayload(BlockchainPacketHeader header, byte[] payloadBytes) throws ProtocolException {
+        checkArgument(payloadBytes.length == header.size, "Payload is %s bytes, header says %s", payloadBytes.length,
+                header.size);
+        return deserializePayload(header, payloadBytes, Sha256Hash.hashTwice(payloadBytes));
+    }
+
+    /**
+     * Deserialize a payload that was read into an array of its own, given its double SHA-256 hash. The hash is checked
+     * against the checksum in the header, but the payload is not hashed again.
+     */
+    @Override
+    public Message deserializePayload(BlockchainPacketHeader header, byte[] payloadBytes, byte[] hash) throws ProtocolException {
+        checkArgument(payloadBytes.length == header.size, "Payload is %s bytes, header says %s", payloadBytes.length,
+                header.size);
 
         // Verify the checksum.
-        byte[] hash;
-        hash = Sha256Hash.hashTwice(payloadBytes);
         if (header.checksum[0] != hash[0] || header.checksum[1] != hash[1] ||
                 header.checksum[2] != hash[2] || header.checksum[3] != hash[3]) {
             throw new ProtocolException("Checksum failed to verify, actual " +
@@ -53,11 +53,17 @@ import javax.annotation.Nullable;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.security.SecureRandom;
 import java.security.SignatureException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 import static com.google.common.base.Preconditions.*;
 
@@ -744,6 +750,113 @@ public class ECKey implements EncryptableItem {
         return verify(data, ECDSASignature.decodeFromDER(signature), pub);
     }
 
+    /** One signature to verify with {@link ECKey#verify(List)}. */
+    public static class SignatureCheck {
+        public final byte[] data;
+        public final ECDSASignature signature;
+        public final byte[] pub;
+
+        /**
+         * @param data      Hash of the data to verify.
+         * @param signature The signature.
+         * @param pub       The public key bytes to use.
+         */
+        public SignatureCheck(byte[] data, ECDSASignature signature, byte[] pub) {
+            this.data = checkNotNull(data);
+            this.signature = checkNotNull(signature);
+            this.pub = checkNotNull(pub);
+        }
+    }
+
+    /**
+     * <p>Verifies a batch of signatures, with the same result as calling
+     * {@link #verify(byte[], ECDSASignature, byte[])} for each of them.</p>
+     *
+     * <p>With native ECDSA verification, the batch is handed over in one buffer. Otherwise each distinct public key is
+     * only decoded once, and the multiples of it that the verification precomputes are reused by every signature
+     * made with it, which helps transactions that spend many outputs of the same key.</p>
+     *
+     * @return a set with the indexes of the valid signatures
+     */
+    public static BitSet verify(List<SignatureCheck> checks) {
+        BitSet valid = new BitSet(checks.size());
+        if (FAKE_SIGNATURES) {
+            valid.set(0, checks.size());
+            return valid;
+        }
+
+        if (Secp256k1Context.isEnabled()) {
+            List<Integer> nativeIndexes = new ArrayList<Integer>(checks.size());
+            for (int i = 0; i < checks.size(); i++) {
+                SignatureCheck check = checks.get(i);
+                if (check.data.length == 32 && check.pub.length <= 520)
+                    nativeIndexes.add(i);
+                else if (verify(check.data, check.signature, check.pub))
+                    valid.set(i); // Only the Java code can handle these.
+            }
+            byte[][] data = new byte[nativeIndexes.size()][];
+            byte[][] signatures = new byte[nativeIndexes.size()][];
+            byte[][] pubs = new byte[nativeIndexes.size()][];
+            for (int i = 0; i < nativeIndexes.size(); i++) {
+                SignatureCheck check = checks.get(nativeIndexes.get(i));
+                data[i] = check.data;
+                signatures[i] = check.signature.encodeToDER();
+                pubs[i] = check.pub;
+            }
+            try {
+                BitSet nativeValid = NativeSecp256k1.verifyBatch(data, signatures, pubs);
+                for (int i = nativeValid.nextSetBit(0); i >= 0; i = nativeValid.nextSetBit(i + 1))
+                    valid.set(nativeIndexes.get(i));
+            } catch (NativeSecp256k1Util.AssertFailException e) {
+                log.error("Caught AssertFailException inside secp256k1", e);
+            }
+            return valid;
+        }
+
+        // Spongy Castle keeps the precomputed multiples of a point on the point object itself, so reusing the decoded
+        // point is what makes further signatures with the same key cheaper.
+        Map<ByteBuffer, ECPoint> points = new HashMap<ByteBuffer, ECPoint>();
+        for (int i = 0; i < checks.size(); i++) {
+            SignatureCheck check = checks.get(i);
+            ByteBuffer key = ByteBuffer.wrap(check.pub);
+            ECPoint point = points.get(key);
+            try {
+                if (point == null) {
+                    point = CURVE.getCurve().decodePoint(check.pub);
+                    points.put(key, point);
+                }
+                if (verifySignature(check.data, check.signature, point))
+                    valid.set(i);
+            } catch (IllegalArgumentException e) {
+                // The public key is not a point on the curve, so the signature is not valid.
+            } catch (NullPointerException e) {
+                // Bouncy Castle contains a bug that can cause NPEs given specially crafted signatures. Those signatures
+                // are inherently invalid/attack sigs so we just fail them here rather than crash the thread.
+                log.error("Caught NPE inside bouncy castle", e);
+            }
+        }
+        return valid;
+    }
+
+    // The ECDSA verification of Spongy Castle's ECDSASigner, without building a signer for every signature.
+    private static boolean verifySignature(byte[] data, ECDSASignature signature, ECPoint pub) {
+        BigInteger n = CURVE.getN();
+        BigInteger r = signature.r;
+        BigInteger s = signature.s;
+        if (r.signum() <= 0 || r.compareTo(n) >= 0 || s.signum() <= 0 || s.compareTo(n) >= 0)
+            return false;
+        BigInteger e = new BigInteger(1, data);
+        if (data.length * 8 > n.bitLength())
+            e = e.shiftRight(data.length * 8 - n.bitLength());
+        BigInteger c = s.modInverse(n);
+        BigInteger u1 = e.multiply(c).mod(n);
+        BigInteger u2 = r.multiply(c).mod(n);
+        ECPoint point = ECAlgorithms.sumOfTwoMultiplies(CURVE.getG(), u1, pub, u2).normalize();
+        if (point.isInfinity())
+            return false;
+        return point.getAffineXCoord().toBigInteger().mod(n).equals(r);
+    }
+
     /**
      * Verifies the given ASN.1 encoded ECDSA signature against a hash using the public key.
      *
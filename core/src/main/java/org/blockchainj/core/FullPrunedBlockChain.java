@@ -28,12 +28,18 @@ import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nullable;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.ListIterator;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.*;
 
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
 
 /**
@@ -55,6 +61,27 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
     // Whether or not to execute scriptPubKeys before accepting a transaction (i.e. check signatures).
     private boolean runScripts = true;
 
+    /** The default number of queued blocks whose spent outputs {@link #addAll(List)} looks up ahead of time. */
+    public static final int DEFAULT_PREFETCH_DEPTH = 8;
+    // How many outpoints a single prefetch job looks up. Large blocks are split over several jobs.
+    private static final int PREFETCH_BATCH_SIZE = 128;
+    // Looks up the outputs spent by queued blocks, see addAll(). Shared by all chains, so that none of them has a pool to
+    // shut down. Threads are only started once lookups are submitted, and are daemon threads.
+    private static final ExecutorService UTXO_PREFETCH_EXECUTOR = Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors(), new ContextPropagatingThreadFactory("UTXO prefetch"));
+
+    private int prefetchDepth = DEFAULT_PREFETCH_DEPTH;
+
+    // Runs the scripts of connected blocks. Null means the shared default scheduler.
+    @Nullable private volatile ScriptVerificationScheduler scriptVerificationScheduler;
+
+    // Lookups issued by addAll() for blocks that have not been connected yet, keyed by block hash. Guarded by lock.
+    private final Map<Sha256Hash, List<Future<Map<TransactionOutPoint, UTXO>>>> prefetchedOutputs =
+            new HashMap<Sha256Hash, List<Future<Map<TransactionOutPoint, UTXO>>>>();
+    // Outputs spent whilst prefetches were outstanding. A prefetched copy of one of these may have been read before
+    // the spend was committed, so it is never trusted and the store is asked instead. Guarded by lock.
+    private final Set<TransactionOutPoint> spentDuringPrefetch = new HashSet<TransactionOutPoint>();
+
     /**
      * Constructs a block chain connected to the given wallet and store. To obtain a {@link Wallet} you can construct
      * one from scratch, or you can deserialize a saved wallet from disk using
@@ -143,67 +170,249 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
         this.runScripts = value;
     }
 
-    // TODO: Remove lots of duplicated code in the two connectTransactions
+    /**
+     * Sets the scheduler that runs the scripts of connected blocks. By default this is the one shared by all chains,
+     * {@link ScriptVerificationScheduler#getDefault()}.
+     */
+    public void setScriptVerificationScheduler(ScriptVerificationScheduler scheduler) {
+        this.scriptVerificationScheduler = checkNotNull(scheduler);
+    }
+
+    /**
+     * Returns the scheduler that runs the scripts of connected blocks, see
+     * {@link #setScriptVerificationScheduler(ScriptVerificationScheduler)}.
+     */
+    public ScriptVerificationScheduler getScriptVerificationScheduler() {
+        ScriptVerificationScheduler scheduler = scriptVerificationScheduler;
+        return scheduler != null ? scheduler : ScriptVerificationScheduler.getDefault();
+    }
 
-    // TODO: execute in order of largest transaction (by input count) first
-    ExecutorService scriptVerificationExecutor = Executors.newFixedThreadPool(
-            Runtime.getRuntime().availableProcessors(), new ContextPropagatingThreadFactory("Script verification"));
+    /**
+     * Sets how many of the blocks passed to {@link #addAll(List)} have the outputs they spend looked up in parallel
+     * ahead of being connected. Zero disables prefetching. Defaults to {@link #DEFAULT_PREFETCH_DEPTH}.
+     */
+    public void setPrefetchDepth(int depth) {
+        checkArgument(depth >= 0);
+        lock.lock();
+        try {
+            this.prefetchDepth = depth;
+        } finally {
+            lock.unlock();
+        }
+    }
 
     /**
-     * A job submitted to the executor which verifies signatures.
+     * Returns how many queued blocks have their spent outputs looked up ahead of time, see {@link #setPrefetchDepth(int)}.
      */
-    private static class Verifier implements Callable<VerificationException> {
-        final Transaction tx;
-        final List<Script> prevOutScripts;
-        final Set<VerifyFlag> verifyFlags;
-
-        public Verifier(final Transaction tx, final List<Script> prevOutScripts, final Set<VerifyFlag> verifyFlags) {
-            this.tx = tx;
-            this.prevOutScripts = prevOutScripts;
-            this.verifyFlags = verifyFlags;
+    public int getPrefetchDepth() {
+        lock.lock();
+        try {
+            return prefetchDepth;
+        } finally {
+            lock.unlock();
         }
+    }
 
-        @Nullable
-        @Override
-        public VerificationException call() throws Exception {
+    /**
+     * <p>Adds the given blocks to the chain in order, as if {@link #add(Block)} was called for each of them.</p>
+     *
+     * <p>Whilst a block is being connected, the unspent outputs needed by the next {@link #getPrefetchDepth()} blocks
+     * are fetched from the block store in parallel, so that the store's I/O latency overlaps with verification instead
+     * of being paid one outpoint at a time under the chain lock. This is intended for initial sync and replays, where
+     * blocks arrive in large runs. Processing stops at the first block that fails verification.</p>
+     */
+    public void addAll(List<Block> blocks) throws VerificationException, PrunedException {
+        lock.lock();
+        try {
+            int prefetched = 0;
+            for (int i = 0; i < blocks.size(); i++) {
+                // Keep lookups for the next prefetchDepth blocks (including this one) in flight.
+                for (; prefetched < blocks.size() && prefetched < i + prefetchDepth; prefetched++)
+                    prefetchOutputs(blocks.get(prefetched));
+                add(blocks.get(i));
+            }
+        } finally {
+            cancelPrefetches();
+            spentDuringPrefetch.clear();
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Starts looking up the outputs spent by the given block on {@link #UTXO_PREFETCH_EXECUTOR}. Spends of outputs created
+     * within the block itself are skipped, they are resolved from the outputs created earlier in the block.
+     */
+    private void prefetchOutputs(Block block) {
+        checkState(lock.isHeldByCurrentThread());
+        if (block.transactions == null || prefetchedOutputs.containsKey(block.getHash()))
+            return;
+        Set<Sha256Hash> createdInBlock = new HashSet<Sha256Hash>();
+        for (Transaction tx : block.transactions)
+            createdInBlock.add(tx.getHash());
+        List<TransactionOutPoint> outPoints = new ArrayList<TransactionOutPoint>();
+        for (Transaction tx : block.transactions) {
+            if (tx.isCoinBase())
+                continue;
+            for (TransactionInput in : tx.getInputs()) {
+                TransactionOutPoint outPoint = in.getOutpoint();
+                if (!createdInBlock.contains(outPoint.getHash()))
+                    outPoints.add(outPoint);
+            }
+        }
+        List<Future<Map<TransactionOutPoint, UTXO>>> lookups = new ArrayList<Future<Map<TransactionOutPoint, UTXO>>>();
+        for (int i = 0; i < outPoints.size(); i += PREFETCH_BATCH_SIZE) {
+            List<TransactionOutPoint> batch = outPoints.subList(i, Math.min(i + PREFETCH_BATCH_SIZE, outPoints.size()));
+            lookups.add(UTXO_PREFETCH_EXECUTOR.submit(new OutputLookup(blockStore, batch)));
+        }
+        prefetchedOutputs.put(block.getHash(), lookups);
+    }
+
+    /**
+     * Removes and returns the outputs prefetched for the given block, waiting for outstanding lookups to complete.
+     * Returns an empty map if nothing was prefetched. Outputs which were not found, or whose lookup failed, are simply
+     * absent and will be read from the store by the caller.
+     */
+    private Map<TransactionOutPoint, UTXO> takePrefetchedOutputs(Sha256Hash blockHash) {
+        checkState(lock.isHeldByCurrentThread());
+        List<Future<Map<TransactionOutPoint, UTXO>>> lookups = prefetchedOutputs.remove(blockHash);
+        Map<TransactionOutPoint, UTXO> outputs = new HashMap<TransactionOutPoint, UTXO>();
+        if (lookups == null)
+            return outputs;
+        for (Future<Map<TransactionOutPoint, UTXO>> lookup : lookups) {
             try {
-                ListIterator<Script> prevOutIt = prevOutScripts.listIterator();
-                for (int index = 0; index < tx.getInputs().size(); index++) {
-                    tx.getInputs().get(index).getScriptSig().correctlySpends(tx, index, prevOutIt.next(), verifyFlags);
+                outputs.putAll(lookup.get());
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e); // Shouldn't happen
+            } catch (ExecutionException e) {
+                log.warn("Prefetching outputs for block {} failed, falling back to the block store: {}", blockHash,
+                        e.getCause().toString());
+            }
+        }
+        return outputs;
+    }
+
+    /** Drops all outstanding prefetches, for instance because a re-org made their results unreliable. */
+    private void cancelPrefetches() {
+        checkState(lock.isHeldByCurrentThread());
+        for (List<Future<Map<TransactionOutPoint, UTXO>>> lookups : prefetchedOutputs.values())
+            for (Future<Map<TransactionOutPoint, UTXO>> lookup : lookups)
+                lookup.cancel(false);
+        prefetchedOutputs.clear();
+    }
+
+    /**
+     * <p>The changes a block being connected makes to the set of unspent outputs. The outputs spent by the block are
+     * read from the store up front with a single {@link FullPrunedBlockStore#getTransactionOutputs(List)} call, and the
+     * resulting removals and additions are written back with one batch call each by {@link #flush()}. Outputs which
+     * are created and spent within the block never touch the store.</p>
+     *
+     * <p>Each output is handed out by {@link #spend(TransactionOutPoint)} only once, so a second spend of the same
+     * output within the block finds nothing.</p>
+     */
+    private class BlockUTXOChanges {
+        // Outputs the block spends that were created by earlier blocks, as read from the store (or prefetched). Spent
+        // or missing outputs map to null.
+        private final Map<TransactionOutPoint, UTXO> previous = new HashMap<TransactionOutPoint, UTXO>();
+        // Outputs created by the block so far and not spent again within it.
+        private final Map<TransactionOutPoint, UTXO> created = new LinkedHashMap<TransactionOutPoint, UTXO>();
+        private final List<UTXO> spentPrevious = new ArrayList<UTXO>();
+
+        BlockUTXOChanges(List<Transaction> transactions, Map<TransactionOutPoint, UTXO> prefetched)
+                throws BlockStoreException {
+            Set<Sha256Hash> txHashes = new HashSet<Sha256Hash>();
+            for (Transaction tx : transactions)
+                txHashes.add(tx.getHash());
+            List<TransactionOutPoint> lookups = new ArrayList<TransactionOutPoint>();
+            for (Transaction tx : transactions) {
+                if (tx.isCoinBase())
+                    continue;
+                for (TransactionInput in : tx.getInputs()) {
+                    TransactionOutPoint outPoint = in.getOutpoint();
+                    // Spends of outputs created within the block are resolved as the block is processed.
+                    if (txHashes.contains(outPoint.getHash()) || previous.containsKey(outPoint))
+                        continue;
+                    // A prefetched copy can only be trusted if nothing has spent the output since it was read.
+                    UTXO out = prefetched.get(outPoint);
+                    if (out == null || spentDuringPrefetch.contains(outPoint))
+                        lookups.add(outPoint);
+                    previous.put(outPoint, out);
                 }
-            } catch (VerificationException e) {
-                return e;
             }
-            return null;
+            if (!lookups.isEmpty()) {
+                List<UTXO> outs = blockStore.getTransactionOutputs(lookups);
+                for (int i = 0; i < lookups.size(); i++)
+                    previous.put(lookups.get(i), outs.get(i));
+            }
+        }
+
+        /**
+         * Returns the output spent by an input of the block and marks it spent, or null if it does not exist or was
+         * already spent.
+         */
+        @Nullable
+        UTXO spend(TransactionOutPoint outPoint) throws BlockStoreException {
+            UTXO out = created.remove(outPoint);
+            if (out != null)
+                return out;
+            if (previous.containsKey(outPoint))
+                out = previous.get(outPoint);
+            else // Spends an output of a transaction in this block which it has not created (yet), ask the store.
+                out = blockStore.getTransactionOutput(outPoint.getHash(), outPoint.getIndex());
+            previous.put(outPoint, null);
+            if (out != null) {
+                spentPrevious.add(out);
+                if (!prefetchedOutputs.isEmpty())
+                    spentDuringPrefetch.add(outPoint);
+            }
+            return out;
+        }
+
+        void create(UTXO out) {
+            created.put(new TransactionOutPoint(params, out.getIndex(), out.getHash()), out);
+        }
+
+        /** Writes the changes to the block store, which must be in a batch write. */
+        void flush() throws BlockStoreException {
+            blockStore.removeUnspentTransactionOutputs(spentPrevious);
+            blockStore.addUnspentTransactionOutputs(new ArrayList<UTXO>(created.values()));
         }
     }
 
+    // TODO: Remove lots of duplicated code in the two connectTransactions
+
     /**
-     * Get the {@link Script} from the script bytes or return Script of empty byte array.
+     * A job submitted to the prefetch executor which reads a batch of unspent outputs from the store.
      */
-    private Script getScript(byte[] scriptBytes) {
-        try {
-            return new Script(scriptBytes);
-        } catch (Exception e) {
-            return new Script(new byte[0]);
+    private static class OutputLookup implements Callable<Map<TransactionOutPoint, UTXO>> {
+        final FullPrunedBlockStore blockStore;
+        final List<TransactionOutPoint> outPoints;
+
+        public OutputLookup(FullPrunedBlockStore blockStore, List<TransactionOutPoint> outPoints) {
+            this.blockStore = blockStore;
+            this.outPoints = outPoints;
+        }
+
+        @Override
+        public Map<TransactionOutPoint, UTXO> call() throws BlockStoreException {
+            Map<TransactionOutPoint, UTXO> found = new HashMap<TransactionOutPoint, UTXO>();
+            List<UTXO> outs = blockStore.getTransactionOutputs(outPoints);
+            for (int i = 0; i < outPoints.size(); i++) {
+                if (outs.get(i) != null)
+                    found.put(outPoints.get(i), outs.get(i));
+            }
+            return found;
         }
     }
 
     /**
-     * Get the address from the {@link Script} if it exists otherwise return empty string "".
-     *
-     * @param script The script.
-     * @return The address.
+     * Get the {@link Script} from the script bytes or return Script of empty byte array.
      */
-    private String getScriptAddress(@Nullable Script script) {
-        String address = "";
+    private Script getScript(byte[] scriptBytes) {
         try {
-            if (script != null) {
-                address = script.getToAddress(params, true).toString();
-            }
+            return new Script(scriptBytes);
         } catch (Exception e) {
+            return new Script(new byte[0]);
         }
-        return address;
     }
 
     @Override
@@ -215,16 +424,16 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
         if (!params.passesCheckpoint(height, block.getHash()))
             throw new VerificationException("Block failed checkpoint lockin at " + height);
 
+        // Wait for any prefetched outputs before opening the batch, so that lookups still running against the store
+        // are never blocked behind our own uncommitted writes.
+        final Map<TransactionOutPoint, UTXO> prefetched = takePrefetchedOutputs(block.getHash());
         blockStore.beginDatabaseBatchWrite();
 
         LinkedList<UTXO> txOutsSpent = new LinkedList<UTXO>();
         LinkedList<UTXO> txOutsCreated = new LinkedList<UTXO>();
         long sigOps = 0;
 
-        if (scriptVerificationExecutor.isShutdown())
-            scriptVerificationExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
-
-        List<Future<VerificationException>> listScriptVerificationResults = new ArrayList<Future<VerificationException>>(block.transactions.size());
+        ScriptVerificationScheduler.Verification scriptVerification = getScriptVerificationScheduler().newVerification();
         try {
             if (!params.isCheckpoint(height)) {
                 // BIP30 violator blocks are ones that contain a duplicated transaction. They are all in the
@@ -241,6 +450,7 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                         sigOps += tx.getSigOpCount();
                 }
             }
+            BlockUTXOChanges utxoChanges = new BlockUTXOChanges(block.transactions, prefetched);
             Coin totalFees = Coin.ZERO;
             Coin coinbaseValue = null;
             for (final Transaction tx : block.transactions) {
@@ -254,8 +464,7 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                     // outputs.
                     for (int index = 0; index < tx.getInputs().size(); index++) {
                         TransactionInput in = tx.getInputs().get(index);
-                        UTXO prevOut = blockStore.getTransactionOutput(in.getOutpoint().getHash(),
-                                in.getOutpoint().getIndex());
+                        UTXO prevOut = utxoChanges.spend(in.getOutpoint());
                         if (prevOut == null)
                             throw new VerificationException("Attempted to spend a non-existent or already spent output!");
                         // Coinbases can't be spent until they mature, to avoid re-orgs destroying entire transaction
@@ -276,22 +485,20 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                         }
 
                         prevOutScripts.add(prevOut.getScript());
-                        blockStore.removeUnspentTransactionOutput(prevOut);
                         txOutsSpent.add(prevOut);
                     }
                 }
                 Sha256Hash hash = tx.getHash();
                 for (TransactionOutput out : tx.getOutputs()) {
                     valueOut = valueOut.add(out.getValue());
-                    // For each output, add it to the set of unspent outputs so it can be consumed in future.
-                    Script script = getScript(out.getScriptBytes());
+                    // For each output, add it to the set of unspent outputs so it can be consumed in future. The
+                    // address is left for the store to derive if it needs one.
                     UTXO newOut = new UTXO(hash,
                             out.getIndex(),
                             out.getValue(),
                             height, isCoinBase,
-                            script,
-                            getScriptAddress(script));
-                    blockStore.addUnspentTransactionOutput(newOut);
+                            getScript(out.getScriptBytes()));
+                    utxoChanges.create(newOut);
                     txOutsCreated.add(newOut);
                 }
                 // All values were already checked for being non-negative (as it is verified in Transaction.verify())
@@ -308,32 +515,21 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
 
                 if (!isCoinBase && runScripts) {
                     // Because correctlySpends modifies transactions, this must come after we are done with tx
-                    FutureTask<VerificationException> future = new FutureTask<VerificationException>(new Verifier(tx, prevOutScripts, verifyFlags));
-                    scriptVerificationExecutor.execute(future);
-                    listScriptVerificationResults.add(future);
+                    scriptVerification.add(tx, prevOutScripts, verifyFlags);
                 }
             }
             if (totalFees.compareTo(params.getMaxMoney()) > 0 || block.getBlockInflation(height).add(totalFees).compareTo(coinbaseValue) < 0)
                 throw new VerificationException("Transaction fees out of range");
-            for (Future<VerificationException> future : listScriptVerificationResults) {
-                VerificationException e;
-                try {
-                    e = future.get();
-                } catch (InterruptedException thrownE) {
-                    throw new RuntimeException(thrownE); // Shouldn't happen
-                } catch (ExecutionException thrownE) {
-                    log.error("Script.correctlySpends threw a non-normal exception: " + thrownE.getCause());
-                    throw new VerificationException("Bug in Script.correctlySpends, likely script malformed in some new and interesting way.", thrownE);
-                }
-                if (e != null)
-                    throw e;
-            }
+            // Write while the scripts are still being verified.
+            scriptVerification.start();
+            utxoChanges.flush();
+            scriptVerification.await();
         } catch (VerificationException e) {
-            scriptVerificationExecutor.shutdownNow();
+            scriptVerification.cancel();
             blockStore.abortDatabaseBatchWrite();
             throw e;
         } catch (BlockStoreException e) {
-            scriptVerificationExecutor.shutdownNow();
+            scriptVerification.cancel();
             blockStore.abortDatabaseBatchWrite();
             throw e;
         }
@@ -358,6 +554,7 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
             throw new PrunedException(newBlock.getHeader().getHash());
         }
         TransactionOutputChanges txOutChanges;
+        ScriptVerificationScheduler.Verification scriptVerification = null;
         try {
             List<Transaction> transactions = block.getTransactions();
             if (transactions != null) {
@@ -372,12 +569,12 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                             throw new VerificationException("Block failed BIP30 test!");
                     }
                 }
+                BlockUTXOChanges utxoChanges = new BlockUTXOChanges(transactions,
+                        Collections.<TransactionOutPoint, UTXO>emptyMap());
                 Coin totalFees = Coin.ZERO;
                 Coin coinbaseValue = null;
 
-                if (scriptVerificationExecutor.isShutdown())
-                    scriptVerificationExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
-                List<Future<VerificationException>> listScriptVerificationResults = new ArrayList<Future<VerificationException>>(transactions.size());
+                scriptVerification = getScriptVerificationScheduler().newVerification();
                 for (final Transaction tx : transactions) {
                     final Set<VerifyFlag> verifyFlags =
                         params.getTransactionVerificationFlags(newBlock.getHeader(), tx, getVersionTally(), Integer.SIZE);
@@ -389,8 +586,7 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                     if (!isCoinBase) {
                         for (int index = 0; index < tx.getInputs().size(); index++) {
                             final TransactionInput in = tx.getInputs().get(index);
-                            final UTXO prevOut = blockStore.getTransactionOutput(in.getOutpoint().getHash(),
-                                    in.getOutpoint().getIndex());
+                            final UTXO prevOut = utxoChanges.spend(in.getOutpoint());
                             if (prevOut == null)
                                 throw new VerificationException("Attempted spend of a non-existent or already spent output!");
                             if (prevOut.isCoinbase() && newBlock.getHeight() - prevOut.getHeight() < params.getSpendableCoinbaseDepth())
@@ -406,23 +602,19 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                             // TODO: Enforce DER signature format
 
                             prevOutScripts.add(prevOut.getScript());
-
-                            blockStore.removeUnspentTransactionOutput(prevOut);
                             txOutsSpent.add(prevOut);
                         }
                     }
                     Sha256Hash hash = tx.getHash();
                     for (TransactionOutput out : tx.getOutputs()) {
                         valueOut = valueOut.add(out.getValue());
-                        Script script = getScript(out.getScriptBytes());
                         UTXO newOut = new UTXO(hash,
                                 out.getIndex(),
                                 out.getValue(),
                                 newBlock.getHeight(),
                                 isCoinBase,
-                                script,
-                                getScriptAddress(script));
-                        blockStore.addUnspentTransactionOutput(newOut);
+                                getScript(out.getScriptBytes()));
+                        utxoChanges.create(newOut);
                         txOutsCreated.add(newOut);
                     }
                     // All values were already checked for being non-negative (as it is verified in Transaction.verify())
@@ -439,47 +631,37 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
 
                     if (!isCoinBase) {
                         // Because correctlySpends modifies transactions, this must come after we are done with tx
-                        FutureTask<VerificationException> future = new FutureTask<VerificationException>(new Verifier(tx, prevOutScripts, verifyFlags));
-                        scriptVerificationExecutor.execute(future);
-                        listScriptVerificationResults.add(future);
+                        scriptVerification.add(tx, prevOutScripts, verifyFlags);
                     }
                 }
                 if (totalFees.compareTo(params.getMaxMoney()) > 0 ||
                         newBlock.getHeader().getBlockInflation(newBlock.getHeight()).add(totalFees).compareTo(coinbaseValue) < 0)
                     throw new VerificationException("Transaction fees out of range");
+                scriptVerification.start();
+                utxoChanges.flush();
                 txOutChanges = new TransactionOutputChanges(txOutsCreated, txOutsSpent);
-                for (Future<VerificationException> future : listScriptVerificationResults) {
-                    VerificationException e;
-                    try {
-                        e = future.get();
-                    } catch (InterruptedException thrownE) {
-                        throw new RuntimeException(thrownE); // Shouldn't happen
-                    } catch (ExecutionException thrownE) {
-                        log.error("Script.correctlySpends threw a non-normal exception: " + thrownE.getCause());
-                        throw new VerificationException("Bug in Script.correctlySpends, likely script malformed in some new and interesting way.", thrownE);
-                    }
-                    if (e != null)
-                        throw e;
-                }
+                scriptVerification.await();
             } else {
                 txOutChanges = block.getTxOutChanges();
-                if (!params.isCheckpoint(newBlock.getHeight()))
-                    for (UTXO out : txOutChanges.txOutsCreated) {
-                        Sha256Hash hash = out.getHash();
-                        if (blockStore.getTransactionOutput(hash, out.getIndex()) != null)
+                if (!params.isCheckpoint(newBlock.getHeight())) {
+                    List<TransactionOutPoint> outPoints = new ArrayList<TransactionOutPoint>(txOutChanges.txOutsCreated.size());
+                    for (UTXO out : txOutChanges.txOutsCreated)
+                        outPoints.add(new TransactionOutPoint(params, out.getIndex(), out.getHash()));
+                    for (UTXO out : blockStore.getTransactionOutputs(outPoints))
+                        if (out != null)
                             throw new VerificationException("Block failed BIP30 test!");
-                    }
-                for (UTXO out : txOutChanges.txOutsCreated)
-                    blockStore.addUnspentTransactionOutput(out);
-                for (UTXO out : txOutChanges.txOutsSpent)
-                    blockStore.removeUnspentTransactionOutput(out);
+                }
+                blockStore.addUnspentTransactionOutputs(txOutChanges.txOutsCreated);
+                blockStore.removeUnspentTransactionOutputs(txOutChanges.txOutsSpent);
             }
         } catch (VerificationException e) {
-            scriptVerificationExecutor.shutdownNow();
+            if (scriptVerification != null)
+                scriptVerification.cancel();
             blockStore.abortDatabaseBatchWrite();
             throw e;
         } catch (BlockStoreException e) {
-            scriptVerificationExecutor.shutdownNow();
+            if (scriptVerification != null)
+                scriptVerification.cancel();
             blockStore.abortDatabaseBatchWrite();
             throw e;
         }
@@ -493,15 +675,16 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
     @Override
     protected void disconnectTransactions(StoredBlock oldBlock) throws PrunedException, BlockStoreException {
         checkState(lock.isHeldByCurrentThread());
+        // Outputs spent by the blocks being disconnected come back, and those they created disappear, which any
+        // outstanding prefetch may not have seen.
+        cancelPrefetches();
         blockStore.beginDatabaseBatchWrite();
         try {
             StoredUndoableBlock undoBlock = blockStore.getUndoBlock(oldBlock.getHeader().getHash());
             if (undoBlock == null) throw new PrunedException(oldBlock.getHeader().getHash());
             TransactionOutputChanges txOutChanges = undoBlock.getTxOutChanges();
-            for (UTXO out : txOutChanges.txOutsSpent)
-                blockStore.addUnspentTransactionOutput(out);
-            for (UTXO out : txOutChanges.txOutsCreated)
-                blockStore.removeUnspentTransactionOutput(out);
+            blockStore.addUnspentTransactionOutputs(txOutChanges.txOutsSpent);
+            blockStore.removeUnspentTransactionOutputs(txOutChanges.txOutsCreated);
         } catch (PrunedException e) {
             blockStore.abortDatabaseBatchWrite();
             throw e;
@@ -0,0 +1,127 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.blockchainj.core;
+
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>A merkle tree of transaction hashes, see {@link Block} for how it is built. All the nodes are kept in one array,
+ * level by level from the leaves up, as 32 byte hashes in the byte order they are hashed in. Building the tree is then
+ * one pass over the array, hashing each pair of nodes straight into their parent, rather than an array or two per
+ * node.</p>
+ *
+ * <p>Levels are numbered by their height, the leaves being at height 0.</p>
+ */
+final class MerkleTree {
+    private static final int HASH_LENGTH = 32;
+
+    private final byte[] nodes;
+    // The index of the first node of each level, with one more entry for the end of the array.
+    private final int[] levelStarts;
+
+    private MerkleTree(byte[] nodes, int[] levelStarts) {
+        this.nodes = nodes;
+        this.levelStarts = levelStarts;
+    }
+
+    /** Returns an array large enough for the tree over the given number of leaves, to write the leaves into. */
+    static byte[] allocate(int leafCount) {
+        checkArgument(leafCount > 0, "A merkle tree needs leaves");
+        int nodeCount = 0;
+        for (int width = leafCount; width > 1; width = (width + 1) / 2)
+            nodeCount += width;
+        return new byte[(nodeCount + 1) * HASH_LENGTH];
+    }
+
+    /** Writes the given hash, which is in the usual reversed order, as the leaf at the given index. */
+    static void setLeaf(byte[] nodes, int index, Sha256Hash hash) {
+        byte[] bytes = hash.getBytes();
+        int offset = index * HASH_LENGTH;
+        for (int i = 0; i < HASH_LENGTH; i++)
+            nodes[offset + i] = bytes[HASH_LENGTH - 1 - i];
+    }
+
+    /**
+     * Builds the tree in the given array, which must come from {@link #allocate(int)} and have the leaves written into
+     * it.
+     */
+    static MerkleTree build(byte[] nodes, int leafCount) {
+        int height = 0;
+        for (int width = leafCount; width > 1; width = (width + 1) / 2)
+            height++;
+        int[] levelStarts = new int[height + 2];
+        byte[] pair = new byte[HASH_LENGTH * 2];
+        int start = 0;
+        int width = leafCount;
+        for (int level = 0; level < height; level++) {
+            int next = start + width;
+            levelStarts[level + 1] = next;
+            for (int left = 0; left < width; left += 2) {
+                int parent = (next + left / 2) * HASH_LENGTH;
+                if (left + 1 < width) {
+                    // The two children are next to each other in the array, so they are hashed where they are.
+                    Sha256Hash.hashTwice(nodes, (start + left) * HASH_LENGTH, HASH_LENGTH * 2, nodes, parent);
+                } else {
+                    // The last node is paired with itself if the level has an odd number of nodes.
+                    System.arraycopy(nodes, (start + left) * HASH_LENGTH, pair, 0, HASH_LENGTH);
+                    System.arraycopy(nodes, (start + left) * HASH_LENGTH, pair, HASH_LENGTH, HASH_LENGTH);
+                    Sha256Hash.hashTwice(pair, 0, pair.length, nodes, parent);
+                }
+            }
+            start = next;
+            width = (width + 1) / 2;
+        }
+        levelStarts[height + 1] = start + 1;
+        return new MerkleTree(nodes, levelStarts);
+    }
+
+    /** Builds the tree over the given hashes. */
+    static MerkleTree build(List<Sha256Hash> leaves) {
+        byte[] nodes = allocate(leaves.size());
+        for (int i = 0; i < leaves.size(); i++)
+            setLeaf(nodes, i, leaves.get(i));
+        return build(nodes, leaves.size());
+    }
+
+    /** The height of the root. */
+    int getHeight() {
+        return levelStarts.length - 2;
+    }
+
+    /** Returns the node at the given height and position, as a hash in the usual reversed order. */
+    Sha256Hash get(int height, int pos) {
+        int index = levelStarts[height] + pos;
+        checkArgument(pos >= 0 && index < levelStarts[height + 1], "No such node");
+        byte[] bytes = new byte[HASH_LENGTH];
+        int offset = index * HASH_LENGTH;
+        for (int i = 0; i < HASH_LENGTH; i++)
+            bytes[i] = nodes[offset + HASH_LENGTH - 1 - i];
+        return Sha256Hash.wrap(bytes);
+    }
+
+    Sha256Hash getRoot() {
+        return get(getHeight(), 0);
+    }
+
+    /** Hashes two nodes, given in the usual reversed order, into their parent. */
+    static Sha256Hash combine(Sha256Hash left, Sha256Hash right) {
+        byte[] pair = new byte[HASH_LENGTH * 2];
+        setLeaf(pair, 0, left);
+        setLeaf(pair, 1, right);
+        return Sha256Hash.wrapReversed(Sha256Hash.hashTwice(pair));
+    }
+}
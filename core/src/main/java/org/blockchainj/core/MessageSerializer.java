@@ -46,6 +46,22 @@ public abstract class MessageSerializer {
      */
     public abstract Message deserializePayload(BlockchainSerializer.BlockchainPacketHeader header, ByteBuffer in) throws ProtocolException, BufferUnderflowException, UnsupportedOperationException;
 
+    /**
+     * Deserialize a payload that was read into an array of its own. The returned message may keep referring to the
+     * array instead of copying it, so the caller must not change it afterwards.
+     */
+    public Message deserializePayload(BlockchainSerializer.BlockchainPacketHeader header, byte[] payloadBytes) throws ProtocolException, UnsupportedOperationException {
+        return deserializePayload(header, ByteBuffer.wrap(payloadBytes));
+    }
+
+    /**
+     * Deserialize a payload that was read into an array of its own, like {@link #deserializePayload(BlockchainSerializer.BlockchainPacketHeader, byte[])},
+     * given its double SHA-256 hash that the caller calculated while the payload arrived.
+     */
+    public Message deserializePayload(BlockchainSerializer.BlockchainPacketHeader header, byte[] payloadBytes, byte[] hash) throws ProtocolException, UnsupportedOperationException {
+        return deserializePayload(header, payloadBytes);
+    }
+
     /**
      * Whether the serializer will produce cached mode Messages
      */
@@ -0,0 +1,639 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.blockchainj.core;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import net.jcip.annotations.GuardedBy;
+import org.blockchainj.store.BlockStore;
+import org.blockchainj.store.BlockStoreException;
+import org.blockchainj.utils.Threading;
+import org.blockchainj.wallet.Wallet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Downloads the block chain from all connected peers at once, for {@link PeerGroup#setUseParallelDownload(boolean)}.
+ * The headers are downloaded first from a single peer. The blocks, or filtered blocks if a Bloom filter is in use, are
+ * then asked for from every peer, a few at a time each, within a window that slides along as the blocks are connected
+ * to the chain in order. Requests that a peer does not answer in time, or that were outstanding when it disconnected,
+ * are given to another peer.</p>
+ *
+ * <p>The future completes once the blocks of all the headers the header peer had are connected. If a block does not
+ * verify, it fails instead.</p>
+ */
+class ParallelChainDownload {
+    private static final Logger log = LoggerFactory.getLogger(ParallelChainDownload.class);
+
+    /** How many blocks may be asked for from one peer at a time by default. */
+    static final int DEFAULT_MAX_BLOCKS_IN_FLIGHT_PER_PEER = 16;
+    /** How far ahead of the chain blocks may be asked for by default. */
+    static final int DEFAULT_WINDOW_SIZE = 1024;
+    /** How long a peer has to answer a request by default. */
+    static final long DEFAULT_REQUEST_TIMEOUT_MILLIS = 20 * 1000;
+
+    private final ReentrantLock lock = Threading.lock("paralleldownload");
+    private final NetworkParameters params;
+    private final AbstractBlockChain chain;
+    private final List<Wallet> wallets;
+    private final int maxBlocksInFlightPerPeer;
+    private final int windowSize;
+    private final long requestTimeoutMillis;
+    private final SettableFuture<Void> future = SettableFuture.create();
+
+    // The peer headers are downloaded from. Download listeners registered on it hear about the blocks connected.
+    @GuardedBy("lock") @Nullable private Peer headerPeer;
+    // When the headers in flight were asked for, or zero if there are none.
+    @GuardedBy("lock") private long headersRequestedAt;
+    // Whether the header peer sent all the headers it has.
+    @GuardedBy("lock") private boolean headersDone;
+    // The last header downloaded and its height, null until the first headers arrive.
+    @GuardedBy("lock") @Nullable private Block lastHeader;
+    @GuardedBy("lock") private int lastHeaderHeight;
+    // The height of the next block to connect to the chain.
+    @GuardedBy("lock") private int nextHeight;
+    // Blocks to ask for, by height. Only their headers are known.
+    @GuardedBy("lock") private final TreeMap<Integer, Block> unrequested = new TreeMap<Integer, Block>();
+    // Blocks asked for, by height.
+    @GuardedBy("lock") private final Map<Integer, Request> inFlight = new HashMap<Integer, Request>();
+    // Blocks waiting for the ones below them to be connected, by height.
+    @GuardedBy("lock") private final TreeMap<Integer, Received> received = new TreeMap<Integer, Received>();
+    // The peers blocks are asked from, with how many requests each has in flight.
+    @GuardedBy("lock") private final Map<Peer, Integer> peers = new LinkedHashMap<Peer, Integer>();
+    // Peers that let a request time out. They are not asked for more until they deliver a block.
+    @GuardedBy("lock") private final Set<Peer> stalled = new HashSet<Peer>();
+    @GuardedBy("lock") private long fastCatchupTimeSecs;
+    @GuardedBy("lock") private boolean passedFastCatchupTime;
+    @GuardedBy("lock") private boolean filtered;
+    // Set when a filtered block used up the Bloom filter, until the peers have been sent a new one.
+    @GuardedBy("lock") private boolean awaitingFilter;
+    @GuardedBy("lock") private int filterUpdates;
+    // Bumped whenever the requests in flight are thrown away, so that their answers are ignored.
+    @GuardedBy("lock") private int generation;
+    // Whether a thread is connecting blocks to the chain. Only one does at a time, so they are connected in order.
+    @GuardedBy("lock") private boolean connecting;
+
+    private static class Request {
+        final int height;
+        final Block header;
+        final Peer peer;
+        final long time;
+        final int generation;
+
+        Request(int height, Block header, Peer peer, long time, int generation) {
+            this.height = height;
+            this.header = header;
+            this.peer = peer;
+            this.time = time;
+            this.generation = generation;
+        }
+    }
+
+    private static class Received {
+        final Block header;
+        // A Block or FilteredBlock, or null if only the header is needed.
+        @Nullable final Message block;
+        @Nullable final Peer peer;
+
+        Received(Block header, @Nullable Message block, @Nullable Peer peer) {
+            this.header = header;
+            this.block = block;
+            this.peer = peer;
+        }
+    }
+
+    ParallelChainDownload(NetworkParameters params, AbstractBlockChain chain, List<Wallet> wallets) {
+        this(params, chain, wallets, DEFAULT_MAX_BLOCKS_IN_FLIGHT_PER_PEER, DEFAULT_WINDOW_SIZE, DEFAULT_REQUEST_TIMEOUT_MILLIS);
+    }
+
+    ParallelChainDownload(NetworkParameters params, AbstractBlockChain chain, List<Wallet> wallets,
+                          int maxBlocksInFlightPerPeer, int windowSize, long requestTimeoutMillis) {
+        checkArgument(maxBlocksInFlightPerPeer > 0 && windowSize > 0 && requestTimeoutMillis > 0);
+        this.params = params;
+        this.chain = chain;
+        this.wallets = wallets;
+        this.maxBlocksInFlightPerPeer = maxBlocksInFlightPerPeer;
+        this.windowSize = windowSize;
+        this.requestTimeoutMillis = requestTimeoutMillis;
+        this.fastCatchupTimeSecs = params.getGenesisBlock().getTimeSeconds();
+    }
+
+    /** Returns a future that completes once the chain has caught up with the headers, or fails if a block is bad. */
+    ListenableFuture<Void> getFuture() {
+        return future;
+    }
+
+    /**
+     * Sets the time before which only headers are needed, like {@link Peer#setDownloadParameters(long, boolean)}, and
+     * whether to ask for filtered blocks. Applies to headers not downloaded yet and requests not made yet.
+     */
+    void setDownloadParameters(long fastCatchupTimeSecs, boolean filtered) {
+        lock.lock();
+        try {
+            this.fastCatchupTimeSecs = fastCatchupTimeSecs;
+            this.filtered = filtered;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Downloads the headers from the given peer from now on, and asks it for blocks too. */
+    void setHeaderPeer(Peer peer) {
+        lock.lock();
+        try {
+            headerPeer = peer;
+            headersRequestedAt = 0;
+            // The new peer may know of more.
+            headersDone = false;
+            if (lastHeader == null)
+                nextHeight = chain.getBestChainHeight() + 1;
+            if (!peers.containsKey(peer))
+                peers.put(peer, 0);
+            updateLocked();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Asks the given peer for blocks too. */
+    void addPeer(Peer peer) {
+        lock.lock();
+        try {
+            if (!peers.containsKey(peer))
+                peers.put(peer, 0);
+            updateLocked();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Stops asking the given peer for anything, giving what it was asked for to the other peers. */
+    void removePeer(Peer peer) {
+        lock.lock();
+        try {
+            if (peers.remove(peer) != null)
+                requeueLocked(peer);
+            stalled.remove(peer);
+            if (peer == headerPeer) {
+                headerPeer = null;
+                headersRequestedAt = 0;
+            }
+            updateLocked();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns whether the given peer has been asked for headers or blocks it has not sent yet. */
+    boolean isWaitingFor(Peer peer) {
+        lock.lock();
+        try {
+            Integer count = peers.get(peer);
+            return (count != null && count > 0) || (peer == headerPeer && headersRequestedAt != 0);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** To be called once the peers have been sent a new Bloom filter. */
+    void filterUpdated() {
+        lock.lock();
+        try {
+            filterUpdates++;
+            awaitingFilter = false;
+            updateLocked();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gives the blocks a peer did not deliver in time to other peers, and disconnects the header peer if it did not
+     * send headers in time. To be called regularly.
+     */
+    void checkForStalls() {
+        Peer slowHeaderPeer = null;
+        lock.lock();
+        try {
+            if (future.isDone())
+                return;
+            long now = Utils.currentTimeMillis();
+            if (headerPeer != null && headersRequestedAt != 0 && now - headersRequestedAt > requestTimeoutMillis)
+                slowHeaderPeer = headerPeer;
+            Set<Peer> slow = new HashSet<Peer>();
+            for (Request request : inFlight.values())
+                if (now - request.time > requestTimeoutMillis)
+                    slow.add(request.peer);
+            for (Peer peer : slow) {
+                log.info("{}: Did not deliver blocks within {} ms, asking other peers", peer, requestTimeoutMillis);
+                requeueLocked(peer);
+                stalled.add(peer);
+            }
+            // If every peer is that slow, there is nothing better to do than to keep asking them.
+            if (stalled.containsAll(peers.keySet()))
+                stalled.clear();
+            updateLocked();
+        } finally {
+            lock.unlock();
+        }
+        if (slowHeaderPeer != null) {
+            log.warn("{}: Did not send headers within {} ms, disconnecting", slowHeaderPeer, requestTimeoutMillis);
+            slowHeaderPeer.close();
+        }
+    }
+
+    // Makes whatever requests can be made now, and completes the future if there is nothing left to do.
+    @GuardedBy("lock")
+    private void updateLocked() {
+        if (future.isDone())
+            return;
+        requestHeadersLocked();
+        requestBlocksLocked();
+        if (headersDone && headerPeer != null && headersRequestedAt == 0 && unrequested.isEmpty()
+                && inFlight.isEmpty() && received.isEmpty() && !connecting)
+            future.set(null);
+    }
+
+    @GuardedBy("lock")
+    private void requestHeadersLocked() {
+        final Peer peer = headerPeer;
+        if (peer == null || headersRequestedAt != 0 || headersDone)
+            return;
+        // Far enough ahead of the chain already.
+        if (lastHeader != null && lastHeaderHeight >= nextHeight + windowSize)
+            return;
+        List<Sha256Hash> locator = lastHeader != null ? Collections.singletonList(lastHeader.getHash()) : chainLocator();
+        headersRequestedAt = Utils.currentTimeMillis();
+        Futures.addCallback(peer.getBlockHeaders(locator, Sha256Hash.ZERO_HASH), new FutureCallback<List<Block>>() {
+            @Override
+            public void onSuccess(List<Block> headers) {
+                headersArrived(peer, headers);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                // Never happens, headers requests are not cancelled.
+            }
+        });
+    }
+
+    // Like the locator Peer uses: the top 100 blocks of the chain and the genesis block.
+    private List<Sha256Hash> chainLocator() {
+        List<Sha256Hash> locator = new ArrayList<Sha256Hash>(101);
+        BlockStore store = chain.getBlockStore();
+        StoredBlock cursor = chain.getChainHead();
+        try {
+            for (int i = 100; cursor != null && i > 0; i--) {
+                locator.add(cursor.getHeader().getHash());
+                cursor = cursor.getPrev(store);
+            }
+        } catch (BlockStoreException e) {
+            throw new RuntimeException(e);
+        }
+        if (cursor != null)
+            locator.add(params.getGenesisBlock().getHash());
+        return locator;
+    }
+
+    // Hands out the lowest heights first, as many as each peer may have in flight in turn.
+    @GuardedBy("lock")
+    private void requestBlocksLocked() {
+        if (awaitingFilter)
+            return;
+        int limit = nextHeight + windowSize;
+        for (Map.Entry<Peer, Integer> entry : peers.entrySet()) {
+            if (unrequested.isEmpty() || unrequested.firstKey() >= limit)
+                return;
+            Peer peer = entry.getKey();
+            if (stalled.contains(peer) || (filtered && !peer.getPeerVersionMessage().isBloomFilteringSupported()))
+                continue;
+            int count = entry.getValue();
+            List<Sha256Hash> hashes = new ArrayList<Sha256Hash>();
+            List<Request> requests = new ArrayList<Request>();
+            long now = Utils.currentTimeMillis();
+            while (count < maxBlocksInFlightPerPeer && !unrequested.isEmpty() && unrequested.firstKey() < limit) {
+                Map.Entry<Integer, Block> next = unrequested.pollFirstEntry();
+                Request request = new Request(next.getKey(), next.getValue(), peer, now, generation);
+                inFlight.put(request.height, request);
+                hashes.add(request.header.getHash());
+                requests.add(request);
+                count++;
+            }
+            if (requests.isEmpty())
+                continue;
+            entry.setValue(count);
+            List<? extends ListenableFuture<? extends Message>> futures =
+                    filtered ? peer.getFilteredBlocks(hashes) : peer.getBlocks(hashes);
+            for (int i = 0; i < requests.size(); i++) {
+                final Request request = requests.get(i);
+                Futures.addCallback(futures.get(i), new FutureCallback<Message>() {
+                    @Override
+                    public void onSuccess(Message block) {
+                        blockArrived(request, block);
+                    }
+
+                    @Override
+                    public void onFailure(Throwable t) {
+                        // The peer did not have it.
+                        requestFailed(request);
+                    }
+                });
+            }
+        }
+    }
+
+    // Puts back whatever the given peer was asked for, to be asked for again.
+    @GuardedBy("lock")
+    private void requeueLocked(Peer peer) {
+        Iterator<Request> it = inFlight.values().iterator();
+        while (it.hasNext()) {
+            Request request = it.next();
+            if (request.peer == peer) {
+                it.remove();
+                unrequested.put(request.height, request.header);
+            }
+        }
+        if (peers.containsKey(peer))
+            peers.put(peer, 0);
+    }
+
+    @GuardedBy("lock")
+    private void removeRequestLocked(Request request) {
+        inFlight.remove(request.height);
+        Integer count = peers.get(request.peer);
+        if (count != null)
+            peers.put(request.peer, count - 1);
+    }
+
+    private void headersArrived(Peer peer, List<Block> headers) {
+        boolean bad = false;
+        lock.lock();
+        try {
+            if (peer != headerPeer || future.isDone())
+                return;
+            headersRequestedAt = 0;
+            Sha256Hash prev = null;
+            int height = 0;
+            if (lastHeader != null) {
+                prev = lastHeader.getHash();
+                height = lastHeaderHeight;
+            } else if (!headers.isEmpty()) {
+                // The first headers may fork off below the top of the chain.
+                StoredBlock fork = chain.getBlockStore().get(headers.get(0).getPrevBlockHash());
+                if (fork != null) {
+                    prev = fork.getHeader().getHash();
+                    height = fork.getHeight();
+                    nextHeight = height + 1;
+                }
+            }
+            for (Block header : headers) {
+                if (!header.getPrevBlockHash().equals(prev)) {
+                    log.warn("{}: Sent headers that do not connect at {}", peer, header.getHashAsString());
+                    bad = true;
+                    break;
+                }
+                header.verifyHeader();
+                height++;
+                prev = header.getHash();
+                lastHeader = header;
+                lastHeaderHeight = height;
+                // Only the headers are needed until the fast catchup time, as in Peer.processHeaders().
+                if (!passedFastCatchupTime && header.getTimeSeconds() < fastCatchupTimeSecs) {
+                    received.put(height, new Received(header, null, null));
+                } else {
+                    passedFastCatchupTime = true;
+                    unrequested.put(height, header);
+                }
+            }
+            if (!bad && headers.size() < HeadersMessage.MAX_HEADERS)
+                headersDone = true;
+            updateLocked();
+        } catch (VerificationException e) {
+            log.warn("{}: Sent a bad header", peer, e);
+            bad = true;
+        } catch (BlockStoreException e) {
+            throw new RuntimeException(e);
+        } finally {
+            lock.unlock();
+        }
+        if (bad) {
+            // The peer group picks another header peer.
+            peer.close();
+            return;
+        }
+        connectReceived();
+    }
+
+    private void blockArrived(Request request, Message block) {
+        lock.lock();
+        try {
+            if (future.isDone() || request.generation != generation)
+                return;
+            stalled.remove(request.peer);
+            Request current = inFlight.get(request.height);
+            if (current != request) {
+                if (request.height < nextHeight || received.containsKey(request.height))
+                    return;  // Another peer was quicker.
+                // It had been given to another peer after this one was too slow, or put back to be asked for again.
+                if (current != null)
+                    removeRequestLocked(current);
+                unrequested.remove(request.height);
+            } else {
+                removeRequestLocked(request);
+            }
+            received.put(request.height, new Received(request.header, block, request.peer));
+            updateLocked();
+        } finally {
+            lock.unlock();
+        }
+        connectReceived();
+    }
+
+    private void requestFailed(Request request) {
+        lock.lock();
+        try {
+            if (future.isDone() || inFlight.get(request.height) != request)
+                return;
+            removeRequestLocked(request);
+            unrequested.put(request.height, request.header);
+            stalled.add(request.peer);
+            if (stalled.containsAll(peers.keySet()))
+                stalled.clear();
+            updateLocked();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Connects the received blocks that are next in line to the chain, on whichever thread gets here first.
+    private void connectReceived() {
+        lock.lock();
+        try {
+            if (connecting)
+                return;
+            connecting = true;
+        } finally {
+            lock.unlock();
+        }
+        boolean stillConnecting = true;
+        try {
+            while (stillConnecting)
+                stillConnecting = connectNext();
+        } finally {
+            if (stillConnecting) {
+                // Something was thrown.
+                lock.lock();
+                try {
+                    connecting = false;
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+    }
+
+    // Connects the next block, or the next run of blocks for which only the headers are needed. Returns false once
+    // there is nothing to connect, having stopped connecting.
+    private boolean connectNext() {
+        List<Received> run = new ArrayList<Received>();
+        int height;
+        Peer listenerPeer;
+        int filterUpdatesBefore;
+        lock.lock();
+        try {
+            height = nextHeight;
+            Received next;
+            while ((next = received.get(nextHeight)) != null) {
+                if (!run.isEmpty() && (next.block != null || run.get(0).block != null))
+                    break;
+                received.remove(nextHeight);
+                run.add(next);
+                nextHeight++;
+            }
+            if (run.isEmpty()) {
+                connecting = false;
+                updateLocked();
+                return false;
+            }
+            listenerPeer = headerPeer;
+            filterUpdatesBefore = filterUpdates;
+        } finally {
+            lock.unlock();
+        }
+        Received first = run.get(0);
+        try {
+            boolean connected;
+            if (first.block == null) {
+                List<Block> headers = new ArrayList<Block>(run.size());
+                for (Received header : run)
+                    headers.add(header.header);
+                connected = chain.addHeaders(headers);
+            } else if (first.block instanceof FilteredBlock) {
+                FilteredBlock filteredBlock = (FilteredBlock) first.block;
+                if (checkForFilterExhaustion(filteredBlock)) {
+                    awaitFilter(height, first, filterUpdatesBefore);
+                    return true;
+                }
+                connected = chain.add(filteredBlock);
+            } else {
+                connected = chain.add((Block) first.block);
+            }
+            if (!connected)
+                throw new VerificationException("Block " + first.header.getHashAsString() + " does not connect");
+        } catch (VerificationException e) {
+            giveUp(e, first.peer != null ? first.peer : listenerPeer);
+            return false;
+        } catch (PrunedException e) {
+            giveUp(e, null);
+            return false;
+        }
+        if (listenerPeer != null) {
+            for (Received connected : run) {
+                if (connected.block instanceof FilteredBlock)
+                    listenerPeer.invokeOnBlocksDownloaded(connected.header, (FilteredBlock) connected.block);
+                else
+                    listenerPeer.invokeOnBlocksDownloaded(connected.block != null ? (Block) connected.block : connected.header, null);
+            }
+        }
+        return true;
+    }
+
+    private boolean checkForFilterExhaustion(FilteredBlock block) {
+        boolean exhausted = false;
+        for (Wallet wallet : wallets)
+            exhausted |= wallet.checkForFilterExhaustion(block);
+        return exhausted;
+    }
+
+    // The block used up the Bloom filter, so it and the other filtered blocks asked for since may be missing
+    // transactions. They are all asked for again once the peers have the new filter.
+    private void awaitFilter(int height, Received block, int filterUpdatesBefore) {
+        lock.lock();
+        try {
+            log.info("Bloom filter exhausted whilst processing block {}, discarding", block.header.getHash());
+            generation++;
+            nextHeight = height;
+            unrequested.put(height, block.header);
+            for (Request request : inFlight.values())
+                unrequested.put(request.height, request.header);
+            inFlight.clear();
+            for (Map.Entry<Peer, Integer> entry : peers.entrySet())
+                entry.setValue(0);
+            Iterator<Map.Entry<Integer, Received>> it = received.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<Integer, Received> entry = it.next();
+                if (entry.getValue().block != null) {
+                    unrequested.put(entry.getKey(), entry.getValue().header);
+                    it.remove();
+                }
+            }
+            // The peer group recalculates the filter on another thread once the wallet has new keys, it may already
+            // have sent it.
+            awaitingFilter = filterUpdates == filterUpdatesBefore;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void giveUp(Exception e, @Nullable Peer culprit) {
+        lock.lock();
+        try {
+            connecting = false;
+        } finally {
+            lock.unlock();
+        }
+        log.warn("Parallel chain download failed", e);
+        future.setException(e);
+        if (culprit != null)
+            culprit.close();
+    }
+}
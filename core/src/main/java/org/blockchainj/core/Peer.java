@@ -41,6 +41,7 @@ import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.CopyOnWriteArraySet;
 import java.util.concurrent.Executor;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantLock;
 
 import static com.google.common.base.Preconditions.checkNotNull;
@@ -146,6 +147,8 @@ public class Peer extends PeerSocketHandler {
     // TODO: The types/locking should be rationalised a bit.
     private final CopyOnWriteArrayList<GetDataRequest> getDataFutures;
     @GuardedBy("getAddrFutures") private final LinkedList<SettableFuture<AddressMessage>> getAddrFutures;
+    // Headers messages carry no reference to the getheaders they answer, so they go to these in the order sent.
+    @GuardedBy("getHeadersFutures") private final LinkedList<SettableFuture<List<Block>>> getHeadersFutures;
     @Nullable @GuardedBy("lock") private LinkedList<SettableFuture<UTXOsMessage>> getutxoFutures;
 
     // Outstanding pings against this peer and how long the last one took to complete.
@@ -154,6 +157,15 @@ public class Peer extends PeerSocketHandler {
     private final CopyOnWriteArrayList<PendingPing> pendingPings;
     private static final int PING_MOVING_AVERAGE_WINDOW = 20;
 
+    // How fast the peer has been sending us the chain: an exponentially weighted moving average in bytes per second,
+    // or -1 before the first sample, and the bytes of blocks, filtered blocks and headers received since then.
+    private final ReentrantLock downloadRateLock = new ReentrantLock();
+    @GuardedBy("downloadRateLock") private double downloadRate = -1;
+    @GuardedBy("downloadRateLock") private long downloadRateUpdatedMsec;
+    private final AtomicLong chainBytesReceived = new AtomicLong();
+    // Samples this old have lost 63% of their weight in the average.
+    private static final int DOWNLOAD_RATE_TIME_CONSTANT_SECS = 5;
+
     private volatile VersionMessage vPeerVersionMessage;
 
     // A settable future which completes (with this) when the connection is open
@@ -232,6 +244,7 @@ public class Peer extends PeerSocketHandler {
         this.vDownloadData = chain != null;
         this.getDataFutures = new CopyOnWriteArrayList<GetDataRequest>();
         this.getAddrFutures = new LinkedList<SettableFuture<AddressMessage>>();
+        this.getHeadersFutures = new LinkedList<SettableFuture<List<Block>>>();
         this.fastCatchupTimeSecs = params.getGenesisBlock().getTimeSeconds();
         this.pendingPings = new CopyOnWriteArrayList<PendingPing>();
         this.vMinProtocolVersion = params.getProtocolVersionNum(NetworkParameters.ProtocolVersion.PONG);
@@ -477,6 +490,12 @@ public class Peer extends PeerSocketHandler {
             throw new ProtocolException(
                     "Received " + m.getClass().getSimpleName() + " before version handshake is complete.");
 
+        if (m instanceof Block || m instanceof FilteredBlock || m instanceof HeadersMessage
+                || (m instanceof Transaction && currentFilteredBlock != null)) {
+            if (m.length != Message.UNKNOWN_LENGTH)
+                chainBytesReceived.addAndGet(m.length);
+        }
+
         if (m instanceof Ping) {
             processPing((Ping) m);
         } else if (m instanceof Pong) {
@@ -501,7 +520,8 @@ public class Peer extends PeerSocketHandler {
             // properly explore the network.
             processAddressMessage((AddressMessage) m);
         } else if (m instanceof HeadersMessage) {
-            processHeaders((HeadersMessage) m);
+            if (!maybeHandleRequestedHeaders((HeadersMessage) m))
+                processHeaders((HeadersMessage) m);
         } else if (m instanceof AlertMessage) {
             processAlert((AlertMessage) m);
         } else if (m instanceof VersionMessage) {
@@ -540,6 +560,17 @@ public class Peer extends PeerSocketHandler {
         future.set(m);
     }
 
+    private boolean maybeHandleRequestedHeaders(HeadersMessage m) {
+        SettableFuture<List<Block>> future;
+        synchronized (getHeadersFutures) {
+            future = getHeadersFutures.poll();
+            if (future == null)  // Part of chain download rather than asked for by getBlockHeaders().
+                return false;
+        }
+        future.set(m.getBlockHeaders());
+        return true;
+    }
+
     private void processVersionMessage(VersionMessage m) throws ProtocolException {
         if (vPeerVersionMessage != null)
             throw new ProtocolException("Got two version messages from peer");
@@ -680,7 +711,27 @@ public class Peer extends PeerSocketHandler {
 
         try {
             checkState(!downloadBlockBodies, toString());
-            for (int i = 0; i < m.getBlockHeaders().size(); i++) {
+            // Headers that are clearly before the fast catchup time and below the top of the chain are added in one go,
+            // the loop below then carries on from where that stopped.
+            List<Block> headers = m.getBlockHeaders();
+            int chainHeight = blockChain.getBestChainHeight();
+            int run = 0;
+            while (run < headers.size() && headers.get(run).getTimeSeconds() < fastCatchupTimeSecs
+                    && chainHeight + run < vPeerVersionMessage.bestHeight)
+                run++;
+            if (run > 0) {
+                if (!vDownloadData) {
+                    log.info("Lost download peer status, throwing away downloaded headers.");
+                    return;
+                }
+                if (!blockChain.addHeaders(headers.subList(0, run)))
+                    throw new ProtocolException("Got unconnected header from peer: " +
+                            headers.get(run - 1).getHashAsString());
+                // Download listeners still hear of every header, they measure progress and speed in blocks.
+                for (Block header : headers.subList(0, run))
+                    invokeOnBlocksDownloaded(header, null);
+            }
+            for (int i = run; i < m.getBlockHeaders().size(); i++) {
                 Block header = m.getBlockHeaders().get(i);
                 // Process headers until we pass the fast catchup time, or are about to catch up with the head
                 // of the chain - always process the last block as a full/filtered block to kick us out of the
@@ -976,12 +1027,13 @@ public class Peer extends PeerSocketHandler {
             log.debug("Received block but was not configured with an AbstractBlockChain");
             return;
         }
-        // Did we lose download peer status after requesting block data?
-        if (!vDownloadData) {
+        // Did we lose download peer status after requesting block data? If we asked for the block before that, it's
+        // still worth having.
+        boolean requested = pendingBlockDownloads.remove(m.getHash());
+        if (!vDownloadData && !requested) {
             log.debug("{}: Received block we did not ask for: {}", getAddress(), m.getHashAsString());
             return;
         }
-        pendingBlockDownloads.remove(m.getHash());
         try {
             // Otherwise it's a block sent to us because the peer thought we needed it, so add it to the block chain.
             if (blockChain.add(m)) {
@@ -1008,7 +1060,9 @@ public class Peer extends PeerSocketHandler {
                 // off a request for lots more headers in parallel.
                 lock.lock();
                 try {
-                    if (downloadBlockBodies) {
+                    if (!vDownloadData) {
+                        log.info("Not asking for the parents of {} as we are no longer the download peer.", m.getHash());
+                    } else if (downloadBlockBodies) {
                         final Block orphanRoot = checkNotNull(blockChain.getOrphanRoot(m.getHash()));
                         blockChainDownloadLocked(orphanRoot.getHash());
                     } else {
@@ -1031,7 +1085,11 @@ public class Peer extends PeerSocketHandler {
     protected void endFilteredBlock(FilteredBlock m) {
         if (log.isDebugEnabled())
             log.debug("{}: Received broadcast filtered block {}", getAddress(), m.getHash().toString());
-        if (!vDownloadData) {
+        // Was this block requested by getFilteredBlocks()?
+        if (maybeHandleRequestedData(m)) return;
+        // As in processBlock, a block asked for before losing download peer status is still worth having.
+        boolean requested = pendingBlockDownloads.remove(m.getBlockHeader().getHash());
+        if (!vDownloadData && !requested) {
             log.debug("{}: Received block we did not ask for: {}", getAddress(), m.getHash().toString());
             return;
         }
@@ -1042,7 +1100,6 @@ public class Peer extends PeerSocketHandler {
         // Note that we currently do nothing about peers which maliciously do not include transactions which
         // actually match our filter or which simply do not send us all the transactions we need: it can be fixed
         // by cross-checking peers against each other.
-        pendingBlockDownloads.remove(m.getBlockHeader().getHash());
         try {
             // It's a block sent to us because the peer thought we needed it, so maybe add it to the block chain.
             // The FilteredBlock m here contains a list of hashes, and may contain Transaction objects for a subset
@@ -1109,8 +1166,12 @@ public class Peer extends PeerSocketHandler {
                 // no matter how many blocks are solved, and therefore that the (2) duplicate filtering can work.
                 lock.lock();
                 try {
-                    final Block orphanRoot = checkNotNull(blockChain.getOrphanRoot(m.getHash()));
-                    blockChainDownloadLocked(orphanRoot.getHash());
+                    if (!vDownloadData) {
+                        log.info("Not asking for the parents of {} as we are no longer the download peer.", m.getHash());
+                    } else {
+                        final Block orphanRoot = checkNotNull(blockChain.getOrphanRoot(m.getHash()));
+                        blockChainDownloadLocked(orphanRoot.getHash());
+                    }
                 } finally {
                     lock.unlock();
                 }
@@ -1148,7 +1209,7 @@ public class Peer extends PeerSocketHandler {
         return found;
     }
 
-    private void invokeOnBlocksDownloaded(final Block block, @Nullable final FilteredBlock fb) {
+    void invokeOnBlocksDownloaded(final Block block, @Nullable final FilteredBlock fb) {
         // It is possible for the peer block height difference to be negative when blocks have been solved and broadcast
         // since the time we first connected to the peer. However, it's weird and unexpected to receive a callback
         // with negative "blocks left" in this case, so we clamp to zero so the API user doesn't have to think about it.
@@ -1303,6 +1364,46 @@ public class Peer extends PeerSocketHandler {
         return sendSingleGetData(getdata);
     }
 
+    /**
+     * Asks the connected peer for the blocks of the given hashes with a single getdata, and returns a future for each
+     * of them in the same order. The blocks are not given to the block chain, unlike those downloaded as part of chain
+     * download.
+     */
+    public List<ListenableFuture<Block>> getBlocks(List<Sha256Hash> blockHashes) {
+        GetDataMessage getdata = new GetDataMessage(params);
+        for (Sha256Hash hash : blockHashes)
+            getdata.addBlock(hash);
+        return this.<Block>sendGetData(getdata);
+    }
+
+    /**
+     * Like {@link #getBlocks(List)}, but asks for filtered blocks, matched against the Bloom filter last set on this
+     * peer. A future completes once the transactions that matched have arrived too.
+     */
+    public List<ListenableFuture<FilteredBlock>> getFilteredBlocks(List<Sha256Hash> blockHashes) {
+        GetDataMessage getdata = new GetDataMessage(params);
+        for (Sha256Hash hash : blockHashes)
+            getdata.addFilteredBlock(hash);
+        List<ListenableFuture<FilteredBlock>> futures = this.<FilteredBlock>sendGetData(getdata);
+        // The ping makes sure the last filtered block ends, see startFilteredBlock().
+        sendMessage(new Ping((long) (Math.random() * Long.MAX_VALUE)));
+        return futures;
+    }
+
+    /**
+     * Asks the connected peer for the headers of the blocks following the block locator, stopping at the given hash or
+     * after as many as the peer sends at once if that is zero, and returns a future representing the answer. The
+     * headers are not given to the block chain, unlike those downloaded as part of chain download.
+     */
+    public ListenableFuture<List<Block>> getBlockHeaders(List<Sha256Hash> blockLocator, Sha256Hash stopHash) {
+        SettableFuture<List<Block>> future = SettableFuture.create();
+        synchronized (getHeadersFutures) {
+            getHeadersFutures.add(future);
+        }
+        sendMessage(new GetHeadersMessage(params, blockLocator, stopHash));
+        return future;
+    }
+
     /**
      * Asks the connected peer for the given transaction from its memory pool. Transactions in the chain cannot be
      * retrieved this way because peers don't have a transaction ID to transaction-pos-on-disk index, and besides,
@@ -1331,6 +1432,21 @@ public class Peer extends PeerSocketHandler {
         return req.future;
     }
 
+    /**
+     * Sends a getdata and returns a future for each of its items, in the same order. The caller picks T to match the
+     * kind of the items, as the futures are completed with whatever message answers them.
+     */
+    private <T> List<ListenableFuture<T>> sendGetData(GetDataMessage getdata) {
+        List<ListenableFuture<T>> futures = new ArrayList<ListenableFuture<T>>(getdata.getItems().size());
+        for (InventoryItem item : getdata.getItems()) {
+            SettableFuture<T> future = SettableFuture.create();
+            getDataFutures.add(new GetDataRequest(item.hash, future));
+            futures.add(future);
+        }
+        sendMessage(getdata);
+        return futures;
+    }
+
     /** Sends a getaddr request to the peer and returns a future that completes with the answer once the peer has replied. */
     public ListenableFuture<AddressMessage> getAddr() {
         SettableFuture<AddressMessage> future = SettableFuture.create();
@@ -1486,14 +1602,7 @@ public class Peer extends PeerSocketHandler {
         // chain even if the chain block count is lower.
         final int blocksLeft = getPeerBlockHeightDifference();
         if (blocksLeft >= 0) {
-            for (final ListenerRegistration<ChainDownloadStartedEventListener> registration : chainDownloadStartedEventListeners) {
-                registration.executor.execute(new Runnable() {
-                    @Override
-                    public void run() {
-                        registration.listener.onChainDownloadStarted(Peer.this, blocksLeft);
-                    }
-                });
-            }
+            invokeOnChainDownloadStarted(blocksLeft);
             // When we just want as many blocks as possible, we can set the target hash to zero.
             lock.lock();
             try {
@@ -1504,6 +1613,17 @@ public class Peer extends PeerSocketHandler {
         }
     }
 
+    void invokeOnChainDownloadStarted(final int blocksLeft) {
+        for (final ListenerRegistration<ChainDownloadStartedEventListener> registration : chainDownloadStartedEventListeners) {
+            registration.executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    registration.listener.onChainDownloadStarted(Peer.this, blocksLeft);
+                }
+            });
+        }
+    }
+
     private class PendingPing {
         // The future that will be invoked when the pong is heard back.
         public SettableFuture<Long> future;
@@ -1601,6 +1721,55 @@ public class Peer extends PeerSocketHandler {
         }
     }
 
+    /**
+     * Returns how fast the peer has been sending us blocks, filtered blocks and headers, in bytes per second, as an
+     * exponentially weighted moving average that forgets old samples within a few times
+     * {@value #DOWNLOAD_RATE_TIME_CONSTANT_SECS} seconds. Returns -1 if the rate was never measured, which a
+     * {@link PeerGroup} does while downloading the chain.
+     */
+    public long getDownloadRate() {
+        downloadRateLock.lock();
+        try {
+            return downloadRate < 0 ? -1 : (long) downloadRate;
+        } finally {
+            downloadRateLock.unlock();
+        }
+    }
+
+    /**
+     * Adds the bytes received since the last call to the download rate. If nothing was received, the time only counts
+     * against the peer if it was downloading, as being idle says nothing about how fast it is. The first call just
+     * starts the clock.
+     */
+    void updateDownloadRate(boolean downloading) {
+        downloadRateLock.lock();
+        try {
+            long now = Utils.currentTimeMillis();
+            if (downloadRateUpdatedMsec == 0) {
+                downloadRateUpdatedMsec = now;
+                chainBytesReceived.set(0);
+                return;
+            }
+            long elapsed = now - downloadRateUpdatedMsec;
+            if (elapsed <= 0)
+                return;
+            downloadRateUpdatedMsec = now;
+            long bytes = chainBytesReceived.getAndSet(0);
+            if (bytes == 0 && !downloading)
+                return;
+            double sample = bytes * 1000.0 / elapsed;
+            if (downloadRate < 0) {
+                downloadRate = sample;
+            } else {
+                // Weigh the sample by how long it took, so the average doesn't depend on how often this is called.
+                double weight = 1 - Math.exp(-elapsed / (1000.0 * DOWNLOAD_RATE_TIME_CONSTANT_SECS));
+                downloadRate += weight * (sample - downloadRate);
+            }
+        } finally {
+            downloadRateLock.unlock();
+        }
+    }
+
     private void processPing(Ping m) {
         if (m.hasNonce())
             sendMessage(new Pong(m.getNonce()));
@@ -1741,6 +1910,8 @@ public class Peer extends PeerSocketHandler {
             if (!vDownloadData) {
                 // This branch should be harmless but I want to know how often it happens in reality.
                 log.warn("Lost download peer status whilst awaiting fresh filter.");
+                // The new download peer starts from the chain head, so it asks for the discarded blocks again.
+                awaitingFreshFilter = null;
                 return;
             }
             // Ping/pong to wait for blocks that are still being streamed to us to finish being downloaded and
@@ -156,6 +156,10 @@ public class PeerGroup implements TransactionBroadcaster {
     @GuardedBy("lock") private long pingIntervalMsec = DEFAULT_PING_INTERVAL_MSEC;
 
     @GuardedBy("lock") private boolean useLocalhostPeerWhenPossible = true;
+    @GuardedBy("lock") private boolean useParallelDownload = false;
+    @GuardedBy("lock") private int maxBlocksInFlightPerPeer = ParallelChainDownload.DEFAULT_MAX_BLOCKS_IN_FLIGHT_PER_PEER;
+    // The chain download running across all peers, if one is.
+    @GuardedBy("lock") @Nullable private ParallelChainDownload parallelDownload;
     @GuardedBy("lock") private boolean ipv6Unreachable = false;
 
     @GuardedBy("lock") private long fastCatchupTimeSecs;
@@ -1383,6 +1387,15 @@ public class PeerGroup implements TransactionBroadcaster {
                         // down, and we will have seen all the relevant txns before: it's pointless to ask for them again.
                         peer.setBloomFilter(result.filter, mode != FilterRecalculateMode.FORCE_SEND_FOR_REFRESH);
                     }
+                    ParallelChainDownload download;
+                    lock.lock();
+                    try {
+                        download = parallelDownload;
+                    } finally {
+                        lock.unlock();
+                    }
+                    if (download != null)
+                        download.filterUpdated();
                     // Reset the false positive estimate so that we don't send a flood of filter updates
                     // if the estimate temporarily overshoots our threshold.
                     if (chain != null)
@@ -1616,6 +1629,8 @@ public class PeerGroup implements TransactionBroadcaster {
             // TODO: The peer should calculate the fast catchup time from the added wallets here.
             for (Wallet wallet : wallets)
                 peer.addWallet(wallet);
+            if (parallelDownload != null)
+                parallelDownload.addPeer(peer);
             if (downloadPeer == null) {
                 // Kick off chain download if we aren't already doing it.
                 setDownloadPeer(selectDownloadPeer(peers));
@@ -1734,6 +1749,8 @@ public class PeerGroup implements TransactionBroadcaster {
             if (downloadPeer != null) {
                 downloadPeer.setDownloadParameters(secondsSinceEpoch, bloomFilterMerger.getLastFilter() != null);
             }
+            if (parallelDownload != null)
+                parallelDownload.setDownloadParameters(secondsSinceEpoch, bloomFilterMerger.getLastFilter() != null);
         } finally {
             lock.unlock();
         }
@@ -1768,6 +1785,8 @@ public class PeerGroup implements TransactionBroadcaster {
             PeerAddress address = peer.getAddress();
 
             log.info("{}: Peer died      ({} connected, {} pending, {} max)", address, peers.size(), pendingPeers.size(), maxConnections);
+            if (parallelDownload != null)
+                parallelDownload.removePeer(peer);
             if (peer == downloadPeer) {
                 log.info("Download peer died. Picking a new one.");
                 setDownloadPeer(null);
@@ -1838,8 +1857,9 @@ public class PeerGroup implements TransactionBroadcaster {
     /**
      * Configures the stall speed: the speed at which a peer is considered to be serving us the block chain
      * unacceptably slowly. Once a peer has served us data slower than the given data rate for the given
-     * number of seconds, it is considered stalled and will be disconnected, forcing the chain download to continue
-     * from a different peer. The defaults are chosen conservatively, but if you are running on a platform that is
+     * number of seconds, it is considered stalled and the chain download is handed over to the fastest of the other
+     * peers, going by {@link Peer#getDownloadRate()}. If none of them look any faster, the stalled peer is disconnected
+     * instead. The defaults are chosen conservatively, but if you are running on a platform that is
      * CPU constrained or on a very slow network e.g. EDGE, the default settings may need adjustment to
      * avoid false stalls.
      *
@@ -1904,15 +1924,23 @@ public class PeerGroup implements TransactionBroadcaster {
         private void calculate() {
             int minSpeedBytesPerSec;
             int period;
+            List<Peer> connected;
+            Peer currentDownloadPeer;
+            ParallelChainDownload download;
 
             lock.lock();
             try {
                 minSpeedBytesPerSec = stallMinSpeedBytesSec;
                 period = stallPeriodSeconds;
+                connected = new ArrayList<Peer>(peers);
+                currentDownloadPeer = downloadPeer;
+                download = parallelDownload;
             } finally {
                 lock.unlock();
             }
 
+            boolean stalled = false;
+            boolean downloading;
             synchronized (this) {
                 if (samples == null || samples.length != period) {
                     samples = new long[period];
@@ -1949,9 +1977,8 @@ public class PeerGroup implements TransactionBroadcaster {
                                 // deal.
                                 log.warn("This network seems to be slower than the requested stall threshold - won't do stall disconnects any more.");
                             } else {
-                                Peer peer = getDownloadPeer();
-                                log.warn(String.format(Locale.US, "Chain download stalled: received %.2f KB/sec for %d seconds, require average of %.2f KB/sec, disconnecting %s", average / 1024.0, samples.length, minSpeedBytesPerSec / 1024.0, peer));
-                                peer.close();
+                                log.warn(String.format(Locale.US, "Chain download stalled: received %.2f KB/sec for %d seconds, require average of %.2f KB/sec", average / 1024.0, samples.length, minSpeedBytesPerSec / 1024.0));
+                                stalled = true;
                                 // Reset the sample buffer and give the next peer time to get going.
                                 samples = null;
                                 warmupSeconds = period;
@@ -1964,15 +1991,90 @@ public class PeerGroup implements TransactionBroadcaster {
                                     blocksInLastSecond, txnsInLastSecond, origTxnsInLastSecond, bytesInLastSecond / 1024.0));
                     }
                 }
+                downloading = !syncDone;
                 blocksInLastSecond = 0;
                 txnsInLastSecond = 0;
                 origTxnsInLastSecond = 0;
                 bytesInLastSecond = 0;
             }
+
+            // Only peers we are waiting for are slow if they send nothing.
+            for (Peer peer : connected) {
+                boolean waitingFor = download != null ? download.isWaitingFor(peer) : peer == currentDownloadPeer;
+                peer.updateDownloadRate(downloading && waitingFor);
+            }
+            if (stalled)
+                handOffStalledDownload(minSpeedBytesPerSec);
         }
     }
     @Nullable private ChainDownloadSpeedCalculator chainDownloadSpeedCalculator;
 
+    /**
+     * Hands the chain download over from a download peer that stalled to a peer that is likely to be faster, see
+     * {@link #selectFasterDownloadPeer(Peer, long)}. Blocks the stalled peer was already asked for are still added to
+     * the chain when they arrive. If no peer looks any faster, the stalled one is disconnected instead.
+     */
+    @VisibleForTesting
+    void handOffStalledDownload(long minSpeedBytesPerSec) {
+        Peer stalledPeer;
+        lock.lock();
+        try {
+            stalledPeer = downloadPeer;
+            if (stalledPeer == null)
+                return;
+            Peer fasterPeer = selectFasterDownloadPeer(stalledPeer, minSpeedBytesPerSec);
+            if (fasterPeer != null) {
+                log.warn("{}: Chain download stalled at {} bytes/sec, handing it over to {} at {} bytes/sec",
+                        stalledPeer, stalledPeer.getDownloadRate(), fasterPeer, fasterPeer.getDownloadRate());
+                setDownloadPeer(fasterPeer);
+                if (downloadListener != null)
+                    startBlockChainDownloadFromPeer(fasterPeer);
+                return;
+            }
+        } finally {
+            lock.unlock();
+        }
+        log.warn("{}: Chain download stalled and no other peer looks faster, disconnecting", stalledPeer);
+        stalledPeer.close();
+    }
+
+    /**
+     * Picks a peer to take over the chain download from the given one, which is not fast enough. In order of
+     * preference: the fastest peer that has sent us the chain at the given rate or better, a peer we have not measured
+     * yet, or the fastest peer if it was at least faster than the given one. Only peers at the most common chain
+     * height or above are considered. Returns null if there is no such peer.
+     */
+    @Nullable
+    protected Peer selectFasterDownloadPeer(Peer current, long minSpeedBytesPerSec) {
+        lock.lock();
+        try {
+            int mostCommonChainHeight = getMostCommonChainHeight(peers);
+            Peer fastest = null;
+            long fastestRate = -1;
+            List<Peer> unmeasured = new ArrayList<Peer>();
+            for (Peer peer : peers) {
+                if (peer == current || peer.getBestHeight() < mostCommonChainHeight)
+                    continue;
+                long rate = peer.getDownloadRate();
+                if (rate < 0) {
+                    unmeasured.add(peer);
+                } else if (rate > fastestRate) {
+                    fastest = peer;
+                    fastestRate = rate;
+                }
+            }
+            if (fastest != null && fastestRate >= minSpeedBytesPerSec)
+                return fastest;
+            if (!unmeasured.isEmpty())
+                return selectDownloadPeer(unmeasured);
+            if (fastest != null && fastestRate > current.getDownloadRate())
+                return fastest;
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
     private void startBlockChainDownloadFromPeer(Peer peer) {
         lock.lock();
         try {
@@ -1983,10 +2085,76 @@ public class PeerGroup implements TransactionBroadcaster {
                 chainDownloadSpeedCalculator = new ChainDownloadSpeedCalculator();
                 executor.scheduleAtFixedRate(chainDownloadSpeedCalculator, 1, 1, TimeUnit.SECONDS);
             }
+            // A peer that was the download peer before may still have it.
+            peer.removeBlocksDownloadedEventListener(chainDownloadSpeedCalculator);
             peer.addBlocksDownloadedEventListener(Threading.SAME_THREAD, chainDownloadSpeedCalculator);
 
-            // startBlockChainDownload will setDownloadData(true) on itself automatically.
-            peer.startBlockChainDownload();
+            if (parallelDownload != null) {
+                // Carry on with the new download peer as the source of headers.
+                peer.setDownloadData(false);
+                parallelDownload.setHeaderPeer(peer);
+            } else if (useParallelDownload && chain != null) {
+                startParallelDownload(peer);
+            } else {
+                // startBlockChainDownload will setDownloadData(true) on itself automatically.
+                peer.startBlockChainDownload();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @GuardedBy("lock")
+    private void startParallelDownload(Peer peer) {
+        final ParallelChainDownload download = new ParallelChainDownload(params, checkNotNull(chain), wallets,
+                maxBlocksInFlightPerPeer, ParallelChainDownload.DEFAULT_WINDOW_SIZE,
+                ParallelChainDownload.DEFAULT_REQUEST_TIMEOUT_MILLIS);
+        parallelDownload = download;
+        download.setDownloadParameters(fastCatchupTimeSecs, bloomFilterMerger.getLastFilter() != null);
+        // Until the download is done, the peers only send us blocks it asks for.
+        peer.setDownloadData(false);
+        int blocksLeft = peer.getPeerBlockHeightDifference();
+        if (blocksLeft >= 0)
+            peer.invokeOnChainDownloadStarted(blocksLeft);
+        for (Peer other : peers)
+            download.addPeer(other);
+        download.setHeaderPeer(peer);
+        final ListenableScheduledFuture<?> stallCheck = executor.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    download.checkForStalls();
+                } catch (Throwable e) {
+                    log.error("Error checking the chain download for stalls", e);  // The executor swallows exceptions :(
+                }
+            }
+        }, 1, 1, TimeUnit.SECONDS);
+        download.getFuture().addListener(new Runnable() {
+            @Override
+            public void run() {
+                stallCheck.cancel(false);
+                finishParallelDownload(download);
+            }
+        }, executor);
+    }
+
+    // Hands over to the download peer, which picks up any blocks found since and keeps the chain up to date.
+    private void finishParallelDownload(ParallelChainDownload download) {
+        lock.lock();
+        try {
+            if (parallelDownload != download)
+                return;
+            parallelDownload = null;
+            try {
+                download.getFuture().get();
+                log.info("Chain download from all peers caught up");
+            } catch (ExecutionException e) {
+                log.warn("Chain download from all peers failed, carrying on with the download peer");
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);  // Cannot happen, the future is done.
+            }
+            if (downloadPeer != null && isRunning())
+                downloadPeer.startBlockChainDownload();
         } finally {
             lock.unlock();
         }
@@ -2377,6 +2545,56 @@ public class PeerGroup implements TransactionBroadcaster {
         }
     }
 
+    /** See {@link #setUseParallelDownload(boolean)} */
+    public boolean getUseParallelDownload() {
+        lock.lock();
+        try {
+            return useParallelDownload;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * When true, the block chain is downloaded from all connected peers at once rather than from the download peer
+     * alone. The headers are downloaded from the download peer first, then the blocks, or filtered blocks if a Bloom
+     * filter is in use, are asked for from every peer a few at a time. Blocks a peer does not deliver in time are asked
+     * for from another. Once the chain has caught up, the download peer carries on as usual. Defaults to false, and
+     * takes effect the next time chain download starts.
+     */
+    public void setUseParallelDownload(boolean useParallelDownload) {
+        lock.lock();
+        try {
+            this.useParallelDownload = useParallelDownload;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** See {@link #setMaxBlocksInFlightPerPeer(int)} */
+    public int getMaxBlocksInFlightPerPeer() {
+        lock.lock();
+        try {
+            return maxBlocksInFlightPerPeer;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sets how many blocks may be asked for from each peer at a time when downloading from all peers at once, see
+     * {@link #setUseParallelDownload(boolean)}. Takes effect the next time chain download starts.
+     */
+    public void setMaxBlocksInFlightPerPeer(int maxBlocksInFlightPerPeer) {
+        checkArgument(maxBlocksInFlightPerPeer > 0);
+        lock.lock();
+        try {
+            this.maxBlocksInFlightPerPeer = maxBlocksInFlightPerPeer;
+        } finally {
+            lock.unlock();
+        }
+    }
+
     public boolean isRunning() {
         return vRunning;
     }
@@ -17,20 +17,23 @@
 package org.blockchainj.core;
 
 import org.blockchainj.net.AbstractTimeoutHandler;
+import org.blockchainj.net.BufferPool;
 import org.blockchainj.net.MessageWriteTarget;
+import org.blockchainj.net.PooledBuffer;
 import org.blockchainj.net.StreamConnection;
 import org.blockchainj.utils.Threading;
 import com.google.common.annotations.VisibleForTesting;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.ConnectException;
 import java.net.InetSocketAddress;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.nio.channels.NotYetConnectedException;
+import java.security.MessageDigest;
 import java.util.concurrent.locks.Lock;
 
 import static com.google.common.base.Preconditions.*;
@@ -51,12 +54,11 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
 
     // The ByteBuffers passed to us from the writeTarget are static in size, and usually smaller than some messages we
     // will receive. For SPV clients, this should be rare (ie we're mostly dealing with small transactions), but for
-    // messages which are larger than the read buffer, we have to keep a temporary buffer with its bytes.
-    private byte[] largeReadBuffer;
-    private int largeReadBufferPos;
-    private BlockchainSerializer.BlockchainPacketHeader header;
+    // messages which are larger than the read buffer, we have to collect their bytes until all of them arrived.
+    private LargeMessage largeMessage;
 
     private Lock lock = Threading.lock("PeerSocketHandler");
+    private volatile BufferPool vBufferPool = BufferPool.getDefault();
 
     public PeerSocketHandler(NetworkParameters params, InetSocketAddress remoteIp) {
         checkNotNull(params);
@@ -83,16 +85,131 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
         } finally {
             lock.unlock();
         }
-        // TODO: Some round-tripping could be avoided here
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PooledBuffer buffer = serializeMessage(message);
         try {
-            serializer.serialize(message, out);
-            writeTarget.writeBytes(out.toByteArray());
+            writeTarget.writeBuffer(buffer);
+        } catch (IOException e) {
+            exceptionCaught(e);
+        } finally {
+            buffer.release();
+        }
+    }
+
+    /**
+     * Sends a message serialized by {@link #serializeMessage(Message)}. The buffer is not copied, so the same message
+     * can be sent to any number of peers for the cost of serializing it once. The caller still has to release it.
+     * Throws NotYetConnectedException if we are not yet connected to the remote peer.
+     */
+    public void sendMessage(PooledBuffer serializedMessage) throws NotYetConnectedException {
+        lock.lock();
+        try {
+            if (writeTarget == null)
+                throw new NotYetConnectedException();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            writeTarget.writeBuffer(serializedMessage);
         } catch (IOException e) {
             exceptionCaught(e);
         }
     }
 
+    /**
+     * Serializes the given message, header and all, into a buffer from the pool set by
+     * {@link #setBufferPool(BufferPool)}, ready to be sent with {@link #sendMessage(PooledBuffer)}. The caller must
+     * release the buffer once it has been sent.
+     */
+    public PooledBuffer serializeMessage(Message message) {
+        // Deserialized messages know their size, so usually the first buffer is big enough.
+        int size = BlockchainSerializer.BlockchainPacketHeader.HEADER_LENGTH + 4
+                + (message.length != Message.UNKNOWN_LENGTH ? message.length : 0);
+        PooledBufferOutputStream out = new PooledBufferOutputStream(vBufferPool, size);
+        try {
+            serializer.serialize(message, out);
+        } catch (IOException e) {
+            out.buffer.release();
+            throw new RuntimeException(e);  // Cannot happen.
+        } catch (RuntimeException e) {
+            out.buffer.release();
+            throw e;
+        }
+        out.buffer.buffer().flip();
+        return out.buffer;
+    }
+
+    /**
+     * Sets the pool outgoing messages are serialized into. A pool of direct buffers saves a copy when writing to
+     * sockets. Defaults to {@link BufferPool#getDefault()}.
+     */
+    public void setBufferPool(BufferPool pool) {
+        vBufferPool = checkNotNull(pool);
+    }
+
+    // A message that is larger than the read buffer, whose bytes are collected as they arrive and hashed on the way, so
+    // that the checksum is ready once the last of them do. Messages are parsed from a single array, which they may keep
+    // referring to (see Message.payload), so the bytes go straight into one of exactly the payload size rather than
+    // into pooled chunks that would have to be copied out again.
+    private static class LargeMessage {
+        private final BlockchainSerializer.BlockchainPacketHeader header;
+        private final MessageDigest digest = Sha256Hash.newDigest();
+        private final byte[] payload;
+        private int received;
+
+        LargeMessage(BlockchainSerializer.BlockchainPacketHeader header) {
+            this.header = header;
+            this.payload = new byte[header.size];
+        }
+
+        // Takes as many of the bytes left in buff as belong to the message, and returns whether it is complete.
+        boolean receive(ByteBuffer buff) {
+            int length = Math.min(buff.remaining(), header.size - received);
+            buff.get(payload, received, length);
+            digest.update(payload, received, length);
+            received += length;
+            return received == header.size;
+        }
+
+        Message deserialize(MessageSerializer serializer) throws ProtocolException {
+            checkState(received == header.size);
+            return serializer.deserializePayload(header, payload, Sha256Hash.hashTwice(digest));
+        }
+    }
+
+    // Collects what is written in a pooled buffer, moving to a bigger one when it is full.
+    private static class PooledBufferOutputStream extends OutputStream {
+        private final BufferPool pool;
+        private PooledBuffer buffer;
+
+        PooledBufferOutputStream(BufferPool pool, int size) {
+            this.pool = pool;
+            this.buffer = pool.take(size);
+        }
+
+        @Override
+        public void write(int b) {
+            ensureRemaining(1);
+            buffer.buffer().put((byte) b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            ensureRemaining(len);
+            buffer.buffer().put(b, off, len);
+        }
+
+        private void ensureRemaining(int length) {
+            ByteBuffer current = buffer.buffer();
+            if (current.remaining() >= length)
+                return;
+            PooledBuffer bigger = pool.take(Math.max(current.position() + length, current.capacity() * 2));
+            current.flip();
+            bigger.buffer().put(current);
+            buffer.release();
+            buffer = bigger;
+        }
+    }
+
     /**
      * Closes the connection to the peer if one exists, or immediately closes the connection as soon as it opens
      */
@@ -129,19 +246,15 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
             boolean firstMessage = true;
             while (true) {
                 // If we are in the middle of reading a message, try to fill that one first, before we expect another
-                if (largeReadBuffer != null) {
+                if (largeMessage != null) {
                     // This can only happen in the first iteration
                     checkState(firstMessage);
-                    // Read new bytes into the largeReadBuffer
-                    int bytesToGet = Math.min(buff.remaining(), largeReadBuffer.length - largeReadBufferPos);
-                    buff.get(largeReadBuffer, largeReadBufferPos, bytesToGet);
-                    largeReadBufferPos += bytesToGet;
-                    // Check the largeReadBuffer's status
-                    if (largeReadBufferPos == largeReadBuffer.length) {
+                    // Read new bytes into the largeMessage, and check its status
+                    if (largeMessage.receive(buff)) {
                         // ...processing a message if one is available
-                        processMessage(serializer.deserializePayload(header, ByteBuffer.wrap(largeReadBuffer)));
-                        largeReadBuffer = null;
-                        header = null;
+                        LargeMessage complete = largeMessage;
+                        largeMessage = null;
+                        processMessage(complete.deserialize(serializer));
                         firstMessage = false;
                     } else // ...or just returning if we don't have enough bytes yet
                         return buff.position();
@@ -152,21 +265,19 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
                 try {
                     message = serializer.deserialize(buff);
                 } catch (BufferUnderflowException e) {
-                    // If we went through the whole buffer without a full message, we need to use the largeReadBuffer
+                    // If we went through the whole buffer without a full message, we need to use a largeMessage
                     if (firstMessage && buff.limit() == buff.capacity()) {
                         // ...so reposition the buffer to 0 and read the next message header
                         buff.position(0);
                         try {
                             serializer.seekPastMagicBytes(buff);
-                            header = serializer.deserializeHeader(buff);
-                            // Initialize the largeReadBuffer with the next message's size and fill it with any bytes
-                            // left in buff
-                            largeReadBuffer = new byte[header.size];
-                            largeReadBufferPos = buff.remaining();
-                            buff.get(largeReadBuffer, 0, largeReadBufferPos);
+                            BlockchainSerializer.BlockchainPacketHeader header = serializer.deserializeHeader(buff);
+                            // Start the largeMessage with any bytes left in buff
+                            largeMessage = new LargeMessage(header);
+                            largeMessage.receive(buff);
                         } catch (BufferUnderflowException e1) {
                             // If we went through a whole buffer's worth of bytes without getting a header, give up
-                            // In cases where the buff is just really small, we could create a second largeReadBuffer
+                            // In cases where the buff is just really small, we could create a second buffer
                             // that we use to deserialize the magic+header, but that is rather complicated when the buff
                             // should probably be at least that big anyway (for efficiency)
                             throw new ProtocolException("No magic bytes+header after reading " + buff.capacity() + " bytes");
@@ -0,0 +1,286 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.blockchainj.core;
+
+import org.blockchainj.script.Script;
+import org.blockchainj.script.Script.VerifyFlag;
+import org.blockchainj.script.SignatureCache;
+import org.blockchainj.utils.ContextPropagatingThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>Runs the scripts of a block's transactions on a thread pool, for {@link FullPrunedBlockChain}.</p>
+ *
+ * <p>Work is split per input and each input is given a rough cost: the number of signatures it may have to check,
+ * scaled up for large transactions whose signature hashes are expensive to compute. The most expensive inputs are
+ * started first, so that one big multisig transaction at the end of a block does not run on its own after everything
+ * else has finished, and cheap inputs are batched together so that simple transactions do not each pay for a trip
+ * through the pool. As soon as one input fails the remaining work is cancelled.</p>
+ *
+ * <p>A scheduler can be shared by any number of chains. Unless told otherwise, chains use the one returned by
+ * {@link #getDefault()}, which has a thread per processor.</p>
+ */
+public class ScriptVerificationScheduler {
+    private static final Logger log = LoggerFactory.getLogger(ScriptVerificationScheduler.class);
+
+    /** The default cost of a batch of cheap inputs, roughly the number of signature checks run by one job. */
+    public static final int DEFAULT_BATCH_COST = 16;
+    // Transaction size that adds about one signature check worth of work to each signature hash.
+    private static final int SIGHASH_BYTES_PER_COST = 10000;
+
+    @Nullable private static ScriptVerificationScheduler defaultScheduler;
+
+    private final ExecutorService executor;
+    private final int batchCost;
+
+    /**
+     * Creates a scheduler with its own pool of the given number of threads, which are daemon threads.
+     */
+    public ScriptVerificationScheduler(int threads) {
+        this(Executors.newFixedThreadPool(threads, new ContextPropagatingThreadFactory("Script verification")),
+                DEFAULT_BATCH_COST);
+    }
+
+    /**
+     * Creates a scheduler which runs its jobs on the given executor.
+     *
+     * @param batchCost how much work to put in one job, see {@link #DEFAULT_BATCH_COST}. Inputs that cost at least
+     *                  this much get a job of their own.
+     */
+    public ScriptVerificationScheduler(ExecutorService executor, int batchCost) {
+        checkArgument(batchCost > 0, "batchCost must be positive");
+        this.executor = checkNotNull(executor);
+        this.batchCost = batchCost;
+    }
+
+    /**
+     * Returns the scheduler shared by all chains which were not given one, creating it with a thread per processor
+     * the first time it is needed.
+     */
+    public static synchronized ScriptVerificationScheduler getDefault() {
+        if (defaultScheduler == null)
+            defaultScheduler = new ScriptVerificationScheduler(Runtime.getRuntime().availableProcessors());
+        return defaultScheduler;
+    }
+
+    /**
+     * Replaces the scheduler returned by {@link #getDefault()}. The previous one is not shut down, as chains may still
+     * be using it.
+     */
+    public static synchronized void setDefault(ScriptVerificationScheduler scheduler) {
+        defaultScheduler = checkNotNull(scheduler);
+    }
+
+    /** Shuts down the executor of this scheduler. Work that was already started is allowed to finish. */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    /** Starts collecting the inputs of one block. */
+    public Verification newVerification() {
+        return new Verification();
+    }
+
+    /** An input to check, with the script it spends. */
+    static class InputCheck {
+        final Transaction tx;
+        final int index;
+        final Script scriptPubKey;
+        final Set<VerifyFlag> verifyFlags;
+        final long cost;
+
+        InputCheck(Transaction tx, int index, Script scriptPubKey, Set<VerifyFlag> verifyFlags, long cost) {
+            this.tx = tx;
+            this.index = index;
+            this.scriptPubKey = scriptPubKey;
+            this.verifyFlags = verifyFlags;
+            this.cost = cost;
+        }
+    }
+
+    private static final Comparator<InputCheck> MOST_EXPENSIVE_FIRST = new Comparator<InputCheck>() {
+        @Override
+        public int compare(InputCheck a, InputCheck b) {
+            return a.cost > b.cost ? -1 : (a.cost < b.cost ? 1 : 0);
+        }
+    };
+
+    /**
+     * Estimates how much work checking the given input is, in signature checks on a small transaction.
+     */
+    static long estimateCost(Transaction tx, int index, Script scriptPubKey) {
+        long sigOps;
+        try {
+            if (scriptPubKey.isPayToScriptHash())
+                sigOps = Script.getP2SHSigOpCount(tx.getInputs().get(index).getScriptBytes());
+            else
+                sigOps = Script.getSigOpCount(scriptPubKey.getProgram());
+        } catch (ScriptException e) {
+            // The script will fail when it is run. Leave it to be found out there.
+            sigOps = 1;
+        }
+        // Every signature check serializes and hashes a copy of the whole transaction.
+        return Math.max(1, sigOps) * (1 + tx.getMessageSize() / SIGHASH_BYTES_PER_COST);
+    }
+
+    /**
+     * Splits the given inputs into jobs, most expensive first. Inputs of equal cost keep their order.
+     */
+    static List<List<InputCheck>> plan(List<InputCheck> inputs, int batchCost) {
+        List<InputCheck> sorted = new ArrayList<InputCheck>(inputs);
+        Collections.sort(sorted, MOST_EXPENSIVE_FIRST);
+        List<List<InputCheck>> jobs = new ArrayList<List<InputCheck>>();
+        List<InputCheck> batch = new ArrayList<InputCheck>();
+        long cost = 0;
+        for (InputCheck input : sorted) {
+            batch.add(input);
+            cost += input.cost;
+            if (cost >= batchCost) {
+                jobs.add(batch);
+                batch = new ArrayList<InputCheck>();
+                cost = 0;
+            }
+        }
+        if (!batch.isEmpty())
+            jobs.add(batch);
+        return jobs;
+    }
+
+    /**
+     * The script checks of one block. Inputs are added with {@link #add(Transaction, List, Set)}, then
+     * {@link #start()} submits them and {@link #await()} waits for the outcome.
+     */
+    public class Verification {
+        private final List<InputCheck> inputs = new ArrayList<InputCheck>();
+        private final List<Future<VerificationException>> futures = new ArrayList<Future<VerificationException>>();
+        private CompletionService<VerificationException> completion;
+        // Set once an input has failed, telling jobs that have not got to their inputs yet to give up.
+        private volatile boolean failed;
+
+        private Verification() {
+        }
+
+        /**
+         * Adds the inputs of a transaction. The transaction must not be changed until the checks have finished.
+         *
+         * @param prevOutScripts the scripts of the outputs spent by the inputs, in order
+         */
+        public void add(Transaction tx, List<Script> prevOutScripts, Set<VerifyFlag> verifyFlags) {
+            checkState(completion == null, "Already started");
+            checkArgument(prevOutScripts.size() == tx.getInputs().size(), "One script is needed for each input");
+            int index = 0;
+            for (Script scriptPubKey : prevOutScripts) {
+                inputs.add(new InputCheck(tx, index, scriptPubKey, verifyFlags, estimateCost(tx, index, scriptPubKey)));
+                index++;
+            }
+        }
+
+        /** Submits the added inputs to the pool, most expensive first. */
+        public void start() {
+            checkState(completion == null, "Already started");
+            completion = new ExecutorCompletionService<VerificationException>(executor);
+            for (List<InputCheck> job : plan(inputs, batchCost))
+                futures.add(completion.submit(new Job(job)));
+            inputs.clear();
+        }
+
+        /**
+         * Waits for the checks to finish. The first failure found is thrown, and the checks still outstanding are
+         * cancelled.
+         */
+        public void await() throws VerificationException {
+            checkState(completion != null, "Not started");
+            try {
+                for (int i = 0; i < futures.size(); i++) {
+                    VerificationException e;
+                    try {
+                        e = completion.take().get();
+                    } catch (InterruptedException thrownE) {
+                        throw new RuntimeException(thrownE); // Shouldn't happen
+                    } catch (ExecutionException thrownE) {
+                        log.error("Script.correctlySpends threw a non-normal exception: " + thrownE.getCause());
+                        throw new VerificationException("Bug in Script.correctlySpends, likely script malformed in some new and interesting way.", thrownE);
+                    }
+                    if (e != null)
+                        throw e;
+                }
+            } finally {
+                cancel();
+            }
+        }
+
+        /** Cancels the checks that have not finished. Does nothing for those that have. */
+        public void cancel() {
+            failed = true;
+            for (Future<VerificationException> future : futures)
+                future.cancel(false);
+        }
+
+        /**
+         * A job submitted to the executor which verifies signatures.
+         */
+        private class Job implements Callable<VerificationException> {
+            final List<InputCheck> inputs;
+
+            Job(List<InputCheck> inputs) {
+                this.inputs = inputs;
+            }
+
+            @Nullable
+            @Override
+            public VerificationException call() throws Exception {
+                SignatureCache cache = Script.getSignatureCache();
+                if (cache != null && inputs.size() > 1) {
+                    // Verify the signatures of simple inputs in one batch, so the scripts below find them cached.
+                    SignatureCache.Batch batch = cache.newBatch();
+                    for (InputCheck input : inputs)
+                        batch.add(input.tx, input.index, input.scriptPubKey);
+                    batch.verify();
+                }
+                for (InputCheck input : inputs) {
+                    if (failed)
+                        return null;
+                    try {
+                        TransactionInput in = input.tx.getInputs().get(input.index);
+                        in.getScriptSig().correctlySpends(input.tx, input.index, input.scriptPubKey, input.verifyFlags);
+                    } catch (VerificationException e) {
+                        failed = true;
+                        return e;
+                    }
+                }
+                return null;
+            }
+        }
+    }
+}
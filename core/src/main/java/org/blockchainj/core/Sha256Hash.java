@@ -25,6 +25,8 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.Serializable;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.security.DigestException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
@@ -41,6 +43,16 @@ public class Sha256Hash implements Serializable, Comparable<Sha256Hash> {
 
     private final byte[] bytes;
 
+    // A digest for each thread, so that hashing does not look up the algorithm and create a digest every time.
+    private static final ThreadLocal<MessageDigest> digests = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            return newDigest();
+        }
+    };
+
+    private static volatile boolean pureJavaHashing;
+
     /**
      * Use {@link #wrap(byte[])} instead.
      */
@@ -161,6 +173,28 @@ public class Sha256Hash implements Serializable, Comparable<Sha256Hash> {
         }
     }
 
+    /**
+     * Sets whether inputs of 64 and 80 bytes, the sizes of merkle tree nodes and block headers, are hashed twice by
+     * a plain Java SHA-256 that knows their padding in advance, rather than by the {@link MessageDigest}. Which one
+     * is faster depends on the JVM and the security provider, so it is off unless switched on.
+     */
+    public static void setPureJavaHashing(boolean enabled) {
+        pureJavaHashing = enabled;
+    }
+
+    /** Whether inputs of 64 and 80 bytes are hashed in plain Java, see {@link #setPureJavaHashing(boolean)}. */
+    public static boolean isPureJavaHashing() {
+        return pureJavaHashing;
+    }
+
+    // The digest of this thread. Callers must be done with it before they return, and must not call anything that
+    // might hash in the meantime.
+    private static MessageDigest digest() {
+        MessageDigest digest = digests.get();
+        digest.reset();
+        return digest;
+    }
+
     /**
      * Calculates the SHA-256 hash of the given bytes.
      *
@@ -180,11 +214,22 @@ public class Sha256Hash implements Serializable, Comparable<Sha256Hash> {
      * @return the hash (in big-endian order)
      */
     public static byte[] hash(byte[] input, int offset, int length) {
-        MessageDigest digest = newDigest();
+        MessageDigest digest = digest();
         digest.update(input, offset, length);
         return digest.digest();
     }
 
+    /**
+     * Calculates the SHA-256 hash of the remaining bytes of the given buffer, without changing its position.
+     *
+     * @return the hash (in big-endian order)
+     */
+    public static byte[] hash(ByteBuffer input) {
+        MessageDigest digest = digest();
+        digest.update(input.duplicate());
+        return digest.digest();
+    }
+
     /**
      * Calculates the SHA-256 hash of the given bytes,
      * and then hashes the resulting hash again.
@@ -206,9 +251,45 @@ public class Sha256Hash implements Serializable, Comparable<Sha256Hash> {
      * @return the double-hash (in big-endian order)
      */
     public static byte[] hashTwice(byte[] input, int offset, int length) {
-        MessageDigest digest = newDigest();
+        byte[] output = new byte[LENGTH];
+        hashTwice(input, offset, length, output, 0);
+        return output;
+    }
+
+    /**
+     * Calculates the SHA-256 hash of the given byte range, and then hashes the resulting hash again, writing the
+     * double-hash (in big-endian order) to the given array. The output may overlap the input.
+     *
+     * @param input the array containing the bytes to hash
+     * @param offset the offset within the array of the bytes to hash
+     * @param length the number of bytes to hash
+     * @param output the array to write the double-hash to
+     * @param outputOffset the offset within the output array to write it at
+     */
+    public static void hashTwice(byte[] input, int offset, int length, byte[] output, int outputOffset) {
+        if (pureJavaHashing && (length == 64 || length == 80)) {
+            Sha256d.hashTwice(input, offset, length, output, outputOffset);
+            return;
+        }
+        MessageDigest digest = digest();
         digest.update(input, offset, length);
-        return digest.digest(digest.digest());
+        hashAgain(digest, output, outputOffset);
+    }
+
+    /**
+     * Calculates the SHA-256 hash of the remaining bytes of the given buffer, without changing its position, and then
+     * hashes the resulting hash again.
+     *
+     * @return the double-hash (in big-endian order)
+     */
+    public static byte[] hashTwice(ByteBuffer input) {
+        if (input.hasArray())
+            return hashTwice(input.array(), input.arrayOffset() + input.position(), input.remaining());
+        MessageDigest digest = digest();
+        digest.update(input.duplicate());
+        byte[] output = new byte[LENGTH];
+        hashAgain(digest, output, 0);
+        return output;
     }
 
     /**
@@ -217,10 +298,36 @@ public class Sha256Hash implements Serializable, Comparable<Sha256Hash> {
      */
     public static byte[] hashTwice(byte[] input1, int offset1, int length1,
                                    byte[] input2, int offset2, int length2) {
-        MessageDigest digest = newDigest();
+        MessageDigest digest = digest();
         digest.update(input1, offset1, length1);
         digest.update(input2, offset2, length2);
-        return digest.digest(digest.digest());
+        byte[] output = new byte[LENGTH];
+        hashAgain(digest, output, 0);
+        return output;
+    }
+
+    /**
+     * Finishes the SHA-256 hash of the bytes given to the digest, which can be fed as they arrive, and then hashes the
+     * resulting hash again. The digest is reset afterwards.
+     *
+     * @param digest a SHA-256 digest, for example from {@link #newDigest()}
+     * @return the double-hash (in big-endian order)
+     */
+    public static byte[] hashTwice(MessageDigest digest) {
+        byte[] output = new byte[LENGTH];
+        hashAgain(digest, output, 0);
+        return output;
+    }
+
+    // Finishes the first hash on the digest and writes the hash of it to the output, without an array in between.
+    private static void hashAgain(MessageDigest digest, byte[] output, int outputOffset) {
+        try {
+            digest.digest(output, outputOffset, LENGTH);
+            digest.update(output, outputOffset, LENGTH);
+            digest.digest(output, outputOffset, LENGTH);
+        } catch (DigestException e) {
+            throw new RuntimeException(e); // Cannot happen.
+        }
     }
 
     @Override
@@ -0,0 +1,150 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.blockchainj.core;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Double SHA-256 of 64 and 80 byte inputs, the sizes of merkle tree nodes and block headers, in plain Java. See
+ * {@link Sha256Hash#setPureJavaHashing(boolean)}.</p>
+ *
+ * <p>With the length known up front, the padding is known too: the block of padding that follows a 64 byte input,
+ * and most of the block that the first hash is hashed in, never change and are worked out once. There is no digest to
+ * look up, reset or copy the state out of.</p>
+ */
+final class Sha256d {
+    private static final int[] K = {
+            0x428a2f98, 0x71374491, 0xb5c0fbcf, 0xe9b5dba5, 0x3956c25b, 0x59f111f1, 0x923f82a4, 0xab1c5ed5,
+            0xd807aa98, 0x12835b01, 0x243185be, 0x550c7dc3, 0x72be5d74, 0x80deb1fe, 0x9bdc06a7, 0xc19bf174,
+            0xe49b69c1, 0xefbe4786, 0x0fc19dc6, 0x240ca1cc, 0x2de92c6f, 0x4a7484aa, 0x5cb0a9dc, 0x76f988da,
+            0x983e5152, 0xa831c66d, 0xb00327c8, 0xbf597fc7, 0xc6e00bf3, 0xd5a79147, 0x06ca6351, 0x14292967,
+            0x27b70a85, 0x2e1b2138, 0x4d2c6dfc, 0x53380d13, 0x650a7354, 0x766a0abb, 0x81c2c92e, 0x92722c85,
+            0xa2bfe8a1, 0xa81a664b, 0xc24b8b70, 0xc76c51a3, 0xd192e819, 0xd6990624, 0xf40e3585, 0x106aa070,
+            0x19a4c116, 0x1e376c08, 0x2748774c, 0x34b0bcb5, 0x391c0cb3, 0x4ed8aa4a, 0x5b9cca4f, 0x682e6ff3,
+            0x748f82ee, 0x78a5636f, 0x84c87814, 0x8cc70208, 0x90befffa, 0xa4506ceb, 0xbef9a3f7, 0xc67178f2
+    };
+
+    private static final int[] INITIAL_STATE = {
+            0x6a09e667, 0xbb67ae85, 0x3c6ef372, 0xa54ff53a, 0x510e527f, 0x9b05688c, 0x1f83d9ab, 0x5be0cd19
+    };
+
+    // The schedule of the block of padding after a 64 byte input: a one bit, zeros and the length of 512 bits.
+    private static final int[] PADDING_AFTER_64 = new int[64];
+    static {
+        PADDING_AFTER_64[0] = 0x80000000;
+        PADDING_AFTER_64[15] = 512;
+        expand(PADDING_AFTER_64);
+    }
+
+    private Sha256d() {
+    }
+
+    /**
+     * Returns the double SHA-256 of the given range, which must be 64 or 80 bytes long, in the same order as
+     * {@link Sha256Hash#hashTwice(byte[])}.
+     */
+    static byte[] hashTwice(byte[] input, int offset, int length) {
+        byte[] output = new byte[32];
+        hashTwice(input, offset, length, output, 0);
+        return output;
+    }
+
+    /** Like {@link #hashTwice(byte[], int, int)}, writing the hash to the given array. */
+    static void hashTwice(byte[] input, int offset, int length, byte[] output, int outputOffset) {
+        checkArgument(length == 64 || length == 80, "Only 64 and 80 byte inputs");
+        int[] state = INITIAL_STATE.clone();
+        int[] w = new int[64];
+        // The first block is the first 64 bytes of the input either way.
+        for (int i = 0; i < 16; i++)
+            w[i] = readInt(input, offset + i * 4);
+        expand(w);
+        compress(state, w);
+        if (length == 64) {
+            compress(state, PADDING_AFTER_64);
+        } else {
+            // The last 16 bytes, then a one bit, zeros and the length of 640 bits.
+            for (int i = 0; i < 4; i++)
+                w[i] = readInt(input, offset + 64 + i * 4);
+            w[4] = 0x80000000;
+            for (int i = 5; i < 15; i++)
+                w[i] = 0;
+            w[15] = 640;
+            expand(w);
+            compress(state, w);
+        }
+        // Hash the 32 byte hash: it fills half a block, followed by a one bit, zeros and the length of 256 bits.
+        System.arraycopy(state, 0, w, 0, 8);
+        w[8] = 0x80000000;
+        for (int i = 9; i < 15; i++)
+            w[i] = 0;
+        w[15] = 256;
+        expand(w);
+        System.arraycopy(INITIAL_STATE, 0, state, 0, 8);
+        compress(state, w);
+        for (int i = 0; i < 8; i++)
+            writeInt(state[i], output, outputOffset + i * 4);
+    }
+
+    // Fills in the schedule from its first 16 words.
+    private static void expand(int[] w) {
+        for (int i = 16; i < 64; i++) {
+            int w15 = w[i - 15], w2 = w[i - 2];
+            int s0 = Integer.rotateRight(w15, 7) ^ Integer.rotateRight(w15, 18) ^ (w15 >>> 3);
+            int s1 = Integer.rotateRight(w2, 17) ^ Integer.rotateRight(w2, 19) ^ (w2 >>> 10);
+            w[i] = w[i - 16] + s0 + w[i - 7] + s1;
+        }
+    }
+
+    private static void compress(int[] state, int[] w) {
+        int a = state[0], b = state[1], c = state[2], d = state[3];
+        int e = state[4], f = state[5], g = state[6], h = state[7];
+        for (int i = 0; i < 64; i++) {
+            int s1 = Integer.rotateRight(e, 6) ^ Integer.rotateRight(e, 11) ^ Integer.rotateRight(e, 25);
+            int ch = (e & f) ^ (~e & g);
+            int t1 = h + s1 + ch + K[i] + w[i];
+            int s0 = Integer.rotateRight(a, 2) ^ Integer.rotateRight(a, 13) ^ Integer.rotateRight(a, 22);
+            int maj = (a & b) ^ (a & c) ^ (b & c);
+            int t2 = s0 + maj;
+            h = g;
+            g = f;
+            f = e;
+            e = d + t1;
+            d = c;
+            c = b;
+            b = a;
+            a = t1 + t2;
+        }
+        state[0] += a;
+        state[1] += b;
+        state[2] += c;
+        state[3] += d;
+        state[4] += e;
+        state[5] += f;
+        state[6] += g;
+        state[7] += h;
+    }
+
+    private static int readInt(byte[] bytes, int offset) {
+        return (bytes[offset] << 24) | ((bytes[offset + 1] & 0xff) << 16) | ((bytes[offset + 2] & 0xff) << 8)
+                | (bytes[offset + 3] & 0xff);
+    }
+
+    private static void writeInt(int value, byte[] bytes, int offset) {
+        bytes[offset] = (byte) (value >>> 24);
+        bytes[offset + 1] = (byte) (value >>> 16);
+        bytes[offset + 2] = (byte) (value >>> 8);
+        bytes[offset + 3] = (byte) value;
+    }
+}
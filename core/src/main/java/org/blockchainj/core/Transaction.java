@@ -35,6 +35,7 @@ import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nullable;
 import java.io.*;
+import java.security.MessageDigest;
 import java.util.*;
 
 import static org.blockchainj.core.Utils.*;
@@ -147,6 +148,10 @@ public class Transaction extends ChildMessage {
     // can properly keep track of optimal encoded size
     private int optimalEncodingMessageSize;
 
+    // The parts of the signature hash serialization shared by all inputs, see hashForSignature(). Cleared whenever the
+    // transaction changes.
+    @Nullable private volatile SigHashParts sigHashParts;
+
     /**
      * This enum describes the underlying reason the transaction was created. It's useful for rendering wallet GUIs
      * more appropriately.
@@ -504,6 +509,7 @@ public class Transaction extends ChildMessage {
     protected void unCache() {
         super.unCache();
         hash = null;
+        sigHashParts = null;
     }
 
     protected static int calcLength(byte[] buf, int offset) {
@@ -574,6 +580,9 @@ public class Transaction extends ChildMessage {
         lockTime = readUint32();
         optimalEncodingMessageSize += 4;
         length = cursor - offset;
+        // Hash the bytes we just parsed. Otherwise getHash() would have to serialize the transaction again, which for
+        // every transaction of a block adds up to a lot of garbage.
+        hash = Sha256Hash.wrapReversed(Sha256Hash.hashTwice(payload, offset, length));
     }
 
     public int getOptimalEncodingMessageSize() {
@@ -966,84 +975,145 @@ public class Transaction extends ChildMessage {
         //
         //   https://en.blockchain.it/wiki/Contracts
 
-        try {
-            // Create a copy of this transaction to operate upon because we need make changes to the inputs and outputs.
-            // It would not be thread-safe to change the attributes of the transaction object itself.
-            Transaction tx = this.params.getDefaultSerializer().makeTransaction(this.blockchainSerialize());
-
-            // Clear input scripts in preparation for signing. If we're signing a fresh
-            // transaction that step isn't very helpful, but it doesn't add much cost relative to the actual
-            // EC math so we'll do it anyway.
-            for (int i = 0; i < tx.inputs.size(); i++) {
-                tx.inputs.get(i).clearScriptBytes();
-            }
+        // The modified copy of the transaction is never built. Instead, its serialization is written straight into the
+        // digest, reusing the parts that are the same for every input.
+        final int type = sigHashType & 0x1f;
+        final boolean anyoneCanPay = (sigHashType & SigHash.ANYONECANPAY.value) == SigHash.ANYONECANPAY.value;
+        TransactionInput input = inputs.get(inputIndex);
+        if (type == SigHash.SINGLE.value && inputIndex >= outputs.size()) {
+            // SIGHASH_SINGLE means only sign the output at the same index as the input (ie, my output). Here the input
+            // index is beyond the number of outputs, it's a buggy signature made by a broken Blockchain
+            // implementation. Blockchain Core also contains a bug in handling this case: any transaction output that
+            // is signed in this case will result in both the signed output and any future outputs to this public key
+            // being steal-able by anyone who has the resulting signature and the public key (both of which are part
+            // of the signed tx input).
+
+            // Blockchain Core's bug is that SignatureHash was supposed to return a hash and on this codepath it
+            // actually returns the constant "1" to indicate an error, which is never checked for. Oops.
+            return Sha256Hash.wrap("0100000000000000000000000000000000000000000000000000000000000000");
+        }
 
-            // This step has no purpose beyond being synchronized with Blockchain Core's bugs. OP_CODESEPARATOR
-            // is a legacy holdover from a previous, broken design of executing scripts that shipped in Blockchain 0.1.
-            // It was seriously flawed and would have let anyone take anyone elses money. Later versions switched to
-            // the design we use today where scripts are executed independently but share a stack. This left the
-            // OP_CODESEPARATOR instruction having no purpose as it was only meant to be used internally, not actually
-            // ever put into scripts. Deleting OP_CODESEPARATOR is a step that should never be required but if we don't
-            // do it, we could split off the main chain.
-            connectedScript = Script.removeAllInstancesOfOp(connectedScript, ScriptOpCodes.OP_CODESEPARATOR);
-
-            // Set the input to the script of its output. Blockchain Core does this but the step has no obvious purpose as
-            // the signature covers the hash of the prevout transaction which obviously includes the output script
-            // already. Perhaps it felt safer to him in some way, or is another leftover from how the code was written.
-            TransactionInput input = tx.inputs.get(inputIndex);
-            input.setScriptBytes(connectedScript);
-
-            if ((sigHashType & 0x1f) == SigHash.NONE.value) {
-                // SIGHASH_NONE means no outputs are signed at all - the signature is effectively for a "blank cheque".
-                tx.outputs = new ArrayList<TransactionOutput>(0);
-                // The signature isn't broken by new versions of the transaction issued by other parties.
-                for (int i = 0; i < tx.inputs.size(); i++)
-                    if (i != inputIndex)
-                        tx.inputs.get(i).setSequenceNumber(0);
-            } else if ((sigHashType & 0x1f) == SigHash.SINGLE.value) {
-                // SIGHASH_SINGLE means only sign the output at the same index as the input (ie, my output).
-                if (inputIndex >= tx.outputs.size()) {
-                    // The input index is beyond the number of outputs, it's a buggy signature made by a broken
-                    // Blockchain implementation. Blockchain Core also contains a bug in handling this case:
-                    // any transaction output that is signed in this case will result in both the signed output
-                    // and any future outputs to this public key being steal-able by anyone who has
-                    // the resulting signature and the public key (both of which are part of the signed tx input).
-
-                    // Blockchain Core's bug is that SignatureHash was supposed to return a hash and on this codepath it
-                    // actually returns the constant "1" to indicate an error, which is never checked for. Oops.
-                    return Sha256Hash.wrap("0100000000000000000000000000000000000000000000000000000000000000");
+        // This step has no purpose beyond being synchronized with Blockchain Core's bugs. OP_CODESEPARATOR
+        // is a legacy holdover from a previous, broken design of executing scripts that shipped in Blockchain 0.1.
+        // It was seriously flawed and would have let anyone take anyone elses money. Later versions switched to
+        // the design we use today where scripts are executed independently but share a stack. This left the
+        // OP_CODESEPARATOR instruction having no purpose as it was only meant to be used internally, not actually
+        // ever put into scripts. Deleting OP_CODESEPARATOR is a step that should never be required but if we don't
+        // do it, we could split off the main chain.
+        connectedScript = Script.removeAllInstancesOfOp(connectedScript, ScriptOpCodes.OP_CODESEPARATOR);
+
+        SigHashParts parts = getSigHashParts();
+        MessageDigest digest = Sha256Hash.newDigest();
+        byte[] buf = new byte[8];
+        updateUint32(digest, buf, version);
+        if (anyoneCanPay) {
+            // SIGHASH_ANYONECANPAY means the signature in the input is not broken by changes/additions/removals
+            // of other inputs. For example, this is useful for building assurance contracts.
+            digest.update(new VarInt(1).encode());
+            digest.update(parts.outPoints, inputIndex * OUTPOINT_LENGTH, OUTPOINT_LENGTH);
+            updateScript(digest, connectedScript);
+            updateUint32(digest, buf, input.getSequenceNumber());
+        } else {
+            digest.update(new VarInt(inputs.size()).encode());
+            for (int i = 0; i < inputs.size(); i++) {
+                digest.update(parts.outPoints, i * OUTPOINT_LENGTH, OUTPOINT_LENGTH);
+                if (i == inputIndex) {
+                    // Set the input to the script of its output. Blockchain Core does this but the step has no obvious
+                    // purpose as the signature covers the hash of the prevout transaction which obviously includes the
+                    // output script already. Perhaps it felt safer to him in some way, or is another leftover from how
+                    // the code was written. The scripts of all other inputs are cleared.
+                    updateScript(digest, connectedScript);
+                    updateUint32(digest, buf, input.getSequenceNumber());
+                } else {
+                    digest.update((byte) 0);
+                    // With SIGHASH_NONE and SIGHASH_SINGLE the signature isn't broken by new versions of the
+                    // transaction issued by other parties.
+                    boolean keepSequence = type != SigHash.NONE.value && type != SigHash.SINGLE.value;
+                    updateUint32(digest, buf, keepSequence ? inputs.get(i).getSequenceNumber() : 0);
                 }
-                // In SIGHASH_SINGLE the outputs after the matching input index are deleted, and the outputs before
-                // that position are "nulled out". Unintuitively, the value in a "null" transaction is set to -1.
-                tx.outputs = new ArrayList<TransactionOutput>(tx.outputs.subList(0, inputIndex + 1));
-                for (int i = 0; i < inputIndex; i++)
-                    tx.outputs.set(i, new TransactionOutput(tx.params, tx, Coin.NEGATIVE_SATOSHI, new byte[] {}));
-                // The signature isn't broken by new versions of the transaction issued by other parties.
-                for (int i = 0; i < tx.inputs.size(); i++)
-                    if (i != inputIndex)
-                        tx.inputs.get(i).setSequenceNumber(0);
             }
-
-            if ((sigHashType & SigHash.ANYONECANPAY.value) == SigHash.ANYONECANPAY.value) {
-                // SIGHASH_ANYONECANPAY means the signature in the input is not broken by changes/additions/removals
-                // of other inputs. For example, this is useful for building assurance contracts.
-                tx.inputs = new ArrayList<TransactionInput>();
-                tx.inputs.add(input);
+        }
+        if (type == SigHash.NONE.value) {
+            // SIGHASH_NONE means no outputs are signed at all - the signature is effectively for a "blank cheque".
+            digest.update(new VarInt(0).encode());
+        } else if (type == SigHash.SINGLE.value) {
+            // In SIGHASH_SINGLE the outputs after the matching input index are deleted, and the outputs before
+            // that position are "nulled out". Unintuitively, the value in a "null" transaction is set to -1.
+            digest.update(new VarInt(inputIndex + 1).encode());
+            for (int i = 0; i < inputIndex; i++) {
+                updateInt64(digest, buf, -1);
+                digest.update((byte) 0);
             }
+            TransactionOutput output = outputs.get(inputIndex);
+            updateInt64(digest, buf, output.getValue().value);
+            updateScript(digest, output.getScriptBytes());
+        } else {
+            digest.update(parts.outputs);
+        }
+        updateUint32(digest, buf, lockTime);
+        // We also have to write a hash type (sigHashType is actually an unsigned char)
+        updateUint32(digest, buf, 0x000000ff & sigHashType);
+        // Note that this is NOT reversed to ensure it will be signed correctly. If it were to be printed out
+        // however then we would expect that it is IS reversed.
+        return Sha256Hash.wrap(digest.digest(digest.digest()));
+    }
+
+    private static final int OUTPOINT_LENGTH = 36;
+
+    /** Serialized parts of a transaction that are the same in the signature hash of every input. */
+    private static class SigHashParts {
+        // The outpoint of every input.
+        final byte[] outPoints;
+        // The output count and all outputs, as signed by SIGHASH_ALL.
+        final byte[] outputs;
+
+        SigHashParts(byte[] outPoints, byte[] outputs) {
+            this.outPoints = outPoints;
+            this.outputs = outputs;
+        }
+    }
 
-            ByteArrayOutputStream bos = new UnsafeByteArrayOutputStream(tx.length == UNKNOWN_LENGTH ? 256 : tx.length + 4);
-            tx.blockchainSerialize(bos);
-            // We also have to write a hash type (sigHashType is actually an unsigned char)
-            uint32ToByteStreamLE(0x000000ff & sigHashType, bos);
-            // Note that this is NOT reversed to ensure it will be signed correctly. If it were to be printed out
-            // however then we would expect that it is IS reversed.
-            Sha256Hash hash = Sha256Hash.twiceOf(bos.toByteArray());
-            bos.close();
-
-            return hash;
+    private SigHashParts getSigHashParts() {
+        SigHashParts parts = sigHashParts;
+        if (parts != null)
+            return parts;
+        // Everything is serialized from the parsed fields rather than reused from the message bytes, so that
+        // non-canonical encodings are signed the same way as a freshly serialized transaction.
+        byte[] outPoints = new byte[inputs.size() * OUTPOINT_LENGTH];
+        for (int i = 0; i < inputs.size(); i++) {
+            TransactionOutPoint outPoint = inputs.get(i).getOutpoint();
+            System.arraycopy(outPoint.getHash().getReversedBytes(), 0, outPoints, i * OUTPOINT_LENGTH, 32);
+            uint32ToByteArrayLE(outPoint.getIndex(), outPoints, i * OUTPOINT_LENGTH + 32);
+        }
+        try {
+            UnsafeByteArrayOutputStream bos = new UnsafeByteArrayOutputStream(outputs.size() * 34 + 9);
+            bos.write(new VarInt(outputs.size()).encode());
+            for (TransactionOutput output : outputs) {
+                int64ToByteStreamLE(output.getValue().value, bos);
+                bos.write(new VarInt(output.getScriptBytes().length).encode());
+                bos.write(output.getScriptBytes());
+            }
+            parts = new SigHashParts(outPoints, bos.toByteArray());
         } catch (IOException e) {
-            throw new RuntimeException(e);  // Cannot happen.
+            throw new RuntimeException(e); // Cannot happen.
         }
+        sigHashParts = parts;
+        return parts;
+    }
+
+    private static void updateScript(MessageDigest digest, byte[] script) {
+        digest.update(new VarInt(script.length).encode());
+        digest.update(script);
+    }
+
+    private static void updateUint32(MessageDigest digest, byte[] buf, long val) {
+        uint32ToByteArrayLE(val, buf, 0);
+        digest.update(buf, 0, 4);
+    }
+
+    private static void updateInt64(MessageDigest digest, byte[] buf, long val) {
+        uint64ToByteArrayLE(val, buf, 0);
+        digest.update(buf, 0, 8);
     }
 
     @Override
@@ -1129,6 +1199,7 @@ public class Transaction extends ChildMessage {
 
     /** Randomly re-orders the transaction outputs: good for privacy */
     public void shuffleOutputs() {
+        unCache();
         Collections.shuffle(outputs);
     }
 
@@ -19,6 +19,7 @@ package org.blockchainj.core;
 import com.google.common.annotations.*;
 import com.google.common.base.*;
 import com.google.common.util.concurrent.*;
+import org.blockchainj.net.PooledBuffer;
 import org.blockchainj.utils.*;
 import org.blockchainj.wallet.Wallet;
 import org.slf4j.*;
@@ -147,14 +148,20 @@ public class TransactionBroadcast {
             peers = peers.subList(0, numToBroadcastTo);
             log.info("broadcastTransaction: We have {} peers, adding {} to the memory pool", numConnected, tx.getHashAsString());
             log.info("Sending to {} peers, will wait for {}, sending to: {}", numToBroadcastTo, numWaitingFor, Joiner.on(",").join(peers));
-            for (Peer peer : peers) {
-                try {
-                    peer.sendMessage(tx);
-                    // We don't record the peer as having seen the tx in the memory pool because we want to track only
-                    // how many peers announced to us.
-                } catch (Exception e) {
-                    log.error("Caught exception sending to {}", peer, e);
+            // The peers share one serialized copy of the transaction.
+            PooledBuffer serializedTx = peers.get(0).serializeMessage(tx);
+            try {
+                for (Peer peer : peers) {
+                    try {
+                        peer.sendMessage(serializedTx);
+                        // We don't record the peer as having seen the tx in the memory pool because we want to track
+                        // only how many peers announced to us.
+                    } catch (Exception e) {
+                        log.error("Caught exception sending to {}", peer, e);
+                    }
                 }
+            } finally {
+                serializedTx.release();
             }
             // If we've been limited to talk to only one peer, we can't wait to hear back because the
             // remote peer won't tell us about transactions we just announced to it for obvious reasons.
@@ -21,6 +21,7 @@ import com.google.common.base.Objects;
 
 import java.io.*;
 import java.math.*;
+import java.util.Arrays;
 import java.util.Locale;
 
 // TODO: Fix this class: should not talk about addresses, height should be optional/support mempool height etc
@@ -150,7 +151,11 @@ public class UTXO {
         return coinbase;
     }
 
-    /** The address of this output, can be the empty string if none was provided at construction time or was deserialized */
+    /**
+     * The address of this output, can be the empty string if none was provided at construction time or was deserialized.
+     * Outputs handed out by a {@link UTXOProvider} always have it, elsewhere it can be derived from {@link #getScript()}
+     * when needed.
+     */
     public String getAddress() {
         return address;
     }
@@ -193,4 +198,92 @@ public class UTXO {
 
         bos.write(new byte[] { (byte)(coinbase ? 1 : 0) });
     }
+
+    // Script tags of the compact format. Any other tag is the length of a script stored in full, plus COMPACT_RAW_SCRIPT.
+    private static final int COMPACT_PAY_TO_ADDRESS = 0;
+    private static final int COMPACT_PAY_TO_SCRIPT_HASH = 1;
+    private static final int COMPACT_RAW_SCRIPT = 2;
+
+    /**
+     * <p>Writes the height, coinbase flag, value and script of this output in a compact form, for stores that keep the
+     * hash and index in their key. The height and coinbase flag share a varint, the value is a varint, and the script
+     * is a varint tag followed by the 20 byte hash for pay to address and pay to script hash outputs, or by the whole
+     * script otherwise.</p>
+     *
+     * <p>The address is not written, see {@link #getAddress()}.</p>
+     */
+    public void serializeCompact(OutputStream bos) throws IOException {
+        bos.write(new VarInt(((long) height << 1) | (coinbase ? 1 : 0)).encode());
+        bos.write(new VarInt(value.value).encode());
+        byte[] program = script.getProgram();
+        if (isPayToAddressProgram(program)) {
+            bos.write(new VarInt(COMPACT_PAY_TO_ADDRESS).encode());
+            bos.write(program, 3, 20);
+        } else if (isPayToScriptHashProgram(program)) {
+            bos.write(new VarInt(COMPACT_PAY_TO_SCRIPT_HASH).encode());
+            bos.write(program, 2, 20);
+        } else {
+            bos.write(new VarInt(COMPACT_RAW_SCRIPT + (long) program.length).encode());
+            bos.write(program);
+        }
+    }
+
+    /** Reads an output written by {@link #serializeCompact(OutputStream)}, given the hash and index it was stored under. */
+    public static UTXO deserializeCompact(Sha256Hash hash, long index, byte[] bytes) throws IOException {
+        try {
+            int cursor = 0;
+            VarInt heightAndCoinbase = new VarInt(bytes, cursor);
+            cursor += heightAndCoinbase.getOriginalSizeInBytes();
+            VarInt value = new VarInt(bytes, cursor);
+            cursor += value.getOriginalSizeInBytes();
+            VarInt tag = new VarInt(bytes, cursor);
+            cursor += tag.getOriginalSizeInBytes();
+            byte[] program;
+            if (tag.value == COMPACT_PAY_TO_ADDRESS) {
+                program = new byte[25];
+                program[0] = (byte) ScriptOpCodes.OP_DUP;
+                program[1] = (byte) ScriptOpCodes.OP_HASH160;
+                program[2] = 20;
+                System.arraycopy(bytes, cursor, program, 3, 20);
+                program[23] = (byte) ScriptOpCodes.OP_EQUALVERIFY;
+                program[24] = (byte) ScriptOpCodes.OP_CHECKSIG;
+                cursor += 20;
+            } else if (tag.value == COMPACT_PAY_TO_SCRIPT_HASH) {
+                program = new byte[23];
+                program[0] = (byte) ScriptOpCodes.OP_HASH160;
+                program[1] = 20;
+                System.arraycopy(bytes, cursor, program, 2, 20);
+                program[22] = (byte) ScriptOpCodes.OP_EQUAL;
+                cursor += 20;
+            } else {
+                long length = tag.value - COMPACT_RAW_SCRIPT;
+                if (length < 0 || length > bytes.length - cursor)
+                    throw new EOFException();
+                program = Arrays.copyOfRange(bytes, cursor, cursor + (int) length);
+                cursor += (int) length;
+            }
+            if (cursor != bytes.length)
+                throw new IOException("Trailing bytes after compact UTXO");
+            return new UTXO(hash, index, Coin.valueOf(value.value), (int) (heightAndCoinbase.value >>> 1),
+                    (heightAndCoinbase.value & 1) == 1, new Script(program));
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new EOFException();
+        }
+    }
+
+    private static boolean isPayToAddressProgram(byte[] program) {
+        return program.length == 25 &&
+                (program[0] & 0xff) == ScriptOpCodes.OP_DUP &&
+                (program[1] & 0xff) == ScriptOpCodes.OP_HASH160 &&
+                program[2] == 20 &&
+                (program[23] & 0xff) == ScriptOpCodes.OP_EQUALVERIFY &&
+                (program[24] & 0xff) == ScriptOpCodes.OP_CHECKSIG;
+    }
+
+    private static boolean isPayToScriptHashProgram(byte[] program) {
+        return program.length == 23 &&
+                (program[0] & 0xff) == ScriptOpCodes.OP_HASH160 &&
+                program[1] == 20 &&
+                (program[22] & 0xff) == ScriptOpCodes.OP_EQUAL;
+    }
 }
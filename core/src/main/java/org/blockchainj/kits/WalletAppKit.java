@@ -289,6 +289,8 @@ public class WalletAppKit extends AbstractIdleService {
                             vStore.close();
                             if (!chainFile.delete())
                                 throw new IOException("Failed to delete chain file in preparation for restore.");
+                            // The index would only be rebuilt for the new chain file, so it goes too.
+                            new File(chainFile.getPath() + SPVBlockStore.INDEX_FILE_SUFFIX).delete();
                             vStore = new SPVBlockStore(params, chainFile);
                         }
                     } else {
@@ -303,6 +305,7 @@ public class WalletAppKit extends AbstractIdleService {
                     vStore.close();
                     if (!chainFile.delete())
                         throw new IOException("Failed to delete chain file in preparation for restore.");
+                    new File(chainFile.getPath() + SPVBlockStore.INDEX_FILE_SUFFIX).delete();
                     vStore = new SPVBlockStore(params, chainFile);
                 }
             }
@@ -106,24 +106,32 @@ public class BlockingClient implements MessageWriteTarget {
      * and feeds them to the provided {@link StreamConnection}, for example, a {@link Peer}.
      */
     public static void runReadLoop(InputStream stream, StreamConnection connection) throws Exception {
-        ByteBuffer dbuf = ByteBuffer.allocateDirect(Math.min(Math.max(connection.getMaxMessageSize(), BUFFER_SIZE_LOWER_BOUND), BUFFER_SIZE_UPPER_BOUND));
-        byte[] readBuff = new byte[dbuf.capacity()];
-        while (true) {
-            // TODO Kill the message duplication here
-            checkState(dbuf.remaining() > 0 && dbuf.remaining() <= readBuff.length);
-            int read = stream.read(readBuff, 0, Math.max(1, Math.min(dbuf.remaining(), stream.available())));
-            if (read == -1)
-                return;
-            dbuf.put(readBuff, 0, read);
-            // "flip" the buffer - setting the limit to the current position and setting position to 0
-            dbuf.flip();
-            // Use connection.receiveBytes's return value as a double-check that it stopped reading at the right
-            // location
-            int bytesConsumed = connection.receiveBytes(dbuf);
-            checkState(dbuf.position() == bytesConsumed);
-            // Now drop the bytes which were read by compacting dbuf (resetting limit and keeping relative
-            // position)
-            dbuf.compact();
+        int size = Math.min(Math.max(connection.getMaxMessageSize(), BUFFER_SIZE_LOWER_BOUND), BUFFER_SIZE_UPPER_BOUND);
+        // A heap buffer from the pool, which the stream reads into directly. The connection expects a buffer of exactly
+        // the size it asked for, not that of its size class.
+        PooledBuffer pooled = BufferPool.getDefault().take(size);
+        try {
+            pooled.buffer().limit(size);
+            ByteBuffer buff = pooled.buffer().slice();
+            while (true) {
+                checkState(buff.remaining() > 0);
+                int read = stream.read(buff.array(), buff.arrayOffset() + buff.position(),
+                        Math.max(1, Math.min(buff.remaining(), stream.available())));
+                if (read == -1)
+                    return;
+                buff.position(buff.position() + read);
+                // "flip" the buffer - setting the limit to the current position and setting position to 0
+                buff.flip();
+                // Use connection.receiveBytes's return value as a double-check that it stopped reading at the right
+                // location
+                int bytesConsumed = connection.receiveBytes(buff);
+                checkState(buff.position() == bytesConsumed);
+                // Now drop the bytes which were read by compacting buff (resetting limit and keeping relative
+                // position)
+                buff.compact();
+            }
+        } finally {
+            pooled.release();
         }
     }
 
@@ -144,9 +152,13 @@ public class BlockingClient implements MessageWriteTarget {
 
     @Override
     public synchronized void writeBytes(byte[] message) throws IOException {
+        writeBytes(message, 0, message.length);
+    }
+
+    private void writeBytes(byte[] message, int offset, int length) throws IOException {
         try {
             OutputStream stream = socket.getOutputStream();
-            stream.write(message);
+            stream.write(message, offset, length);
             stream.flush();
         } catch (IOException e) {
             log.error("Error writing message to connection, closing connection", e);
@@ -155,6 +167,19 @@ public class BlockingClient implements MessageWriteTarget {
         }
     }
 
+    @Override
+    public synchronized void writeBuffer(PooledBuffer buffer) throws IOException {
+        // Streams only take arrays, so only heap buffers can be written without a copy.
+        ByteBuffer view = buffer.view();
+        if (view.hasArray()) {
+            writeBytes(view.array(), view.arrayOffset() + view.position(), view.remaining());
+        } else {
+            byte[] bytes = new byte[view.remaining()];
+            view.get(bytes);
+            writeBytes(bytes, 0, bytes.length);
+        }
+    }
+
     /** Returns a future that completes once connection has occurred at the socket level or with an exception if failed to connect. */
     public ListenableFuture<SocketAddress> getConnectFuture() {
         return connectFuture;
@@ -0,0 +1,140 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.blockchainj.net;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>A pool of byte buffers in power of two size classes, so that the buffers messages are serialized into, read into
+ * and assembled in can be used again instead of being allocated for every message or connection. Buffers bigger than
+ * {@link #MAX_POOLED_SIZE} are allocated when asked for and not kept.</p>
+ *
+ * <p>Buffers are handed out as {@link PooledBuffer}s and come back once everything sharing them has released them. A
+ * pool can hand out direct buffers, which are written to sockets without being copied first, but which are expensive
+ * to allocate and so only worth it when they are used again. Pools are thread safe.</p>
+ */
+public class BufferPool {
+    /** The smallest size class. Smaller requests get a buffer of this size. */
+    public static final int MIN_POOLED_SIZE = 256;
+    /** The biggest size class. */
+    public static final int MAX_POOLED_SIZE = 1024 * 1024;
+    /** How many bytes of free buffers the default pool keeps in each size class. */
+    public static final int DEFAULT_MAX_FREE_BYTES_PER_CLASS = 512 * 1024;
+
+    private static final int MIN_POOLED_SIZE_BITS = Integer.numberOfTrailingZeros(MIN_POOLED_SIZE);
+    private static final int SIZE_CLASSES = Integer.numberOfTrailingZeros(MAX_POOLED_SIZE) - MIN_POOLED_SIZE_BITS + 1;
+
+    private static final BufferPool DEFAULT = new BufferPool(false, DEFAULT_MAX_FREE_BYTES_PER_CLASS);
+    private static final BufferPool DEFAULT_DIRECT = new BufferPool(true, DEFAULT_MAX_FREE_BYTES_PER_CLASS);
+
+    private final boolean direct;
+    private final int maxFreeBytesPerClass;
+    private final List<ConcurrentLinkedQueue<ByteBuffer>> free;
+    private final AtomicInteger[] freeCounts;
+
+    /**
+     * @param direct whether to hand out direct buffers
+     * @param maxFreeBytesPerClass how many bytes of free buffers to keep in each size class, though at least one buffer
+     *                             is kept in each
+     */
+    public BufferPool(boolean direct, int maxFreeBytesPerClass) {
+        checkArgument(maxFreeBytesPerClass >= 0);
+        this.direct = direct;
+        this.maxFreeBytesPerClass = maxFreeBytesPerClass;
+        free = new ArrayList<ConcurrentLinkedQueue<ByteBuffer>>(SIZE_CLASSES);
+        freeCounts = new AtomicInteger[SIZE_CLASSES];
+        for (int i = 0; i < SIZE_CLASSES; i++) {
+            free.add(new ConcurrentLinkedQueue<ByteBuffer>());
+            freeCounts[i] = new AtomicInteger();
+        }
+    }
+
+    /** Returns the pool of heap buffers used by default. */
+    public static BufferPool getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Returns the pool of direct buffers that connections read into. A connection only holds one while it has bytes
+     * waiting to be consumed, so connections that are idle don't each keep one.
+     */
+    public static BufferPool getDefaultDirect() {
+        return DEFAULT_DIRECT;
+    }
+
+    /** Returns whether the pool hands out direct buffers. */
+    public boolean isDirect() {
+        return direct;
+    }
+
+    /**
+     * Returns a buffer with room for at least the given number of bytes, with its position at zero and its limit at its
+     * capacity. It must be released once it is no longer used.
+     */
+    public PooledBuffer take(int minCapacity) {
+        checkArgument(minCapacity >= 0);
+        int sizeClass = sizeClass(minCapacity);
+        if (sizeClass < 0)
+            return new PooledBuffer(allocate(minCapacity), null);
+        ByteBuffer buffer = free.get(sizeClass).poll();
+        if (buffer != null) {
+            freeCounts[sizeClass].decrementAndGet();
+            buffer.clear();
+        } else {
+            buffer = allocate(MIN_POOLED_SIZE << sizeClass);
+        }
+        return new PooledBuffer(buffer, this);
+    }
+
+    /** Returns how many free buffers the pool holds. */
+    public int getFreeCount() {
+        int count = 0;
+        for (AtomicInteger classCount : freeCounts)
+            count += classCount.get();
+        return count;
+    }
+
+    // Called by PooledBuffer once the last user released it.
+    void give(ByteBuffer buffer) {
+        int sizeClass = sizeClass(buffer.capacity());
+        if (sizeClass < 0 || buffer.capacity() != MIN_POOLED_SIZE << sizeClass || buffer.isDirect() != direct)
+            return;
+        int maxFree = Math.max(1, maxFreeBytesPerClass >> (MIN_POOLED_SIZE_BITS + sizeClass));
+        if (freeCounts[sizeClass].incrementAndGet() > maxFree) {
+            freeCounts[sizeClass].decrementAndGet();
+            return;
+        }
+        free.get(sizeClass).offer(buffer);
+    }
+
+    private ByteBuffer allocate(int capacity) {
+        return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+
+    // The smallest size class the given number of bytes fits in, or -1 if they are too many to pool.
+    static int sizeClass(int size) {
+        if (size > MAX_POOLED_SIZE)
+            return -1;
+        if (size <= MIN_POOLED_SIZE)
+            return 0;
+        return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_POOLED_SIZE_BITS;
+    }
+}
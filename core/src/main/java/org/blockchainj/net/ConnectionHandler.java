@@ -28,7 +28,6 @@ import java.nio.ByteBuffer;
 import java.nio.channels.CancelledKeyException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
-import java.util.Arrays;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.Set;
@@ -37,7 +36,8 @@ import java.util.concurrent.locks.ReentrantLock;
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
 
-// TODO: The locking in all this class is horrible and not really necessary. We should just run all network stuff on one thread.
+// TODO: Writes can come from any thread so still need the lock. Everything on the read side is only done by the selector
+// thread the connection is pinned to and runs unlocked; writes could be handed to that thread as well.
 
 /**
  * A simple NIO MessageWriteTarget which handles all the business logic of a connection (reading+writing bytes).
@@ -50,18 +50,27 @@ class ConnectionHandler implements MessageWriteTarget {
     private static final int BUFFER_SIZE_UPPER_BOUND = 65536;
 
     private static final int OUTBOUND_BUFFER_BYTE_COUNT = Message.MAX_SIZE + 24; // 24 byte message header
+    // How many queued buffers to hand to the OS in one write.
+    private static final int MAX_BUFFERS_PER_WRITE = 64;
 
     // We lock when touching local flags and when writing data, but NEVER when calling any methods which leave this
     // class into non-Java classes.
     private final ReentrantLock lock = Threading.lock("nioConnectionHandler");
-    @GuardedBy("lock") private final ByteBuffer readBuff;
+    // The read buffer is taken from a pool shared by all connections when bytes arrive, and given back once all of them
+    // were consumed, so idle connections don't each pin one. Only the selector thread that handles this connection
+    // touches it, so it isn't locked.
+    private final int readBuffSize;
+    @Nullable private PooledBuffer readBuffer;
+    @Nullable private ByteBuffer readBuff;
     @GuardedBy("lock") private final SocketChannel channel;
     @GuardedBy("lock") private final SelectionKey key;
     @GuardedBy("lock") StreamConnection connection;
     @GuardedBy("lock") private boolean closeCalled = false;
 
+    // The bytes queued for writing, each a view of a buffer we hold a reference to, and how many bytes are left in them.
     @GuardedBy("lock") private long bytesToWriteRemaining = 0;
     @GuardedBy("lock") private final LinkedList<ByteBuffer> bytesToWrite = new LinkedList<ByteBuffer>();
+    @GuardedBy("lock") private final LinkedList<PooledBuffer> buffersToWrite = new LinkedList<PooledBuffer>();
 
     private Set<ConnectionHandler> connectedHandlers;
 
@@ -75,11 +84,11 @@ class ConnectionHandler implements MessageWriteTarget {
         this.key = key;
         this.channel = checkNotNull(((SocketChannel)key.channel()));
         if (connection == null) {
-            readBuff = null;
+            readBuffSize = 0;
             return;
         }
         this.connection = connection;
-        readBuff = ByteBuffer.allocateDirect(Math.min(Math.max(connection.getMaxMessageSize(), BUFFER_SIZE_LOWER_BOUND), BUFFER_SIZE_UPPER_BOUND));
+        readBuffSize = Math.min(Math.max(connection.getMaxMessageSize(), BUFFER_SIZE_LOWER_BOUND), BUFFER_SIZE_UPPER_BOUND);
         connection.setWriteTarget(this); // May callback into us (eg closeConnection() now)
         connectedHandlers = null;
     }
@@ -112,14 +121,19 @@ class ConnectionHandler implements MessageWriteTarget {
     private void tryWriteBytes() throws IOException {
         lock.lock();
         try {
-            // Iterate through the outbound ByteBuff queue, pushing as much as possible into the OS' network buffer.
-            Iterator<ByteBuffer> bytesIterator = bytesToWrite.iterator();
-            while (bytesIterator.hasNext()) {
-                ByteBuffer buff = bytesIterator.next();
-                bytesToWriteRemaining -= channel.write(buff);
-                if (!buff.hasRemaining())
-                    bytesIterator.remove();
-                else {
+            // Push as much of the outbound ByteBuff queue as possible into the OS' network buffer, handing it several
+            // buffers at a time so that small messages don't each take a system call.
+            while (!bytesToWrite.isEmpty()) {
+                ByteBuffer[] buffs = new ByteBuffer[Math.min(bytesToWrite.size(), MAX_BUFFERS_PER_WRITE)];
+                Iterator<ByteBuffer> bytesIterator = bytesToWrite.iterator();
+                for (int i = 0; i < buffs.length; i++)
+                    buffs[i] = bytesIterator.next();
+                bytesToWriteRemaining -= channel.write(buffs);
+                while (!bytesToWrite.isEmpty() && !bytesToWrite.peek().hasRemaining()) {
+                    bytesToWrite.poll();
+                    buffersToWrite.poll().release();
+                }
+                if (buffs[buffs.length - 1].hasRemaining()) {
                     setWriteOps();
                     break;
                 }
@@ -135,6 +149,18 @@ class ConnectionHandler implements MessageWriteTarget {
 
     @Override
     public void writeBytes(byte[] message) throws IOException {
+        // The caller may reuse the array, so it is copied.
+        PooledBuffer buffer = BufferPool.getDefault().take(message.length);
+        buffer.buffer().put(message).flip();
+        try {
+            writeBuffer(buffer);
+        } finally {
+            buffer.release();
+        }
+    }
+
+    @Override
+    public void writeBuffer(PooledBuffer buffer) throws IOException {
         boolean andUnlock = true;
         lock.lock();
         try {
@@ -143,12 +169,14 @@ class ConnectionHandler implements MessageWriteTarget {
             // append to it when we want to send a message. We then let tryWriteBytes() either send the message or
             // register our SelectionKey to wakeup when we have free outbound buffer space available.
 
-            if (bytesToWriteRemaining + message.length > OUTBOUND_BUFFER_BYTE_COUNT)
+            int size = buffer.size();
+            if (bytesToWriteRemaining + size > OUTBOUND_BUFFER_BYTE_COUNT)
                 throw new IOException("Outbound buffer overflowed");
-            // Just dump the message onto the write buffer and call tryWriteBytes
-            // TODO: Kill the needless message duplication when the write completes right away
-            bytesToWrite.offer(ByteBuffer.wrap(Arrays.copyOf(message, message.length)));
-            bytesToWriteRemaining += message.length;
+            // Just queue our own view of the buffer, which may be queued by other connections too, and call
+            // tryWriteBytes
+            bytesToWrite.offer(buffer.view());
+            buffersToWrite.offer(buffer.retain());
+            bytesToWriteRemaining += size;
             setWriteOps();
         } catch (IOException e) {
             lock.unlock();
@@ -186,6 +214,13 @@ class ConnectionHandler implements MessageWriteTarget {
         try {
             callClosed = !closeCalled;
             closeCalled = true;
+            // Nothing more will be written, so the buffers can go back to their pools. This is done even if the
+            // connection was closed before, as a write that came after that may have queued one.
+            for (PooledBuffer buffer : buffersToWrite)
+                buffer.release();
+            buffersToWrite.clear();
+            bytesToWrite.clear();
+            bytesToWriteRemaining = 0;
         } finally {
             lock.unlock();
         }
@@ -196,8 +231,7 @@ class ConnectionHandler implements MessageWriteTarget {
     }
 
     // Handle a SelectionKey which was selected
-    // Runs unlocked as the caller is single-threaded (or if not, should enforce that handleKey is only called
-    // atomically for a given ConnectionHandler)
+    // Runs unlocked as a connection is only ever handled by the one selector thread its key is registered with
     public static void handleKey(SelectionKey key) {
         ConnectionHandler handler = ((ConnectionHandler)key.attachment());
         try {
@@ -209,6 +243,12 @@ class ConnectionHandler implements MessageWriteTarget {
             }
             if (key.isReadable()) {
                 // Do a socket read and invoke the connection's receiveBytes message
+                if (handler.readBuff == null) {
+                    // Connections expect a buffer of exactly the size they asked for, not that of its size class
+                    handler.readBuffer = BufferPool.getDefaultDirect().take(handler.readBuffSize);
+                    handler.readBuffer.buffer().limit(handler.readBuffSize);
+                    handler.readBuff = handler.readBuffer.buffer().slice();
+                }
                 int read = handler.channel.read(handler.readBuff);
                 if (read == 0)
                     return; // Was probably waiting on a write
@@ -234,6 +274,19 @@ class ConnectionHandler implements MessageWriteTarget {
             Throwable t = Throwables.getRootCause(e);
             log.warn("Error handling SelectionKey: {}", t.getMessage() != null ? t.getMessage() : t.getClass().getName());
             handler.closeConnection();
+        } finally {
+            if (handler != null)
+                handler.maybeReleaseReadBuffer();
+        }
+    }
+
+    // Gives the read buffer back to the pool if it holds no bytes that are still to be consumed, or if the connection is
+    // closed. Only called from handleKey, as nothing else touches the buffer.
+    private void maybeReleaseReadBuffer() {
+        if (readBuffer != null && (readBuff.position() == 0 || !channel.isOpen())) {
+            readBuffer.release();
+            readBuffer = null;
+            readBuff = null;
         }
     }
 }
@@ -26,6 +26,12 @@ public interface MessageWriteTarget {
      * Writes the given bytes to the remote server.
      */
     void writeBytes(byte[] message) throws IOException;
+    /**
+     * Writes the bytes of the given buffer to the remote server, copying them only if it must. The target holds its own
+     * reference to the buffer until they are written, so the caller may share the buffer with other targets and
+     * release it as soon as this returns.
+     */
+    void writeBuffer(PooledBuffer buffer) throws IOException;
     /**
      * Closes the connection to the server, triggering the {@link StreamConnection#connectionClosed()}
      * event on the network-handling thread where all callbacks occur.
@@ -123,4 +123,9 @@ public class NioClient implements MessageWriteTarget {
     public synchronized void writeBytes(byte[] message) throws IOException {
         handler.writeTarget.writeBytes(message);
     }
+
+    @Override
+    public synchronized void writeBuffer(PooledBuffer buffer) throws IOException {
+        handler.writeTarget.writeBuffer(buffer);
+    }
 }
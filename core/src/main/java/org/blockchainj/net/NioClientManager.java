@@ -25,18 +25,20 @@ import java.io.IOException;
 import java.net.ConnectException;
 import java.net.SocketAddress;
 import java.nio.channels.*;
-import java.nio.channels.spi.SelectorProvider;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * A class which manages a set of client connections. Uses Java NIO to select network events and processes them in a
- * single network processing thread.
+ * single network processing thread, or in several when there are many connections, see
+ * {@link #NioClientManager(int)}.
  */
 public class NioClientManager extends AbstractExecutionThreadService implements ClientConnectionManager {
     private static final org.slf4j.Logger log = LoggerFactory.getLogger(NioClientManager.class);
 
-    private final Selector selector;
+    private final SelectorLoop[] loops;
+    private final AtomicInteger nextLoop = new AtomicInteger();
 
     class PendingConnect {
         SocketChannel sc;
@@ -46,7 +48,6 @@ public class NioClientManager extends AbstractExecutionThreadService implements
 
         PendingConnect(SocketChannel sc, StreamConnection connection, SocketAddress address) { this.sc = sc; this.connection = connection; this.address = address; }
     }
-    final Queue<PendingConnect> newConnectionChannels = new LinkedBlockingQueue<PendingConnect>();
 
     // Added to/removed from by the individual ConnectionHandler's, thus must by synchronized on its own.
     private final Set<ConnectionHandler> connectedHandlers = Collections.synchronizedSet(new HashSet<ConnectionHandler>());
@@ -91,8 +92,22 @@ public class NioClientManager extends AbstractExecutionThreadService implements
      * calls.
      */
     public NioClientManager() {
+        this(1);
+    }
+
+    /**
+     * Creates a new client manager which uses Java NIO for socket management, with the given number of threads to
+     * handle select calls. Each connection is handled by one of them, given to them in turn, so with many connections
+     * reading and deserializing what they receive is spread over the threads.
+     */
+    public NioClientManager(int selectorThreads) {
         try {
-            selector = SelectorProvider.provider().openSelector();
+            loops = SelectorLoop.create(selectorThreads, new SelectorLoop.KeyHandler() {
+                @Override
+                public void handleKey(SelectorLoop loop, SelectionKey key) throws IOException {
+                    NioClientManager.this.handleKey(key);
+                }
+            });
         } catch (IOException e) {
             throw new RuntimeException(e); // Shouldn't ever happen
         }
@@ -102,31 +117,18 @@ public class NioClientManager extends AbstractExecutionThreadService implements
     public void run() {
         try {
             Thread.currentThread().setPriority(Thread.MIN_PRIORITY);
-            while (isRunning()) {
-                PendingConnect conn;
-                while ((conn = newConnectionChannels.poll()) != null) {
-                    try {
-                        SelectionKey key = conn.sc.register(selector, SelectionKey.OP_CONNECT);
-                        key.attach(conn);
-                    } catch (ClosedChannelException e) {
-                        log.warn("SocketChannel was closed before it could be registered");
-                    }
-                }
-
-                selector.select();
-
-                Iterator<SelectionKey> keyIterator = selector.selectedKeys().iterator();
-                while (keyIterator.hasNext()) {
-                    SelectionKey key = keyIterator.next();
-                    keyIterator.remove();
-                    handleKey(key);
-                }
-            }
+            SelectorLoop.runAll(loops, new ContextPropagatingThreadFactory("NioClientManager", Thread.MIN_PRIORITY));
         } catch (Exception e) {
             log.warn("Error trying to open/read from connection: ", e);
-        } finally {
-            // Go through and close everything, without letting IOExceptions get in our way
-            for (SelectionKey key : selector.keys()) {
+        }
+    }
+
+    // Runs once all selector threads have finished, or if the manager was stopped before run() got called.
+    @Override
+    protected void shutDown() {
+        // Go through and close everything, without letting IOExceptions get in our way
+        for (SelectorLoop loop : loops) {
+            for (SelectionKey key : loop.selector.keys()) {
                 try {
                     key.channel().close();
                 } catch (IOException e) {
@@ -137,7 +139,7 @@ public class NioClientManager extends AbstractExecutionThreadService implements
                     ConnectionHandler.handleKey(key); // Close connection if relevant
             }
             try {
-                selector.close();
+                loop.selector.close();
             } catch (IOException e) {
                 log.warn("Error closing client manager selector", e);
             }
@@ -153,9 +155,20 @@ public class NioClientManager extends AbstractExecutionThreadService implements
             SocketChannel sc = SocketChannel.open();
             sc.configureBlocking(false);
             sc.connect(serverAddress);
-            PendingConnect data = new PendingConnect(sc, connection, serverAddress);
-            newConnectionChannels.offer(data);
-            selector.wakeup();
+            final PendingConnect data = new PendingConnect(sc, connection, serverAddress);
+            // The connection is registered with the selector of the thread that will handle it from now on
+            final SelectorLoop loop = SelectorLoop.next(loops, nextLoop);
+            loop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        SelectionKey key = data.sc.register(loop.selector, SelectionKey.OP_CONNECT);
+                        key.attach(data);
+                    } catch (ClosedChannelException e) {
+                        log.warn("SocketChannel was closed before it could be registered");
+                    }
+                }
+            });
             return data.future;
         } catch (Throwable e) {
             return Futures.immediateFailedFuture(e);
@@ -164,7 +177,8 @@ public class NioClientManager extends AbstractExecutionThreadService implements
 
     @Override
     public void triggerShutdown() {
-        selector.wakeup();
+        for (SelectorLoop loop : loops)
+            loop.stop();
     }
 
     @Override
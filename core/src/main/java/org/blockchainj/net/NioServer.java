@@ -19,17 +19,18 @@ package org.blockchainj.net;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.channels.*;
-import java.nio.channels.spi.SelectorProvider;
-import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Throwables;
 import com.google.common.util.concurrent.AbstractExecutionThreadService;
+import org.blockchainj.utils.ContextPropagatingThreadFactory;
 import org.slf4j.LoggerFactory;
 
 /**
  * Creates a simple server listener which listens for incoming client connections and uses a {@link StreamConnection} to
- * process data.
+ * process data. Connections are handled by one thread, or spread over several, see
+ * {@link #NioServer(StreamConnectionFactory, InetSocketAddress, int)}.
  */
 public class NioServer extends AbstractExecutionThreadService {
     private static final org.slf4j.Logger log = LoggerFactory.getLogger(NioServer.class);
@@ -37,29 +38,54 @@ public class NioServer extends AbstractExecutionThreadService {
     private final StreamConnectionFactory connectionFactory;
 
     private final ServerSocketChannel sc;
+    // The server socket is selected on by the first loop, which hands accepted connections to all of them in turn
+    private final SelectorLoop[] loops;
+    private final AtomicInteger nextLoop = new AtomicInteger();
     @VisibleForTesting final Selector selector;
 
     // Handle a SelectionKey which was selected
-    private void handleKey(Selector selector, SelectionKey key) throws IOException {
+    private void handleKey(SelectionKey key) throws IOException {
         if (key.isValid() && key.isAcceptable()) {
-            // Accept a new connection, give it a stream connection as an attachment
-            SocketChannel newChannel = sc.accept();
+            // Accept a new connection and pass it to the loop that will handle it
+            final SocketChannel newChannel = sc.accept();
+            if (newChannel == null)
+                return;
             newChannel.configureBlocking(false);
-            SelectionKey newKey = newChannel.register(selector, SelectionKey.OP_READ);
-            try {
-                ConnectionHandler handler = new ConnectionHandler(connectionFactory, newKey);
-                newKey.attach(handler);
-                handler.connection.connectionOpened();
-            } catch (IOException e) {
-                // This can happen if ConnectionHandler's call to get a new handler returned null
-                log.error("Error handling new connection", Throwables.getRootCause(e).getMessage());
-                newKey.channel().close();
+            final SelectorLoop loop = SelectorLoop.next(loops, nextLoop);
+            if (loop.inLoop()) {
+                registerAccepted(loop, newChannel);
+            } else {
+                loop.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            registerAccepted(loop, newChannel);
+                        } catch (IOException e) {
+                            log.error("Error registering new connection", e);
+                        }
+                    }
+                });
             }
         } else { // Got a closing channel or a channel to a client connection
             ConnectionHandler.handleKey(key);
         }
     }
 
+    // Registers an accepted channel with the given loop and gives it a stream connection as an attachment, on the
+    // thread of that loop
+    private void registerAccepted(SelectorLoop loop, SocketChannel newChannel) throws IOException {
+        SelectionKey newKey = newChannel.register(loop.selector, SelectionKey.OP_READ);
+        try {
+            ConnectionHandler handler = new ConnectionHandler(connectionFactory, newKey);
+            newKey.attach(handler);
+            handler.connection.connectionOpened();
+        } catch (IOException e) {
+            // This can happen if ConnectionHandler's call to get a new handler returned null
+            log.error("Error handling new connection", Throwables.getRootCause(e).getMessage());
+            newKey.channel().close();
+        }
+    }
+
     /**
      * Creates a new server which is capable of listening for incoming connections and processing client provided data
      * using {@link StreamConnection}s created by the given {@link StreamConnectionFactory}
@@ -67,34 +93,49 @@ public class NioServer extends AbstractExecutionThreadService {
      * @throws IOException If there is an issue opening the server socket or binding fails for some reason
      */
     public NioServer(final StreamConnectionFactory connectionFactory, InetSocketAddress bindAddress) throws IOException {
+        this(connectionFactory, bindAddress, 1);
+    }
+
+    /**
+     * Creates a new server like {@link #NioServer(StreamConnectionFactory, InetSocketAddress)}, which handles its
+     * connections with the given number of threads. Each accepted connection is handled by one of them, given to them
+     * in turn, so with many connections reading and processing what they send is spread over the threads.
+     *
+     * @throws IOException If there is an issue opening the server socket or binding fails for some reason
+     */
+    public NioServer(final StreamConnectionFactory connectionFactory, InetSocketAddress bindAddress,
+                     int selectorThreads) throws IOException {
         this.connectionFactory = connectionFactory;
 
+        loops = SelectorLoop.create(selectorThreads, new SelectorLoop.KeyHandler() {
+            @Override
+            public void handleKey(SelectorLoop loop, SelectionKey key) throws IOException {
+                NioServer.this.handleKey(key);
+            }
+        });
+        selector = loops[0].selector;
         sc = ServerSocketChannel.open();
         sc.configureBlocking(false);
         sc.socket().bind(bindAddress);
-        selector = SelectorProvider.provider().openSelector();
         sc.register(selector, SelectionKey.OP_ACCEPT);
     }
 
     @Override
     protected void run() throws Exception {
         try {
-            while (isRunning()) {
-                selector.select();
-
-                Iterator<SelectionKey> keyIterator = selector.selectedKeys().iterator();
-                while (keyIterator.hasNext()) {
-                    SelectionKey key = keyIterator.next();
-                    keyIterator.remove();
-
-                    handleKey(selector, key);
-                }
-            }
+            SelectorLoop.runAll(loops, new ContextPropagatingThreadFactory("NioServer"));
         } catch (Exception e) {
             log.error("Error trying to open/read from connection: {}", e);
-        } finally {
-            // Go through and close everything, without letting IOExceptions get in our way
-            for (SelectionKey key : selector.keys()) {
+        }
+    }
+
+    // Runs after run() returns, and also if the server was stopped before run() got called, in which case the socket
+    // bound in the constructor would otherwise be left open.
+    @Override
+    protected void shutDown() {
+        // Go through and close everything, without letting IOExceptions get in our way
+        for (SelectorLoop loop : loops) {
+            for (SelectionKey key : loop.selector.keys()) {
                 try {
                     key.channel().close();
                 } catch (IOException e) {
@@ -102,21 +143,21 @@ public class NioServer extends AbstractExecutionThreadService {
                 }
                 try {
                     key.cancel();
-                    handleKey(selector, key);
+                    handleKey(key);
                 } catch (IOException e) {
                     log.error("Error closing selection key", e);
                 }
             }
             try {
-                selector.close();
+                loop.selector.close();
             } catch (IOException e) {
                 log.error("Error closing server selector", e);
             }
-            try {
-                sc.close();
-            } catch (IOException e) {
-                log.error("Error closing server channel", e);
-            }
+        }
+        try {
+            sc.close();
+        } catch (IOException e) {
+            log.error("Error closing server channel", e);
         }
     }
 
@@ -127,7 +168,8 @@ public class NioServer extends AbstractExecutionThreadService {
      */
     @Override
     public void triggerShutdown() {
-        // Wake up the selector and let the selection thread break its loop as the ExecutionService !isRunning()
-        selector.wakeup();
+        // Wake up the selectors and let the selection threads break their loops
+        for (SelectorLoop loop : loops)
+            loop.stop();
     }
 }
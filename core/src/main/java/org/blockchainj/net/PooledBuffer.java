@@ -0,0 +1,81 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.blockchainj.net;
+
+import javax.annotation.Nullable;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>A byte buffer that can be shared, for example a message that is written to several connections without being
+ * copied for each of them. Every user holds a reference: whoever takes the buffer from a {@link BufferPool} holds the
+ * first one, and others add theirs with {@link #retain()}. The buffer goes back to its pool when the last reference is
+ * released, so nothing may touch it after releasing its own.</p>
+ *
+ * <p>The bytes of the buffer are those between its position and limit once it is shared. Users read them through their
+ * own {@link #view()}, which leaves the buffer itself alone.</p>
+ */
+public class PooledBuffer {
+    private final ByteBuffer buffer;
+    @Nullable private final BufferPool pool;
+    private final AtomicInteger references = new AtomicInteger(1);
+
+    PooledBuffer(ByteBuffer buffer, @Nullable BufferPool pool) {
+        this.buffer = checkNotNull(buffer);
+        this.pool = pool;
+    }
+
+    /** Wraps a buffer that doesn't belong to any pool. */
+    public static PooledBuffer wrap(ByteBuffer buffer) {
+        return new PooledBuffer(buffer, null);
+    }
+
+    /** Returns the buffer, to be filled in and flipped before it is shared. */
+    public ByteBuffer buffer() {
+        return buffer;
+    }
+
+    /** Returns the number of bytes between the position and limit of the buffer. */
+    public int size() {
+        return buffer.remaining();
+    }
+
+    /** Returns a view of the bytes of the buffer, with a position and limit of its own. */
+    public ByteBuffer view() {
+        checkState(references.get() > 0, "Buffer was released");
+        return buffer.duplicate();
+    }
+
+    /** Adds a reference to the buffer, which is kept until {@link #release()} is called for it. */
+    public PooledBuffer retain() {
+        while (true) {
+            int count = references.get();
+            checkState(count > 0, "Buffer was released");
+            if (references.compareAndSet(count, count + 1))
+                return this;
+        }
+    }
+
+    /** Releases a reference to the buffer, giving it back to its pool if that was the last one. */
+    public void release() {
+        int count = references.decrementAndGet();
+        checkState(count >= 0, "Buffer was released too often");
+        if (count == 0 && pool != null)
+            pool.give(buffer);
+    }
+}
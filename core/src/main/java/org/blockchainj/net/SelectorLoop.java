@@ -0,0 +1,142 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.blockchainj.net;
+
+import com.google.common.util.concurrent.Uninterruptibles;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.spi.SelectorProvider;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * A selector and the thread that selects on it. {@link NioClientManager} and {@link NioServer} run several of these
+ * and give each new connection to the next one in turn. A connection then stays with its loop, so everything that
+ * happens when its socket is readable, from the read to parsing the messages, happens on that loop's thread alone.
+ */
+class SelectorLoop {
+    private static final org.slf4j.Logger log = LoggerFactory.getLogger(SelectorLoop.class);
+
+    interface KeyHandler {
+        /** Handles a key that was selected, on the thread of the loop. */
+        void handleKey(SelectorLoop loop, SelectionKey key) throws IOException;
+    }
+
+    final Selector selector;
+    private final KeyHandler handler;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+    private volatile boolean stopped = false;
+    private volatile Thread thread;
+
+    SelectorLoop(KeyHandler handler) throws IOException {
+        this.handler = handler;
+        selector = SelectorProvider.provider().openSelector();
+    }
+
+    /** Creates the given number of loops that share a handler, and which are handed connections in turn. */
+    static SelectorLoop[] create(int count, KeyHandler handler) throws IOException {
+        checkArgument(count >= 1, "Need at least one selector thread: %s", count);
+        SelectorLoop[] loops = new SelectorLoop[count];
+        for (int i = 0; i < count; i++)
+            loops[i] = new SelectorLoop(handler);
+        return loops;
+    }
+
+    /**
+     * Runs the first loop on the calling thread and each of the others on a thread of its own, until the first one
+     * stops, which it also does when one of the others fails. The others are then stopped too, and their threads have
+     * finished when this returns, so that the caller can close the selectors.
+     */
+    static void runAll(final SelectorLoop[] loops, ThreadFactory threadFactory) throws IOException {
+        Thread[] threads = new Thread[loops.length - 1];
+        for (int i = 1; i < loops.length; i++) {
+            final SelectorLoop loop = loops[i];
+            threads[i - 1] = threadFactory.newThread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        loop.run();
+                    } catch (Throwable e) {
+                        log.warn("Error trying to open/read from connection: ", e);
+                        // Take everything down, as with a single loop, rather than leave the connections of this one
+                        // unserved and keep handing it new ones.
+                        loops[0].stop();
+                    }
+                }
+            });
+            threads[i - 1].start();
+        }
+        try {
+            loops[0].run();
+        } finally {
+            for (SelectorLoop loop : loops)
+                loop.stop();
+            for (Thread thread : threads)
+                Uninterruptibles.joinUninterruptibly(thread);
+        }
+    }
+
+    /** Picks the loop the next connection goes to. */
+    static SelectorLoop next(SelectorLoop[] loops, AtomicInteger counter) {
+        return loops[(counter.getAndIncrement() & Integer.MAX_VALUE) % loops.length];
+    }
+
+    /**
+     * Runs the task on the thread of the loop before it selects again. Channels must be registered with the selector
+     * this way, as registering blocks while another thread is selecting.
+     */
+    void execute(Runnable task) {
+        tasks.offer(task);
+        selector.wakeup();
+    }
+
+    /** Returns whether the calling thread is the one running the loop. */
+    boolean inLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    /** Makes {@link #run()} return, leaving the selector and its channels open. */
+    void stop() {
+        stopped = true;
+        selector.wakeup();
+    }
+
+    /** Selects and handles keys on the calling thread until {@link #stop()} is called. */
+    void run() throws IOException {
+        thread = Thread.currentThread();
+        while (!stopped) {
+            Runnable task;
+            while ((task = tasks.poll()) != null)
+                task.run();
+
+            selector.select();
+
+            Iterator<SelectionKey> keyIterator = selector.selectedKeys().iterator();
+            while (keyIterator.hasNext()) {
+                SelectionKey key = keyIterator.next();
+                keyIterator.remove();
+                handler.handleKey(this, key);
+            }
+        }
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.blockchainj.script;
+
+import java.util.List;
+
+import static org.blockchainj.script.ScriptOpCodes.*;
+
+/**
+ * <p>A script decoded once into the form the interpreter runs, so that running it again does not walk the
+ * {@link ScriptChunk}s and work out what each of them does. {@link Script} keeps the compiled form of itself, so a
+ * scriptPubKey that is spent many times is only compiled once.</p>
+ *
+ * <p>Every instruction is either a push, whose element is in {@link #pushes}, or an operation, whose opcode is in
+ * {@link #opcodes}. OP_0, OP_1NEGATE and OP_1 to OP_16 are compiled to pushes of the number they stand for.
+ * The {@link Script.ScriptType} is worked out along the way, so that the standard templates are only recognised
+ * once.</p>
+ */
+final class CompiledScript {
+    private static final byte[][] SMALL_NUMBERS = new byte[18][];
+    static {
+        for (int i = -1; i <= 16; i++)
+            SMALL_NUMBERS[i + 1] = Script.encodeNumber(i);
+    }
+
+    /** The opcode of each instruction. */
+    final int[] opcodes;
+    /** The element pushed by each instruction, or null for instructions that are operations. */
+    final byte[][] pushes;
+    /** The chunk each instruction was compiled from. */
+    final ScriptChunk[] chunks;
+    /** The standard form the script has, if any. */
+    final Script.ScriptType scriptType;
+
+    private CompiledScript(List<ScriptChunk> chunks, Script.ScriptType scriptType) {
+        this.scriptType = scriptType;
+        int length = chunks.size();
+        this.opcodes = new int[length];
+        this.pushes = new byte[length][];
+        this.chunks = chunks.toArray(new ScriptChunk[length]);
+        for (int pc = 0; pc < length; pc++) {
+            ScriptChunk chunk = this.chunks[pc];
+            int opcode = chunk.opcode;
+            opcodes[pc] = opcode;
+            if (opcode == OP_0)
+                pushes[pc] = SMALL_NUMBERS[1];
+            else if (!chunk.isOpCode())
+                pushes[pc] = chunk.data;
+            else if (opcode == OP_1NEGATE)
+                pushes[pc] = SMALL_NUMBERS[0];
+            else if (opcode >= OP_1 && opcode <= OP_16)
+                pushes[pc] = SMALL_NUMBERS[Script.decodeFromOpN(opcode) + 1];
+        }
+    }
+
+    static CompiledScript compile(List<ScriptChunk> chunks, Script.ScriptType scriptType) {
+        return new CompiledScript(chunks, scriptType);
+    }
+
+    /** The number of instructions. */
+    int length() {
+        return opcodes.length;
+    }
+}
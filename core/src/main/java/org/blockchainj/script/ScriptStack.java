@@ -0,0 +1,97 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.blockchainj.script;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+import static org.blockchainj.core.Utils.HEX;
+
+/**
+ * The stack of the script interpreter, kept in an array. Elements are addressed by their depth, the top of the stack
+ * being at depth 0. Elements are shared rather than copied and must never be modified.
+ */
+final class ScriptStack {
+    private byte[][] elements;
+    private int size;
+
+    ScriptStack() {
+        elements = new byte[16][];
+    }
+
+    ScriptStack(Collection<byte[]> bottomToTop) {
+        elements = bottomToTop.toArray(new byte[Math.max(16, bottomToTop.size())][]);
+        size = bottomToTop.size();
+    }
+
+    private ScriptStack(ScriptStack other) {
+        elements = Arrays.copyOf(other.elements, other.elements.length);
+        size = other.size;
+    }
+
+    int size() {
+        return size;
+    }
+
+    void push(byte[] element) {
+        if (size == elements.length)
+            elements = Arrays.copyOf(elements, size * 2);
+        elements[size++] = element;
+    }
+
+    byte[] pop() {
+        byte[] element = elements[--size];
+        elements[size] = null;
+        return element;
+    }
+
+    byte[] peek() {
+        return elements[size - 1];
+    }
+
+    /** Returns the element at the given depth. */
+    byte[] peek(int depth) {
+        return elements[size - 1 - depth];
+    }
+
+    /** Removes the element at the given depth. */
+    byte[] remove(int depth) {
+        int index = size - 1 - depth;
+        byte[] element = elements[index];
+        System.arraycopy(elements, index + 1, elements, index, depth);
+        elements[--size] = null;
+        return element;
+    }
+
+    ScriptStack copy() {
+        return new ScriptStack(this);
+    }
+
+    /** Adds the elements to the given collection, bottom first. */
+    void addTo(Collection<byte[]> bottomToTop) {
+        bottomToTop.addAll(Arrays.asList(elements).subList(0, size));
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("[");
+        for (int i = 0; i < size; i++) {
+            if (i > 0)
+                builder.append(", ");
+            builder.append(HEX.encode(elements[i]));
+        }
+        return builder.append(']').toString();
+    }
+}
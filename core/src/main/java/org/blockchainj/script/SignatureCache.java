@@ -0,0 +1,203 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.blockchainj.script;
+
+import org.blockchainj.core.ECKey;
+import org.blockchainj.core.Sha256Hash;
+import org.blockchainj.core.Transaction;
+import org.blockchainj.core.UnsafeByteArrayOutputStream;
+import org.blockchainj.crypto.TransactionSignature;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>Remembers signatures that were found to be valid, so that checking them again is a lookup rather than an ECDSA
+ * verification. A transaction that was checked when it was relayed to us is usually checked again when it turns up in
+ * a block, and with this cache the second time is nearly free.</p>
+ *
+ * <p>Entries are keyed by a hash of the signature hash, public key and signature, salted with a random value picked
+ * when the cache is created so that nobody can craft triples that collide in it. Only valid signatures are cached.
+ * The cache holds at most the given number of entries, dropping the least recently used ones, and is thread safe.</p>
+ *
+ * <p>{@link Script} uses the cache set with {@link Script#setSignatureCache(SignatureCache)}. Callers about to run
+ * the scripts of many inputs can verify their signatures in one go beforehand with a {@link Batch}.</p>
+ */
+public class SignatureCache {
+    /** The default maximum number of signatures kept, which take a little over 10MB. */
+    public static final int DEFAULT_MAX_ENTRIES = 100000;
+
+    private final byte[] salt = new byte[32];
+    private final Cache<Sha256Hash, Boolean> valid;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public SignatureCache() {
+        this(DEFAULT_MAX_ENTRIES);
+    }
+
+    /** Creates a cache holding up to the given number of signatures. */
+    public SignatureCache(long maxEntries) {
+        new SecureRandom().nextBytes(salt);
+        valid = CacheBuilder.newBuilder()
+                .maximumSize(maxEntries)
+                .concurrencyLevel(Runtime.getRuntime().availableProcessors())
+                .build();
+    }
+
+    /**
+     * Verifies the signature like {@link ECKey#verify(byte[], ECKey.ECDSASignature, byte[])}, unless the same
+     * signature was already found to be valid.
+     *
+     * @param hash the signature hash
+     * @param sigBytes the encoded signature, as found in the script
+     * @param signature sigBytes decoded
+     * @param pubKey the encoded public key
+     */
+    public boolean verify(byte[] hash, byte[] sigBytes, ECKey.ECDSASignature signature, byte[] pubKey) {
+        Sha256Hash key = key(hash, sigBytes, pubKey);
+        if (valid.getIfPresent(key) != null) {
+            hits.incrementAndGet();
+            return true;
+        }
+        misses.incrementAndGet();
+        boolean result = ECKey.verify(hash, signature, pubKey);
+        // Faked signatures are only meant to hold while they are switched on.
+        if (result && !ECKey.FAKE_SIGNATURES)
+            valid.put(key, Boolean.TRUE);
+        return result;
+    }
+
+    /** Starts collecting inputs whose signatures are verified together, see {@link Batch}. */
+    public Batch newBatch() {
+        return new Batch();
+    }
+
+    /**
+     * <p>Inputs whose signatures are verified in one call to {@link ECKey#verify(List)}, with the valid ones added to
+     * the cache. Running the scripts of the inputs afterwards then finds their signatures here.</p>
+     *
+     * <p>Only inputs spending pay to address and pay to pubkey outputs are taken, as their signature and key can be
+     * read off the scripts without running them, and only if their signature is not in the cache yet. Anything else,
+     * including signatures that turn out to be invalid, is left for the scripts to deal with, so a batch never changes
+     * whether a script passes.</p>
+     */
+    public class Batch {
+        private final List<ECKey.SignatureCheck> checks = new ArrayList<ECKey.SignatureCheck>();
+        private final List<byte[]> sigBytes = new ArrayList<byte[]>();
+
+        private Batch() {
+        }
+
+        /**
+         * Adds the given input, if it spends an output of a kind the batch can handle and its signature is not cached.
+         */
+        public void add(Transaction tx, int index, Script scriptPubKey) {
+            try {
+                List<ScriptChunk> chunks = tx.getInput(index).getScriptSig().getChunks();
+                byte[] sig, pubKey;
+                if (scriptPubKey.isSentToAddress() && chunks.size() == 2) {
+                    sig = chunks.get(0).data;
+                    pubKey = chunks.get(1).data;
+                } else if (scriptPubKey.isSentToRawPubKey() && chunks.size() == 1) {
+                    sig = chunks.get(0).data;
+                    pubKey = scriptPubKey.getPubKey();
+                } else {
+                    return;
+                }
+                if (sig == null || sig.length == 0 || pubKey == null)
+                    return;
+                TransactionSignature decoded = TransactionSignature.decodeFromBlockchain(sig, false, false);
+                // The same connected script as OP_CHECKSIG signs, see Script.executeCheckSig().
+                UnsafeByteArrayOutputStream push = new UnsafeByteArrayOutputStream(sig.length + 1);
+                Script.writeBytes(push, sig);
+                byte[] connectedScript = Script.removeAllInstancesOf(scriptPubKey.getProgram(), push.toByteArray());
+                Sha256Hash hash = tx.hashForSignature(index, connectedScript, (byte) decoded.sighashFlags);
+                // Already found valid, for instance when the transaction was relayed to us.
+                if (valid.getIfPresent(key(hash.getBytes(), sig, pubKey)) != null)
+                    return;
+                checks.add(new ECKey.SignatureCheck(hash.getBytes(), decoded, pubKey));
+                sigBytes.add(sig);
+            } catch (IOException e) {
+                throw new RuntimeException(e); // Cannot happen.
+            } catch (Exception e) {
+                // Malformed, the script will find out.
+            }
+        }
+
+        /** Number of signatures that will be verified. */
+        public int size() {
+            return checks.size();
+        }
+
+        /** Verifies the collected signatures and caches the valid ones. */
+        public void verify() {
+            if (checks.isEmpty() || ECKey.FAKE_SIGNATURES)
+                return;
+            BitSet result = ECKey.verify(checks);
+            for (int i = result.nextSetBit(0); i >= 0; i = result.nextSetBit(i + 1)) {
+                ECKey.SignatureCheck check = checks.get(i);
+                valid.put(key(check.data, sigBytes.get(i), check.pub), Boolean.TRUE);
+            }
+            checks.clear();
+            sigBytes.clear();
+        }
+    }
+
+    private Sha256Hash key(byte[] hash, byte[] sigBytes, byte[] pubKey) {
+        MessageDigest digest = Sha256Hash.newDigest();
+        digest.update(salt);
+        digest.update(hash);
+        // The signature's length fixes where the public key starts.
+        digest.update((byte) sigBytes.length);
+        digest.update((byte) (sigBytes.length >> 8));
+        digest.update(sigBytes);
+        digest.update(pubKey);
+        return Sha256Hash.wrap(digest.digest());
+    }
+
+    /** Number of signatures in the cache. */
+    public long size() {
+        return valid.size();
+    }
+
+    /** Number of signatures that were found in the cache. */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /** Number of signatures that had to be verified. */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /** Forgets all signatures. */
+    public void clear() {
+        valid.invalidateAll();
+    }
+
+    @Override
+    public String toString() {
+        return "Signature cache: " + size() + " signatures, hits " + getHits() + ", misses " + getMisses();
+    }
+}
@@ -117,6 +117,10 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
     private static final String SELECT_OPENOUTPUTS_COUNT_SQL                    = "SELECT COUNT(*) FROM openoutputs WHERE hash = ?";
     private static final String INSERT_OPENOUTPUTS_SQL                          = "INSERT INTO openoutputs (hash, index, height, value, scriptbytes, toaddress, addresstargetable, coinbase) VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
     private static final String DELETE_OPENOUTPUTS_SQL                          = "DELETE FROM openoutputs WHERE hash = ? AND index = ?";
+    private static final String SELECT_OPENOUTPUTS_BY_HASHES_SQL                = "SELECT hash, index, height, value, scriptbytes, coinbase, toaddress, addresstargetable FROM openoutputs WHERE hash IN ";
+
+    // The maximum number of transaction hashes bound into a single openoutputs IN (...) lookup.
+    protected static final int MAX_OPENOUTPUTS_LOOKUP_HASHES = 100;
 
     // Dump table SQL (this is just for data sizing statistics).
     private static final String SELECT_DUMP_SETTINGS_SQL                        = "SELECT name, value FROM settings";
@@ -384,6 +388,30 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         return DELETE_OPENOUTPUTS_SQL;
     }
 
+    /**
+     * Get the SQL to select the openoutputs records of several transactions at once. The statement must return the
+     * columns hash, index, height, value, scriptbytes, coinbase, toaddress and addresstargetable in that order.
+     * @param hashCount The number of transaction hashes that will be bound to the statement.
+     * @return The SQL select statement.
+     */
+    protected String getSelectOpenoutputsByHashesSQL(int hashCount) {
+        return SELECT_OPENOUTPUTS_BY_HASHES_SQL + getInClausePlaceholders(hashCount);
+    }
+
+    /**
+     * Get a parenthesised list of count bind parameters for use in an IN clause, eg "(?, ?, ?)".
+     */
+    protected static String getInClausePlaceholders(int count) {
+        StringBuilder sb = new StringBuilder(count * 3 + 1);
+        sb.append('(');
+        for (int i = 0; i < count; i++) {
+            if (i > 0)
+                sb.append(", ");
+            sb.append('?');
+        }
+        return sb.append(')').toString();
+    }
+
     /**
      * Get the SQL to select the setting dump fields for sizing/statistics.
      * @return The SQL select statement.
@@ -964,7 +992,7 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
             s.setInt(3, out.getHeight());
             s.setLong(4, out.getValue().value);
             s.setBytes(5, out.getScript().getProgram());
-            s.setString(6, out.getAddress());
+            s.setString(6, getToAddress(out));
             s.setInt(7, out.getScript().getScriptType().ordinal());
             s.setBoolean(8, out.isCoinbase());
             s.executeUpdate();
@@ -1002,6 +1030,183 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         }
     }
 
+    @Override
+    public List<UTXO> getTransactionOutputs(List<TransactionOutPoint> outPoints) throws BlockStoreException {
+        maybeConnect();
+        // Lookups go by transaction hash, each returning all the open outputs of that transaction, so that the whole
+        // batch takes a handful of IN (...) queries rather than one query per outpoint.
+        List<Sha256Hash> hashes = new ArrayList<Sha256Hash>(outPoints.size());
+        Set<Sha256Hash> seen = new HashSet<Sha256Hash>();
+        for (TransactionOutPoint outPoint : outPoints) {
+            if (seen.add(outPoint.getHash()))
+                hashes.add(outPoint.getHash());
+        }
+        Map<TransactionOutPoint, UTXO> found = new HashMap<TransactionOutPoint, UTXO>();
+        PreparedStatement s = null;
+        try {
+            for (int i = 0; i < hashes.size(); i += MAX_OPENOUTPUTS_LOOKUP_HASHES) {
+                List<Sha256Hash> batch = hashes.subList(i, Math.min(i + MAX_OPENOUTPUTS_LOOKUP_HASHES, hashes.size()));
+                s = conn.get().prepareStatement(getSelectOpenoutputsByHashesSQL(batch.size()));
+                for (int j = 0; j < batch.size(); j++)
+                    s.setBytes(j + 1, batch.get(j).getBytes());
+                ResultSet results = s.executeQuery();
+                while (results.next()) {
+                    Sha256Hash hash = Sha256Hash.wrap(results.getBytes(1));
+                    // index is actually an unsigned int
+                    long index = results.getInt(2) & 0xFFFFFFFFL;
+                    int height = results.getInt(3);
+                    Coin value = Coin.valueOf(results.getLong(4));
+                    byte[] scriptBytes = results.getBytes(5);
+                    boolean coinbase = results.getBoolean(6);
+                    String address = results.getString(7);
+                    UTXO txout = new UTXO(hash,
+                            index,
+                            value,
+                            height,
+                            coinbase,
+                            new Script(scriptBytes),
+                            address);
+                    found.put(new TransactionOutPoint(params, index, hash), txout);
+                }
+                s.close();
+                s = null;
+            }
+        } catch (SQLException ex) {
+            throw new BlockStoreException(ex);
+        } finally {
+            if (s != null) {
+                try {
+                    s.close();
+                } catch (SQLException e) {
+                    throw new BlockStoreException("Failed to close PreparedStatement");
+                }
+            }
+        }
+        List<UTXO> outputs = new ArrayList<UTXO>(outPoints.size());
+        for (TransactionOutPoint outPoint : outPoints)
+            outputs.add(found.get(outPoint));
+        return outputs;
+    }
+
+    @Override
+    public void addUnspentTransactionOutputs(List<UTXO> outs) throws BlockStoreException {
+        if (outs.isEmpty())
+            return;
+        maybeConnect();
+        Savepoint savepoint = null;
+        try {
+            // Within a batch write, a failed statement may leave part of the batch applied (MySQL, H2) or the whole
+            // transaction aborted (PostgreSQL), so mark where to roll back to if some of the outputs are already present.
+            if (!conn.get().getAutoCommit())
+                savepoint = conn.get().setSavepoint();
+            insertUnspentTransactionOutputs(outs);
+            if (savepoint != null)
+                conn.get().releaseSavepoint(savepoint);
+        } catch (SQLException e) {
+            if (!isDuplicateKeyError(e))
+                throw new BlockStoreException(e);
+            try {
+                if (savepoint != null)
+                    conn.get().rollback(savepoint);
+                // Like addUnspentTransactionOutput, tolerate outputs which are already present: leave them out and
+                // insert the rest.
+                List<TransactionOutPoint> outPoints = new ArrayList<TransactionOutPoint>(outs.size());
+                for (UTXO out : outs)
+                    outPoints.add(new TransactionOutPoint(params, out.getIndex(), out.getHash()));
+                List<UTXO> present = getTransactionOutputs(outPoints);
+                List<UTXO> missing = new ArrayList<UTXO>(outs.size());
+                for (int i = 0; i < outs.size(); i++) {
+                    if (present.get(i) == null)
+                        missing.add(outs.get(i));
+                }
+                if (!missing.isEmpty())
+                    insertUnspentTransactionOutputs(missing);
+            } catch (SQLException e2) {
+                throw new BlockStoreException(e2);
+            }
+        }
+    }
+
+    private void insertUnspentTransactionOutputs(List<UTXO> outs) throws SQLException {
+        PreparedStatement s = conn.get().prepareStatement(getInsertOpenoutputsSQL());
+        try {
+            for (UTXO out : outs) {
+                s.setBytes(1, out.getHash().getBytes());
+                // index is actually an unsigned int
+                s.setInt(2, (int) out.getIndex());
+                s.setInt(3, out.getHeight());
+                s.setLong(4, out.getValue().value);
+                s.setBytes(5, out.getScript().getProgram());
+                s.setString(6, getToAddress(out));
+                s.setInt(7, out.getScript().getScriptType().ordinal());
+                s.setBoolean(8, out.isCoinbase());
+                s.addBatch();
+            }
+            s.executeBatch();
+        } finally {
+            s.close();
+        }
+    }
+
+    @Override
+    public void removeUnspentTransactionOutputs(List<UTXO> outs) throws BlockStoreException {
+        if (outs.isEmpty())
+            return;
+        maybeConnect();
+        PreparedStatement s = null;
+        try {
+            s = conn.get().prepareStatement(getDeleteOpenoutputsSQL());
+            for (UTXO out : outs) {
+                s.setBytes(1, out.getHash().getBytes());
+                // index is actually an unsigned int
+                s.setInt(2, (int) out.getIndex());
+                s.addBatch();
+            }
+            // A delete which matched nothing means we were asked to remove an output we don't have.
+            for (int count : s.executeBatch()) {
+                if (count == 0)
+                    throw new BlockStoreException("Tried to remove a UTXO from DatabaseFullPrunedBlockStore that it didn't have!");
+            }
+            s.close();
+        } catch (SQLException e) {
+            throw new BlockStoreException(e);
+        } finally {
+            if (s != null) {
+                try {
+                    s.close();
+                } catch (SQLException e) {
+                    throw new BlockStoreException(e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the value of the toaddress column for the given output: the address it was created with, or else the one
+     * its script pays to, or the empty string if there is none.
+     */
+    private String getToAddress(UTXO out) {
+        String address = out.getAddress();
+        if (address != null && !address.isEmpty())
+            return address;
+        try {
+            return out.getScript().getToAddress(params, true).toString();
+        } catch (ScriptException e) {
+            return "";
+        }
+    }
+
+    /**
+     * True if e, or any exception chained to it (as batch updates do), is a duplicate key violation.
+     */
+    private boolean isDuplicateKeyError(SQLException e) {
+        for (SQLException next = e; next != null; next = next.getNextException()) {
+            if (getDuplicateKeyErrorCode().equals(next.getSQLState()))
+                return true;
+        }
+        return false;
+    }
+
     @Override
     public void beginDatabaseBatchWrite() throws BlockStoreException {
         maybeConnect();
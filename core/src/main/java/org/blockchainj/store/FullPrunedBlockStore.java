@@ -18,6 +18,7 @@ package org.blockchainj.store;
 
 import org.blockchainj.core.*;
 
+import java.util.List;
 
 /**
  * <p>An implementor of FullPrunedBlockStore saves StoredBlock objects to some storage mechanism.</p>
@@ -87,7 +88,27 @@ public interface FullPrunedBlockStore extends BlockStore, UTXOProvider {
      * @throws BlockStoreException if there is an underlying storage issue, or out was not in the list.
      */
     void removeUnspentTransactionOutput(UTXO out) throws BlockStoreException;
-    
+
+    /**
+     * Gets the {@link org.blockchainj.core.UTXO}s for several outpoints at once. The returned list is in the same
+     * order as outPoints and holds null for each outpoint that is not unspent. Implementations should do this in
+     * fewer round trips to the underlying storage than the equivalent calls to {@link #getTransactionOutput}.
+     */
+    List<UTXO> getTransactionOutputs(List<TransactionOutPoint> outPoints) throws BlockStoreException;
+
+    /**
+     * Adds all the given {@link org.blockchainj.core.UTXO}s to the list of unspent TransactionOutputs, as if
+     * {@link #addUnspentTransactionOutput} was called for each in order.
+     */
+    void addUnspentTransactionOutputs(List<UTXO> outs) throws BlockStoreException;
+
+    /**
+     * Removes all the given {@link org.blockchainj.core.UTXO}s from the list of unspent TransactionOutputs, as if
+     * {@link #removeUnspentTransactionOutput} was called for each in order.
+     * @throws BlockStoreException if there is an underlying storage issue, or one of outs was not in the list.
+     */
+    void removeUnspentTransactionOutputs(List<UTXO> outs) throws BlockStoreException;
+
     /**
      * True if this store has any unspent outputs from a transaction with a hash equal to the first parameter
      * @param numOutputs the number of outputs the given transaction has
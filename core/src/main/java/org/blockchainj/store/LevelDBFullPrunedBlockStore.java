@@ -16,31 +16,35 @@
 
 package org.blockchainj.store;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.LinkedHashMap;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.concurrent.TimeUnit;
 import java.io.*;
 import java.nio.ByteBuffer;
 
+import javax.annotation.Nullable;
+
 import org.blockchainj.core.Address;
-import org.blockchainj.core.AddressFormatException;
 import org.blockchainj.core.NetworkParameters;
 import org.blockchainj.core.ScriptException;
 import org.blockchainj.core.Sha256Hash;
 import org.blockchainj.core.StoredBlock;
 import org.blockchainj.core.StoredUndoableBlock;
 import org.blockchainj.core.Transaction;
+import org.blockchainj.core.TransactionOutPoint;
 import org.blockchainj.core.TransactionOutputChanges;
 import org.blockchainj.core.UTXO;
 import org.blockchainj.core.UTXOProviderException;
 import org.blockchainj.core.VerificationException;
-import org.blockchainj.script.Script;
 import org.iq80.leveldb.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -49,6 +53,8 @@ import static org.fusesource.leveldbjni.JniDBFactory.*;
 
 import com.google.common.base.Stopwatch;
 import com.google.common.collect.Lists;
+import com.google.common.primitives.Ints;
+import com.google.common.primitives.UnsignedBytes;
 
 /**
  * <p>
@@ -79,8 +85,6 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
     protected boolean instrument = false;
     // instrumentation stats
     Stopwatch totalStopwatch;
-    protected long hit;
-    protected long miss;
     Map<String, Stopwatch> methodStartTime;
     Map<String, Long> methodCalls;
     Map<String, Long> methodTotalTime;
@@ -88,18 +92,27 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
                    // block!
     // ONLY used for performance benchmarking.
 
-    // LRU Cache for getTransactionOutput
-    protected Map<ByteBuffer, UTXO> utxoCache;
-    // Additional cache to cope with case when transactions are rolled back
-    // e.g. when block fails to verify.
-    protected Map<ByteBuffer, UTXO> utxoUncommittedCache;
-    protected Set<ByteBuffer> utxoUncommittedDeletedCache;
+    // Write back cache of unspent outputs. Unspent outputs only reach the database when it is flushed.
+    protected UTXOCache utxoCache;
+    // Unspent outputs added and spent by the current batch write, kept apart to cope with case when transactions are
+    // rolled back e.g. when block fails to verify.
+    protected Map<ByteBuffer, UTXOCache.Entry> utxoUncommitted;
+    // The verified chain head matching the unspent outputs in utxoCache, written to the database along with them.
+    protected Sha256Hash committedVerifiedChainHeadHash;
+    protected int committedVerifiedChainHeadHeight;
+    // Height of the verified chain head last written to the database. After a crash the chain reconnects the blocks
+    // above it from their undo blocks, which are written right away, so undo blocks are pruned relative to this height
+    // rather than to the verified chain head in memory.
+    protected int flushedVerifiedChainHeadHeight;
 
     // Database folder
     protected String filename;
 
     // Do we auto commit transactions.
     protected boolean autoCommit = true;
+    // The thread that began the current batch write. Only it sees the uncommitted state, other threads (for instance
+    // FullPrunedBlockChain prefetching outputs) read what has been committed.
+    protected volatile Thread batchWriter;
 
     // Datastructures to allow us to search for uncommited inserts/deletes.
     // leveldb does not support dirty reads so we have to
@@ -111,31 +124,25 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
     protected long leveldbReadCache;
     protected int leveldbWriteCache;
 
-    // Size of cache for getTransactionOutput
-    protected int openOutCache;
+    // Memory the unspent output cache may take, and the size and age of the dirty part of it that cause a flush.
+    protected long utxoCacheBytes;
+    protected long utxoFlushBytes;
+    protected long utxoFlushIntervalMillis;
     // Bloomfilter for caching calls to hasUnspentOutputs
     protected BloomFilter bloom;
 
     // Defaults for cache sizes
     static final long LEVELDB_READ_CACHE_DEFAULT = 100 * 1048576; // 100 meg
     static final int LEVELDB_WRITE_CACHE_DEFAULT = 10 * 1048576; // 10 meg
-    static final int OPENOUT_CACHE_DEFAULT = 100000;
-
-    // LRUCache
-    public class LRUCache extends LinkedHashMap<ByteBuffer, UTXO> {
-        private static final long serialVersionUID = 1L;
-        private int capacity;
-
-        public LRUCache(int capacity, float loadFactor) {
-            super(capacity, loadFactor, true);
-            this.capacity = capacity;
-        }
+    static final long UTXO_CACHE_BYTES_DEFAULT = 256 * 1048576; // 256 meg
+    static final long UTXO_FLUSH_BYTES_DEFAULT = 128 * 1048576; // 128 meg
+    static final long UTXO_FLUSH_INTERVAL_DEFAULT = 10 * 60 * 1000; // 10 minutes
 
-        @Override
-        protected boolean removeEldestEntry(Map.Entry<ByteBuffer, UTXO> eldest) {
-            return size() > this.capacity;
-        }
-    }
+    // Version of the record formats in the store. Stores without a VERSION_SETTING are version 1, which kept unspent
+    // outputs as written by UTXO.serializeToStream; version 2 keeps them as written by UTXO.serializeCompact.
+    static final int DB_FORMAT_VERSION = 2;
+    // How many records a format migration rewrites per leveldb write.
+    private static final int MIGRATION_BATCH_SIZE = 10000;
 
     // Simple bloomfilter. We take advantage of fact that a Transaction Hash
     // can be split into 3 30bit numbers that are all random and uncorrelated
@@ -208,17 +215,22 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
         // if returns true need to check what state is in DB as can
         // not be 100% sure.
         public boolean wasAdded(Sha256Hash hash) {
+            if (mightContain(hash)) {
+                returnedTrue++;
+                return true;
+            }
+            returnedFalse++;
+            return false;
+        }
 
+        // As wasAdded, without counting towards the stats.
+        public boolean mightContain(Sha256Hash hash) {
             byte[] firstHash = new byte[4];
             for (int i = 0; i < 3; i++) {
                 System.arraycopy(hash.getBytes(), i * 4, firstHash, 0, 4);
-                boolean result = getBit(firstHash);
-                if (!result) {
-                    returnedFalse++;
+                if (!getBit(firstHash))
                     return false;
-                }
             }
-            returnedTrue++;
             return true;
         }
 
@@ -250,11 +262,34 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
 
     public LevelDBFullPrunedBlockStore(NetworkParameters params, String filename, int blockCount) {
         this(params, filename, blockCount, LEVELDB_READ_CACHE_DEFAULT, LEVELDB_WRITE_CACHE_DEFAULT,
-                OPENOUT_CACHE_DEFAULT, false, Integer.MAX_VALUE);
+                UTXO_CACHE_BYTES_DEFAULT, UTXO_FLUSH_BYTES_DEFAULT, UTXO_FLUSH_INTERVAL_DEFAULT, false,
+                Integer.MAX_VALUE);
     }
 
+    /**
+     * @deprecated the unspent output cache is sized in bytes now, use
+     * {@link #LevelDBFullPrunedBlockStore(NetworkParameters, String, int, long, int, long, long, long, boolean, int)}.
+     * openOutCache is converted at the size of an entry for a pay to address output.
+     */
+    @Deprecated
     public LevelDBFullPrunedBlockStore(NetworkParameters params, String filename, int blockCount, long leveldbReadCache,
             int leveldbWriteCache, int openOutCache, boolean instrument, int exitBlock) {
+        this(params, filename, blockCount, leveldbReadCache, leveldbWriteCache,
+                openOutCache * (long) (UTXOCache.ENTRY_OVERHEAD_BYTES + 25),
+                openOutCache * (long) (UTXOCache.ENTRY_OVERHEAD_BYTES + 25) / 2, UTXO_FLUSH_INTERVAL_DEFAULT,
+                instrument, exitBlock);
+    }
+
+    /**
+     * @param utxoCacheBytes how much memory the cache of unspent outputs may take
+     * @param utxoFlushBytes how much of that may be taken by changes not written to the database yet, before they are
+     *                       flushed. A flush also writes the verified chain head, so a crash rolls the store back to
+     *                       the last flush.
+     * @param utxoFlushIntervalMillis how long changes may wait before they are flushed
+     */
+    public LevelDBFullPrunedBlockStore(NetworkParameters params, String filename, int blockCount, long leveldbReadCache,
+            int leveldbWriteCache, long utxoCacheBytes, long utxoFlushBytes, long utxoFlushIntervalMillis,
+            boolean instrument, int exitBlock) {
         this.params = params;
         fullStoreDepth = blockCount;
         this.instrument = instrument;
@@ -266,7 +301,9 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
         this.filename = filename;
         this.leveldbReadCache = leveldbReadCache;
         this.leveldbWriteCache = leveldbWriteCache;
-        this.openOutCache = openOutCache;
+        this.utxoCacheBytes = utxoCacheBytes;
+        this.utxoFlushBytes = utxoFlushBytes;
+        this.utxoFlushIntervalMillis = utxoFlushIntervalMillis;
         bloom = new BloomFilter();
         totalStopwatch = Stopwatch.createStarted();
         openDB();
@@ -290,12 +327,13 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
             throw new RuntimeException("Can not open DB", e);
         }
 
-        utxoCache = new LRUCache(openOutCache, 0.75f);
+        utxoCache = new UTXOCache(utxoCacheBytes, utxoFlushBytes, utxoFlushIntervalMillis);
         try {
             if (batchGet(getKey(KeyType.CREATED)) == null) {
                 createNewStore(params);
             } else {
                 initFromDb();
+                migrateFormat();
             }
         } catch (BlockStoreException e) {
             throw new RuntimeException("Can not init/load db", e);
@@ -313,9 +351,12 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
         hash = Sha256Hash.wrap(batchGet(getKey(KeyType.VERIFIED_CHAIN_HEAD_SETTING)));
         this.verifiedChainHeadBlock = get(hash);
         this.verifiedChainHeadHash = hash;
+        this.committedVerifiedChainHeadHash = hash;
         if (this.verifiedChainHeadBlock == null) {
             throw new BlockStoreException("corrupt databse block store - verified head block not found");
         }
+        this.committedVerifiedChainHeadHeight = verifiedChainHeadBlock.getHeight();
+        this.flushedVerifiedChainHeadHeight = verifiedChainHeadBlock.getHeight();
     }
 
     private void createNewStore(NetworkParameters params) throws BlockStoreException {
@@ -336,12 +377,73 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
             setChainHead(storedGenesisHeader);
             setVerifiedChainHead(storedGenesisHeader);
             batchPut(getKey(KeyType.CREATED), bytes("done"));
+            batchPut(getKey(KeyType.VERSION_SETTING), Ints.toByteArray(DB_FORMAT_VERSION));
             commitDatabaseBatchWrite();
+            flushUTXOCache();
         } catch (VerificationException e) {
             throw new RuntimeException(e); // Cannot happen.
         }
     }
 
+    /**
+     * Brings a store written by an older version up to {@link #DB_FORMAT_VERSION}, rewriting its unspent outputs in the
+     * compact format. Progress is saved along with each batch of rewritten records, so an interrupted migration picks
+     * up where it stopped the next time the store is opened.
+     */
+    private void migrateFormat() throws BlockStoreException {
+        byte[] versionBytes = db.get(getKey(KeyType.VERSION_SETTING));
+        int version = versionBytes == null ? 1 : Ints.fromByteArray(versionBytes);
+        if (version == DB_FORMAT_VERSION)
+            return;
+        if (version > DB_FORMAT_VERSION)
+            throw new BlockStoreException("Store was written by a newer version, format " + version);
+
+        byte[] progressKey = getKey(KeyType.MIGRATION_PROGRESS);
+        byte[] lastMigrated = db.get(progressKey);
+        log.info("Migrating unspent outputs in {} to the compact format{}", filename,
+                lastMigrated != null ? ", resuming" : "");
+        final byte openOutPrefix = (byte) KeyType.OPENOUT_ALL.ordinal();
+        long migrated = 0;
+        DBIterator iterator = db.iterator();
+        try {
+            WriteBatch writeBatch = db.createWriteBatch();
+            int pending = 0;
+            iterator.seek(lastMigrated != null ? lastMigrated : new byte[] { openOutPrefix });
+            if (lastMigrated != null && iterator.hasNext() && Arrays.equals(iterator.peekNext().getKey(), lastMigrated))
+                iterator.next();
+            for (; iterator.hasNext(); iterator.next()) {
+                Map.Entry<byte[], byte[]> entry = iterator.peekNext();
+                if (entry.getKey()[0] != openOutPrefix)
+                    break;
+                UTXO out = new UTXO(new ByteArrayInputStream(entry.getValue()));
+                ByteArrayOutputStream bos = new ByteArrayOutputStream();
+                out.serializeCompact(bos);
+                writeBatch.put(entry.getKey(), bos.toByteArray());
+                migrated++;
+                if (++pending == MIGRATION_BATCH_SIZE) {
+                    writeBatch.put(progressKey, entry.getKey());
+                    db.write(writeBatch);
+                    writeBatch.close();
+                    writeBatch = db.createWriteBatch();
+                    pending = 0;
+                }
+            }
+            writeBatch.delete(progressKey);
+            writeBatch.put(getKey(KeyType.VERSION_SETTING), Ints.toByteArray(DB_FORMAT_VERSION));
+            db.write(writeBatch);
+            writeBatch.close();
+        } catch (IOException e) {
+            throw new BlockStoreException("Could not migrate unspent outputs", e);
+        } finally {
+            try {
+                iterator.close();
+            } catch (IOException e) {
+                log.error("Error closing iterator", e);
+            }
+        }
+        log.info("Migrated {} unspent outputs", migrated);
+    }
+
     void beginMethod(String name) {
         methodStartTime.put(name, Stopwatch.createStarted());
     }
@@ -371,9 +473,7 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
             log.info(name + " c:" + calls + " r:" + time + " a:" + average + " p:" + String.format("%.2f", proportion));
         }
         double dbproportion = (dbtime + 0.0) / (wallTimeNanos + 0.0);
-        double hitrate = (hit + 0.0) / (hit + miss + 0.0);
-        log.info("Cache size:" + utxoCache.size() + " hit:" + hit + " miss:" + miss + " rate:"
-                + String.format("%.2f", hitrate));
+        log.info(utxoCache.toString());
         bloom.printStat();
         log.info("hasTxOut call:" + hasCall + " True:" + hasTrue + " False:" + hasFalse);
         log.info("Wall:" + totalStopwatch + " percent:" + String.format("%.2f", dbproportion));
@@ -406,6 +506,7 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
 
     @Override
     public void close() throws BlockStoreException {
+        flushUTXOCache();
         try {
             db.close();
         } catch (IOException e) {
@@ -420,61 +521,178 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
 
     @Override
     public List<UTXO> getOpenTransactionOutputs(List<Address> addresses) throws UTXOProviderException {
-        // Run this on a snapshot of database so internally consistent result
-        // This is critical or if one address paid another could get incorrect
-        // results
+        List<UTXO> results = new ArrayList<UTXO>();
+        OpenOutputIterator iterator = getOpenTransactionOutputsIterator(addresses);
+        try {
+            while (iterator.hasNext())
+                results.add(iterator.next());
+        } catch (DBException e) {
+            throw new UTXOProviderException("block store exception", e);
+        } finally {
+            iterator.close();
+        }
+        return results;
+    }
+
+    /**
+     * <p>Returns the unspent outputs paying to any of the given addresses one at a time, as of the moment this method is
+     * called: they all come from one snapshot of the database plus the changes the cache had not flushed at that
+     * point, so an output moving between addresses meanwhile is seen exactly once. The outputs are read as the
+     * iterator advances, so a caller can stop early or take them a page at a time.</p>
+     *
+     * <p>The iterator holds a database snapshot until it runs out or is closed. Its methods throw DBException if the
+     * database cannot be read.</p>
+     */
+    public OpenOutputIterator getOpenTransactionOutputsIterator(List<Address> addresses) {
+        return new OpenOutputIterator(addresses);
+    }
+
+    /** See {@link #getOpenTransactionOutputsIterator(List)}. */
+    public class OpenOutputIterator implements Iterator<UTXO>, Closeable {
+        // The requested addresses, ordered by hash as the address index is, with their strings worked out once.
+        private final TreeMap<byte[], String> addresses = new TreeMap<byte[], String>(
+                UnsignedBytes.lexicographicalComparator());
+        private final Iterator<Map.Entry<byte[], String>> addressIterator;
+        // Keys of outputs to the requested addresses that changed after the snapshot was taken, and the ones of them
+        // that are unspent.
+        private final Set<ByteBuffer> unflushedKeys = new HashSet<ByteBuffer>();
+        private final List<UTXO> unflushed = new ArrayList<UTXO>();
+        private final Snapshot snapshot;
+        private final ReadOptions readOptions;
+        private final DBIterator indexIterator;
+        private byte[] indexPrefix;
+        private String address;
+        private Iterator<UTXO> unflushedIterator;
+        private UTXO next;
+        private boolean closed;
+
+        private OpenOutputIterator(List<Address> addressList) {
+            for (Address a : addressList)
+                addresses.put(a.getHash160(), a.toString());
+            addressIterator = addresses.entrySet().iterator();
+            // Flushes happen under the cache's lock, so the snapshot and the unflushed changes match.
+            synchronized (utxoCache) {
+                snapshot = db.getSnapshot();
+                for (Map.Entry<ByteBuffer, UTXOCache.Entry> entry : utxoCache.getDirtyEntries().entrySet()) {
+                    UTXOCache.Entry value = entry.getValue();
+                    byte[] addressKey = getAddressKey(value.out);
+                    if (addressKey == null)
+                        continue;
+                    String address = addresses.get(Arrays.copyOfRange(addressKey, 1, 21));
+                    if (address == null)
+                        continue;
+                    unflushedKeys.add(entry.getKey());
+                    if (!value.spent)
+                        unflushed.add(withAddress(value.out, address));
+                }
+            }
+            readOptions = new ReadOptions();
+            readOptions.snapshot(snapshot);
+            indexIterator = db.iterator(readOptions);
+        }
 
-        List<UTXO> results = new LinkedList<UTXO>();
-        for (Address a : addresses) {
-            ByteBuffer bb = ByteBuffer.allocate(21);
-            bb.put((byte) KeyType.ADDRESS_HASHINDEX.ordinal());
-            bb.put(a.getHash160());
+        @Override
+        public boolean hasNext() {
+            if (next == null && !closed)
+                next = advance();
+            return next != null;
+        }
 
-            ReadOptions ro = new ReadOptions();
-            Snapshot sn = db.getSnapshot();
-            ro.snapshot(sn);
+        @Override
+        public UTXO next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            UTXO result = next;
+            next = null;
+            return result;
+        }
 
-            // Scanning over iterator very fast
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
 
-            DBIterator iterator = db.iterator(ro);
-            for (iterator.seek(bb.array()); iterator.hasNext(); iterator.next()) {
-                ByteBuffer bbKey = ByteBuffer.wrap(iterator.peekNext().getKey());
-                bbKey.get(); // remove the address_hashindex byte.
-                byte[] addressKey = new byte[20];
-                bbKey.get(addressKey);
-                if (!Arrays.equals(addressKey, a.getHash160())) {
-                    break;
+        @Nullable
+        private UTXO advance() {
+            while (unflushedIterator == null) {
+                if (indexPrefix != null && indexIterator.hasNext()) {
+                    byte[] indexKey = indexIterator.peekNext().getKey();
+                    indexIterator.next();
+                    if (indexKey.length == 57 && startsWith(indexKey, indexPrefix)) {
+                        UTXO out = readOutput(indexKey);
+                        if (out != null)
+                            return out;
+                        continue;
+                    }
                 }
-                byte[] hashBytes = new byte[32];
-                bbKey.get(hashBytes);
-                int index = bbKey.getInt();
-                Sha256Hash hash = Sha256Hash.wrap(hashBytes);
-                UTXO txout;
-                try {
-                    // TODO this should be on the SNAPSHOT too......
-                    // this is really a BUG.
-                    txout = getTransactionOutput(hash, index);
-                } catch (BlockStoreException e) {
-                    throw new UTXOProviderException("block store execption", e);
-                }
-                if (txout != null) {
-                    Script sc = txout.getScript();
-                    Address address = sc.getToAddress(params, true);
-                    UTXO output = new UTXO(txout.getHash(), txout.getIndex(), txout.getValue(), txout.getHeight(),
-                            txout.isCoinbase(), txout.getScript(), address.toString());
-                    results.add(output);
+                // Done with this address, the index is ordered the same way as the addresses so seek ahead.
+                if (addressIterator.hasNext()) {
+                    Map.Entry<byte[], String> entry = addressIterator.next();
+                    indexPrefix = new byte[21];
+                    indexPrefix[0] = (byte) KeyType.ADDRESS_HASHINDEX.ordinal();
+                    System.arraycopy(entry.getKey(), 0, indexPrefix, 1, 20);
+                    address = entry.getValue();
+                    indexIterator.seek(indexPrefix);
+                } else {
+                    unflushedIterator = unflushed.iterator();
                 }
             }
+            if (unflushedIterator.hasNext())
+                return unflushedIterator.next();
+            close();
+            return null;
+        }
+
+        // The index key is the address hash followed by the outpoint, which is all the output key needs.
+        @Nullable
+        private UTXO readOutput(byte[] indexKey) {
+            byte[] key = new byte[37];
+            key[0] = (byte) KeyType.OPENOUT_ALL.ordinal();
+            System.arraycopy(indexKey, 21, key, 1, 36);
+            if (unflushedKeys.contains(ByteBuffer.wrap(key)))
+                return null;
+            byte[] value = db.get(key, readOptions);
+            if (value == null)
+                return null;
+            ByteBuffer outPoint = ByteBuffer.wrap(key, 1, 36);
+            byte[] hashBytes = new byte[32];
+            outPoint.get(hashBytes);
+            long index = outPoint.getInt() & 0xFFFFFFFFL;
+            try {
+                return withAddress(UTXO.deserializeCompact(Sha256Hash.wrap(hashBytes), index, value), address);
+            } catch (IOException e) {
+                throw new DBException("Corrupt unspent output " + Sha256Hash.wrap(hashBytes) + ":" + index, e);
+            }
+        }
+
+        /** Lets go of the database snapshot. Called by itself once the iterator runs out. */
+        @Override
+        public void close() {
+            if (closed)
+                return;
+            closed = true;
             try {
-                iterator.close();
-                ro = null;
-                sn.close();
-                sn = null;
+                indexIterator.close();
+                snapshot.close();
             } catch (IOException e) {
                 log.error("Error closing snapshot/iterator?", e);
             }
         }
-        return results;
+    }
+
+    private static boolean startsWith(byte[] bytes, byte[] prefix) {
+        if (bytes.length < prefix.length)
+            return false;
+        for (int i = 0; i < prefix.length; i++) {
+            if (bytes[i] != prefix[i])
+                return false;
+        }
+        return true;
+    }
+
+    private static UTXO withAddress(UTXO out, String address) {
+        return new UTXO(out.getHash(), out.getIndex(), out.getValue(), out.getHeight(), out.isCoinbase(),
+                out.getScript(), address);
     }
 
     @Override
@@ -559,7 +777,8 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
     // in.
     // Do wonder if grouping each "table" like this is efficient or not...
     enum KeyType {
-        CREATED, CHAIN_HEAD_SETTING, VERIFIED_CHAIN_HEAD_SETTING, VERSION_SETTING, HEADERS_ALL, UNDOABLEBLOCKS_ALL, HEIGHT_UNDOABLEBLOCKS, OPENOUT_ALL, ADDRESS_HASHINDEX
+        CREATED, CHAIN_HEAD_SETTING, VERIFIED_CHAIN_HEAD_SETTING, VERSION_SETTING, HEADERS_ALL, UNDOABLEBLOCKS_ALL, HEIGHT_UNDOABLEBLOCKS, OPENOUT_ALL, ADDRESS_HASHINDEX,
+        MIGRATION_PROGRESS
     }
 
     // These helpers just get the key for an input
@@ -706,112 +925,239 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
             beginMethod("getTransactionOutput");
 
         try {
-            UTXO result = null;
-            byte[] key = getTxKey(KeyType.OPENOUT_ALL, hash, (int) index);
-            // Use cache
-            if (autoCommit) {
-                // Simple case of auto commit on so cache is consistent.
-                result = utxoCache.get(ByteBuffer.wrap(key));
-            } else {
-                // Check if we have an uncommitted delete.
-                if (utxoUncommittedDeletedCache.contains(ByteBuffer.wrap(key))) {
-                    // has been deleted so return null;
-                    hit++;
-                    if (instrument)
-                        endMethod("getTransactionOutput");
-                    return result;
-                }
-                // Check if we have an uncommitted entry
-                result = utxoUncommittedCache.get(ByteBuffer.wrap(key));
-                if (result == null)
-                    result = utxoCache.get(ByteBuffer.wrap(key));
-                // And lastly above check if we have a committed cached entry
-
-            }
-            if (result != null) {
-                hit++;
-                if (instrument)
-                    endMethod("getTransactionOutput");
-                return result;
-            }
-            miss++;
-            // If we get here have to hit the database.
-            byte[] inbytes = batchGet(key);
-            if (inbytes == null) {
-                if (instrument)
-                    endMethod("getTransactionOutput");
+            ByteBuffer key = ByteBuffer.wrap(getTxKey(KeyType.OPENOUT_ALL, hash, (int) index));
+            UTXOCache.Entry entry = getCachedOutput(key);
+            if (entry != null)
+                return entry.spent ? null : entry.out;
+            // If we get here have to hit the database, which has the unspent outputs as of the last flush.
+            int generation = utxoCache.getGeneration();
+            byte[] inbytes = db.get(key.array());
+            if (inbytes == null)
                 return null;
-            }
-            ByteArrayInputStream bis = new ByteArrayInputStream(inbytes);
-            UTXO txout = new UTXO(bis);
-
-            if (instrument)
-                endMethod("getTransactionOutput");
+            UTXO txout = UTXO.deserializeCompact(hash, index, inbytes);
+            utxoCache.fill(key, txout, generation);
             return txout;
         } catch (DBException e) {
             log.error("Exception in getTransactionOutput.", e);
-            if (instrument)
-                endMethod("getTransactionOutput");
+            throw new BlockStoreException(e);
         } catch (IOException e) {
             log.error("Exception in getTransactionOutput.", e);
+            throw new BlockStoreException(e);
+        } finally {
             if (instrument)
                 endMethod("getTransactionOutput");
         }
-        throw new BlockStoreException("problem");
+    }
+
+    @Override
+    public List<UTXO> getTransactionOutputs(List<TransactionOutPoint> outPoints) throws BlockStoreException {
+        if (instrument)
+            beginMethod("getTransactionOutputs");
+
+        UTXO[] results = new UTXO[outPoints.size()];
+        // Keys that were not answered from the caches, mapped to the positions in results waiting on them. They are
+        // sorted the way leveldb orders keys so that the lookups below walk the database in a single direction.
+        TreeMap<byte[], List<Integer>> misses = new TreeMap<byte[], List<Integer>>(UnsignedBytes.lexicographicalComparator());
+        for (int i = 0; i < results.length; i++) {
+            TransactionOutPoint outPoint = outPoints.get(i);
+            byte[] key = getTxKey(KeyType.OPENOUT_ALL, outPoint.getHash(), (int) outPoint.getIndex());
+            UTXOCache.Entry entry = getCachedOutput(ByteBuffer.wrap(key));
+            if (entry != null) {
+                if (!entry.spent)
+                    results[i] = entry.out;
+                continue;
+            }
+            List<Integer> positions = misses.get(key);
+            if (positions == null) {
+                positions = new ArrayList<Integer>(1);
+                misses.put(key, positions);
+            }
+            positions.add(i);
+        }
+
+        if (!misses.isEmpty()) {
+            int generation = utxoCache.getGeneration();
+            DBIterator iterator = db.iterator();
+            try {
+                for (Map.Entry<byte[], List<Integer>> entry : misses.entrySet()) {
+                    byte[] key = entry.getKey();
+                    byte[] value = null;
+                    iterator.seek(key);
+                    if (iterator.hasNext()) {
+                        Map.Entry<byte[], byte[]> next = iterator.peekNext();
+                        if (Arrays.equals(next.getKey(), key))
+                            value = next.getValue();
+                    }
+                    if (value == null)
+                        continue;
+                    TransactionOutPoint outPoint = outPoints.get(entry.getValue().get(0));
+                    UTXO txout = UTXO.deserializeCompact(outPoint.getHash(), outPoint.getIndex(), value);
+                    utxoCache.fill(ByteBuffer.wrap(key), txout, generation);
+                    for (int position : entry.getValue())
+                        results[position] = txout;
+                }
+            } catch (DBException e) {
+                log.error("Exception in getTransactionOutputs.", e);
+                throw new BlockStoreException(e);
+            } catch (IOException e) {
+                log.error("Exception in getTransactionOutputs.", e);
+                throw new BlockStoreException(e);
+            } finally {
+                try {
+                    iterator.close();
+                } catch (IOException e) {
+                    log.error("Error closing iterator", e);
+                }
+                if (instrument)
+                    endMethod("getTransactionOutputs");
+            }
+        } else if (instrument) {
+            endMethod("getTransactionOutputs");
+        }
+        return Arrays.asList(results);
+    }
+
+    /**
+     * Looks an output up in the changes of the current batch write, if it is being made by the calling thread, and
+     * then in the cache. Returns null if neither knows about the output.
+     */
+    @Nullable
+    private UTXOCache.Entry getCachedOutput(ByteBuffer key) {
+        if (batchWriter == Thread.currentThread()) {
+            UTXOCache.Entry entry = utxoUncommitted.get(key);
+            if (entry != null) {
+                utxoCache.recordHit();
+                return entry;
+            }
+        }
+        return utxoCache.get(key);
+    }
+
+    /** As {@link #getCachedOutput(ByteBuffer)}, but only returns changes that are not in the database yet. */
+    @Nullable
+    private UTXOCache.Entry getUnflushedChange(ByteBuffer key) {
+        if (batchWriter == Thread.currentThread()) {
+            UTXOCache.Entry entry = utxoUncommitted.get(key);
+            if (entry != null)
+                return entry;
+        }
+        return utxoCache.getDirty(key);
+    }
+
+    @Override
+    public void addUnspentTransactionOutputs(List<UTXO> outs) throws BlockStoreException {
+        // Work out which transactions are new before the bloom filter learns about any of their outputs.
+        Set<Sha256Hash> fresh = new HashSet<Sha256Hash>();
+        for (UTXO out : outs) {
+            if (!bloom.mightContain(out.getHash()))
+                fresh.add(out.getHash());
+        }
+        for (UTXO out : outs)
+            addUnspentTransactionOutput(out, fresh.contains(out.getHash()));
+    }
+
+    @Override
+    public void removeUnspentTransactionOutputs(List<UTXO> outs) throws BlockStoreException {
+        for (UTXO out : outs)
+            removeUnspentTransactionOutput(out);
     }
 
     @Override
     public void addUnspentTransactionOutput(UTXO out) throws BlockStoreException {
+        addUnspentTransactionOutput(out, !bloom.mightContain(out.getHash()));
+    }
 
+    /**
+     * Adds an output to the changes of the current batch write, or straight to the cache.
+     * @param fresh true if the output is known not to be in the cache or database, which the bloom filter can tell
+     */
+    private void addUnspentTransactionOutput(UTXO out, boolean fresh) throws BlockStoreException {
         if (instrument)
             beginMethod("addUnspentTransactionOutput");
 
         // Add to bloom filter - is very fast to add.
         bloom.add(out.getHash());
-        ByteArrayOutputStream bos = new ByteArrayOutputStream();
-        try {
-            out.serializeToStream(bos);
-        } catch (IOException e) {
-            throw new BlockStoreException("problem serialising utxo", e);
-        }
-
-        byte[] key = getTxKey(KeyType.OPENOUT_ALL, out.getHash(), (int) out.getIndex());
-        batchPut(key, bos.toByteArray());
-
+        ByteBuffer key = ByteBuffer.wrap(getTxKey(KeyType.OPENOUT_ALL, out.getHash(), (int) out.getIndex()));
         if (autoCommit) {
-            utxoCache.put(ByteBuffer.wrap(key), out);
+            utxoCache.add(key, out, fresh);
+            if (utxoCache.needsFlush())
+                flushUTXOCache();
         } else {
-            utxoUncommittedCache.put(ByteBuffer.wrap(key), out);
-            // leveldb just stores the last key/value added.
-            // So if we do an add must remove any previous deletes.
-            utxoUncommittedDeletedCache.remove(ByteBuffer.wrap(key));
+            UTXOCache.Entry previous = utxoUncommitted.get(key);
+            if (previous != null)
+                fresh = previous.fresh;
+            utxoUncommitted.put(key, new UTXOCache.Entry(out, false, fresh));
         }
 
-        // Could run this in parallel with above too.
-        // Should update instrumentation to see if worth while.
-        Address a;
-        if (out.getAddress() == null || out.getAddress().equals("")) {
-            if (instrument)
-                endMethod("addUnspentTransactionOutput");
-            return;
-        } else {
-            try {
-                a = Address.fromBase58(params, out.getAddress());
-            } catch (AddressFormatException e) {
-                if (instrument)
-                    endMethod("addUnspentTransactionOutput");
-                return;
-            }
+        if (instrument)
+            endMethod("addUnspentTransactionOutput");
+    }
+
+    /**
+     * Returns the address index key for the given output, which is keyed on the hash of the address its script pays
+     * to, or null if it does not pay to an address.
+     */
+    @Nullable
+    private byte[] getAddressKey(UTXO out) {
+        byte[] hashBytes;
+        try {
+            hashBytes = out.getScript().getToAddress(params, true).getHash160();
+        } catch (ScriptException e) {
+            return null;
         }
         ByteBuffer bb = ByteBuffer.allocate(57);
         bb.put((byte) KeyType.ADDRESS_HASHINDEX.ordinal());
-        bb.put(a.getHash160());
+        bb.put(hashBytes);
         bb.put(out.getHash().getBytes());
         bb.putInt((int) out.getIndex());
-        byte[] value = new byte[0];
-        batchPut(bb.array(), value);
+        return bb.array();
+    }
+
+    /**
+     * Writes the unspent outputs that changed since the last flush to the database, along with the verified chain
+     * head they belong to. This happens by itself once enough changes build up, once they are old enough, and on
+     * {@link #close()}.
+     */
+    public void flushUTXOCache() throws BlockStoreException {
         if (instrument)
-            endMethod("addUnspentTransactionOutput");
+            beginMethod("flushUTXOCache");
+        synchronized (utxoCache) {
+            WriteBatch writeBatch = db.createWriteBatch();
+            try {
+                for (Map.Entry<ByteBuffer, UTXOCache.Entry> entry : utxoCache.getDirtyEntries().entrySet()) {
+                    byte[] key = entry.getKey().array();
+                    UTXOCache.Entry value = entry.getValue();
+                    byte[] addressKey = getAddressKey(value.out);
+                    if (value.spent) {
+                        writeBatch.delete(key);
+                        if (addressKey != null)
+                            writeBatch.delete(addressKey);
+                    } else {
+                        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+                        value.out.serializeCompact(bos);
+                        writeBatch.put(key, bos.toByteArray());
+                        if (addressKey != null)
+                            writeBatch.put(addressKey, new byte[0]);
+                    }
+                }
+                writeBatch.put(getKey(KeyType.VERIFIED_CHAIN_HEAD_SETTING), committedVerifiedChainHeadHash.getBytes());
+                db.write(writeBatch);
+                writeBatch.close();
+                flushedVerifiedChainHeadHeight = committedVerifiedChainHeadHeight;
+            } catch (DBException e) {
+                throw new BlockStoreException("Could not flush unspent outputs", e);
+            } catch (IOException e) {
+                throw new BlockStoreException("Could not flush unspent outputs", e);
+            }
+            utxoCache.flushed();
+        }
+        if (instrument)
+            endMethod("flushUTXOCache");
+    }
+
+    /** Returns the cache of unspent outputs, whose getters tell how well it is doing. */
+    public UTXOCache getUTXOCache() {
+        return utxoCache;
     }
 
     private void batchPut(byte[] key, byte[] value) {
@@ -867,49 +1213,18 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
         if (instrument)
             beginMethod("removeUnspentTransactionOutput");
 
-        byte[] key = getTxKey(KeyType.OPENOUT_ALL, out.getHash(), (int) out.getIndex());
-
+        ByteBuffer key = ByteBuffer.wrap(getTxKey(KeyType.OPENOUT_ALL, out.getHash(), (int) out.getIndex()));
         if (autoCommit) {
-            utxoCache.remove(ByteBuffer.wrap(key));
+            utxoCache.spend(key, out);
+            if (utxoCache.needsFlush())
+                flushUTXOCache();
         } else {
-            utxoUncommittedDeletedCache.add(ByteBuffer.wrap(key));
-            utxoUncommittedCache.remove(ByteBuffer.wrap(key));
+            // An output added by this batch write that is nowhere else needs no record of being spent.
+            UTXOCache.Entry previous = utxoUncommitted.remove(key);
+            if (previous == null || previous.spent || !previous.fresh)
+                utxoUncommitted.put(key, new UTXOCache.Entry(out, true, false));
         }
 
-        batchDelete(key);
-        // could run this and the above in parallel
-        // Need to update instrumentation to check if worth the effort
-
-        // TODO storing as byte[] hash to save space. But think should just
-        // store as String of address. Might be faster. Need to test.
-        ByteBuffer bb = ByteBuffer.allocate(57);
-        Address a;
-        byte[] hashBytes = null;
-        try {
-            String address = out.getAddress();
-            if (address == null || address.equals("")) {
-                Script sc = out.getScript();
-                a = sc.getToAddress(params);
-                hashBytes = a.getHash160();
-            } else {
-                a = Address.fromBase58(params, out.getAddress());
-                hashBytes = a.getHash160();
-            }
-        } catch (AddressFormatException e) {
-            if (instrument)
-                endMethod("removeUnspentTransactionOutput");
-            return;
-        } catch (ScriptException e) {
-            if (instrument)
-                endMethod("removeUnspentTransactionOutput");
-            return;
-        }
-        bb.put((byte) KeyType.ADDRESS_HASHINDEX.ordinal());
-        bb.put(hashBytes);
-        bb.put(out.getHash().getBytes());
-        bb.putInt((int) out.getIndex());
-        batchDelete(bb.array());
-
         if (instrument)
             endMethod("removeUnspentTransactionOutput");
     }
@@ -926,51 +1241,46 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
         if (instrument)
             beginMethod("hasUnspentOutputs");
         hasCall++;
-        if (!bloom.wasAdded(hash)) {
-            if (instrument)
-                endMethod("hasUnspentOutputs");
-            hasFalse++;
-            return false;
-        }
-        // no index is fine as will find any entry with any index...
-        // TODO should I be checking uncommitted inserts/deletes???
-        byte[] key = getTxKey(KeyType.OPENOUT_ALL, hash);
-        byte[] subResult = new byte[key.length];
-        DBIterator iterator = db.iterator();
-        for (iterator.seek(key); iterator.hasNext();) {
-            byte[] result = iterator.peekNext().getKey();
-            System.arraycopy(result, 0, subResult, 0, subResult.length);
-            if (Arrays.equals(key, subResult)) {
-                hasTrue++;
-                try {
-                    iterator.close();
-                } catch (IOException e) {
-                    log.error("Error closing iterator", e);
-                }
-                if (instrument)
-                    endMethod("hasUnspentOutputs");
-                return true;
-            } else {
+        try {
+            if (!bloom.wasAdded(hash)) {
                 hasFalse++;
+                return false;
+            }
+            // Changes that are not flushed yet take precedence over the database.
+            for (int i = 0; i < numOutputs; i++) {
+                UTXOCache.Entry entry = getUnflushedChange(ByteBuffer.wrap(getTxKey(KeyType.OPENOUT_ALL, hash, i)));
+                if (entry != null && !entry.spent) {
+                    hasTrue++;
+                    return true;
+                }
+            }
+            // no index is fine as will find any entry with any index...
+            byte[] key = getTxKey(KeyType.OPENOUT_ALL, hash);
+            DBIterator iterator = db.iterator();
+            try {
+                for (iterator.seek(key); iterator.hasNext(); iterator.next()) {
+                    byte[] result = iterator.peekNext().getKey();
+                    if (!Arrays.equals(key, Arrays.copyOf(result, key.length)))
+                        break;
+                    UTXOCache.Entry entry = getUnflushedChange(ByteBuffer.wrap(result));
+                    if (entry == null || !entry.spent) {
+                        hasTrue++;
+                        return true;
+                    }
+                }
+            } finally {
                 try {
                     iterator.close();
                 } catch (IOException e) {
                     log.error("Error closing iterator", e);
                 }
-                if (instrument)
-                    endMethod("hasUnspentOutputs");
-                return false;
             }
+            hasFalse++;
+            return false;
+        } finally {
+            if (instrument)
+                endMethod("hasUnspentOutputs");
         }
-        try {
-            iterator.close();
-        } catch (IOException e) {
-            log.error("Error closing iterator", e);
-        }
-        hasFalse++;
-        if (instrument)
-            endMethod("hasUnspentOutputs");
-        return false;
     }
 
     @Override
@@ -985,10 +1295,15 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
         Sha256Hash hash = chainHead.getHeader().getHash();
         this.verifiedChainHeadHash = hash;
         this.verifiedChainHeadBlock = chainHead;
-        batchPut(getKey(KeyType.VERIFIED_CHAIN_HEAD_SETTING), hash.getBytes());
+        // Written along with the unspent outputs when the cache is flushed, so that they always match on disk.
+        if (autoCommit) {
+            committedVerifiedChainHeadHash = hash;
+            committedVerifiedChainHeadHeight = chainHead.getHeight();
+        }
         if (this.chainHeadBlock.getHeight() < chainHead.getHeight())
             setChainHead(chainHead);
-        removeUndoableBlocksWhereHeightIsLessThan(chainHead.getHeight() - fullStoreDepth);
+        removeUndoableBlocksWhereHeightIsLessThan(
+                Math.min(chainHead.getHeight(), flushedVerifiedChainHeadHeight) - fullStoreDepth);
         if (instrument)
             endMethod("setVerifiedChainHead");
     }
@@ -1041,8 +1356,8 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
         batch = db.createWriteBatch();
         uncommited = new HashMap<ByteBuffer, byte[]>();
         uncommitedDeletes = new HashSet<ByteBuffer>();
-        utxoUncommittedCache = new HashMap<ByteBuffer, UTXO>();
-        utxoUncommittedDeletedCache = new HashSet<ByteBuffer>();
+        utxoUncommitted = new HashMap<ByteBuffer, UTXOCache.Entry>();
+        batchWriter = Thread.currentThread();
         autoCommit = false;
         if (instrument)
             endMethod("beginDatabaseBatchWrite");
@@ -1056,20 +1371,23 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
             beginMethod("commitDatabaseBatchWrite");
 
         db.write(batch);
-        // order of these is not important as we only allow entry to be in one
-        // or the other.
-        // must update cache with uncommitted adds/deletes.
-        for (Map.Entry<ByteBuffer, UTXO> entry : utxoUncommittedCache.entrySet()) {
-
-            utxoCache.put(entry.getKey(), entry.getValue());
-        }
-        utxoUncommittedCache = null;
-        for (ByteBuffer entry : utxoUncommittedDeletedCache) {
-            utxoCache.remove(entry);
+        // must update cache with uncommitted adds/deletes. They reach the
+        // database when the cache is flushed.
+        synchronized (utxoCache) {
+            for (Map.Entry<ByteBuffer, UTXOCache.Entry> entry : utxoUncommitted.entrySet()) {
+                UTXOCache.Entry value = entry.getValue();
+                if (value.spent)
+                    utxoCache.spend(entry.getKey(), value.out);
+                else
+                    utxoCache.add(entry.getKey(), value.out, value.fresh);
+            }
         }
-        utxoUncommittedDeletedCache = null;
+        utxoUncommitted = null;
+        committedVerifiedChainHeadHash = verifiedChainHeadHash;
+        committedVerifiedChainHeadHeight = verifiedChainHeadBlock.getHeight();
 
         autoCommit = true;
+        batchWriter = null;
 
         try {
             batch.close();
@@ -1079,6 +1397,9 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
             throw new BlockStoreException("could not close batch.");
         }
 
+        if (utxoCache.needsFlush())
+            flushUTXOCache();
+
         if (instrument)
             endMethod("commitDatabaseBatchWrite");
 
@@ -1097,9 +1418,9 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
         try {
             uncommited = null;
             uncommitedDeletes = null;
-            utxoUncommittedCache = null;
-            utxoUncommittedDeletedCache = null;
+            utxoUncommitted = null;
             autoCommit = true;
+            batchWriter = null;
             if (batch != null) {
                 batch.close();
                 batch = null;
@@ -1118,7 +1439,6 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
             uncommitedDeletes = null;
             autoCommit = true;
             bloom = new BloomFilter();
-            utxoCache = new LRUCache(openOutCache, 0.75f);
         } catch (IOException e) {
             log.error("Exception in resetStore.", e);
         }
@@ -78,156 +78,6 @@ class StoredTransactionOutPoint {
     }
 }
 
-/**
- * A HashMap<KeyType, ValueType> that is DB transaction-aware
- * This class is not thread-safe.
- */
-class TransactionalHashMap<KeyType, ValueType> {
-    ThreadLocal<HashMap<KeyType, ValueType>> tempMap;
-    ThreadLocal<HashSet<KeyType>> tempSetRemoved;
-    private ThreadLocal<Boolean> inTransaction;
-    
-    HashMap<KeyType, ValueType> map;
-    
-    public TransactionalHashMap() {
-        tempMap = new ThreadLocal<HashMap<KeyType, ValueType>>();
-        tempSetRemoved = new ThreadLocal<HashSet<KeyType>>();
-        inTransaction = new ThreadLocal<Boolean>();
-        map = new HashMap<KeyType, ValueType>();
-    }
-    
-    public void beginDatabaseBatchWrite() {
-        inTransaction.set(true);
-    }
-
-    public void commitDatabaseBatchWrite() {
-        if (tempSetRemoved.get() != null)
-            for(KeyType key : tempSetRemoved.get())
-                map.remove(key);
-        if (tempMap.get() != null)
-            for (Map.Entry<KeyType, ValueType> entry : tempMap.get().entrySet())
-                map.put(entry.getKey(), entry.getValue());
-        abortDatabaseBatchWrite();
-    }
-
-    public void abortDatabaseBatchWrite() {
-        inTransaction.set(false);
-        tempSetRemoved.remove();
-        tempMap.remove();
-    }
-
-    @Nullable
-    public ValueType get(KeyType key) {
-        if (Boolean.TRUE.equals(inTransaction.get())) {
-            if (tempMap.get() != null) {
-                ValueType value = tempMap.get().get(key);
-                if (value != null)
-                    return value;
-            }
-            if (tempSetRemoved.get() != null && tempSetRemoved.get().contains(key))
-                return null;
-        }
-        return map.get(key);
-    }
-
-    public List<ValueType> values() {
-        List<ValueType> valueTypes = new ArrayList<ValueType>();
-        for (KeyType keyType : map.keySet()) {
-            valueTypes.add(get(keyType));
-        }
-        return valueTypes;
-    }
-    
-    public void put(KeyType key, ValueType value) {
-        if (Boolean.TRUE.equals(inTransaction.get())) {
-            if (tempSetRemoved.get() != null)
-                tempSetRemoved.get().remove(key);
-            if (tempMap.get() == null)
-                tempMap.set(new HashMap<KeyType, ValueType>());
-            tempMap.get().put(key, value);
-        }else{
-            map.put(key, value);
-        }
-    }
-    
-    @Nullable
-    public ValueType remove(KeyType key) {
-        if (Boolean.TRUE.equals(inTransaction.get())) {
-            ValueType retVal = map.get(key);
-            if (retVal != null) {
-                if (tempSetRemoved.get() == null)
-                    tempSetRemoved.set(new HashSet<KeyType>());
-                tempSetRemoved.get().add(key);
-            }
-            if (tempMap.get() != null) {
-                ValueType tempVal = tempMap.get().remove(key);
-                if (tempVal != null)
-                    return tempVal;
-            }
-            return retVal;
-        }else{
-            return map.remove(key);
-        }
-    }
-}
-
-/**
- * A Map with multiple key types that is DB per-thread-transaction-aware.
- * However, this class is not thread-safe.
- * @param <UniqueKeyType> is a key that must be unique per object
- * @param <MultiKeyType> is a key that can have multiple values
- */
-class TransactionalMultiKeyHashMap<UniqueKeyType, MultiKeyType, ValueType> {
-    TransactionalHashMap<UniqueKeyType, ValueType> mapValues;
-    HashMap<MultiKeyType, Set<UniqueKeyType>> mapKeys;
-    
-    public TransactionalMultiKeyHashMap() {
-        mapValues = new TransactionalHashMap<UniqueKeyType, ValueType>();
-        mapKeys = new HashMap<MultiKeyType, Set<UniqueKeyType>>();
-    }
-    
-    public void BeginTransaction() {
-        mapValues.beginDatabaseBatchWrite();
-    }
-
-    public void CommitTransaction() {
-        mapValues.commitDatabaseBatchWrite();
-    }
-
-    public void AbortTransaction() {
-        mapValues.abortDatabaseBatchWrite();
-    }
-
-    @Nullable
-    public ValueType get(UniqueKeyType key) {
-        return mapValues.get(key);
-    }
-    
-    public void put(UniqueKeyType uniqueKey, MultiKeyType multiKey, ValueType value) {
-        mapValues.put(uniqueKey, value);
-        Set<UniqueKeyType> set = mapKeys.get(multiKey);
-        if (set == null) {
-            set = new HashSet<UniqueKeyType>();
-            set.add(uniqueKey);
-            mapKeys.put(multiKey, set);
-        }else{
-            set.add(uniqueKey);
-        }
-    }
-    
-    @Nullable
-    public ValueType removeByUniqueKey(UniqueKeyType key) {
-        return mapValues.remove(key);
-    }
-    
-    public void removeByMultiKey(MultiKeyType key) {
-        Set<UniqueKeyType> set = mapKeys.remove(key);
-        if (set != null)
-            for (UniqueKeyType uniqueKey : set)
-                removeByUniqueKey(uniqueKey);
-    }
-}
-
 /**
  * Keeps {@link StoredBlock}s, {@link StoredUndoableBlock}s and {@link org.blockchainj.core.UTXO}s in memory.
  * Used primarily for unit testing.
@@ -368,6 +218,26 @@ public class MemoryFullPrunedBlockStore implements FullPrunedBlockStore {
             throw new BlockStoreException("Tried to remove a UTXO from MemoryFullPrunedBlockStore that it didn't have!");
     }
 
+    @Override
+    public synchronized List<UTXO> getTransactionOutputs(List<TransactionOutPoint> outPoints) throws BlockStoreException {
+        List<UTXO> outputs = new ArrayList<UTXO>(outPoints.size());
+        for (TransactionOutPoint outPoint : outPoints)
+            outputs.add(getTransactionOutput(outPoint.getHash(), outPoint.getIndex()));
+        return outputs;
+    }
+
+    @Override
+    public synchronized void addUnspentTransactionOutputs(List<UTXO> outs) throws BlockStoreException {
+        for (UTXO out : outs)
+            addUnspentTransactionOutput(out);
+    }
+
+    @Override
+    public synchronized void removeUnspentTransactionOutputs(List<UTXO> outs) throws BlockStoreException {
+        for (UTXO out : outs)
+            removeUnspentTransactionOutput(out);
+    }
+
     @Override
     public synchronized void beginDatabaseBatchWrite() throws BlockStoreException {
         blockMap.beginDatabaseBatchWrite();
@@ -417,11 +287,18 @@ public class MemoryFullPrunedBlockStore implements FullPrunedBlockStore {
         // If someone uses this store for production then they have a lot more to worry about than an inefficient impl :)
         List<UTXO> foundOutputs = new ArrayList<UTXO>();
         List<UTXO> outputsList = transactionOutputMap.values();
+        Set<Address> addressSet = new HashSet<Address>(addresses);
         for (UTXO output : outputsList) {
-            for (Address address : addresses) {
-                if (output.getAddress().equals(address.toString())) {
-                    foundOutputs.add(output);
-                }
+            // Outputs are stored without their address, it is only derived here.
+            Address address;
+            try {
+                address = output.getScript().getToAddress(params, true);
+            } catch (ScriptException e) {
+                continue;
+            }
+            if (addressSet.contains(address)) {
+                foundOutputs.add(new UTXO(output.getHash(), output.getIndex(), output.getValue(), output.getHeight(),
+                        output.isCoinbase(), output.getScript(), address.toString()));
             }
         }
         return foundOutputs;
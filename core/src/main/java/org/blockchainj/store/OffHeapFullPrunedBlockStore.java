@@ -0,0 +1,566 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.blockchainj.store;
+
+import org.blockchainj.core.*;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+/**
+ * <p>Keeps {@link StoredBlock}s and {@link StoredUndoableBlock}s in memory like {@link MemoryFullPrunedBlockStore}, but
+ * keeps the unspent outputs off the Java heap, in direct memory, in their compact serialized form. A full unspent output
+ * set then costs the garbage collector nothing, however many gigabytes it takes. The JVM has to be allowed that much
+ * direct memory with -XX:MaxDirectMemorySize.</p>
+ *
+ * <p>If the store is given a snapshot file, it saves itself there on {@link #close()} and starts from it when created
+ * again. The unspent outputs are saved as they are laid out in memory, so loading them is little more than a copy.
+ * Undo data is saved as well, so reorganizations work across restarts as far back as the store keeps it.</p>
+ *
+ * <p>The methods of this class are synchronized, like those of the other in memory store.</p>
+ */
+public class OffHeapFullPrunedBlockStore implements FullPrunedBlockStore {
+    private static final Logger log = LoggerFactory.getLogger(OffHeapFullPrunedBlockStore.class);
+
+    static final int DEFAULT_SEGMENTS = 64;
+    static final int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+
+    private static final byte[] SNAPSHOT_MAGIC = { 'U', 'T', 'X', 'O', 'S', 'N', 'A', 'P' };
+    private static final int SNAPSHOT_VERSION = 1;
+
+    private TransactionalHashMap<Sha256Hash, MemoryFullPrunedBlockStore.StoredBlockAndWasUndoableFlag> blockMap;
+    private TransactionalMultiKeyHashMap<Sha256Hash, Integer, StoredUndoableBlock> fullBlockMap;
+    private OffHeapUTXOTable outputTable;
+    // Outputs added, or spent when mapped to null, by the batch write of each thread. They only reach the table when
+    // the batch is committed.
+    private final ThreadLocal<Map<ByteBuffer, UTXO>> pendingOutputs = new ThreadLocal<Map<ByteBuffer, UTXO>>();
+    private StoredBlock chainHead;
+    private StoredBlock verifiedChainHead;
+    private final int fullStoreDepth;
+    private final NetworkParameters params;
+    @Nullable private final File snapshotFile;
+
+    /**
+     * Creates an empty store that is not saved anywhere.
+     * @param params The network parameters of this block store - used to get genesis block
+     * @param fullStoreDepth The depth of blocks to keep FullStoredBlocks instead of StoredBlocks
+     */
+    public OffHeapFullPrunedBlockStore(NetworkParameters params, int fullStoreDepth) {
+        this.params = params;
+        this.fullStoreDepth = fullStoreDepth > 0 ? fullStoreDepth : 1;
+        this.snapshotFile = null;
+        try {
+            initNewStore(DEFAULT_SEGMENTS, DEFAULT_CHUNK_SIZE);
+        } catch (BlockStoreException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        }
+    }
+
+    /**
+     * Creates a store that is loaded from the given snapshot file if it exists, and saved to it on {@link #close()}.
+     * @param params The network parameters of this block store - used to get genesis block
+     * @param fullStoreDepth The depth of blocks to keep FullStoredBlocks instead of StoredBlocks
+     * @param snapshotFile where the store is saved
+     * @throws BlockStoreException if the snapshot cannot be read, or is for other network parameters
+     */
+    public OffHeapFullPrunedBlockStore(NetworkParameters params, int fullStoreDepth, File snapshotFile)
+            throws BlockStoreException {
+        this(params, fullStoreDepth, snapshotFile, DEFAULT_SEGMENTS, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * As {@link #OffHeapFullPrunedBlockStore(NetworkParameters, int, File)}, for a new store laid out as given.
+     * @param snapshotFile where the store is saved, or null to keep it in memory only
+     * @param segments how many parts the output table is split into, each of which grows by itself. A power of two.
+     * @param chunkSize how many bytes of direct memory the output table takes at a time for records. A power of two of
+     *                  at least 128KB.
+     */
+    public OffHeapFullPrunedBlockStore(NetworkParameters params, int fullStoreDepth, @Nullable File snapshotFile,
+            int segments, int chunkSize) throws BlockStoreException {
+        this.params = params;
+        this.fullStoreDepth = fullStoreDepth > 0 ? fullStoreDepth : 1;
+        this.snapshotFile = snapshotFile;
+        if (snapshotFile != null && snapshotFile.exists())
+            readSnapshot(snapshotFile);
+        else
+            initNewStore(segments, chunkSize);
+    }
+
+    private void initNewStore(int segments, int chunkSize) throws BlockStoreException {
+        blockMap = new TransactionalHashMap<Sha256Hash, MemoryFullPrunedBlockStore.StoredBlockAndWasUndoableFlag>();
+        fullBlockMap = new TransactionalMultiKeyHashMap<Sha256Hash, Integer, StoredUndoableBlock>();
+        outputTable = new OffHeapUTXOTable(segments, chunkSize);
+        // Insert the genesis block.
+        try {
+            StoredBlock storedGenesisHeader = new StoredBlock(params.getGenesisBlock().cloneAsHeader(), params.getGenesisBlock().getWork(), 0);
+            // The coinbase in the genesis block is not spendable
+            List<Transaction> genesisTransactions = Lists.newLinkedList();
+            StoredUndoableBlock storedGenesis = new StoredUndoableBlock(params.getGenesisBlock().getHash(), genesisTransactions);
+            put(storedGenesisHeader, storedGenesis);
+            setChainHead(storedGenesisHeader);
+            setVerifiedChainHead(storedGenesisHeader);
+        } catch (VerificationException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        }
+    }
+
+    @Override
+    public synchronized void put(StoredBlock block) throws BlockStoreException {
+        Preconditions.checkNotNull(blockMap, "OffHeapFullPrunedBlockStore is closed");
+        Sha256Hash hash = block.getHeader().getHash();
+        blockMap.put(hash, new MemoryFullPrunedBlockStore.StoredBlockAndWasUndoableFlag(block, false));
+    }
+
+    @Override
+    public synchronized final void put(StoredBlock storedBlock, StoredUndoableBlock undoableBlock) throws BlockStoreException {
+        Preconditions.checkNotNull(blockMap, "OffHeapFullPrunedBlockStore is closed");
+        Sha256Hash hash = storedBlock.getHeader().getHash();
+        fullBlockMap.put(hash, storedBlock.getHeight(), undoableBlock);
+        blockMap.put(hash, new MemoryFullPrunedBlockStore.StoredBlockAndWasUndoableFlag(storedBlock, true));
+    }
+
+    @Override
+    @Nullable
+    public synchronized StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+        Preconditions.checkNotNull(blockMap, "OffHeapFullPrunedBlockStore is closed");
+        MemoryFullPrunedBlockStore.StoredBlockAndWasUndoableFlag storedBlock = blockMap.get(hash);
+        return storedBlock == null ? null : storedBlock.block;
+    }
+
+    @Override
+    @Nullable
+    public synchronized StoredBlock getOnceUndoableStoredBlock(Sha256Hash hash) throws BlockStoreException {
+        Preconditions.checkNotNull(blockMap, "OffHeapFullPrunedBlockStore is closed");
+        MemoryFullPrunedBlockStore.StoredBlockAndWasUndoableFlag storedBlock = blockMap.get(hash);
+        return (storedBlock != null && storedBlock.wasUndoable) ? storedBlock.block : null;
+    }
+
+    @Override
+    @Nullable
+    public synchronized StoredUndoableBlock getUndoBlock(Sha256Hash hash) throws BlockStoreException {
+        Preconditions.checkNotNull(fullBlockMap, "OffHeapFullPrunedBlockStore is closed");
+        return fullBlockMap.get(hash);
+    }
+
+    @Override
+    public synchronized StoredBlock getChainHead() throws BlockStoreException {
+        Preconditions.checkNotNull(blockMap, "OffHeapFullPrunedBlockStore is closed");
+        return chainHead;
+    }
+
+    @Override
+    public synchronized final void setChainHead(StoredBlock chainHead) throws BlockStoreException {
+        Preconditions.checkNotNull(blockMap, "OffHeapFullPrunedBlockStore is closed");
+        this.chainHead = chainHead;
+    }
+
+    @Override
+    public synchronized StoredBlock getVerifiedChainHead() throws BlockStoreException {
+        Preconditions.checkNotNull(blockMap, "OffHeapFullPrunedBlockStore is closed");
+        return verifiedChainHead;
+    }
+
+    @Override
+    public synchronized final void setVerifiedChainHead(StoredBlock chainHead) throws BlockStoreException {
+        Preconditions.checkNotNull(blockMap, "OffHeapFullPrunedBlockStore is closed");
+        this.verifiedChainHead = chainHead;
+        if (this.chainHead.getHeight() < chainHead.getHeight())
+            setChainHead(chainHead);
+        fullBlockMap.removeByMultiKey(chainHead.getHeight() - fullStoreDepth);
+    }
+
+    /**
+     * Saves the snapshot if the store has a snapshot file, and lets go of the memory the store holds. Direct memory is
+     * given back by the garbage collector some time after.
+     */
+    @Override
+    public synchronized void close() throws BlockStoreException {
+        if (blockMap == null)
+            return;
+        if (snapshotFile != null)
+            writeSnapshot(snapshotFile);
+        blockMap = null;
+        fullBlockMap = null;
+        outputTable = null;
+    }
+
+    private static ByteBuffer getKey(Sha256Hash hash, long index) {
+        ByteBuffer key = ByteBuffer.allocate(OffHeapUTXOTable.KEY_LENGTH);
+        key.put(hash.getBytes());
+        key.putInt((int) index);
+        key.rewind();
+        return key;
+    }
+
+    @Override
+    @Nullable
+    public synchronized UTXO getTransactionOutput(Sha256Hash hash, long index) throws BlockStoreException {
+        Preconditions.checkNotNull(outputTable, "OffHeapFullPrunedBlockStore is closed");
+        ByteBuffer key = getKey(hash, index);
+        Map<ByteBuffer, UTXO> pending = pendingOutputs.get();
+        if (pending != null && pending.containsKey(key))
+            return pending.get(key);
+        byte[] value = outputTable.get(key.array());
+        if (value == null)
+            return null;
+        try {
+            return UTXO.deserializeCompact(hash, index, value);
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    private synchronized boolean hasTransactionOutput(ByteBuffer key) {
+        Map<ByteBuffer, UTXO> pending = pendingOutputs.get();
+        if (pending != null && pending.containsKey(key))
+            return pending.get(key) != null;
+        return outputTable.contains(key.array());
+    }
+
+    @Override
+    public synchronized void addUnspentTransactionOutput(UTXO out) throws BlockStoreException {
+        Preconditions.checkNotNull(outputTable, "OffHeapFullPrunedBlockStore is closed");
+        ByteBuffer key = getKey(out.getHash(), out.getIndex());
+        Map<ByteBuffer, UTXO> pending = pendingOutputs.get();
+        if (pending != null)
+            pending.put(key, out);
+        else
+            outputTable.put(key.array(), serialize(out));
+    }
+
+    @Override
+    public synchronized void removeUnspentTransactionOutput(UTXO out) throws BlockStoreException {
+        Preconditions.checkNotNull(outputTable, "OffHeapFullPrunedBlockStore is closed");
+        ByteBuffer key = getKey(out.getHash(), out.getIndex());
+        Map<ByteBuffer, UTXO> pending = pendingOutputs.get();
+        if (pending != null) {
+            if (!hasTransactionOutput(key))
+                throw new BlockStoreException("Tried to remove a UTXO from OffHeapFullPrunedBlockStore that it didn't have!");
+            // An output added by this batch write has nothing to remove from the table.
+            if (outputTable.contains(key.array()))
+                pending.put(key, null);
+            else
+                pending.remove(key);
+        } else if (!outputTable.remove(key.array())) {
+            throw new BlockStoreException("Tried to remove a UTXO from OffHeapFullPrunedBlockStore that it didn't have!");
+        }
+    }
+
+    private static byte[] serialize(UTXO out) throws BlockStoreException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(64);
+        try {
+            out.serializeCompact(bos);
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+        return bos.toByteArray();
+    }
+
+    @Override
+    public synchronized List<UTXO> getTransactionOutputs(List<TransactionOutPoint> outPoints) throws BlockStoreException {
+        List<UTXO> outputs = new ArrayList<UTXO>(outPoints.size());
+        for (TransactionOutPoint outPoint : outPoints)
+            outputs.add(getTransactionOutput(outPoint.getHash(), outPoint.getIndex()));
+        return outputs;
+    }
+
+    @Override
+    public synchronized void addUnspentTransactionOutputs(List<UTXO> outs) throws BlockStoreException {
+        for (UTXO out : outs)
+            addUnspentTransactionOutput(out);
+    }
+
+    @Override
+    public synchronized void removeUnspentTransactionOutputs(List<UTXO> outs) throws BlockStoreException {
+        for (UTXO out : outs)
+            removeUnspentTransactionOutput(out);
+    }
+
+    @Override
+    public synchronized void beginDatabaseBatchWrite() throws BlockStoreException {
+        blockMap.beginDatabaseBatchWrite();
+        fullBlockMap.BeginTransaction();
+        if (pendingOutputs.get() == null)
+            pendingOutputs.set(new HashMap<ByteBuffer, UTXO>());
+    }
+
+    @Override
+    public synchronized void commitDatabaseBatchWrite() throws BlockStoreException {
+        blockMap.commitDatabaseBatchWrite();
+        fullBlockMap.CommitTransaction();
+        Map<ByteBuffer, UTXO> pending = pendingOutputs.get();
+        pendingOutputs.remove();
+        if (pending == null)
+            return;
+        for (Map.Entry<ByteBuffer, UTXO> entry : pending.entrySet()) {
+            if (entry.getValue() == null)
+                outputTable.remove(entry.getKey().array());
+            else
+                outputTable.put(entry.getKey().array(), serialize(entry.getValue()));
+        }
+    }
+
+    @Override
+    public synchronized void abortDatabaseBatchWrite() throws BlockStoreException {
+        blockMap.abortDatabaseBatchWrite();
+        fullBlockMap.AbortTransaction();
+        pendingOutputs.remove();
+    }
+
+    @Override
+    public synchronized boolean hasUnspentOutputs(Sha256Hash hash, int numOutputs) throws BlockStoreException {
+        Preconditions.checkNotNull(outputTable, "OffHeapFullPrunedBlockStore is closed");
+        for (int i = 0; i < numOutputs; i++)
+            if (hasTransactionOutput(getKey(hash, i)))
+                return true;
+        return false;
+    }
+
+    @Override
+    public NetworkParameters getParams() {
+        return params;
+    }
+
+    @Override
+    public int getChainHeadHeight() throws UTXOProviderException {
+        try {
+            return getVerifiedChainHead().getHeight();
+        } catch (BlockStoreException e) {
+            throw new UTXOProviderException(e);
+        }
+    }
+
+    @Override
+    public synchronized List<UTXO> getOpenTransactionOutputs(List<Address> addresses) throws UTXOProviderException {
+        // As in MemoryFullPrunedBlockStore we go through all the outputs, this store has no index by address.
+        final List<UTXO> foundOutputs = new ArrayList<UTXO>();
+        final Set<Address> addressSet = new HashSet<Address>(addresses);
+        final IOException[] error = new IOException[1];
+        outputTable.forEach(new OffHeapUTXOTable.Visitor() {
+            @Override
+            public void visit(byte[] key, byte[] value) {
+                if (error[0] != null)
+                    return;
+                ByteBuffer buffer = ByteBuffer.wrap(key);
+                byte[] hashBytes = new byte[32];
+                buffer.get(hashBytes);
+                long index = buffer.getInt() & 0xFFFFFFFFL;
+                UTXO output;
+                try {
+                    output = UTXO.deserializeCompact(Sha256Hash.wrap(hashBytes), index, value);
+                } catch (IOException e) {
+                    error[0] = e;
+                    return;
+                }
+                Address address;
+                try {
+                    address = output.getScript().getToAddress(params, true);
+                } catch (ScriptException e) {
+                    return;
+                }
+                if (addressSet.contains(address)) {
+                    foundOutputs.add(new UTXO(output.getHash(), output.getIndex(), output.getValue(), output.getHeight(),
+                            output.isCoinbase(), output.getScript(), address.toString()));
+                }
+            }
+        });
+        if (error[0] != null)
+            throw new UTXOProviderException(error[0]);
+        return foundOutputs;
+    }
+
+    /** Number of unspent outputs in the store, not counting uncommitted changes. */
+    public synchronized long getUnspentOutputCount() {
+        return outputTable.size();
+    }
+
+    /** Bytes of direct memory taken by the unspent outputs. */
+    public synchronized long getOffHeapBytes() {
+        return outputTable.getAllocatedBytes();
+    }
+
+    /**
+     * Saves the committed state of the store to the given file. The snapshot is written next to it first and then
+     * renamed over it, so a crash never leaves a half written snapshot behind.
+     */
+    public synchronized void writeSnapshot(File file) throws BlockStoreException {
+        Preconditions.checkNotNull(outputTable, "OffHeapFullPrunedBlockStore is closed");
+        File tempFile = new File(file.getPath() + ".tmp");
+        FileOutputStream fos = null;
+        try {
+            fos = new FileOutputStream(tempFile);
+            FileChannel channel = fos.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(SNAPSHOT_MAGIC.length + 4);
+            header.put(SNAPSHOT_MAGIC).putInt(SNAPSHOT_VERSION).flip();
+            while (header.hasRemaining())
+                channel.write(header);
+            // The output table goes first as it is copied straight to and from direct memory.
+            outputTable.write(channel);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+            writeBlocks(out);
+            out.flush();
+            fos.getFD().sync();
+            fos.close();
+            fos = null;
+            if (file.exists() && !file.delete())
+                throw new IOException("Could not replace " + file);
+            if (!tempFile.renameTo(file))
+                throw new IOException("Could not rename " + tempFile + " to " + file);
+            log.info("Saved {} unspent outputs to {}", outputTable.size(), file);
+        } catch (IOException e) {
+            throw new BlockStoreException("Could not write snapshot", e);
+        } finally {
+            if (fos != null) {
+                try {
+                    fos.close();
+                } catch (IOException e) {
+                    log.error("Error closing snapshot", e);
+                }
+                tempFile.delete();
+            }
+        }
+    }
+
+    private void writeBlocks(DataOutputStream out) throws IOException {
+        out.writeUTF(params.getId());
+        out.write(chainHead.getHeader().getHash().getBytes());
+        out.write(verifiedChainHead.getHeader().getHash().getBytes());
+        ByteBuffer buffer = ByteBuffer.allocate(StoredBlock.COMPACT_SERIALIZED_SIZE);
+        out.writeInt(blockMap.committedValues().size());
+        for (MemoryFullPrunedBlockStore.StoredBlockAndWasUndoableFlag stored : blockMap.committedValues()) {
+            buffer.clear();
+            stored.block.serializeCompact(buffer);
+            out.write(buffer.array());
+            out.writeBoolean(stored.wasUndoable);
+        }
+        for (Map.Entry<Integer, Set<Sha256Hash>> entry : fullBlockMap.multiKeys().entrySet()) {
+            for (Sha256Hash hash : entry.getValue()) {
+                StoredUndoableBlock undoableBlock = fullBlockMap.getCommitted(hash);
+                if (undoableBlock == null)
+                    continue;
+                out.writeInt(entry.getKey());
+                out.write(hash.getBytes());
+                ByteArrayOutputStream bos = new ByteArrayOutputStream();
+                if (undoableBlock.getTxOutChanges() != null) {
+                    out.writeBoolean(true);
+                    undoableBlock.getTxOutChanges().serializeToStream(bos);
+                    out.writeInt(bos.size());
+                    bos.writeTo(out);
+                } else {
+                    out.writeBoolean(false);
+                    out.writeInt(undoableBlock.getTransactions().size());
+                    for (Transaction tx : undoableBlock.getTransactions()) {
+                        byte[] bytes = tx.blockchainSerialize();
+                        out.writeInt(bytes.length);
+                        out.write(bytes);
+                    }
+                }
+            }
+        }
+        // Heights are never negative, so this marks the end.
+        out.writeInt(-1);
+    }
+
+    private void readSnapshot(File file) throws BlockStoreException {
+        FileInputStream fis = null;
+        try {
+            fis = new FileInputStream(file);
+            FileChannel channel = fis.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(SNAPSHOT_MAGIC.length + 4);
+            while (header.hasRemaining()) {
+                if (channel.read(header) < 0)
+                    throw new EOFException();
+            }
+            header.flip();
+            byte[] magic = new byte[SNAPSHOT_MAGIC.length];
+            header.get(magic);
+            if (!Arrays.equals(magic, SNAPSHOT_MAGIC))
+                throw new BlockStoreException("Not a snapshot: " + file);
+            int version = header.getInt();
+            if (version != SNAPSHOT_VERSION)
+                throw new BlockStoreException("Unknown snapshot version " + version);
+            outputTable = OffHeapUTXOTable.read(channel);
+            readBlocks(new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel))));
+            log.info("Loaded {} unspent outputs from {}", outputTable.size(), file);
+        } catch (IOException e) {
+            throw new BlockStoreException("Could not read snapshot", e);
+        } catch (ProtocolException e) {
+            throw new BlockStoreException("Could not read snapshot", e);
+        } finally {
+            if (fis != null) {
+                try {
+                    fis.close();
+                } catch (IOException e) {
+                    log.error("Error closing snapshot", e);
+                }
+            }
+        }
+    }
+
+    private void readBlocks(DataInputStream in) throws IOException, BlockStoreException {
+        String id = in.readUTF();
+        if (!id.equals(params.getId()))
+            throw new BlockStoreException("Snapshot is for " + id + ", not " + params.getId());
+        byte[] hashBytes = new byte[32];
+        in.readFully(hashBytes);
+        Sha256Hash chainHeadHash = Sha256Hash.wrap(hashBytes.clone());
+        in.readFully(hashBytes);
+        Sha256Hash verifiedChainHeadHash = Sha256Hash.wrap(hashBytes.clone());
+
+        blockMap = new TransactionalHashMap<Sha256Hash, MemoryFullPrunedBlockStore.StoredBlockAndWasUndoableFlag>();
+        fullBlockMap = new TransactionalMultiKeyHashMap<Sha256Hash, Integer, StoredUndoableBlock>();
+        byte[] blockBytes = new byte[StoredBlock.COMPACT_SERIALIZED_SIZE];
+        int blocks = in.readInt();
+        for (int i = 0; i < blocks; i++) {
+            in.readFully(blockBytes);
+            StoredBlock block = StoredBlock.deserializeCompact(params, ByteBuffer.wrap(blockBytes));
+            blockMap.put(block.getHeader().getHash(),
+                    new MemoryFullPrunedBlockStore.StoredBlockAndWasUndoableFlag(block, in.readBoolean()));
+        }
+        int height;
+        while ((height = in.readInt()) != -1) {
+            in.readFully(hashBytes);
+            Sha256Hash hash = Sha256Hash.wrap(hashBytes.clone());
+            StoredUndoableBlock undoableBlock;
+            if (in.readBoolean()) {
+                byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                undoableBlock = new StoredUndoableBlock(hash, new TransactionOutputChanges(new ByteArrayInputStream(bytes)));
+            } else {
+                int count = in.readInt();
+                List<Transaction> transactions = new ArrayList<Transaction>(count);
+                for (int i = 0; i < count; i++) {
+                    byte[] bytes = new byte[in.readInt()];
+                    in.readFully(bytes);
+                    transactions.add(new Transaction(params, bytes));
+                }
+                undoableBlock = new StoredUndoableBlock(hash, transactions);
+            }
+            fullBlockMap.put(hash, height, undoableBlock);
+        }
+        chainHead = get(chainHeadHash);
+        verifiedChainHead = get(verifiedChainHeadHash);
+        if (chainHead == null || verifiedChainHead == null)
+            throw new BlockStoreException("Snapshot is missing its chain head");
+    }
+}
@@ -0,0 +1,443 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.blockchainj.store;
+
+import javax.annotation.Nullable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>A hash table from outpoints to serialized unspent outputs that lives entirely in direct ByteBuffers, so that the
+ * garbage collector never has to look at its entries however many there are.</p>
+ *
+ * <p>Keys are the 32 byte transaction hash followed by the output index as a big endian int. The table is split into
+ * segments that each grow on their own, which keeps every buffer well below the 2GB a ByteBuffer can address and means
+ * a resize only ever rehashes a small part of the table. Each segment has an open addressing slot array, probed
+ * linearly and compacted by backward shifting on removal, and an arena of chunks holding the records. A slot holds the
+ * key's hash next to the record's address, so resizing never touches the records. Freed records are kept on free lists
+ * by size, which suits unspent outputs as most of them have the same few sizes. Values too big for a record, which only
+ * huge non-standard scripts make, get a direct buffer of their own.</p>
+ *
+ * <p>This class is not thread safe.</p>
+ */
+class OffHeapUTXOTable {
+    static final int KEY_LENGTH = 36;
+
+    // Records are [value length: 2 bytes][key][value], aligned to ALIGNMENT bytes. Addresses count in those units.
+    private static final int ALIGNMENT = 16;
+    private static final int RECORD_HEADER_BYTES = 2;
+    // Value length of a record whose value is in largeValues.
+    private static final int LARGE_VALUE = 0xFFFF;
+    // One more than the size class of the biggest record.
+    private static final int SIZE_CLASSES = (RECORD_HEADER_BYTES + KEY_LENGTH + LARGE_VALUE - 1 + ALIGNMENT - 1) / ALIGNMENT + 1;
+    private static final int SLOT_BYTES = 8;
+    private static final int MIN_SLOTS = 16;
+    private static final double MAX_LOAD = 0.7;
+
+    /** Gets every entry of the table from {@link #forEach(Visitor)}. */
+    interface Visitor {
+        void visit(byte[] key, byte[] value);
+    }
+
+    private static class Segment {
+        // Each slot is the key's hash in the high int and its record's address plus one in the low int, 0 if empty.
+        ByteBuffer slots;
+        int capacity;
+        int size;
+        final List<ByteBuffer> chunks = new ArrayList<ByteBuffer>();
+        // Offset of the free space in the last chunk.
+        int chunkUsed;
+        // Address plus one of the first free record of each size class, 0 if none.
+        final int[] freeLists = new int[SIZE_CLASSES];
+        // Bytes taken by live records.
+        long recordBytes;
+    }
+
+    private final Segment[] segments;
+    private final int chunkSize;
+    private final int unitsPerChunk;
+    private final Map<ByteBuffer, ByteBuffer> largeValues = new HashMap<ByteBuffer, ByteBuffer>();
+    private long size;
+
+    /**
+     * @param segments number of segments, a power of two
+     * @param chunkSize bytes allocated at a time for records, a power of two that fits the largest record
+     */
+    OffHeapUTXOTable(int segments, int chunkSize) {
+        checkArgument(Integer.bitCount(segments) == 1, "segments must be a power of two");
+        checkArgument(Integer.bitCount(chunkSize) == 1 && chunkSize >= SIZE_CLASSES * ALIGNMENT,
+                "chunkSize must be a power of two that fits the largest record");
+        this.segments = new Segment[segments];
+        this.chunkSize = chunkSize;
+        this.unitsPerChunk = chunkSize / ALIGNMENT;
+        for (int i = 0; i < segments; i++) {
+            Segment segment = new Segment();
+            segment.capacity = MIN_SLOTS;
+            segment.slots = ByteBuffer.allocateDirect(MIN_SLOTS * SLOT_BYTES);
+            this.segments[i] = segment;
+        }
+    }
+
+    /** Number of entries in the table. */
+    long size() {
+        return size;
+    }
+
+    /** Bytes of direct memory allocated by the table. */
+    long getAllocatedBytes() {
+        long bytes = 0;
+        for (Segment segment : segments)
+            bytes += (long) segment.capacity * SLOT_BYTES + (long) segment.chunks.size() * chunkSize;
+        for (ByteBuffer value : largeValues.values())
+            bytes += value.capacity();
+        return bytes;
+    }
+
+    /** Bytes taken by the records of live entries, including their alignment padding. */
+    long getRecordBytes() {
+        long bytes = 0;
+        for (Segment segment : segments)
+            bytes += segment.recordBytes;
+        for (ByteBuffer value : largeValues.values())
+            bytes += value.capacity();
+        return bytes;
+    }
+
+    @Nullable
+    byte[] get(byte[] key) {
+        long hash = hash(key);
+        Segment segment = segmentFor(hash);
+        int slot = find(segment, key, (int) hash);
+        if (slot < 0)
+            return null;
+        return readValue(segment, address(segment.slots.getLong(slot * SLOT_BYTES)), key);
+    }
+
+    private byte[] readValue(Segment segment, int address, byte[] key) {
+        ByteBuffer view = segment.chunks.get(address / unitsPerChunk).duplicate();
+        view.position((address % unitsPerChunk) * ALIGNMENT);
+        int length = view.getShort() & 0xFFFF;
+        if (length == LARGE_VALUE) {
+            view = largeValues.get(ByteBuffer.wrap(key)).duplicate();
+            view.clear();
+            length = view.capacity();
+        } else {
+            view.position(view.position() + KEY_LENGTH);
+        }
+        byte[] value = new byte[length];
+        view.get(value);
+        return value;
+    }
+
+    boolean contains(byte[] key) {
+        long hash = hash(key);
+        return find(segmentFor(hash), key, (int) hash) >= 0;
+    }
+
+    /** Adds or replaces the entry for the given key. */
+    void put(byte[] key, byte[] value) {
+        checkArgument(key.length == KEY_LENGTH);
+        long hash = hash(key);
+        Segment segment = segmentFor(hash);
+        int slot = find(segment, key, (int) hash);
+        if (slot >= 0) {
+            free(segment, address(segment.slots.getLong(slot * SLOT_BYTES)));
+        } else {
+            if (segment.size + 1 > segment.capacity * MAX_LOAD)
+                resize(segment, segment.capacity * 2);
+            slot = (int) hash & (segment.capacity - 1);
+            while (segment.slots.getLong(slot * SLOT_BYTES) != 0)
+                slot = (slot + 1) & (segment.capacity - 1);
+            segment.size++;
+            size++;
+        }
+        boolean large = value.length >= LARGE_VALUE;
+        int address = allocate(segment, RECORD_HEADER_BYTES + KEY_LENGTH + (large ? 0 : value.length));
+        ByteBuffer chunk = segment.chunks.get(address / unitsPerChunk);
+        ByteBuffer view = chunk.duplicate();
+        view.position((address % unitsPerChunk) * ALIGNMENT);
+        view.putShort((short) (large ? LARGE_VALUE : value.length));
+        view.put(key);
+        if (large) {
+            ByteBuffer largeValue = ByteBuffer.allocateDirect(value.length);
+            largeValue.put(value);
+            largeValues.put(ByteBuffer.wrap(key.clone()), largeValue);
+        } else {
+            view.put(value);
+        }
+        segment.slots.putLong(slot * SLOT_BYTES, ((long) (int) hash << 32) | ((address + 1) & 0xFFFFFFFFL));
+    }
+
+    /** Removes the entry for the given key, returning false if there was none. */
+    boolean remove(byte[] key) {
+        long hash = hash(key);
+        Segment segment = segmentFor(hash);
+        int slot = find(segment, key, (int) hash);
+        if (slot < 0)
+            return false;
+        free(segment, address(segment.slots.getLong(slot * SLOT_BYTES)));
+        // Shift later entries of the probe run back into the hole, so that lookups never need tombstones.
+        int mask = segment.capacity - 1;
+        int hole = slot;
+        int next = (hole + 1) & mask;
+        while (true) {
+            long entry = segment.slots.getLong(next * SLOT_BYTES);
+            if (entry == 0)
+                break;
+            int home = (int) (entry >>> 32) & mask;
+            // Move the entry if its home slot is not cyclically within (hole, next].
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                segment.slots.putLong(hole * SLOT_BYTES, entry);
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        segment.slots.putLong(hole * SLOT_BYTES, 0);
+        segment.size--;
+        size--;
+        return true;
+    }
+
+    /** Calls the visitor with every entry, in no particular order. The table must not be changed meanwhile. */
+    void forEach(Visitor visitor) {
+        for (Segment segment : segments) {
+            for (int slot = 0; slot < segment.capacity; slot++) {
+                long entry = segment.slots.getLong(slot * SLOT_BYTES);
+                if (entry == 0)
+                    continue;
+                int address = address(entry);
+                ByteBuffer view = segment.chunks.get(address / unitsPerChunk).duplicate();
+                view.position((address % unitsPerChunk) * ALIGNMENT + RECORD_HEADER_BYTES);
+                byte[] key = new byte[KEY_LENGTH];
+                view.get(key);
+                visitor.visit(key, readValue(segment, address, key));
+            }
+        }
+    }
+
+    /**
+     * Writes the table to the channel as it is laid out in memory, so that {@link #read(FileChannel)} only has to copy
+     * it back.
+     */
+    void write(FileChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(16);
+        header.putInt(segments.length).putInt(chunkSize).putLong(size).flip();
+        writeFully(channel, header);
+        for (Segment segment : segments) {
+            ByteBuffer segmentHeader = ByteBuffer.allocate(24 + SIZE_CLASSES * 4);
+            segmentHeader.putInt(segment.capacity).putInt(segment.size).putInt(segment.chunks.size())
+                    .putInt(segment.chunkUsed).putLong(segment.recordBytes);
+            for (int head : segment.freeLists)
+                segmentHeader.putInt(head);
+            segmentHeader.flip();
+            writeFully(channel, segmentHeader);
+            writeFully(channel, (ByteBuffer) segment.slots.duplicate().clear());
+            for (int i = 0; i < segment.chunks.size(); i++) {
+                ByteBuffer chunk = segment.chunks.get(i).duplicate();
+                chunk.clear();
+                // Only the used part of the last chunk is worth writing.
+                if (i == segment.chunks.size() - 1)
+                    chunk.limit(segment.chunkUsed);
+                writeFully(channel, chunk);
+            }
+        }
+        ByteBuffer count = ByteBuffer.allocate(4);
+        count.putInt(largeValues.size()).flip();
+        writeFully(channel, count);
+        for (Map.Entry<ByteBuffer, ByteBuffer> entry : largeValues.entrySet()) {
+            ByteBuffer valueHeader = ByteBuffer.allocate(KEY_LENGTH + 4);
+            valueHeader.put(entry.getKey().array()).putInt(entry.getValue().capacity()).flip();
+            writeFully(channel, valueHeader);
+            writeFully(channel, (ByteBuffer) entry.getValue().duplicate().clear());
+        }
+    }
+
+    /** Reads back a table written by {@link #write(FileChannel)}. */
+    static OffHeapUTXOTable read(FileChannel channel) throws IOException {
+        ByteBuffer header = readFully(channel, ByteBuffer.allocate(16));
+        int segmentCount = header.getInt();
+        int chunkSize = header.getInt();
+        long size = header.getLong();
+        if (Integer.bitCount(segmentCount) != 1 || Integer.bitCount(chunkSize) != 1 || chunkSize < SIZE_CLASSES * ALIGNMENT)
+            throw new IOException("Corrupt table header");
+        OffHeapUTXOTable table = new OffHeapUTXOTable(segmentCount, chunkSize);
+        table.size = size;
+        for (int s = 0; s < segmentCount; s++) {
+            Segment segment = table.segments[s];
+            ByteBuffer segmentHeader = readFully(channel, ByteBuffer.allocate(24 + SIZE_CLASSES * 4));
+            segment.capacity = segmentHeader.getInt();
+            segment.size = segmentHeader.getInt();
+            int chunkCount = segmentHeader.getInt();
+            segment.chunkUsed = segmentHeader.getInt();
+            segment.recordBytes = segmentHeader.getLong();
+            for (int i = 0; i < SIZE_CLASSES; i++)
+                segment.freeLists[i] = segmentHeader.getInt();
+            if (Integer.bitCount(segment.capacity) != 1 || segment.size > segment.capacity || chunkCount < 0
+                    || segment.chunkUsed < 0 || segment.chunkUsed > chunkSize)
+                throw new IOException("Corrupt segment header");
+            segment.slots = readFully(channel, ByteBuffer.allocateDirect(segment.capacity * SLOT_BYTES));
+            for (int i = 0; i < chunkCount; i++) {
+                ByteBuffer chunk = ByteBuffer.allocateDirect(chunkSize);
+                if (i == chunkCount - 1)
+                    chunk.limit(segment.chunkUsed);
+                readFully(channel, chunk);
+                chunk.clear();
+                segment.chunks.add(chunk);
+            }
+        }
+        int largeCount = readFully(channel, ByteBuffer.allocate(4)).getInt();
+        for (int i = 0; i < largeCount; i++) {
+            ByteBuffer valueHeader = readFully(channel, ByteBuffer.allocate(KEY_LENGTH + 4));
+            byte[] key = new byte[KEY_LENGTH];
+            valueHeader.get(key);
+            int length = valueHeader.getInt();
+            if (length < LARGE_VALUE)
+                throw new IOException("Corrupt large value");
+            table.largeValues.put(ByteBuffer.wrap(key), readFully(channel, ByteBuffer.allocateDirect(length)));
+        }
+        return table;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+    }
+
+    private static ByteBuffer readFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0)
+                throw new EOFException();
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    // Transaction hashes are already random, so the first eight bytes mixed with the index make a good hash. The top
+    // bits pick the segment and the low int goes in the slot.
+    private static long hash(byte[] key) {
+        long h = 0;
+        for (int i = 0; i < 8; i++)
+            h = (h << 8) | (key[i] & 0xFF);
+        int index = ((key[32] & 0xFF) << 24) | ((key[33] & 0xFF) << 16) | ((key[34] & 0xFF) << 8) | (key[35] & 0xFF);
+        h ^= index * 0x9E3779B97F4A7C15L;
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private Segment segmentFor(long hash) {
+        return segments[(int) (hash >>> 40) & (segments.length - 1)];
+    }
+
+    private static int address(long slotEntry) {
+        return (int) slotEntry - 1;
+    }
+
+    private int find(Segment segment, byte[] key, int hash) {
+        int mask = segment.capacity - 1;
+        for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+            long entry = segment.slots.getLong(slot * SLOT_BYTES);
+            if (entry == 0)
+                return -1;
+            if ((int) (entry >>> 32) == hash && keyEquals(segment, address(entry), key))
+                return slot;
+        }
+    }
+
+    private boolean keyEquals(Segment segment, int address, byte[] key) {
+        ByteBuffer chunk = segment.chunks.get(address / unitsPerChunk);
+        int offset = (address % unitsPerChunk) * ALIGNMENT + RECORD_HEADER_BYTES;
+        for (int i = 0; i < KEY_LENGTH; i++) {
+            if (chunk.get(offset + i) != key[i])
+                return false;
+        }
+        return true;
+    }
+
+    private void resize(Segment segment, int capacity) {
+        ByteBuffer slots = ByteBuffer.allocateDirect(capacity * SLOT_BYTES);
+        int mask = capacity - 1;
+        for (int i = 0; i < segment.capacity; i++) {
+            long entry = segment.slots.getLong(i * SLOT_BYTES);
+            if (entry == 0)
+                continue;
+            int slot = (int) (entry >>> 32) & mask;
+            while (slots.getLong(slot * SLOT_BYTES) != 0)
+                slot = (slot + 1) & mask;
+            slots.putLong(slot * SLOT_BYTES, entry);
+        }
+        segment.slots = slots;
+        segment.capacity = capacity;
+    }
+
+    private static int sizeClass(int recordLength) {
+        return (recordLength + ALIGNMENT - 1) / ALIGNMENT;
+    }
+
+    private int allocate(Segment segment, int recordLength) {
+        int sizeClass = sizeClass(recordLength);
+        int bytes = sizeClass * ALIGNMENT;
+        segment.recordBytes += bytes;
+        int head = segment.freeLists[sizeClass];
+        if (head != 0) {
+            int address = head - 1;
+            // A free record holds the next one of its class in place of the length.
+            segment.freeLists[sizeClass] = segment.chunks.get(address / unitsPerChunk)
+                    .getInt((address % unitsPerChunk) * ALIGNMENT);
+            return address;
+        }
+        if (segment.chunks.isEmpty() || segment.chunkUsed + bytes > chunkSize) {
+            // The tail of the last chunk is not worth keeping track of.
+            segment.chunks.add(ByteBuffer.allocateDirect(chunkSize));
+            segment.chunkUsed = 0;
+        }
+        int address = (segment.chunks.size() - 1) * unitsPerChunk + segment.chunkUsed / ALIGNMENT;
+        segment.chunkUsed += bytes;
+        return address;
+    }
+
+    private void free(Segment segment, int address) {
+        ByteBuffer chunk = segment.chunks.get(address / unitsPerChunk);
+        int offset = (address % unitsPerChunk) * ALIGNMENT;
+        int length = chunk.getShort(offset) & 0xFFFF;
+        if (length == LARGE_VALUE) {
+            byte[] key = new byte[KEY_LENGTH];
+            ByteBuffer view = chunk.duplicate();
+            view.position(offset + RECORD_HEADER_BYTES);
+            view.get(key);
+            largeValues.remove(ByteBuffer.wrap(key));
+            length = 0;
+        }
+        int sizeClass = sizeClass(RECORD_HEADER_BYTES + KEY_LENGTH + length);
+        segment.recordBytes -= sizeClass * ALIGNMENT;
+        chunk.putInt(offset, segment.freeLists[sizeClass]);
+        segment.freeLists[sizeClass] = address + 1;
+    }
+
+    @Override
+    public String toString() {
+        return "OffHeapUTXOTable: " + size + " entries, " + getRecordBytes() / 1024 + " KiB in records, "
+                + getAllocatedBytes() / 1024 + " KiB allocated in " + segments.length + " segments";
+    }
+}
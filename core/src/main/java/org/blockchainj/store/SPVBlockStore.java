@@ -16,6 +16,8 @@
 
 package org.blockchainj.store;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import org.blockchainj.core.*;
 import org.blockchainj.utils.*;
 import org.slf4j.*;
@@ -32,9 +34,17 @@ import static com.google.common.base.Preconditions.*;
 // TODO: Lose the mmap in this class. There are too many platform bugs that require odd workarounds.
 
 /**
- * An SPVBlockStore holds a limited number of block headers in a memory mapped ring buffer. With such a store, you
+ * <p>An SPVBlockStore holds a limited number of block headers in a memory mapped ring buffer. With such a store, you
  * may not be able to process very deep re-orgs and could be disconnected from the chain (requiring a replay),
- * but as they are virtually unheard of this is not a significant risk.
+ * but as they are virtually unheard of this is not a significant risk.</p>
+ *
+ * <p>Headers are found by hash through an open addressing hash index kept in a second memory mapped file next to the
+ * ring, named after the store file with {@link #INDEX_FILE_SUFFIX} appended. The index is rebuilt from the ring
+ * whenever it is missing, does not match the ring, or was not closed cleanly, so it can always be deleted safely.</p>
+ *
+ * <p>Reads do not take the store lock, only {@link #put(StoredBlock)} and {@link #setChainHead(StoredBlock)} are
+ * exclusive. Blocks that are cached are returned without any locking, the others are read from the mapped files under
+ * a read lock, which any number of readers can hold at once and which only waits for a put() in progress.</p>
  */
 public class SPVBlockStore implements BlockStore {
     private static final Logger log = LoggerFactory.getLogger(SPVBlockStore.class);
@@ -42,12 +52,21 @@ public class SPVBlockStore implements BlockStore {
     /** The default number of headers that will be stored in the ring buffer. */
     public static final int DEFAULT_NUM_HEADERS = 5000;
     public static final String HEADER_MAGIC = "SPVB";
+    /** Appended to the store file name to get the name of the hash index file. */
+    public static final String INDEX_FILE_SUFFIX = ".idx";
+    public static final String INDEX_HEADER_MAGIC = "SPVI";
 
     protected volatile MappedByteBuffer buffer;
+    protected volatile MappedByteBuffer indexBuffer;
     protected int numHeaders;
+    // Number of slots in the hash index, a power of two at least twice numHeaders so probe sequences stay short.
+    protected int indexSlots;
     protected NetworkParameters params;
 
     protected ReentrantLock lock = Threading.lock("SPVBlockStore");
+    // Guards the contents of the ring and the index against get(), which reads them without the lock above. Its write
+    // side is only taken with that lock held, around changes to either of them.
+    protected final ReentrantReadWriteLock bufferLock = new ReentrantReadWriteLock();
 
     // The entire ring-buffer is mmapped and accessing it should be as fast as accessing regular memory once it's
     // faulted in. Unfortunately, in theory practice and theory are the same. In practice they aren't.
@@ -56,38 +75,42 @@ public class SPVBlockStore implements BlockStore {
     // the OpenJDK/Oracle JVM calls into the get() methods are compiled down to inlined native code on Android each
     // get() call is actually a full-blown JNI method under the hood, meaning it's unbelievably slow. The caches
     // below let us stay in the JIT-compiled Java world without expensive JNI transitions and make a 10x difference!
-    protected LinkedHashMap<Sha256Hash, StoredBlock> blockCache = new LinkedHashMap<Sha256Hash, StoredBlock>() {
-        @Override
-        protected boolean removeEldestEntry(Map.Entry<Sha256Hash, StoredBlock> entry) {
-            return size() > 2050;  // Slightly more than the difficulty transition period.
-        }
-    };
+    protected final Cache<Sha256Hash, StoredBlock> blockCache = CacheBuilder.newBuilder()
+            .maximumSize(2050)  // Slightly more than the difficulty transition period.
+            .build();
     // Use a separate cache to track get() misses. This is to efficiently handle the case of an unconnected block
     // during chain download. Each new block will do a get() on the unconnected block so if we haven't seen it yet we
     // must efficiently respond.
     //
-    // We don't care about the value in this cache. It is always notFoundMarker. Unfortunately LinkedHashSet does not
-    // provide the removeEldestEntry control.
+    // We don't care about the value in this cache. It is always notFoundMarker.
     protected static final Object notFoundMarker = new Object();
-    protected LinkedHashMap<Sha256Hash, Object> notFoundCache = new LinkedHashMap<Sha256Hash, Object>() {
-        @Override
-        protected boolean removeEldestEntry(Map.Entry<Sha256Hash, Object> entry) {
-            return size() > 100;  // This was chosen arbitrarily.
-        }
-    };
+    protected final Cache<Sha256Hash, Object> notFoundCache = CacheBuilder.newBuilder()
+            .maximumSize(100)  // This was chosen arbitrarily.
+            .build();
     // Used to stop other applications/processes from opening the store.
     protected FileLock fileLock = null;
     protected RandomAccessFile randomAccessFile = null;
+    protected RandomAccessFile indexRandomAccessFile = null;
 
     /**
-     * Creates and initializes an SPV block store. Will create the given file if it's missing. This operation
-     * will block on disk.
+     * Creates and initializes an SPV block store holding {@link #DEFAULT_NUM_HEADERS} headers. Will create the given
+     * file if it's missing. This operation will block on disk.
      */
     public SPVBlockStore(NetworkParameters params, File file) throws BlockStoreException {
+        this(params, file, DEFAULT_NUM_HEADERS);
+    }
+
+    /**
+     * Creates and initializes an SPV block store that holds the given number of headers. Will create the given file
+     * if it's missing, an existing file must have been created with the same capacity. This operation will block on
+     * disk.
+     */
+    public SPVBlockStore(NetworkParameters params, File file, int capacity) throws BlockStoreException {
         checkNotNull(file);
         this.params = checkNotNull(params);
+        checkArgument(capacity > 0, "capacity must be positive");
         try {
-            this.numHeaders = DEFAULT_NUM_HEADERS;
+            this.numHeaders = capacity;
             boolean exists = file.exists();
             // Set up the backing file.
             randomAccessFile = new RandomAccessFile(file, "rw");
@@ -119,11 +142,14 @@ public class SPVBlockStore implements BlockStore {
                 buffer.get(header);
                 if (!new String(header, "US-ASCII").equals(HEADER_MAGIC))
                     throw new BlockStoreException("Header bytes do not equal " + HEADER_MAGIC);
+                openIndex(file, false);
             } else {
+                openIndex(file, true);
                 initNewStore(params);
             }
         } catch (Exception e) {
             try {
+                if (indexRandomAccessFile != null) indexRandomAccessFile.close();
                 if (randomAccessFile != null) randomAccessFile.close();
             } catch (IOException e2) {
                 throw new BlockStoreException(e2);
@@ -149,91 +175,168 @@ public class SPVBlockStore implements BlockStore {
         setChainHead(storedGenesis);
     }
 
+    /**
+     * Maps the hash index file belonging to the given store file, creating it if needed. The index of a new store
+     * starts out empty, that of an existing store is rebuilt from the ring unless it is known to be up to date.
+     */
+    private void openIndex(File file, boolean newStore) throws IOException {
+        indexSlots = Integer.highestOneBit(numHeaders * 2 - 1) << 1;
+        final int indexSize = getIndexFileSize();
+        File indexFile = new File(file.getPath() + INDEX_FILE_SUFFIX);
+        boolean valid = !newStore && indexFile.exists();
+        indexRandomAccessFile = new RandomAccessFile(indexFile, "rw");
+        if (indexRandomAccessFile.length() != indexSize) {
+            indexRandomAccessFile.setLength(indexSize);
+            valid = false;
+        }
+        indexBuffer = indexRandomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, indexSize);
+
+        lock.lock();
+        try {
+            if (valid) {
+                byte[] header = new byte[4];
+                indexBuffer.position(0);
+                indexBuffer.get(header);
+                valid = new String(header, "US-ASCII").equals(INDEX_HEADER_MAGIC)
+                        && indexBuffer.getInt(INDEX_SLOTS_OFFSET) == indexSlots
+                        && indexBuffer.getInt(INDEX_CLEAN_OFFSET) == 1
+                        && indexBuffer.getInt(INDEX_CURSOR_OFFSET) == getRingCursor(buffer);
+            }
+            if (newStore) {
+                clearIndex();
+            } else if (!valid) {
+                log.info("Rebuilding SPV block chain index " + indexFile);
+                rebuildIndex();
+            }
+            // Until close() marks it clean again, an index left behind by a crash is not trusted.
+            indexBuffer.putInt(INDEX_CLEAN_OFFSET, 0);
+            indexBuffer.force();
+        } finally {
+            lock.unlock();
+        }
+    }
+
     /** Returns the size in bytes of the file that is used to store the chain with the current parameters. */
     public final int getFileSize() {
         return RECORD_SIZE * numHeaders + FILE_PROLOGUE_BYTES /* extra kilobyte for stuff */;
     }
 
+    /** Returns the size in bytes of the file that is used to store the hash index with the current parameters. */
+    public final int getIndexFileSize() {
+        return INDEX_SLOT_SIZE * indexSlots + INDEX_PROLOGUE_BYTES;
+    }
+
     @Override
     public void put(StoredBlock block) throws BlockStoreException {
         final MappedByteBuffer buffer = this.buffer;
         if (buffer == null) throw new BlockStoreException("Store closed");
 
         lock.lock();
+        bufferLock.writeLock().lock();
         try {
-            int cursor = getRingCursor(buffer);
-            if (cursor == getFileSize()) {
-                // Wrapped around.
-                cursor = FILE_PROLOGUE_BYTES;
-            }
-            buffer.position(cursor);
-            Sha256Hash hash = block.getHeader().getHash();
-            notFoundCache.remove(hash);
-            buffer.put(hash.getBytes());
-            block.serializeCompact(buffer);
-            setRingCursor(buffer, buffer.position());
-            blockCache.put(hash, block);
-        } finally { lock.unlock(); }
+            putLocked(buffer, block);
+        } finally {
+            bufferLock.writeLock().unlock();
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Saves the given blocks, in order, taking the lock once for all of them. Readers wait for the whole run to be
+     * written rather than for each block.
+     */
+    public void put(List<StoredBlock> blocks) throws BlockStoreException {
+        final MappedByteBuffer buffer = this.buffer;
+        if (buffer == null) throw new BlockStoreException("Store closed");
+
+        lock.lock();
+        bufferLock.writeLock().lock();
+        try {
+            for (StoredBlock block : blocks)
+                putLocked(buffer, block);
+        } finally {
+            bufferLock.writeLock().unlock();
+            lock.unlock();
+        }
+    }
+
+    private void putLocked(MappedByteBuffer buffer, StoredBlock block) {
+        int cursor = getRingCursor(buffer);
+        if (cursor == getFileSize()) {
+            // Wrapped around.
+            cursor = FILE_PROLOGUE_BYTES;
+        }
+        // Whatever was at the cursor is about to be overwritten and so drops out of the store.
+        unindexRecord(cursor);
+        buffer.position(cursor);
+        Sha256Hash hash = block.getHeader().getHash();
+        notFoundCache.invalidate(hash);
+        buffer.put(hash.getBytes());
+        block.serializeCompact(buffer);
+        setRingCursor(buffer, buffer.position());
+        indexRecord(cursor);
+        indexBuffer.putInt(INDEX_CURSOR_OFFSET, getRingCursor(buffer));
+        blockCache.put(hash, block);
     }
 
     @Override
     @Nullable
     public StoredBlock get(Sha256Hash hash) throws BlockStoreException {
         final MappedByteBuffer buffer = this.buffer;
-        if (buffer == null) throw new BlockStoreException("Store closed");
+        final MappedByteBuffer indexBuffer = this.indexBuffer;
+        if (buffer == null || indexBuffer == null) throw new BlockStoreException("Store closed");
 
-        lock.lock();
+        StoredBlock cacheHit = blockCache.getIfPresent(hash);
+        if (cacheHit != null)
+            return cacheHit;
+        if (notFoundCache.getIfPresent(hash) != null)
+            return null;
+
+        // Under the read lock, so that the record cannot be torn by a put(), nor the cache entry made stale by one.
+        bufferLock.readLock().lock();
         try {
-            StoredBlock cacheHit = blockCache.get(hash);
-            if (cacheHit != null)
-                return cacheHit;
-            if (notFoundCache.get(hash) != null)
-                return null;
-
-            // Starting from the current tip of the ring work backwards until we have either found the block or
-            // wrapped around.
-            int cursor = getRingCursor(buffer);
-            final int startingPoint = cursor;
-            final int fileSize = getFileSize();
-            final byte[] targetHashBytes = hash.getBytes();
-            byte[] scratch = new byte[32];
-            do {
-                cursor -= RECORD_SIZE;
-                if (cursor < FILE_PROLOGUE_BYTES) {
-                    // We hit the start, so wrap around.
-                    cursor = fileSize - RECORD_SIZE;
-                }
-                // Cursor is now at the start of the next record to check, so read the hash and compare it.
-                buffer.position(cursor);
-                buffer.get(scratch);
-                if (Arrays.equals(scratch, targetHashBytes)) {
-                    // Found the target.
-                    StoredBlock storedBlock = StoredBlock.deserializeCompact(params, buffer);
-                    blockCache.put(hash, storedBlock);
-                    return storedBlock;
-                }
-            } while (cursor != startingPoint);
-            // Not found.
-            notFoundCache.put(hash, notFoundMarker);
+            StoredBlock storedBlock = readBlock(buffer, indexBuffer, hash);
+            if (storedBlock != null)
+                blockCache.put(hash, storedBlock);
+            else
+                notFoundCache.put(hash, notFoundMarker);
+            return storedBlock;
+        } finally {
+            bufferLock.readLock().unlock();
+        }
+    }
+
+    /** Looks the hash up in the index and reads its record, using only absolute reads of the given buffers. */
+    @Nullable
+    private StoredBlock readBlock(ByteBuffer buffer, ByteBuffer indexBuffer, Sha256Hash hash) {
+        int record = findRecord(buffer, indexBuffer, hash);
+        if (record == -1)
             return null;
+        ByteBuffer view = buffer.duplicate();
+        view.position(record + 32);
+        try {
+            return StoredBlock.deserializeCompact(params, view);
         } catch (ProtocolException e) {
             throw new RuntimeException(e);  // Cannot happen.
-        } finally { lock.unlock(); }
+        }
     }
 
-    protected StoredBlock lastChainHead = null;
+    protected volatile StoredBlock lastChainHead = null;
 
     @Override
     public StoredBlock getChainHead() throws BlockStoreException {
         final MappedByteBuffer buffer = this.buffer;
         if (buffer == null) throw new BlockStoreException("Store closed");
 
+        StoredBlock chainHead = lastChainHead;
+        if (chainHead != null)
+            return chainHead;
         lock.lock();
         try {
             if (lastChainHead == null) {
                 byte[] headHash = new byte[32];
-                buffer.position(8);
-                buffer.get(headHash);
+                for (int i = 0; i < headHash.length; i++)
+                    headHash[i] = buffer.get(8 + i);
                 Sha256Hash hash = Sha256Hash.wrap(headHash);
                 StoredBlock block = get(hash);
                 if (block == null)
@@ -262,12 +365,24 @@ public class SPVBlockStore implements BlockStore {
     public void close() throws BlockStoreException {
         try {
             buffer.force();
+            // Only once the ring is on disk can the index be trusted to match it.
+            lock.lock();
+            try {
+                indexBuffer.putInt(INDEX_CURSOR_OFFSET, getRingCursor(buffer));
+                indexBuffer.putInt(INDEX_CLEAN_OFFSET, 1);
+            } finally {
+                lock.unlock();
+            }
+            indexBuffer.force();
             if (System.getProperty("os.name").toLowerCase().contains("win")) {
                 log.info("Windows mmap hack: Forcing buffer cleaning");
                 WindowsMMapHack.forceRelease(buffer);
+                WindowsMMapHack.forceRelease(indexBuffer);
             }
             buffer = null;  // Allow it to be GCd and the underlying file mapping to go away.
+            indexBuffer = null;
             randomAccessFile.close();
+            indexRandomAccessFile.close();
         } catch (IOException e) {
             throw new BlockStoreException(e);
         }
@@ -303,4 +418,149 @@ public class SPVBlockStore implements BlockStore {
         checkArgument(newCursor >= 0);
         buffer.putInt(4, newCursor);
     }
+
+    // Index file format:
+    //   4 header bytes = "SPVI"
+    //   4 bytes number of slots
+    //   4 bytes ring cursor of the store file the index was last updated for
+    //   4 bytes set to 1 when the index was closed cleanly, 0 whilst it is in use
+    //
+    // Then the slots of an open addressing hash table with linear probing (8 bytes each)
+    //   4 bytes hash code of the block hash (its last 4 bytes), which picks the slot probing starts at
+    //   4 bytes offset of the record in the store file, 0 for an empty slot
+    protected static final int INDEX_PROLOGUE_BYTES = 16;
+    protected static final int INDEX_SLOT_SIZE = 8;
+    private static final int INDEX_SLOTS_OFFSET = 4;
+    private static final int INDEX_CURSOR_OFFSET = 8;
+    private static final int INDEX_CLEAN_OFFSET = 12;
+
+    /**
+     * Returns the offset in the store file of the record for the given hash, or -1 if there is none. Only uses absolute
+     * reads, so that readers do not disturb each other.
+     */
+    private int findRecord(ByteBuffer buffer, ByteBuffer indexBuffer, Sha256Hash hash) {
+        final byte[] hashBytes = hash.getBytes();
+        final int mask = indexSlots - 1;
+        final int fileSize = getFileSize();
+        int slot = hash.hashCode() & mask;
+        for (int probes = 0; probes < indexSlots; probes++, slot = (slot + 1) & mask) {
+            int record = indexBuffer.getInt(slotPosition(slot) + 4);
+            if (record == 0)
+                return -1;
+            if (record < FILE_PROLOGUE_BYTES || record > fileSize - RECORD_SIZE)
+                continue;  // Not a record, so the index is damaged.
+            if (indexBuffer.getInt(slotPosition(slot)) == hash.hashCode() && recordHashEquals(buffer, record, hashBytes))
+                return record;
+        }
+        return -1;
+    }
+
+    /** Adds the record at the given offset in the store file to the index, replacing any older record of the block. */
+    private void indexRecord(int record) {
+        final int hashCode = recordHashCode(record);
+        final int mask = indexSlots - 1;
+        byte[] hashBytes = null;
+        for (int slot = hashCode & mask; ; slot = (slot + 1) & mask) {
+            int position = slotPosition(slot);
+            int existing = indexBuffer.getInt(position + 4);
+            if (existing != 0 && indexBuffer.getInt(position) == hashCode) {
+                if (hashBytes == null) {
+                    hashBytes = new byte[32];
+                    for (int i = 0; i < hashBytes.length; i++)
+                        hashBytes[i] = buffer.get(record + i);
+                }
+                if (!recordHashEquals(buffer, existing, hashBytes))
+                    continue;
+            } else if (existing != 0) {
+                continue;
+            }
+            indexBuffer.putInt(position, hashCode);
+            indexBuffer.putInt(position + 4, record);
+            return;
+        }
+    }
+
+    /** Removes the record at the given offset in the store file from the index, if it is indexed. */
+    private void unindexRecord(int record) {
+        final int mask = indexSlots - 1;
+        int hole = recordHashCode(record) & mask;
+        while (true) {
+            int existing = indexBuffer.getInt(slotPosition(hole) + 4);
+            if (existing == 0)
+                return;
+            if (existing == record)
+                break;
+            hole = (hole + 1) & mask;
+        }
+        // Shift later entries of the probe sequence back into the hole, so that lookups never stop short at it.
+        for (int slot = (hole + 1) & mask; ; slot = (slot + 1) & mask) {
+            int position = slotPosition(slot);
+            int existing = indexBuffer.getInt(position + 4);
+            if (existing == 0)
+                break;
+            int hashCode = indexBuffer.getInt(position);
+            int home = hashCode & mask;
+            // An entry can only move back if the hole lies between its home slot and where it is now.
+            boolean reachable = hole <= slot ? (hole < home && home <= slot) : (hole < home || home <= slot);
+            if (!reachable) {
+                indexBuffer.putInt(slotPosition(hole), hashCode);
+                indexBuffer.putInt(slotPosition(hole) + 4, existing);
+                hole = slot;
+            }
+        }
+        indexBuffer.putInt(slotPosition(hole), 0);
+        indexBuffer.putInt(slotPosition(hole) + 4, 0);
+    }
+
+    /** Empties the index and writes its header. */
+    private void clearIndex() throws UnsupportedEncodingException {
+        checkState(lock.isHeldByCurrentThread());
+        indexBuffer.position(0);
+        indexBuffer.put(INDEX_HEADER_MAGIC.getBytes("US-ASCII"));
+        indexBuffer.putInt(INDEX_SLOTS_OFFSET, indexSlots);
+        indexBuffer.putInt(INDEX_CURSOR_OFFSET, 0);
+        indexBuffer.putInt(INDEX_CLEAN_OFFSET, 0);
+        for (int slot = 0; slot < indexSlots; slot++)
+            indexBuffer.putLong(slotPosition(slot), 0);
+    }
+
+    /** Recreates the index from the records in the ring, oldest first so that the newest copy of a block wins. */
+    private void rebuildIndex() throws UnsupportedEncodingException {
+        clearIndex();
+        final int cursor = getRingCursor(buffer);
+        final int fileSize = getFileSize();
+        int record = cursor == fileSize ? FILE_PROLOGUE_BYTES : cursor;
+        for (int i = 0; i < numHeaders; i++) {
+            if (!recordIsEmpty(record))
+                indexRecord(record);
+            record += RECORD_SIZE;
+            if (record == fileSize)
+                record = FILE_PROLOGUE_BYTES;
+        }
+        indexBuffer.putInt(INDEX_CURSOR_OFFSET, cursor);
+    }
+
+    private static int slotPosition(int slot) {
+        return INDEX_PROLOGUE_BYTES + slot * INDEX_SLOT_SIZE;
+    }
+
+    /** Same as {@link Sha256Hash#hashCode()} of the hash stored in the given record. */
+    private int recordHashCode(int record) {
+        return buffer.getInt(record + 32 - 4);
+    }
+
+    private static boolean recordHashEquals(ByteBuffer buffer, int record, byte[] hashBytes) {
+        for (int i = 0; i < hashBytes.length; i++)
+            if (buffer.get(record + i) != hashBytes[i])
+                return false;
+        return true;
+    }
+
+    // Records of a ring that has not wrapped around yet are still zeroed.
+    private boolean recordIsEmpty(int record) {
+        for (int i = 0; i < 32; i += 8)
+            if (buffer.getLong(record + i) != 0)
+                return false;
+        return true;
+    }
 }
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.blockchainj.store;
+
+import javax.annotation.Nullable;
+import java.util.*;
+
+/**
+ * A Map with multiple key types that is DB per-thread-transaction-aware.
+ * However, this class is not thread-safe.
+ * @param <UniqueKeyType> is a key that must be unique per object
+ * @param <MultiKeyType> is a key that can have multiple values
+ */
+class TransactionalMultiKeyHashMap<UniqueKeyType, MultiKeyType, ValueType> {
+    private TransactionalHashMap<UniqueKeyType, ValueType> mapValues;
+    private HashMap<MultiKeyType, Set<UniqueKeyType>> mapKeys;
+    
+    public TransactionalMultiKeyHashMap() {
+        mapValues = new TransactionalHashMap<UniqueKeyType, ValueType>();
+        mapKeys = new HashMap<MultiKeyType, Set<UniqueKeyType>>();
+    }
+    
+    public void BeginTransaction() {
+        mapValues.beginDatabaseBatchWrite();
+    }
+
+    public void CommitTransaction() {
+        mapValues.commitDatabaseBatchWrite();
+    }
+
+    public void AbortTransaction() {
+        mapValues.abortDatabaseBatchWrite();
+    }
+
+    @Nullable
+    public ValueType get(UniqueKeyType key) {
+        return mapValues.get(key);
+    }
+    
+    /** Returns the value for the key as last committed, ignoring any batch write in progress on this thread. */
+    @Nullable
+    public ValueType getCommitted(UniqueKeyType key) {
+        return mapValues.getCommitted(key);
+    }
+
+    /** Returns an unmodifiable view of the unique keys stored under each multi key. */
+    public Map<MultiKeyType, Set<UniqueKeyType>> multiKeys() {
+        return Collections.unmodifiableMap(mapKeys);
+    }
+
+    public void put(UniqueKeyType uniqueKey, MultiKeyType multiKey, ValueType value) {
+        mapValues.put(uniqueKey, value);
+        Set<UniqueKeyType> set = mapKeys.get(multiKey);
+        if (set == null) {
+            set = new HashSet<UniqueKeyType>();
+            set.add(uniqueKey);
+            mapKeys.put(multiKey, set);
+        }else{
+            set.add(uniqueKey);
+        }
+    }
+    
+    @Nullable
+    public ValueType removeByUniqueKey(UniqueKeyType key) {
+        return mapValues.remove(key);
+    }
+    
+    public void removeByMultiKey(MultiKeyType key) {
+        Set<UniqueKeyType> set = mapKeys.remove(key);
+        if (set != null)
+            for (UniqueKeyType uniqueKey : set)
+                removeByUniqueKey(uniqueKey);
+    }
+}
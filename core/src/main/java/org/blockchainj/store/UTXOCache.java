@@ -0,0 +1,299 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.blockchainj.store;
+
+import org.blockchainj.core.UTXO;
+
+import com.google.common.base.Stopwatch;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>The unspent output cache of {@link LevelDBFullPrunedBlockStore}. It is bounded by an estimate of the memory its
+ * entries take rather than by their number, since scripts vary a lot in size.</p>
+ *
+ * <p>Outputs read from the database are kept as clean entries and evicted least recently used first. Outputs that are
+ * added or spent become dirty entries, which are only written to the database when the store flushes the cache: once
+ * the dirty entries reach a size threshold, or a while after the last flush. An output that is created and spent
+ * between two flushes never reaches the database at all.</p>
+ *
+ * <p>The getters report how well the cache is doing. All methods are thread safe.</p>
+ */
+public class UTXOCache {
+    // Rough number of bytes an entry takes besides its script program: the key, the map entry, the UTXO and its Script
+    // with the parsed chunks.
+    static final int ENTRY_OVERHEAD_BYTES = 320;
+
+    /** A cached output, or a record that it was spent. */
+    static class Entry {
+        final UTXO out;
+        final boolean spent;
+        // True if the database does not have the output, so spending it before a flush needs no delete.
+        final boolean fresh;
+
+        Entry(UTXO out, boolean spent, boolean fresh) {
+            this.out = out;
+            this.spent = spent;
+            this.fresh = fresh;
+        }
+
+        int size() {
+            return ENTRY_OVERHEAD_BYTES + out.getScript().getProgram().length;
+        }
+    }
+
+    private final long maxBytes;
+    private final long flushBytes;
+    private final long flushIntervalMillis;
+
+    // Entries that match the database, least recently used first.
+    private final LinkedHashMap<ByteBuffer, Entry> clean = new LinkedHashMap<ByteBuffer, Entry>(16, 0.75f, true);
+    // Entries that have not been written to the database yet. They are never evicted.
+    private final Map<ByteBuffer, Entry> dirty = new HashMap<ByteBuffer, Entry>();
+    private long cleanBytes;
+    private long dirtyBytes;
+    // Bumped on every flush, so that outputs read from the database before it are not cached after it.
+    private int generation;
+    private Stopwatch sinceFlush = Stopwatch.createStarted();
+
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long flushes;
+    private long flushedWrites;
+    private long flushedDeletes;
+    private long unflushedSpends;
+
+    /**
+     * @param maxBytes how much memory the cached outputs may take
+     * @param flushBytes how much memory the dirty outputs may take before they are flushed, at most maxBytes
+     * @param flushIntervalMillis how long dirty outputs may wait for a flush
+     */
+    public UTXOCache(long maxBytes, long flushBytes, long flushIntervalMillis) {
+        checkArgument(flushBytes <= maxBytes, "flushBytes must not be more than maxBytes");
+        this.maxBytes = maxBytes;
+        this.flushBytes = flushBytes;
+        this.flushIntervalMillis = flushIntervalMillis;
+    }
+
+    /**
+     * Returns the entry for the given key, which may record that the output was spent, or null if the cache does not
+     * know about the output.
+     */
+    synchronized Entry get(ByteBuffer key) {
+        Entry entry = dirty.get(key);
+        if (entry == null)
+            entry = clean.get(key);
+        if (entry != null)
+            hits++;
+        else
+            misses++;
+        return entry;
+    }
+
+    /** Returns the dirty entry for the given key, without touching the statistics. */
+    synchronized Entry getDirty(ByteBuffer key) {
+        return dirty.get(key);
+    }
+
+    /** Counts a lookup that was answered before reaching the cache, by changes that are not committed yet. */
+    synchronized void recordHit() {
+        hits++;
+    }
+
+    /** Returns the value to pass to {@link #fill} for an output about to be read from the database. */
+    synchronized int getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Caches an output read from the database, unless the cache learned about it in the meantime or a flush may have
+     * made the read out of date.
+     */
+    synchronized void fill(ByteBuffer key, UTXO out, int readGeneration) {
+        if (readGeneration != generation || dirty.containsKey(key) || clean.containsKey(key))
+            return;
+        Entry entry = new Entry(out, false, false);
+        clean.put(key, entry);
+        cleanBytes += entry.size();
+        evict();
+    }
+
+    /**
+     * Records a new unspent output.
+     * @param fresh true if the database is known not to have the output
+     */
+    synchronized void add(ByteBuffer key, UTXO out, boolean fresh) {
+        Entry previous = dirty.get(key);
+        if (previous != null) {
+            dirtyBytes -= previous.size();
+            // A spent output that is added back is still in the database.
+            fresh = previous.fresh;
+        } else {
+            previous = clean.remove(key);
+            if (previous != null) {
+                cleanBytes -= previous.size();
+                fresh = false;
+            }
+        }
+        Entry entry = new Entry(out, false, fresh);
+        dirty.put(key, entry);
+        dirtyBytes += entry.size();
+        evict();
+    }
+
+    /** Records that an output was spent. */
+    synchronized void spend(ByteBuffer key, UTXO out) {
+        Entry previous = dirty.remove(key);
+        if (previous != null) {
+            dirtyBytes -= previous.size();
+            if (previous.fresh && !previous.spent) {
+                unflushedSpends++;
+                return;
+            }
+        } else {
+            previous = clean.remove(key);
+            if (previous != null)
+                cleanBytes -= previous.size();
+        }
+        Entry entry = new Entry(out, true, false);
+        dirty.put(key, entry);
+        dirtyBytes += entry.size();
+    }
+
+    /** True if the dirty entries are big or old enough to be flushed. */
+    synchronized boolean needsFlush() {
+        if (dirty.isEmpty())
+            return false;
+        return dirtyBytes >= flushBytes || sinceFlush.elapsed(TimeUnit.MILLISECONDS) >= flushIntervalMillis;
+    }
+
+    /** The entries to write to the database on a flush. The caller must hold the cache's lock while using them. */
+    synchronized Map<ByteBuffer, Entry> getDirtyEntries() {
+        return Collections.unmodifiableMap(dirty);
+    }
+
+    /** Called once the dirty entries have been written to the database, turning them into clean ones. */
+    synchronized void flushed() {
+        for (Map.Entry<ByteBuffer, Entry> entry : dirty.entrySet()) {
+            Entry value = entry.getValue();
+            if (value.spent) {
+                flushedDeletes++;
+            } else {
+                flushedWrites++;
+                Entry cleaned = new Entry(value.out, false, false);
+                clean.put(entry.getKey(), cleaned);
+                cleanBytes += cleaned.size();
+            }
+        }
+        dirty.clear();
+        dirtyBytes = 0;
+        generation++;
+        flushes++;
+        sinceFlush = Stopwatch.createStarted();
+        evict();
+    }
+
+    /** Forgets everything, without flushing. */
+    synchronized void clear() {
+        clean.clear();
+        dirty.clear();
+        cleanBytes = 0;
+        dirtyBytes = 0;
+        generation++;
+    }
+
+    private void evict() {
+        Iterator<Entry> it = clean.values().iterator();
+        while (cleanBytes + dirtyBytes > maxBytes && it.hasNext()) {
+            cleanBytes -= it.next().size();
+            it.remove();
+            evictions++;
+        }
+    }
+
+    /** Number of outputs, and records of spent outputs, in the cache. */
+    public synchronized int size() {
+        return clean.size() + dirty.size();
+    }
+
+    /** Estimate of the memory the cached entries take. */
+    public synchronized long getBytes() {
+        return cleanBytes + dirtyBytes;
+    }
+
+    /** Number of entries waiting to be written to the database. */
+    public synchronized int getDirtySize() {
+        return dirty.size();
+    }
+
+    /** Estimate of the memory the entries waiting to be written to the database take. */
+    public synchronized long getDirtyBytes() {
+        return dirtyBytes;
+    }
+
+    /** Number of lookups answered without reading the database. */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /** Number of lookups that had to read the database. */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /** Number of clean entries dropped to stay within the size limit. */
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /** Number of times the dirty entries were written to the database. */
+    public synchronized long getFlushes() {
+        return flushes;
+    }
+
+    /** Number of outputs written to the database by flushes. */
+    public synchronized long getFlushedWrites() {
+        return flushedWrites;
+    }
+
+    /** Number of outputs deleted from the database by flushes. */
+    public synchronized long getFlushedDeletes() {
+        return flushedDeletes;
+    }
+
+    /** Number of outputs that were spent before being flushed, and so never reached the database. */
+    public synchronized long getUnflushedSpends() {
+        return unflushedSpends;
+    }
+
+    @Override
+    public synchronized String toString() {
+        long lookups = hits + misses;
+        return "UTXO cache: " + size() + " entries, " + getBytes() / 1024 + " KiB (" + dirty.size() + " dirty, "
+                + dirtyBytes / 1024 + " KiB), hits " + hits + ", misses " + misses + ", hit rate "
+                + String.format("%.2f", lookups == 0 ? 0 : hits / (double) lookups) + ", evictions " + evictions
+                + ", flushes " + flushes + " (" + flushedWrites + " writes, " + flushedDeletes + " deletes), "
+                + unflushedSpends + " spent before flushing";
+    }
+}
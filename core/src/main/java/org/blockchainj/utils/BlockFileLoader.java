@@ -19,12 +19,16 @@ package org.blockchainj.utils;
 import org.blockchainj.core.Block;
 import org.blockchainj.core.NetworkParameters;
 import org.blockchainj.core.ProtocolException;
-import org.blockchainj.core.Utils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import javax.annotation.Nullable;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
@@ -38,6 +42,9 @@ import java.util.NoSuchElementException;
  * 
  * <p>In order to comply with Iterator&lt;Block>, this class swallows a lot of IOExceptions, which may result in a few
  * blocks being missed followed by a huge set of orphan blocks.</p>
+ *
+ * <p>The files are memory mapped and searched for the records in place. {@link #nextBlockBytes()} returns the records
+ * without parsing them, so that they can be parsed on other threads, see {@link ParallelBlockImporter}.</p>
  * 
  * <p>To blindly import all files which can be found in Blockchain Core (version >= 0.8) datadir automatically,
  * try this code fragment:<br>
@@ -71,14 +78,20 @@ public class BlockFileLoader implements Iterable<Block>, Iterator<Block> {
         return list;
     }
     
+    private static final Logger log = LoggerFactory.getLogger(BlockFileLoader.class);
+
     private Iterator<File> fileIt;
-    private FileInputStream currentFileStream = null;
+    // The rest of the file being read, in little endian order like the record sizes.
+    @Nullable private ByteBuffer currentFile = null;
     private Block nextBlock = null;
     private NetworkParameters params;
+    // The magic bytes that start each record, as read in little endian order.
+    private final int magic;
     
     public BlockFileLoader(NetworkParameters params, List<File> files) {
         fileIt = files.iterator();
         this.params = params;
+        this.magic = Integer.reverseBytes((int) params.getPacketMagic());
     }
     
     @Override
@@ -98,70 +111,78 @@ public class BlockFileLoader implements Iterable<Block>, Iterator<Block> {
     }
     
     private void loadNextBlock() {
-        while (true) {
+        byte[] bytes;
+        while ((bytes = nextBlockBytes()) != null) {
             try {
-                if (!fileIt.hasNext() && (currentFileStream == null || currentFileStream.available() < 1))
-                    break;
-            } catch (IOException e) {
-                currentFileStream = null;
-                if (!fileIt.hasNext())
-                    break;
+                nextBlock = params.getDefaultSerializer().makeBlock(bytes);
+                return;
+            } catch (ProtocolException e) {
+                nextBlock = null;
             }
-            while (true) {
-                try {
-                    if (currentFileStream != null && currentFileStream.available() > 0)
-                        break;
-                } catch (IOException e1) {
-                    currentFileStream = null;
-                }
-                if (!fileIt.hasNext()) {
-                    nextBlock = null;
-                    currentFileStream = null;
-                    return;
-                }
+        }
+    }
+
+    /**
+     * Returns the bytes of the next block record, without parsing them, or null when all the files have been read.
+     * Records of an impossible size are skipped, like unreadable files. Do not mix with {@link #next()}, which may
+     * already have read ahead.
+     */
+    @Nullable
+    public byte[] nextBlockBytes() {
+        while (true) {
+            if (currentFile == null) {
+                if (!fileIt.hasNext())
+                    return null;
+                File file = fileIt.next();
                 try {
-                    currentFileStream = new FileInputStream(fileIt.next());
-                } catch (FileNotFoundException e) {
-                    currentFileStream = null;
+                    currentFile = map(file);
+                } catch (IOException e) {
+                    log.warn("Could not read block file " + file, e);
                 }
+                continue;
             }
-            try {
-                int nextChar = currentFileStream.read();
-                while (nextChar != -1) {
-                    if (nextChar != ((params.getPacketMagic() >>> 24) & 0xff)) {
-                        nextChar = currentFileStream.read();
-                        continue;
-                    }
-                    nextChar = currentFileStream.read();
-                    if (nextChar != ((params.getPacketMagic() >>> 16) & 0xff))
-                        continue;
-                    nextChar = currentFileStream.read();
-                    if (nextChar != ((params.getPacketMagic() >>> 8) & 0xff))
-                        continue;
-                    nextChar = currentFileStream.read();
-                    if (nextChar == (params.getPacketMagic() & 0xff))
-                        break;
-                }
-                byte[] bytes = new byte[4];
-                currentFileStream.read(bytes, 0, 4);
-                long size = Utils.readUint32BE(Utils.reverseBytes(bytes), 0);
-                // We allow larger than MAX_BLOCK_SIZE because test code uses this as well.
-                if (size > Block.MAX_BLOCK_SIZE*2 || size <= 0)
-                    continue;
-                bytes = new byte[(int) size];
-                currentFileStream.read(bytes, 0, (int) size);
-                try {
-                    nextBlock = params.getDefaultSerializer().makeBlock(bytes);
-                } catch (ProtocolException e) {
-                    nextBlock = null;
-                    continue;
-                }
-                break;
-            } catch (IOException e) {
-                currentFileStream = null;
+            if (!skipToMagic(currentFile) || currentFile.remaining() < 4) {
+                currentFile = null;
+                continue;
+            }
+            long size = currentFile.getInt() & 0xffffffffL;
+            // We allow larger than MAX_BLOCK_SIZE because test code uses this as well.
+            if (size > Block.MAX_BLOCK_SIZE*2 || size <= 0)
+                continue;
+            if (size > currentFile.remaining()) {
+                // Cut off at the end of the file.
+                currentFile = null;
                 continue;
             }
+            byte[] bytes = new byte[(int) size];
+            currentFile.get(bytes);
+            return bytes;
+        }
+    }
+
+    private static ByteBuffer map(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            // The mapping stays valid once the file is closed.
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(channel.size(), Integer.MAX_VALUE));
+            return buffer.order(ByteOrder.LITTLE_ENDIAN);
+        } finally {
+            raf.close();
+        }
+    }
+
+    // Moves the buffer to just after the next magic bytes, returning false if there are none. Records usually follow
+    // one another directly, so this normally looks at one int.
+    private boolean skipToMagic(ByteBuffer buffer) {
+        int last = buffer.limit() - 4;
+        for (int pos = buffer.position(); pos <= last; pos++) {
+            if (buffer.getInt(pos) == magic) {
+                buffer.position(pos + 4);
+                return true;
+            }
         }
+        return false;
     }
 
     @Override
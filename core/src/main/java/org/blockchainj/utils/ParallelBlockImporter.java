@@ -0,0 +1,234 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.blockchainj.utils;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.Uninterruptibles;
+import org.blockchainj.core.AbstractBlockChain;
+import org.blockchainj.core.Block;
+import org.blockchainj.core.NetworkParameters;
+import org.blockchainj.core.PrunedException;
+import org.blockchainj.core.ProtocolException;
+import org.blockchainj.core.Sha256Hash;
+import org.blockchainj.core.VerificationException;
+import org.blockchainj.store.BlockStore;
+import org.blockchainj.store.BlockStoreException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Imports blocks from block files in the Blockchain Core format into a chain, much faster than adding the blocks
+ * of a {@link BlockFileLoader} one by one. A thread reads the records out of the memory mapped files, a pool of threads
+ * parses them, and the calling thread adds them to the chain.</p>
+ *
+ * <p>Parsed blocks come back through a bounded queue in the order they are in the files. Blocks are not always stored
+ * in height order, so a block whose parent has not been added yet waits until it has. Only when too many blocks are
+ * waiting are the oldest of them given to the chain anyway, which keeps them as orphans.</p>
+ */
+public class ParallelBlockImporter {
+    private static final Logger log = LoggerFactory.getLogger(ParallelBlockImporter.class);
+
+    /** How many blocks may be parsed ahead of the chain by default. */
+    public static final int DEFAULT_QUEUE_SIZE = 256;
+    /** How many blocks may wait for their parent by default. */
+    public static final int DEFAULT_MAX_WAITING = 4096;
+
+    // Marks the end of the files in the queue.
+    private static final Future<Block> END = Futures.immediateFuture(null);
+
+    private final NetworkParameters params;
+    private final AbstractBlockChain chain;
+    private final int threads;
+    private final int queueSize;
+    private final int maxWaiting;
+
+    // Blocks waiting for their parent, by the hash of the parent, oldest first.
+    private final LinkedHashMap<Sha256Hash, List<Block>> waiting = new LinkedHashMap<Sha256Hash, List<Block>>();
+    private int waitingCount;
+    @Nullable private Sha256Hash lastAdded;
+    private int added;
+
+    /** Creates an importer that parses on a thread per processor. */
+    public ParallelBlockImporter(NetworkParameters params, AbstractBlockChain chain) {
+        this(params, chain, Runtime.getRuntime().availableProcessors(), DEFAULT_QUEUE_SIZE, DEFAULT_MAX_WAITING);
+    }
+
+    /**
+     * @param threads the number of threads parsing blocks
+     * @param queueSize how many blocks may be read and parsed ahead of the chain
+     * @param maxWaiting how many blocks may wait for their parent to be added before they are added anyway
+     */
+    public ParallelBlockImporter(NetworkParameters params, AbstractBlockChain chain, int threads, int queueSize,
+                                 int maxWaiting) {
+        checkArgument(threads > 0 && queueSize > 0 && maxWaiting >= 0);
+        this.params = params;
+        this.chain = chain;
+        this.threads = threads;
+        this.queueSize = queueSize;
+        this.maxWaiting = maxWaiting;
+    }
+
+    /**
+     * Imports the blocks in the given files, returning the number of blocks given to the chain. Records that cannot be
+     * parsed are skipped, and so are blocks the store already has unless their parent turns up first. Stops at the
+     * first block that fails to verify.
+     */
+    public int importBlocks(List<File> files)
+            throws VerificationException, PrunedException, BlockStoreException, InterruptedException {
+        final BlockFileLoader loader = new BlockFileLoader(params, files);
+        final ExecutorService parsers = Executors.newFixedThreadPool(threads,
+                new ContextPropagatingThreadFactory("Block parser"));
+        final BlockingQueue<Future<Block>> parsed = new ArrayBlockingQueue<Future<Block>>(queueSize);
+        Thread reader = new ContextPropagatingThreadFactory("Block file reader").newThread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    byte[] bytes;
+                    while ((bytes = loader.nextBlockBytes()) != null)
+                        parsed.put(parsers.submit(new Parse(bytes)));
+                    parsed.put(END);
+                } catch (InterruptedException e) {
+                    // The import was given up.
+                } catch (RejectedExecutionException e) {
+                    // Likewise.
+                }
+            }
+        });
+        reader.start();
+        long start = System.currentTimeMillis();
+        added = 0;
+        try {
+            while (true) {
+                Future<Block> future = parsed.take();
+                if (future == END)
+                    break;
+                Block block = parsedBlock(future);
+                if (block != null)
+                    offer(block);
+            }
+            // Whatever is still waiting has no parent in the files. The chain keeps them as orphans.
+            while (!waiting.isEmpty())
+                addOldestWaiting();
+        } finally {
+            reader.interrupt();
+            parsers.shutdownNow();
+        }
+        log.info("Imported {} blocks in {} ms, chain height is now {}", added, System.currentTimeMillis() - start,
+                chain.getBestChainHeight());
+        return added;
+    }
+
+    @Nullable
+    private static Block parsedBlock(Future<Block> future) {
+        try {
+            return Uninterruptibles.getUninterruptibly(future);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    // Adds the block if its parent is known, and then the blocks that were waiting for it. Otherwise it waits.
+    private void offer(Block block) throws VerificationException, PrunedException, BlockStoreException {
+        BlockStore store = chain.getBlockStore();
+        Sha256Hash prev = block.getPrevBlockHash();
+        if (prev.equals(lastAdded) || store.get(prev) != null) {
+            add(block);
+            addWaitingChildren(block.getHash());
+        } else if (store.get(block.getHash()) != null) {
+            // Already have it, like the genesis block.
+        } else {
+            List<Block> siblings = waiting.get(prev);
+            if (siblings == null) {
+                siblings = new ArrayList<Block>(1);
+                waiting.put(prev, siblings);
+            }
+            siblings.add(block);
+            waitingCount++;
+            if (waitingCount > maxWaiting)
+                addOldestWaiting();
+        }
+    }
+
+    private void addWaitingChildren(Sha256Hash parent) throws VerificationException, PrunedException {
+        LinkedList<Sha256Hash> parents = new LinkedList<Sha256Hash>();
+        parents.add(parent);
+        while (!parents.isEmpty()) {
+            List<Block> children = waiting.remove(parents.removeFirst());
+            if (children == null)
+                continue;
+            waitingCount -= children.size();
+            for (Block child : children) {
+                add(child);
+                parents.add(child.getHash());
+            }
+        }
+    }
+
+    private void addOldestWaiting() throws VerificationException, PrunedException {
+        Iterator<Map.Entry<Sha256Hash, List<Block>>> it = waiting.entrySet().iterator();
+        List<Block> oldest = it.next().getValue();
+        it.remove();
+        waitingCount -= oldest.size();
+        log.warn("Adding {} block(s) whose parent was not found yet", oldest.size());
+        for (Block block : oldest) {
+            add(block);
+            addWaitingChildren(block.getHash());
+        }
+    }
+
+    private void add(Block block) throws VerificationException, PrunedException {
+        chain.add(block);
+        lastAdded = block.getHash();
+        added++;
+    }
+
+    private class Parse implements Callable<Block> {
+        private final byte[] bytes;
+
+        Parse(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        @Override
+        @Nullable
+        public Block call() {
+            try {
+                return params.getDefaultSerializer().makeBlock(bytes);
+            } catch (ProtocolException e) {
+                log.warn("Skipping a block that could not be parsed: {}", e.getMessage());
+                return null;
+            }
+        }
+    }
+}
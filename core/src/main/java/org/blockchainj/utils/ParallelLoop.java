@@ -0,0 +1,167 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.blockchainj.utils;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>Runs a loop over a range of indexes on several threads, by splitting the range into one slice per thread. The
+ * calling thread works on the first slice itself and then waits for the others, so a loop is never slower than
+ * running it on the calling thread by more than the cost of handing out the slices. Slices are never smaller than
+ * the given grain, so that small loops are not split at all.</p>
+ *
+ * <p>Used for the parts of block handling that are a lot of independent work, like parsing and hashing the
+ * transactions of a large block. Loops started from within a loop run on the calling thread, so that the pool never
+ * waits on itself.</p>
+ */
+public class ParallelLoop {
+    @Nullable private static ParallelLoop defaultLoop;
+
+    /** The body of a loop, which is run for slices of the range. */
+    public interface Body {
+        /** Runs the loop for the indexes from {@code from}, inclusive, to {@code to}, exclusive. */
+        void run(int from, int to) throws Exception;
+    }
+
+    // Set while a thread works on a slice.
+    private static final ThreadLocal<Boolean> inSlice = new ThreadLocal<Boolean>();
+
+    @Nullable private final ExecutorService executor;
+    private final int parallelism;
+
+    /**
+     * Creates a loop that runs on the given number of threads, counting the calling thread. The others are daemon
+     * threads of a pool of its own.
+     */
+    public ParallelLoop(int threads) {
+        checkArgument(threads > 0, "threads must be positive");
+        this.parallelism = threads;
+        this.executor = threads > 1 ?
+                Executors.newFixedThreadPool(threads - 1, new ContextPropagatingThreadFactory("Parallel loop")) : null;
+    }
+
+    /**
+     * Returns the loop used by the library, creating it with a thread per processor the first time it is needed.
+     */
+    public static synchronized ParallelLoop getDefault() {
+        if (defaultLoop == null)
+            defaultLoop = new ParallelLoop(Runtime.getRuntime().availableProcessors());
+        return defaultLoop;
+    }
+
+    /**
+     * Replaces the loop returned by {@link #getDefault()}. The previous one is not shut down, as it may still be in
+     * use.
+     */
+    public static synchronized void setDefault(ParallelLoop loop) {
+        defaultLoop = checkNotNull(loop);
+    }
+
+    /** The number of threads loops run on at most. */
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /** Shuts down the threads of this loop. Loops run after this run on the calling thread only. */
+    public void shutdown() {
+        if (executor != null)
+            executor.shutdown();
+    }
+
+    /**
+     * Runs the body over the indexes from 0 to count, exclusive, and returns when it has finished with all of them.
+     * If the body throws, the first exception thrown is rethrown here, once the slices that had started are done.
+     *
+     * @param grain the smallest number of indexes worth handing to another thread
+     */
+    public void run(int count, int grain, final Body body) throws Exception {
+        checkArgument(grain > 0, "grain must be positive");
+        int slices = Math.min(parallelism, count / grain);
+        if (slices <= 1 || executor == null || executor.isShutdown() || inSlice.get() != null) {
+            if (count > 0)
+                body.run(0, count);
+            return;
+        }
+        List<Future<Void>> futures = new ArrayList<Future<Void>>(slices - 1);
+        Exception thrown = null;
+        try {
+            for (int i = 1; i < slices; i++)
+                futures.add(executor.submit(new Slice(body, sliceStart(count, slices, i), sliceStart(count, slices, i + 1))));
+            inSlice.set(Boolean.TRUE);
+            try {
+                body.run(0, sliceStart(count, slices, 1));
+            } finally {
+                inSlice.remove();
+            }
+        } catch (Exception e) {
+            thrown = e;
+        }
+        for (Future<Void> future : futures) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e); // Shouldn't happen
+            } catch (ExecutionException e) {
+                if (thrown == null)
+                    thrown = unwrap(e);
+            }
+        }
+        if (thrown != null)
+            throw thrown;
+    }
+
+    private static int sliceStart(int count, int slices, int slice) {
+        return (int) ((long) count * slice / slices);
+    }
+
+    private static Exception unwrap(ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof Error)
+            throw (Error) cause;
+        return cause instanceof Exception ? (Exception) cause : e;
+    }
+
+    private static class Slice implements Callable<Void> {
+        private final Body body;
+        private final int from, to;
+
+        Slice(Body body, int from, int to) {
+            this.body = body;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        public Void call() throws Exception {
+            inSlice.set(Boolean.TRUE);
+            try {
+                body.run(from, to);
+                return null;
+            } finally {
+                inSlice.remove();
+            }
+        }
+    }
+}
@@ -2100,6 +2100,9 @@ public class Wallet extends BaseTaggableObject
      * <p/>
      * <p>Used to update confidence data in each transaction and last seen block hash. Triggers auto saving.
      * Invokes the onWalletChanged event listener if there were any affected transactions.</p>
+     *
+     * <p>When the chain adds a run of headers at once, see {@link AbstractBlockChain#addHeaders(List)}, this is only
+     * called for the last of them, and depths go up by the number of blocks since the last one seen.</p>
      */
     @Override
     public void notifyNewBestBlock(StoredBlock block) throws VerificationException {
@@ -2109,6 +2112,12 @@ public class Wallet extends BaseTaggableObject
             return;
         lock.lock();
         try {
+            // Usually this block follows the last one seen. If it doesn't but is higher up, the blocks in between
+            // were added as a run.
+            int newBlocks = 1;
+            if (!block.getHeader().getPrevBlockHash().equals(lastBlockSeenHash) && lastBlockSeenHeight >= 0
+                    && block.getHeight() > lastBlockSeenHeight)
+                newBlocks = block.getHeight() - lastBlockSeenHeight;
             // Store the new block hash.
             setLastBlockSeenHash(newBlockHash);
             setLastBlockSeenHeight(block.getHeight());
@@ -2131,7 +2140,12 @@ public class Wallet extends BaseTaggableObject
                         // included once again. We could have a separate was-in-chain-and-now-isn't confidence type
                         // but this way is backwards compatible with existing software, and the new state probably
                         // wouldn't mean anything different to just remembering peers anyway.
-                        if (confidence.incrementDepthInBlocks() > context.getEventHorizon())
+                        int depth = confidence.incrementDepthInBlocks();
+                        if (newBlocks > 1) {
+                            depth += newBlocks - 1;
+                            confidence.setDepthInBlocks(depth);
+                        }
+                        if (depth > context.getEventHorizon())
                             confidence.clearBroadcastBy();
                         confidenceChanged.put(tx, TransactionConfidence.Listener.ChangeReason.DEPTH);
                     }
@@ -4048,6 +4062,17 @@ public class Wallet extends BaseTaggableObject
             KeyBag maybeDecryptingKeyBag = new DecryptingKeyBag(this, req.aesKey);
 
             int numInputs = tx.getInputs().size();
+            SignatureCache signatureCache = Script.getSignatureCache();
+            if (signatureCache != null && numInputs > 1) {
+                // Check the signatures that are already there in one batch, rather than one by one below.
+                SignatureCache.Batch batch = signatureCache.newBatch();
+                for (int i = 0; i < numInputs; i++) {
+                    TransactionInput txIn = tx.getInput(i);
+                    if (txIn.getConnectedOutput() != null)
+                        batch.add(tx, i, txIn.getConnectedOutput().getScriptPubKey());
+                }
+                batch.verify();
+            }
             for (int i = 0; i < numInputs; i++) {
                 TransactionInput txIn = tx.getInput(i);
                 if (txIn.getConnectedOutput() == null) {
@@ -21,6 +21,7 @@ import com.google.common.collect.Lists;
 import org.blockchainj.params.MainNetParams;
 import org.blockchainj.params.UnitTestParams;
 import org.blockchainj.script.Script;
+import org.blockchainj.script.ScriptBuilder;
 import org.blockchainj.store.BlockStoreException;
 import org.blockchainj.store.FullPrunedBlockStore;
 import org.blockchainj.utils.BlockFileLoader;
@@ -234,6 +235,77 @@ public abstract class AbstractFullPrunedBlockChainTest {
         } catch (Exception e) {}
     }
 
+    @Test
+    public void testFirst100KBlocksPrefetched() throws Exception {
+        NetworkParameters params = MainNetParams.get();
+        Context context = new Context(params);
+        File blockFile = new File(getClass().getResource("first-100k-blocks.dat").getFile());
+        BlockFileLoader loader = new BlockFileLoader(params, Arrays.asList(blockFile));
+
+        store = createStore(params, 10);
+        resetStore(store);
+        chain = new FullPrunedBlockChain(context, store);
+        List<Block> queue = Lists.newArrayList();
+        for (Block block : loader) {
+            queue.add(block);
+            if (queue.size() == 500) {
+                chain.addAll(queue);
+                queue.clear();
+            }
+        }
+        chain.addAll(queue);
+        assertEquals(store.getVerifiedChainHead(), chain.getChainHead());
+        try {
+            store.close();
+        } catch (Exception e) {}
+    }
+
+    @Test
+    public void prefetchedDoubleSpendAcrossBlocks() throws Exception {
+        store = createStore(PARAMS, 10);
+        chain = new FullPrunedBlockChain(PARAMS, store);
+
+        ECKey outKey = new ECKey();
+        int height = 1;
+
+        // Build some blocks on genesis block to create a spendable output
+        Block rollingBlock = PARAMS.getGenesisBlock().createNextBlockWithCoinbase(Block.BLOCK_VERSION_GENESIS, outKey.getPubKey(), height++);
+        chain.add(rollingBlock);
+        TransactionOutPoint spendableOutput = new TransactionOutPoint(PARAMS, 0, rollingBlock.getTransactions().get(0).getHash());
+        byte[] spendableOutputScriptPubKey = rollingBlock.getTransactions().get(0).getOutputs().get(0).getScriptBytes();
+        for (int i = 1; i < PARAMS.getSpendableCoinbaseDepth(); i++) {
+            rollingBlock = rollingBlock.createNextBlockWithCoinbase(Block.BLOCK_VERSION_GENESIS, outKey.getPubKey(), height++);
+            chain.add(rollingBlock);
+        }
+
+        // Two consecutive blocks spending the same output. Both are prefetched before the first one is connected, so
+        // the second must not trust its prefetched copy of the output.
+        Block firstSpend = rollingBlock.createNextBlock(null);
+        Transaction t1 = new Transaction(PARAMS);
+        t1.addOutput(new TransactionOutput(PARAMS, t1, FIFTY_COINS, new byte[] {}));
+        t1.addSignedInput(spendableOutput, new Script(spendableOutputScriptPubKey), outKey);
+        firstSpend.addTransaction(t1);
+        firstSpend.solve();
+
+        Block secondSpend = firstSpend.createNextBlock(null);
+        Transaction t2 = new Transaction(PARAMS);
+        t2.addOutput(new TransactionOutput(PARAMS, t2, Coin.COIN, new byte[] {}));
+        t2.addSignedInput(spendableOutput, new Script(spendableOutputScriptPubKey), outKey);
+        secondSpend.addTransaction(t2);
+        secondSpend.solve();
+
+        try {
+            chain.addAll(Arrays.asList(firstSpend, secondSpend));
+            fail();
+        } catch (VerificationException e) {
+            // Expected.
+        }
+        assertEquals(firstSpend.getHash(), chain.getChainHead().getHeader().getHash());
+        try {
+            store.close();
+        } catch (Exception e) {}
+    }
+
     @Test
     public void testGetOpenTransactionOutputs() throws Exception {
         final int UNDOABLE_BLOCKS_STORED = 10;
@@ -285,6 +357,64 @@ public abstract class AbstractFullPrunedBlockChainTest {
         } catch (Exception e) {}
     }
 
+    @Test
+    public void batchUTXOReadsAndWrites() throws Exception {
+        store = createStore(PARAMS, 10);
+        ECKey key = new ECKey();
+        Script script = ScriptBuilder.createOutputScript(key);
+        Sha256Hash txHash = Sha256Hash.of(new byte[] { 1 });
+        UTXO first = new UTXO(txHash, 0, Coin.COIN, 1, false, script, key.toAddress(PARAMS).toString());
+        UTXO second = new UTXO(txHash, 1, Coin.CENT, 1, false, script, key.toAddress(PARAMS).toString());
+        TransactionOutPoint missing = new TransactionOutPoint(PARAMS, 0, Sha256Hash.of(new byte[] { 2 }));
+
+        store.beginDatabaseBatchWrite();
+        store.addUnspentTransactionOutputs(Arrays.asList(first, second));
+        // Uncommitted outputs are visible to the writing thread.
+        List<UTXO> outputs = store.getTransactionOutputs(Arrays.asList(
+                new TransactionOutPoint(PARAMS, 1, txHash), missing, new TransactionOutPoint(PARAMS, 0, txHash)));
+        assertEquals(3, outputs.size());
+        assertEquals(second, outputs.get(0));
+        assertNull(outputs.get(1));
+        assertEquals(first, outputs.get(2));
+        store.commitDatabaseBatchWrite();
+
+        store.beginDatabaseBatchWrite();
+        store.removeUnspentTransactionOutputs(Arrays.asList(first));
+        store.commitDatabaseBatchWrite();
+        outputs = store.getTransactionOutputs(Arrays.asList(
+                new TransactionOutPoint(PARAMS, 0, txHash), new TransactionOutPoint(PARAMS, 1, txHash)));
+        assertNull(outputs.get(0));
+        assertEquals(second, outputs.get(1));
+        try {
+            store.close();
+        } catch (Exception e) {}
+    }
+
+    @Test
+    public void batchUTXOWritesTolerateExistingOutputs() throws Exception {
+        store = createStore(PARAMS, 10);
+        ECKey key = new ECKey();
+        Script script = ScriptBuilder.createOutputScript(key);
+        Sha256Hash txHash = Sha256Hash.of(new byte[] { 1 });
+        UTXO first = new UTXO(txHash, 0, Coin.COIN, 1, false, script, key.toAddress(PARAMS).toString());
+        UTXO second = new UTXO(txHash, 1, Coin.CENT, 1, false, script, key.toAddress(PARAMS).toString());
+        UTXO third = new UTXO(txHash, 2, Coin.CENT, 1, false, script, key.toAddress(PARAMS).toString());
+
+        store.beginDatabaseBatchWrite();
+        store.addUnspentTransactionOutput(second);
+        // The output already present must not lose the others, nor the rest of the batch write.
+        store.addUnspentTransactionOutputs(Arrays.asList(first, second, third));
+        store.commitDatabaseBatchWrite();
+        List<UTXO> outputs = store.getTransactionOutputs(Arrays.asList(new TransactionOutPoint(PARAMS, 0, txHash),
+                new TransactionOutPoint(PARAMS, 1, txHash), new TransactionOutPoint(PARAMS, 2, txHash)));
+        assertEquals(first, outputs.get(0));
+        assertEquals(second, outputs.get(1));
+        assertEquals(third, outputs.get(2));
+        try {
+            store.close();
+        } catch (Exception e) {}
+    }
+
     @Test
     public void testUTXOProviderWithWallet() throws Exception {
         final int UNDOABLE_BLOCKS_STORED = 10;
@@ -22,8 +22,10 @@ import org.blockchainj.params.TestNet2Params;
 import org.blockchainj.params.UnitTestParams;
 import org.blockchainj.store.BlockStore;
 import org.blockchainj.store.MemoryBlockStore;
+import org.blockchainj.core.listeners.NewBestBlockListener;
 import org.blockchainj.testing.FakeTxBuilder;
 import org.blockchainj.utils.BriefLogFormatter;
+import org.blockchainj.utils.Threading;
 import org.blockchainj.wallet.Wallet;
 import org.blockchainj.wallet.Wallet.BalanceType;
 
@@ -35,8 +37,11 @@ import org.junit.Test;
 
 import java.math.BigInteger;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.blockchainj.core.Coin.*;
 import static org.blockchainj.testing.FakeTxBuilder.createFakeBlock;
@@ -479,4 +484,85 @@ public class BlockChainTest {
         assertEquals(2, chain.getBestChainHeight());
         assertEquals(2, wallet.getLastBlockSeenHeight());
     }
+
+    @Test
+    public void addHeadersInRuns() throws Exception {
+        List<Block> headers = nextHeaders(PARAMS.getGenesisBlock(), 35);
+        BlockChain oneByOne = new BlockChain(PARAMS, new MemoryBlockStore(PARAMS));
+        for (Block header : headers)
+            assertTrue(oneByOne.add(header));
+
+        final AtomicInteger notifications = new AtomicInteger();
+        chain.addNewBestBlockListener(Threading.SAME_THREAD, new NewBestBlockListener() {
+            @Override
+            public void notifyNewBestBlock(StoredBlock block) {
+                notifications.incrementAndGet();
+            }
+        });
+        // Runs cross the difficulty transitions.
+        for (int i = 0; i < headers.size(); i += 15)
+            assertTrue(chain.addHeaders(headers.subList(i, Math.min(i + 15, headers.size()))));
+        assertEquals(oneByOne.getChainHead(), chain.getChainHead());
+        assertEquals(35, chain.getBestChainHeight());
+        assertEquals(35, wallet.getLastBlockSeenHeight());
+        assertEquals(3, notifications.get());
+        for (Block header : headers)
+            assertNotNull(blockStore.get(header.getHash()));
+        // Adding a run again changes nothing.
+        assertTrue(chain.addHeaders(headers.subList(25, 35)));
+        assertEquals(oneByOne.getChainHead(), chain.getChainHead());
+    }
+
+    @Test
+    public void addHeadersStopsAtBadHeader() throws Exception {
+        List<Block> headers = nextHeaders(PARAMS.getGenesisBlock(), 30);
+        // A header at a difficulty transition that keeps the old target, but has the work for it.
+        Block bad = headers.get(19).cloneAsHeader();
+        bad.setDifficultyTarget(headers.get(18).getDifficultyTarget());
+        bad.solve();
+        headers.set(19, bad);
+        try {
+            chain.addHeaders(headers);
+            fail();
+        } catch (VerificationException e) {
+            // Expected.
+        }
+        // Everything before the bad header was added.
+        assertEquals(19, chain.getBestChainHeight());
+        assertEquals(headers.get(18).getHash(), chain.getChainHead().getHeader().getHash());
+    }
+
+    @Test
+    public void addHeadersDeepensWalletTransactions() throws Exception {
+        Transaction tx = createFakeTx(PARAMS, COIN, wallet.currentReceiveAddress());
+        Block b1 = createFakeBlock(blockStore, Block.BLOCK_HEIGHT_GENESIS, tx).block;
+        assertTrue(chain.add(b1));
+        assertEquals(1, wallet.getTransaction(tx.getHash()).getConfidence().getDepthInBlocks());
+        List<Block> headers = new ArrayList<Block>();
+        Block prev = b1;
+        for (int i = 0; i < 5; i++) {
+            prev = prev.createNextBlock(coinbaseTo);
+            headers.add(prev.cloneAsHeader());
+        }
+        assertTrue(chain.addHeaders(headers));
+        assertEquals(6, chain.getBestChainHeight());
+        assertEquals(6, wallet.getLastBlockSeenHeight());
+        assertEquals(6, wallet.getTransaction(tx.getHash()).getConfidence().getDepthInBlocks());
+    }
+
+    // The headers of the given number of blocks following the given one, which must be at a height that is a multiple of
+    // the difficulty interval. Blocks come quickly, so the target goes down as far as it can at every transition.
+    private List<Block> nextHeaders(Block prev, int count) {
+        List<Block> headers = new ArrayList<Block>();
+        for (int i = 1; i <= count; i++) {
+            prev = prev.createNextBlock(coinbaseTo);
+            if (i % PARAMS.getInterval() == 0) {
+                prev.setDifficultyTarget(Utils.encodeCompactBits(
+                        Utils.decodeCompactBits(prev.getDifficultyTarget()).shiftRight(2)));
+                prev.solve();
+            }
+            headers.add(prev.cloneAsHeader());
+        }
+        return headers;
+    }
 }
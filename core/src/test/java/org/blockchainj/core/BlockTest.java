@@ -25,6 +25,7 @@ import org.blockchainj.params.TestNet2Params;
 import org.blockchainj.params.TestNet3Params;
 import org.blockchainj.params.UnitTestParams;
 import org.blockchainj.script.ScriptOpCodes;
+import org.blockchainj.utils.ParallelLoop;
 import org.blockchainj.wallet.Wallet;
 import org.blockchainj.wallet.Wallet.BalanceType;
 import org.junit.Before;
@@ -286,4 +287,37 @@ public class BlockTest {
         assertTrue(block370661.isBIP66());
         assertTrue(block370661.isBIP65());
     }
+
+    @Test
+    public void parseTransactionsInParallel() throws Exception {
+        final NetworkParameters PARAMS = MainNetParams.get();
+        byte[] bytes = ByteStreams.toByteArray(getClass().getResourceAsStream("block370661.dat"));
+        ParallelLoop previous = ParallelLoop.getDefault();
+        ParallelLoop loop = new ParallelLoop(4);
+        ParallelLoop.setDefault(loop);
+        try {
+            Block block = PARAMS.getDefaultSerializer().makeBlock(bytes);
+            assertTrue(block.getTransactions().size() >= 2 * Block.PARALLEL_PARSE_GRAIN);
+            block.verifyTransactions(370661, EnumSet.noneOf(Block.VerifyFlag.class));
+            assertArrayEquals(bytes, block.blockchainSerialize());
+
+            ParallelLoop.setDefault(new ParallelLoop(1));
+            Block sequential = PARAMS.getDefaultSerializer().makeBlock(bytes);
+            assertEquals(sequential.getTransactions(), block.getTransactions());
+            assertEquals(sequential.getMerkleRoot(), block.getMerkleRoot());
+            assertEquals(sequential.getOptimalEncodingMessageSize(), block.getOptimalEncodingMessageSize());
+
+            // A truncated block fails the same way either way.
+            ParallelLoop.setDefault(loop);
+            try {
+                PARAMS.getDefaultSerializer().makeBlock(Arrays.copyOf(bytes, bytes.length - 100));
+                fail();
+            } catch (ProtocolException e) {
+                // Expected.
+            }
+        } finally {
+            ParallelLoop.setDefault(previous);
+            loop.shutdown();
+        }
+    }
 }
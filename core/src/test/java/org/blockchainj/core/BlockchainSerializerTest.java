@@ -24,6 +24,7 @@ import java.io.ByteArrayOutputStream;
 import java.net.InetAddress;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
+import java.security.MessageDigest;
 import java.util.Arrays;
 
 import static org.blockchainj.core.Utils.HEX;
@@ -201,6 +202,67 @@ public class BlockchainSerializerTest {
         assertArrayEquals(headersMessageBytes, serializedBytes);
     }
 
+    @Test
+    public void testOwnedPayload() throws Exception {
+        Context.propagate(new Context(MainNetParams.get()));
+        MessageSerializer serializer = MainNetParams.get().getDefaultSerializer();
+        Block genesis = MainNetParams.get().getGenesisBlock();
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        serializer.serialize(genesis, bos);
+        ByteBuffer in = ByteBuffer.wrap(bos.toByteArray());
+        serializer.seekPastMagicBytes(in);
+        BlockchainSerializer.BlockchainPacketHeader header = serializer.deserializeHeader(in);
+        byte[] payload = new byte[header.size];
+        in.get(payload);
+
+        Block block = (Block) serializer.deserializePayload(header, payload);
+        assertEquals(genesis.getHash(), block.getHash());
+        Transaction tx = block.getTransactions().get(0);
+        // The hash taken while parsing matches the one of the serialized transaction.
+        assertEquals(Sha256Hash.wrapReversed(Sha256Hash.hashTwice(tx.blockchainSerialize())), tx.getHash());
+        assertEquals(genesis.getTransactions().get(0).getHash(), tx.getHash());
+
+        payload[payload.length - 1]++;
+        try {
+            serializer.deserializePayload(header, payload);
+            fail();
+        } catch (ProtocolException e) {
+            // Checksum failed.
+        }
+    }
+
+    @Test
+    public void testPayloadWithHash() throws Exception {
+        Context.propagate(new Context(MainNetParams.get()));
+        MessageSerializer serializer = MainNetParams.get().getDefaultSerializer();
+        Transaction genesisTx = MainNetParams.get().getGenesisBlock().getTransactions().get(0);
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        serializer.serialize(genesisTx, bos);
+        ByteBuffer in = ByteBuffer.wrap(bos.toByteArray());
+        serializer.seekPastMagicBytes(in);
+        BlockchainSerializer.BlockchainPacketHeader header = serializer.deserializeHeader(in);
+        byte[] payload = new byte[header.size];
+        in.get(payload);
+
+        // The hash can be taken as the payload arrives.
+        MessageDigest digest = Sha256Hash.newDigest();
+        digest.update(payload, 0, 10);
+        digest.update(payload, 10, payload.length - 10);
+        byte[] hash = Sha256Hash.hashTwice(digest);
+        assertArrayEquals(Sha256Hash.hashTwice(payload), hash);
+        Transaction tx = (Transaction) serializer.deserializePayload(header, payload, hash);
+        assertEquals(genesisTx.getHash(), tx.getHash());
+
+        // The hash is checked against the header.
+        hash[0]++;
+        try {
+            serializer.deserializePayload(header, payload, hash);
+            fail();
+        } catch (ProtocolException e) {
+            // Checksum failed.
+        }
+    }
+
     @Test(expected = BufferUnderflowException.class)
     public void testBlockchainPacketHeaderTooShort() {
         new BlockchainSerializer.BlockchainPacketHeader(ByteBuffer.wrap(new byte[] { 0 }));
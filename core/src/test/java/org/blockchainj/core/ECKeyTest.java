@@ -45,6 +45,7 @@ import java.math.BigInteger;
 import java.security.SecureRandom;
 import java.security.SignatureException;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.List;
 import java.util.Random;
 import java.util.concurrent.Callable;
@@ -106,6 +107,37 @@ public class ECKeyTest {
         assertFalse(highS.isCanonical());
     }
 
+    @Test
+    public void verifyBatch() throws Exception {
+        ECKey key = new ECKey();
+        ECKey other = new ECKey();
+        List<ECKey.SignatureCheck> checks = Lists.newArrayList();
+        for (int i = 0; i < 6; i++) {
+            Sha256Hash hash = Sha256Hash.of(new byte[] { (byte) i });
+            // Mostly the same key, so that its point is reused, one signature by the wrong key and one bad hash.
+            ECDSASignature sig = (i == 2 ? other : key).sign(hash);
+            byte[] data = i == 4 ? Sha256Hash.of(new byte[] { 42 }).getBytes() : hash.getBytes();
+            checks.add(new ECKey.SignatureCheck(data, sig, key.getPubKey()));
+        }
+        // A public key that is not on the curve.
+        byte[] badPub = key.getPubKey().clone();
+        badPub[5] ^= 1;
+        checks.add(new ECKey.SignatureCheck(checks.get(0).data, checks.get(0).signature, badPub));
+
+        BitSet valid = ECKey.verify(checks);
+        for (int i = 0; i < checks.size(); i++) {
+            ECKey.SignatureCheck check = checks.get(i);
+            boolean expected;
+            try {
+                expected = ECKey.verify(check.data, check.signature, check.pub);
+            } catch (IllegalArgumentException e) {
+                expected = false;
+            }
+            assertEquals("signature " + i, expected, valid.get(i));
+        }
+        assertEquals(4, valid.cardinality());
+    }
+
     @Test
     public void testSignatures() throws Exception {
         // Test that we can construct an ECKey from a private key (deriving the public from the private), then signing
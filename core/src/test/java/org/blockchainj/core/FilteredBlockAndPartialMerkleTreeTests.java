@@ -18,7 +18,9 @@
 package org.blockchainj.core;
 
 import com.google.common.collect.*;
+import com.google.common.io.ByteStreams;
 import org.blockchainj.core.TransactionConfidence.*;
+import org.blockchainj.params.MainNetParams;
 import org.blockchainj.store.*;
 import org.blockchainj.testing.*;
 import org.blockchainj.wallet.*;
@@ -125,6 +127,27 @@ public class FilteredBlockAndPartialMerkleTreeTests extends TestWithPeerGroup {
         pmt.getTxnHashAndMerkleRoot(matchedHashes);
     }
 
+    @Test
+    public void partialMerkleTreeOfLargeBlock() throws Exception {
+        Block block = MainNetParams.get().getDefaultSerializer()
+                .makeBlock(ByteStreams.toByteArray(getClass().getResourceAsStream("block370661.dat")));
+        List<Sha256Hash> hashes = Lists.newArrayList();
+        for (Transaction tx : block.getTransactions())
+            hashes.add(tx.getHash());
+        byte[] includeBits = new byte[(hashes.size() + 7) / 8];
+        List<Sha256Hash> included = Lists.newArrayList();
+        for (int i = 0; i < hashes.size(); i += 97) {
+            Utils.setBitLE(includeBits, i);
+            included.add(hashes.get(i));
+        }
+        PartialMerkleTree pmt = PartialMerkleTree.buildFromLeaves(PARAMS, includeBits, hashes);
+        List<Sha256Hash> matchedHashes = Lists.newArrayList();
+        assertEquals(block.getMerkleRoot(), pmt.getTxnHashAndMerkleRoot(matchedHashes));
+        assertEquals(included, matchedHashes);
+        PartialMerkleTree roundTripped = new PartialMerkleTree(PARAMS, pmt.blockchainSerialize(), 0);
+        assertEquals(block.getMerkleRoot(), roundTripped.getTxnHashAndMerkleRoot(matchedHashes));
+    }
+
     @Test
     public void serializeDownloadBlockWithWallet() throws Exception {
         // First we create all the neccessary objects, including lots of serialization and double-checks
@@ -23,6 +23,7 @@ import com.google.common.net.*;
 import com.google.common.util.concurrent.*;
 import org.blockchainj.core.listeners.*;
 import org.blockchainj.net.discovery.*;
+import org.blockchainj.store.BlockStoreException;
 import org.blockchainj.testing.*;
 import org.blockchainj.utils.*;
 import org.blockchainj.wallet.Wallet;
@@ -856,6 +857,144 @@ public class PeerGroupTest extends TestWithPeerGroup {
         assertEquals(blocks.get(blocks.size() - 1).getHash(), blockChain.getChainHead().getHeader().getHash());
     }
 
+    @Test
+    public void parallelDownload() throws Exception {
+        peerGroup.setUseParallelDownload(true);
+        peerGroup.setMaxBlocksInFlightPerPeer(3);
+        peerGroup.start();
+        InboundMessageQueuer p1 = connectPeer(1);
+        InboundMessageQueuer p2 = connectPeer(2);
+        List<Block> blocks = makeBlocks(6);
+
+        // The headers come from the download peer.
+        peerGroup.startBlockChainDownload(new AbstractPeerDataEventListener() {
+        });
+        GetHeadersMessage getheaders = assertNextMessageIs(p1, GetHeadersMessage.class);
+        assertEquals(Sha256Hash.ZERO_HASH, getheaders.getStopHash());
+        inbound(p1, headersOf(blocks));
+
+        // The blocks are asked for from both peers.
+        GetDataMessage getdata1 = assertNextMessageIs(p1, GetDataMessage.class);
+        assertNextMessageIs(p1, Ping.class);
+        GetDataMessage getdata2 = assertNextMessageIs(p2, GetDataMessage.class);
+        assertNextMessageIs(p2, Ping.class);
+        assertEquals(3, getdata1.getItems().size());
+        assertEquals(blocks.get(0).getHash(), getdata1.getItems().get(0).hash);
+        assertEquals(3, getdata2.getItems().size());
+        assertEquals(blocks.get(3).getHash(), getdata2.getItems().get(0).hash);
+
+        // The later blocks wait for the earlier ones before they go to the chain.
+        BloomFilter filter = peerOf(p1).getBloomFilter();
+        filterAndSend(p2, blocks.subList(3, 6), filter);
+        inbound(p2, new Ping());
+        pingAndWait(p2);
+        assertEquals(0, blockChain.getBestChainHeight());
+        filterAndSend(p1, blocks.subList(0, 3), filter);
+        inbound(p1, new Ping());
+        pingAndWait(p1);
+        assertEquals(6, blockChain.getBestChainHeight());
+
+        // Once caught up the download peer carries on as usual.
+        peerGroup.waitForJobQueue();
+        assertTrue(peerOf(p1).isDownloadData());
+        assertFalse(peerOf(p2).isDownloadData());
+    }
+
+    @Test
+    public void parallelDownloadAsksAgainWhenPeerDisconnects() throws Exception {
+        peerGroup.setUseParallelDownload(true);
+        peerGroup.setMaxBlocksInFlightPerPeer(3);
+        peerGroup.addDisconnectedEventListener(disconnectedListener);
+        peerGroup.start();
+        InboundMessageQueuer p1 = connectPeer(1);
+        InboundMessageQueuer p2 = connectPeer(2);
+        List<Block> blocks = makeBlocks(6);
+
+        peerGroup.startBlockChainDownload(new AbstractPeerDataEventListener() {
+        });
+        assertNextMessageIs(p1, GetHeadersMessage.class);
+        inbound(p1, headersOf(blocks));
+        assertNextMessageIs(p1, GetDataMessage.class);
+        assertNextMessageIs(p1, Ping.class);
+        assertNextMessageIs(p2, GetDataMessage.class);
+
+        // The second peer goes away without sending anything, so its blocks are asked for from the first.
+        closePeer(peerOf(p2));
+        disconnectedPeers.take();
+        BloomFilter filter = peerOf(p1).getBloomFilter();
+        filterAndSend(p1, blocks.subList(0, 3), filter);
+        inbound(p1, new Ping());
+        pingAndWait(p1);
+        assertEquals(3, blockChain.getBestChainHeight());
+        GetDataMessage getdata = assertNextMessageIs(p1, GetDataMessage.class);
+        assertEquals(blocks.get(3).getHash(), getdata.getItems().get(0).hash);
+        assertNextMessageIs(p1, Ping.class);
+        filterAndSend(p1, blocks.subList(3, 6), filter);
+        inbound(p1, new Ping());
+        pingAndWait(p1);
+        assertEquals(6, blockChain.getBestChainHeight());
+    }
+
+    @Test
+    public void stalledDownloadIsHandedOver() throws Exception {
+        peerGroup.start();
+        InboundMessageQueuer p1 = connectPeer(1);
+        InboundMessageQueuer p2 = connectPeer(2);
+        List<Block> blocks = makeBlocks(1);
+
+        peerGroup.startBlockChainDownload(new AbstractPeerDataEventListener() {
+        });
+        assertNextMessageIs(p1, GetBlocksMessage.class);
+        InventoryMessage inv = new InventoryMessage(PARAMS);
+        inv.addBlock(blocks.get(0));
+        inbound(p1, inv);
+        assertNextMessageIs(p1, GetDataMessage.class);
+        inbound(p2, inv);
+        pingAndWait(p2);
+
+        // The download peer is too slow, so the other one takes over without it being disconnected.
+        peerGroup.handOffStalledDownload(Block.HEADER_SIZE * 20);
+        assertEquals(peerOf(p2), peerGroup.getDownloadPeer());
+        assertFalse(peerOf(p1).isDownloadData());
+        assertNextMessageIs(p2, GetBlocksMessage.class);
+        assertEquals(2, peerGroup.numConnectedPeers());
+
+        // What the first peer was already asked for still goes to the chain.
+        filterAndSend(p1, blocks, peerOf(p1).getBloomFilter());
+        inbound(p1, new Ping());
+        pingAndWait(p1);
+        assertEquals(1, blockChain.getBestChainHeight());
+    }
+
+    @Test
+    public void stalledDownloadPeerIsDisconnectedWhenNoneIsFaster() throws Exception {
+        peerGroup.addDisconnectedEventListener(disconnectedListener);
+        peerGroup.start();
+        InboundMessageQueuer p1 = connectPeer(1);
+        peerGroup.startBlockChainDownload(new AbstractPeerDataEventListener() {
+        });
+        assertNextMessageIs(p1, GetBlocksMessage.class);
+        peerGroup.handOffStalledDownload(Block.HEADER_SIZE * 20);
+        assertEquals(peerOf(p1), disconnectedPeers.take());
+    }
+
+    private List<Block> makeBlocks(int count) throws BlockStoreException {
+        List<Block> blocks = new ArrayList<Block>();
+        Block prev = blockStore.getChainHead().getHeader();
+        for (int i = 0; i < count; i++) {
+            prev = FakeTxBuilder.makeSolvedTestBlock(prev);
+            blocks.add(prev);
+        }
+        return blocks;
+    }
+
+    private HeadersMessage headersOf(List<Block> blocks) throws ProtocolException {
+        List<Block> headers = new ArrayList<Block>();
+        for (Block block : blocks)
+            headers.add(block.cloneAsHeader());
+        return new HeadersMessage(PARAMS, headers);
+    }
+
     private void filterAndSend(InboundMessageQueuer p1, List<Block> blocks, BloomFilter filter) {
         for (Block block : blocks) {
             FilteredBlock fb = filter.applyAndUpdate(block);
@@ -0,0 +1,93 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.blockchainj.core;
+
+import org.blockchainj.params.UnitTestParams;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class PeerSocketHandlerTest {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+
+    private final List<Message> received = new ArrayList<Message>();
+    private PeerSocketHandler handler;
+
+    @Before
+    public void setUp() throws Exception {
+        Context.propagate(new Context(PARAMS));
+        handler = new PeerSocketHandler(PARAMS, new InetSocketAddress(InetAddress.getLoopbackAddress(), 8333)) {
+            @Override
+            protected void processMessage(Message m) {
+                received.add(m);
+            }
+
+            @Override
+            public void connectionOpened() {
+            }
+
+            @Override
+            public void connectionClosed() {
+            }
+        };
+    }
+
+    @Test
+    public void receivesMessageLargerThanReadBuffer() throws Exception {
+        Block block = PARAMS.getGenesisBlock().createNextBlock(null);
+        Transaction tx = new Transaction(PARAMS);
+        tx.addInput(new TransactionInput(PARAMS, tx, new byte[] { 0, 1 },
+                new TransactionOutPoint(PARAMS, 0, Sha256Hash.of(new byte[] { 1 }))));
+        tx.addOutput(new TransactionOutput(PARAMS, tx, Coin.COIN, new byte[5000]));
+        block.addTransaction(tx);
+        MessageSerializer serializer = PARAMS.getDefaultSerializer();
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        serializer.serialize(new Ping(1), bos);
+        serializer.serialize(block, bos);
+        serializer.serialize(new Ping(2), bos);
+        byte[] bytes = bos.toByteArray();
+
+        // Feed the bytes the way ConnectionHandler does, through a read buffer several times smaller than the block.
+        ByteBuffer buff = ByteBuffer.allocate(1024);
+        int offset = 0;
+        while (offset < bytes.length) {
+            int length = Math.min(buff.remaining(), bytes.length - offset);
+            buff.put(bytes, offset, length);
+            offset += length;
+            buff.flip();
+            int consumed = handler.receiveBytes(buff);
+            // A failure to parse or process the bytes would return -1.
+            assertEquals(buff.position(), consumed);
+            buff.compact();
+        }
+
+        assertEquals(0, buff.position());
+        assertEquals(3, received.size());
+        assertEquals(1, ((Ping) received.get(0)).getNonce());
+        Block read = (Block) received.get(1);
+        assertEquals(block, read);
+        assertEquals(2, read.getTransactions().size());
+        assertEquals(5000, read.getTransactions().get(1).getOutput(0).getScriptBytes().length);
+        assertEquals(2, ((Ping) received.get(2)).getNonce());
+    }
+}
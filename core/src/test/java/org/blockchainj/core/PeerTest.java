@@ -18,6 +18,7 @@ package org.blockchainj.core;
 
 import com.google.common.collect.*;
 import org.blockchainj.core.listeners.*;
+import org.blockchainj.net.PooledBuffer;
 import org.blockchainj.params.TestNet3Params;
 import org.blockchainj.testing.FakeTxBuilder;
 import org.blockchainj.testing.InboundMessageQueuer;
@@ -537,6 +538,65 @@ public class PeerTest extends TestWithNetworkConnections {
         assertEquals(7250, peer.getPingTime());
     }
 
+    @Test
+    public void sendSerializedMessage() throws Exception {
+        connect();
+        Transaction tx = createFakeTx(PARAMS, COIN, address);
+        // The same buffer can be sent more than once, and to more than one peer.
+        PooledBuffer serializedTx = peer.serializeMessage(tx);
+        peer.sendMessage(serializedTx);
+        peer.sendMessage(serializedTx);
+        serializedTx.release();
+        assertEquals(tx, outbound(writeTarget));
+        assertEquals(tx, outbound(writeTarget));
+    }
+
+    @Test
+    public void downloadRate() throws Exception {
+        connect();
+        Utils.setMockClock();
+        assertEquals(-1, peer.getDownloadRate());
+        // The first update only starts the clock.
+        peer.updateDownloadRate(true);
+        assertEquals(-1, peer.getDownloadRate());
+        Block b1 = createFakeBlock(blockStore, Block.BLOCK_HEIGHT_GENESIS).block;
+        inbound(writeTarget, b1);
+        pingAndWait(writeTarget);
+        Utils.rollMockClock(2);
+        peer.updateDownloadRate(true);
+        double rate = b1.blockchainSerialize().length / 2.0;
+        assertEquals((long) rate, peer.getDownloadRate());
+        // Being idle says nothing about how fast the peer is.
+        Utils.rollMockClock(10);
+        peer.updateDownloadRate(false);
+        assertEquals((long) rate, peer.getDownloadRate());
+        // Sending nothing when asked for blocks does.
+        Utils.rollMockClock(5);
+        peer.updateDownloadRate(true);
+        assertEquals(rate * Math.exp(-1), peer.getDownloadRate(), 1);
+    }
+
+    @Test
+    public void blockRequestedBeforeLosingDownloadStatus() throws Exception {
+        connect();
+        Block b1 = createFakeBlock(blockStore, Block.BLOCK_HEIGHT_GENESIS).block;
+        blockChain.add(b1);
+        Block b2 = makeSolvedTestBlock(b1);
+        Block b3 = makeSolvedTestBlock(b2);
+        InventoryMessage inv = new InventoryMessage(PARAMS);
+        inv.addBlock(b2);
+        inbound(writeTarget, inv);
+        GetDataMessage getdata = (GetDataMessage) outbound(writeTarget);
+        assertEquals(b2.getHash(), getdata.getItems().get(0).hash);
+        // Another peer takes over the download before the block arrives, but it is still added.
+        peer.setDownloadData(false);
+        inbound(writeTarget, b2);
+        // A block that was not asked for is not.
+        inbound(writeTarget, b3);
+        pingAndWait(writeTarget);
+        assertEquals(b2.getHash(), blockChain.getChainHead().getHeader().getHash());
+    }
+
     @Test
     public void recursiveDependencyDownloadDisabled() throws Exception {
         peer.setDownloadTxDependencies(false);
@@ -0,0 +1,124 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.blockchainj.core;
+
+import org.blockchainj.core.ScriptVerificationScheduler.InputCheck;
+import org.blockchainj.params.UnitTestParams;
+import org.blockchainj.script.Script;
+import org.blockchainj.script.Script.VerifyFlag;
+import org.blockchainj.script.ScriptBuilder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.*;
+
+public class ScriptVerificationSchedulerTest {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+    private static final Set<VerifyFlag> FLAGS = EnumSet.of(VerifyFlag.P2SH);
+
+    private ScriptVerificationScheduler scheduler;
+
+    @Before
+    public void setUp() {
+        Context.propagate(new Context(PARAMS));
+        scheduler = new ScriptVerificationScheduler(Executors.newFixedThreadPool(4), 4);
+    }
+
+    @After
+    public void tearDown() {
+        scheduler.shutdown();
+    }
+
+    @Test
+    public void expensiveInputsFirstAndCheapOnesBatched() throws Exception {
+        Script payToAddress = ScriptBuilder.createOutputScript(new ECKey().toAddress(PARAMS));
+        Script multiSig = ScriptBuilder.createMultiSigOutputScript(2, Arrays.asList(new ECKey(), new ECKey(), new ECKey()));
+        Transaction tx = new Transaction(PARAMS);
+        for (int i = 0; i < 9; i++)
+            tx.addInput(new TransactionInput(PARAMS, tx, new byte[0], new TransactionOutPoint(PARAMS, i, Sha256Hash.ZERO_HASH)));
+        List<InputCheck> inputs = new ArrayList<InputCheck>();
+        for (int i = 0; i < 9; i++) {
+            Script script = i == 8 ? multiSig : payToAddress;
+            inputs.add(new InputCheck(tx, i, script, FLAGS, ScriptVerificationScheduler.estimateCost(tx, i, script)));
+        }
+        assertEquals(1, inputs.get(0).cost);
+        assertTrue(inputs.get(8).cost > 1);
+
+        List<List<InputCheck>> jobs = ScriptVerificationScheduler.plan(inputs, 4);
+        assertEquals(3, jobs.size());
+        assertEquals(Collections.singletonList(inputs.get(8)), jobs.get(0));
+        assertEquals(inputs.subList(0, 4), jobs.get(1));
+        assertEquals(inputs.subList(4, 8), jobs.get(2));
+    }
+
+    @Test
+    public void largeTransactionsCostMore() throws Exception {
+        Script payToAddress = ScriptBuilder.createOutputScript(new ECKey().toAddress(PARAMS));
+        Transaction tx = new Transaction(PARAMS);
+        tx.addInput(new TransactionInput(PARAMS, tx, new byte[0], new TransactionOutPoint(PARAMS, 0, Sha256Hash.ZERO_HASH)));
+        long small = ScriptVerificationScheduler.estimateCost(tx, 0, payToAddress);
+        tx.addOutput(Coin.COIN, new Script(new byte[50000]));
+        assertTrue(ScriptVerificationScheduler.estimateCost(tx, 0, payToAddress) > small);
+    }
+
+    @Test
+    public void verifiesAllInputs() throws Exception {
+        ScriptVerificationScheduler.Verification verification = scheduler.newVerification();
+        for (int i = 0; i < 5; i++)
+            addSpend(verification, 7, -1);
+        verification.start();
+        verification.await();
+    }
+
+    @Test
+    public void badSignatureFails() throws Exception {
+        ScriptVerificationScheduler.Verification verification = scheduler.newVerification();
+        for (int i = 0; i < 5; i++)
+            addSpend(verification, 7, i == 3 ? 5 : -1);
+        verification.start();
+        try {
+            verification.await();
+            fail();
+        } catch (ScriptException e) {
+            // Expected.
+        }
+    }
+
+    // Adds a transaction spending the given number of pay to pubkey outputs, with the input at badIndex signed by the
+    // wrong key.
+    private void addSpend(ScriptVerificationScheduler.Verification verification, int inputs, int badIndex) {
+        Transaction tx = new Transaction(PARAMS);
+        tx.addOutput(Coin.COIN, new ECKey());
+        List<Script> scripts = new ArrayList<Script>();
+        for (int i = 0; i < inputs; i++) {
+            ECKey key = new ECKey();
+            Script script = ScriptBuilder.createOutputScript(key);
+            TransactionOutPoint outPoint = new TransactionOutPoint(PARAMS, i, Sha256Hash.of(new byte[] { (byte) i }));
+            // Each signature only covers its own input, so that adding more inputs does not invalidate it.
+            tx.addSignedInput(outPoint, script, i == badIndex ? new ECKey() : key, Transaction.SigHash.ALL, true);
+            scripts.add(script);
+        }
+        verification.add(tx, scripts, FLAGS);
+    }
+}
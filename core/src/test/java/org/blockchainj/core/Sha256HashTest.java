@@ -0,0 +1,89 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.blockchainj.core;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.blockchainj.core.Utils.HEX;
+import static org.junit.Assert.*;
+
+public class Sha256HashTest {
+    private static final String GENESIS_HEADER = "0100000000000000000000000000000000000000000000000000000000000000" +
+            "000000003ba3edfd7a7b12b27ac72c3e67768f617fc81bc3888a51323a9fb8aa4b1e5e4a29ab5f49ffff001d1dac2b7c";
+
+    @After
+    public void tearDown() {
+        Sha256Hash.setPureJavaHashing(false);
+    }
+
+    @Test
+    public void hashOfGenesisHeader() {
+        byte[] header = HEX.decode(GENESIS_HEADER);
+        Sha256Hash expected = Sha256Hash.wrap("000000000019d6689c085ae165831e934ff763ae46a2a6c172b3f1b60a8ce26f");
+        assertEquals(expected, Sha256Hash.wrapReversed(Sha256Hash.hashTwice(header)));
+        Sha256Hash.setPureJavaHashing(true);
+        assertEquals(expected, Sha256Hash.wrapReversed(Sha256Hash.hashTwice(header)));
+    }
+
+    @Test
+    public void pureJavaMatchesDigest() {
+        Random random = new Random(1);
+        for (int i = 0; i < 500; i++) {
+            int length = random.nextBoolean() ? 64 : 80;
+            int offset = random.nextInt(10);
+            byte[] input = new byte[offset + length + random.nextInt(10)];
+            random.nextBytes(input);
+            MessageDigest digest = Sha256Hash.newDigest();
+            digest.update(input, offset, length);
+            byte[] expected = digest.digest(digest.digest());
+            assertArrayEquals(expected, Sha256d.hashTwice(input, offset, length));
+        }
+    }
+
+    @Test
+    public void hashTwiceInPlace() {
+        byte[] nodes = new byte[96];
+        new Random(2).nextBytes(nodes);
+        byte[] expected = Sha256Hash.hashTwice(Arrays.copyOf(nodes, 64));
+        for (boolean pureJava : new boolean[] { false, true }) {
+            Sha256Hash.setPureJavaHashing(pureJava);
+            byte[] output = Arrays.copyOf(nodes, nodes.length);
+            Sha256Hash.hashTwice(output, 0, 64, output, 32);
+            assertArrayEquals(expected, Arrays.copyOfRange(output, 32, 64));
+            assertArrayEquals(Arrays.copyOf(nodes, 32), Arrays.copyOf(output, 32));
+        }
+    }
+
+    @Test
+    public void hashByteBuffers() {
+        byte[] bytes = HEX.decode(GENESIS_HEADER);
+        byte[] expected = Sha256Hash.hashTwice(bytes, 4, 32);
+        ByteBuffer heap = ByteBuffer.wrap(bytes);
+        heap.position(4).limit(36);
+        ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length);
+        direct.put(bytes).position(4).limit(36);
+        for (ByteBuffer buffer : new ByteBuffer[] { heap, direct, heap.slice() }) {
+            assertArrayEquals(expected, Sha256Hash.hashTwice(buffer));
+            assertArrayEquals(Sha256Hash.hash(Arrays.copyOfRange(bytes, 4, 36)), Sha256Hash.hash(buffer));
+            assertEquals(32, buffer.remaining());
+        }
+    }
+}
@@ -404,4 +404,100 @@ public class TransactionTest {
             };
         }
     }
+
+    @Test
+    public void hashForSignatureMatchesModifiedCopy() throws Exception {
+        Random random = new Random(1);
+        Transaction tx = new Transaction(PARAMS);
+        for (int i = 0; i < 5; i++) {
+            byte[] hash = new byte[32];
+            random.nextBytes(hash);
+            TransactionInput input = new TransactionInput(PARAMS, tx, new byte[random.nextInt(100)],
+                    new TransactionOutPoint(PARAMS, random.nextInt(10), Sha256Hash.wrap(hash)));
+            input.setSequenceNumber(random.nextInt());
+            tx.addInput(input);
+        }
+        for (int i = 0; i < 4; i++)
+            tx.addOutput(Coin.valueOf(random.nextInt(1000000)), new ECKey());
+        tx.setLockTime(12345);
+        // The connected script has a code separator in it, which is never signed.
+        byte[] connectedScript = new ScriptBuilder().op(ScriptOpCodes.OP_DUP).op(ScriptOpCodes.OP_CODESEPARATOR)
+                .data(new byte[20]).op(ScriptOpCodes.OP_CHECKSIG).build().getProgram();
+
+        int[] types = { 0, Transaction.SigHash.ALL.value, Transaction.SigHash.NONE.value,
+                Transaction.SigHash.SINGLE.value, 4 };
+        for (int round = 0; round < 2; round++) {
+            for (int type : types) {
+                for (int anyoneCanPay = 0; anyoneCanPay <= 0x80; anyoneCanPay += 0x80) {
+                    byte sigHashType = (byte) (type | anyoneCanPay);
+                    for (int index = 0; index < tx.getInputs().size(); index++)
+                        assertEquals(hashForSignatureOfCopy(tx, index, connectedScript, sigHashType),
+                                tx.hashForSignature(index, connectedScript, sigHashType));
+                }
+            }
+            // Changing the transaction must not leave stale parts behind.
+            tx.addOutput(Coin.COIN, new ECKey());
+            tx.getInput(2).setSequenceNumber(7);
+        }
+    }
+
+    @Test
+    public void resignAfterShuffleOutputs() throws Exception {
+        ECKey key = new ECKey();
+        Script scriptPubKey = ScriptBuilder.createOutputScript(key);
+        Transaction tx = new Transaction(PARAMS);
+        for (int i = 0; i < 10; i++)
+            tx.addOutput(Coin.valueOf(i + 1), new ECKey());
+        TransactionInput input = tx.addInput(new TransactionInput(PARAMS, tx, new byte[] {},
+                new TransactionOutPoint(PARAMS, 0, Sha256Hash.of(new byte[] { 1 }))));
+        tx.calculateSignature(0, key, scriptPubKey, Transaction.SigHash.ALL, false);
+        List<TransactionOutput> signedOrder = new ArrayList<TransactionOutput>(tx.getOutputs());
+        while (signedOrder.equals(tx.getOutputs()))
+            tx.shuffleOutputs();
+
+        TransactionSignature signature = tx.calculateSignature(0, key, scriptPubKey, Transaction.SigHash.ALL, false);
+        input.setScriptSig(ScriptBuilder.createInputScript(signature));
+        // Verify on a copy, which has nothing cached from before the shuffle.
+        Transaction copy = new Transaction(PARAMS, tx.blockchainSerialize());
+        assertEquals(copy.getHash(), tx.getHash());
+        copy.getInput(0).getScriptSig().correctlySpends(copy, 0, scriptPubKey);
+    }
+
+    // Signature hash computed the way the reference client describes it: on a modified copy of the transaction.
+    private static Sha256Hash hashForSignatureOfCopy(Transaction original, int inputIndex, byte[] connectedScript,
+                                                     byte sigHashType) throws Exception {
+        Transaction tx = new Transaction(PARAMS, original.blockchainSerialize());
+        for (TransactionInput input : tx.getInputs())
+            input.clearScriptBytes();
+        connectedScript = Script.removeAllInstancesOfOp(connectedScript, ScriptOpCodes.OP_CODESEPARATOR);
+        TransactionInput input = tx.getInput(inputIndex);
+        input.setScriptBytes(connectedScript);
+        List<TransactionOutput> outputs = new ArrayList<TransactionOutput>(tx.getOutputs());
+        if ((sigHashType & 0x1f) == Transaction.SigHash.NONE.value) {
+            outputs.clear();
+            for (int i = 0; i < tx.getInputs().size(); i++)
+                if (i != inputIndex)
+                    tx.getInput(i).setSequenceNumber(0);
+        } else if ((sigHashType & 0x1f) == Transaction.SigHash.SINGLE.value) {
+            if (inputIndex >= outputs.size())
+                return Sha256Hash.wrap("0100000000000000000000000000000000000000000000000000000000000000");
+            outputs = new ArrayList<TransactionOutput>(outputs.subList(0, inputIndex + 1));
+            for (int i = 0; i < inputIndex; i++)
+                outputs.set(i, new TransactionOutput(PARAMS, null, Coin.NEGATIVE_SATOSHI, new byte[] {}));
+            for (int i = 0; i < tx.getInputs().size(); i++)
+                if (i != inputIndex)
+                    tx.getInput(i).setSequenceNumber(0);
+        }
+        tx.clearOutputs();
+        for (TransactionOutput output : outputs)
+            tx.addOutput(new TransactionOutput(PARAMS, null, output.getValue(), output.getScriptBytes()));
+        if ((sigHashType & Transaction.SigHash.ANYONECANPAY.value) == Transaction.SigHash.ANYONECANPAY.value) {
+            tx.clearInputs();
+            tx.addInput(input);
+        }
+        byte[] bytes = tx.blockchainSerialize();
+        byte[] withType = Arrays.copyOf(bytes, bytes.length + 4);
+        Utils.uint32ToByteArrayLE(0xff & sigHashType, withType, bytes.length);
+        return Sha256Hash.twiceOf(withType);
+    }
 }
@@ -0,0 +1,74 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.blockchainj.core;
+
+import org.blockchainj.params.UnitTestParams;
+import org.blockchainj.script.Script;
+import org.blockchainj.script.ScriptBuilder;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class UTXOTest {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+    private static final Sha256Hash HASH = Sha256Hash.of(new byte[] { 1, 2, 3 });
+
+    @Test
+    public void compactPayToAddress() throws Exception {
+        ECKey key = new ECKey();
+        UTXO out = new UTXO(HASH, 3, Coin.COIN, 123456, false, ScriptBuilder.createOutputScript(key.toAddress(PARAMS)));
+        byte[] bytes = roundTrip(out);
+        // Tag and hash instead of the 25 byte script.
+        assertTrue(bytes.length < 1 + 4 + 5 + 25);
+    }
+
+    @Test
+    public void compactPayToScriptHash() throws Exception {
+        Script redeemScript = ScriptBuilder.createMultiSigOutputScript(2, Arrays.asList(new ECKey(), new ECKey()));
+        roundTrip(new UTXO(HASH, 0, Coin.CENT, 1, true, ScriptBuilder.createP2SHOutputScript(redeemScript)));
+    }
+
+    @Test
+    public void compactOtherScripts() throws Exception {
+        roundTrip(new UTXO(HASH, 0, Coin.ZERO, 0, true, ScriptBuilder.createOutputScript(new ECKey())));
+        roundTrip(new UTXO(HASH, 0xFFFFFFFFL, PARAMS.getMaxMoney(), Integer.MAX_VALUE, false, new Script(new byte[0])));
+    }
+
+    @Test(expected = EOFException.class)
+    public void compactTruncated() throws Exception {
+        UTXO out = new UTXO(HASH, 0, Coin.COIN, 10, false, ScriptBuilder.createOutputScript(new ECKey()));
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        out.serializeCompact(bos);
+        byte[] bytes = bos.toByteArray();
+        UTXO.deserializeCompact(HASH, 0, Arrays.copyOf(bytes, bytes.length - 1));
+    }
+
+    private byte[] roundTrip(UTXO out) throws Exception {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        out.serializeCompact(bos);
+        byte[] bytes = bos.toByteArray();
+        UTXO read = UTXO.deserializeCompact(out.getHash(), out.getIndex(), bytes);
+        assertEquals(out, read);
+        assertEquals(out.getValue(), read.getValue());
+        assertEquals(out.getHeight(), read.getHeight());
+        assertEquals(out.isCoinbase(), read.isCoinbase());
+        assertArrayEquals(out.getScript().getProgram(), read.getScript().getProgram());
+        return bytes;
+    }
+}
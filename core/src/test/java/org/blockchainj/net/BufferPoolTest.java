@@ -0,0 +1,94 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.blockchainj.net;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class BufferPoolTest {
+    @Test
+    public void sizeClasses() {
+        assertEquals(0, BufferPool.sizeClass(0));
+        assertEquals(0, BufferPool.sizeClass(BufferPool.MIN_POOLED_SIZE));
+        assertEquals(1, BufferPool.sizeClass(BufferPool.MIN_POOLED_SIZE + 1));
+        assertEquals(1, BufferPool.sizeClass(BufferPool.MIN_POOLED_SIZE * 2));
+        assertEquals(12, BufferPool.sizeClass(BufferPool.MAX_POOLED_SIZE));
+        assertEquals(-1, BufferPool.sizeClass(BufferPool.MAX_POOLED_SIZE + 1));
+    }
+
+    @Test
+    public void buffersAreUsedAgain() {
+        BufferPool pool = new BufferPool(false, BufferPool.DEFAULT_MAX_FREE_BYTES_PER_CLASS);
+        PooledBuffer buffer = pool.take(1000);
+        assertEquals(1024, buffer.buffer().capacity());
+        assertEquals(1024, buffer.buffer().limit());
+        buffer.buffer().putInt(42);
+        ByteBuffer bytes = buffer.buffer();
+        buffer.release();
+        assertEquals(1, pool.getFreeCount());
+        PooledBuffer again = pool.take(600);
+        assertSame(bytes, again.buffer());
+        assertEquals(0, again.buffer().position());
+        assertEquals(0, pool.getFreeCount());
+        // Buffers of another size class are not.
+        assertNotSame(bytes, pool.take(100).buffer());
+    }
+
+    @Test
+    public void sharedBufferComesBackAfterLastRelease() {
+        BufferPool pool = new BufferPool(false, BufferPool.DEFAULT_MAX_FREE_BYTES_PER_CLASS);
+        PooledBuffer buffer = pool.take(10);
+        buffer.buffer().put(new byte[] {1, 2, 3}).flip();
+        buffer.retain();
+        ByteBuffer view = buffer.view();
+        buffer.release();
+        assertEquals(0, pool.getFreeCount());
+        // The view has a position of its own.
+        assertEquals(1, view.get());
+        assertEquals(0, buffer.buffer().position());
+        assertEquals(3, buffer.size());
+        buffer.release();
+        assertEquals(1, pool.getFreeCount());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void cannotRetainReleasedBuffer() {
+        PooledBuffer buffer = new BufferPool(false, 0).take(10);
+        buffer.release();
+        buffer.retain();
+    }
+
+    @Test
+    public void limits() {
+        BufferPool pool = new BufferPool(true, BufferPool.MIN_POOLED_SIZE * 2);
+        PooledBuffer big = pool.take(BufferPool.MAX_POOLED_SIZE + 1);
+        assertTrue(big.buffer().isDirect());
+        assertEquals(BufferPool.MAX_POOLED_SIZE + 1, big.buffer().capacity());
+        big.release();
+        assertEquals(0, pool.getFreeCount());
+        // Only as many free buffers are kept as fit in the limit.
+        PooledBuffer a = pool.take(1), b = pool.take(1), c = pool.take(1);
+        a.release();
+        b.release();
+        c.release();
+        assertEquals(2, pool.getFreeCount());
+        // But at least one of every size.
+        pool.take(BufferPool.MAX_POOLED_SIZE).release();
+        assertEquals(3, pool.getFreeCount());
+    }
+}
@@ -17,11 +17,13 @@
 
 package org.blockchainj.net;
 
+import org.blockchainj.core.Context;
 import org.blockchainj.core.Utils;
 import com.google.common.util.concurrent.SettableFuture;
 import com.google.protobuf.ByteString;
 import org.blockchain.paymentchannel.Protos;
 import org.blockchain.paymentchannel.Protos.TwoWayChannelMessage;
+import org.blockchainj.params.UnitTestParams;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -29,14 +31,24 @@ import org.junit.runner.RunWith;
 import org.junit.runners.Parameterized;
 
 import javax.net.SocketFactory;
+import java.io.ByteArrayOutputStream;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static com.google.common.base.Preconditions.checkState;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 
@@ -659,4 +671,174 @@ public class NetworkAbstractionTests {
         server.stopAsync();
         server.awaitTerminated();
     }
+
+    // Records the thread it was opened on, and either echoes the bytes it receives or collects the given number of them
+    private static class ByteConnection implements StreamConnection {
+        final SettableFuture<Void> opened = SettableFuture.create();
+        final SettableFuture<byte[]> received = SettableFuture.create();
+        final SettableFuture<Void> closed = SettableFuture.create();
+        private final Set<Thread> threads;
+        private final int expectedBytes;
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        MessageWriteTarget writeTarget;
+
+        ByteConnection(Set<Thread> threads, int expectedBytes) {
+            this.threads = threads;
+            this.expectedBytes = expectedBytes;
+        }
+
+        @Override
+        public int receiveBytes(ByteBuffer buff) throws Exception {
+            byte[] read = new byte[buff.remaining()];
+            buff.get(read);
+            if (expectedBytes == 0) {
+                writeTarget.writeBytes(read);
+            } else {
+                bytes.write(read);
+                if (bytes.size() >= expectedBytes)
+                    received.set(bytes.toByteArray());
+            }
+            return read.length;
+        }
+
+        @Override
+        public void connectionOpened() {
+            threads.add(Thread.currentThread());
+            opened.set(null);
+        }
+
+        @Override
+        public void connectionClosed() {
+            closed.set(null);
+        }
+
+        @Override
+        public void setWriteTarget(MessageWriteTarget writeTarget) {
+            this.writeTarget = writeTarget;
+        }
+
+        @Override
+        public int getMaxMessageSize() {
+            return 1000;
+        }
+    }
+
+    @Test
+    public void multipleSelectorThreadsTest() throws Exception {
+        // Tests that connections are spread over the selector threads of the server (and of the client manager), and
+        // that each of them still gets its bytes echoed back
+        final int connections = 6;
+        final Set<Thread> serverThreads = Collections.synchronizedSet(new HashSet<Thread>());
+        Set<Thread> clientThreads = Collections.synchronizedSet(new HashSet<Thread>());
+        InetSocketAddress address = new InetSocketAddress("localhost", 4244);
+        NioClientManager manager = null;
+        if (clientType == 0) {
+            // The selector threads take on the context of the thread that starts the manager
+            Context.propagate(new Context(UnitTestParams.get()));
+            manager = new NioClientManager(3);
+            manager.startAsync().awaitRunning();
+        }
+        NioServer server = new NioServer(new StreamConnectionFactory() {
+            @Override
+            public StreamConnection getNewConnection(InetAddress inetAddress, int port) {
+                return new ByteConnection(serverThreads, 0);
+            }
+        }, address, 3);
+        server.startAsync();
+        server.awaitRunning();
+
+        List<ByteConnection> clients = new ArrayList<ByteConnection>();
+        for (int i = 0; i < connections; i++) {
+            ByteConnection client = new ByteConnection(clientThreads, 100);
+            if (clientType == 0)
+                manager.openConnection(address, client);
+            else if (clientType == 1)
+                channels.openConnection(address, client);
+            else if (clientType == 2)
+                new NioClient(address, client, 100);
+            else
+                new BlockingClient(address, client, 100, SocketFactory.getDefault(), null);
+            clients.add(client);
+        }
+
+        for (int i = 0; i < connections; i++) {
+            ByteConnection client = clients.get(i);
+            client.opened.get();
+            byte[] bytes = new byte[100];
+            Arrays.fill(bytes, (byte) i);
+            client.writeTarget.writeBytes(bytes);
+            assertArrayEquals(bytes, client.received.get());
+        }
+        // Connections are given to the threads in turn, so each of them got some
+        assertEquals(3, serverThreads.size());
+        if (clientType == 0)
+            assertEquals(3, clientThreads.size());
+
+        for (ByteConnection client : clients) {
+            client.writeTarget.closeConnection();
+            client.closed.get();
+        }
+        if (manager != null)
+            manager.stopAsync().awaitTerminated();
+        server.stopAsync();
+        server.awaitTerminated();
+    }
+
+    @Test
+    public void failedSelectorThreadStopsServer() throws Exception {
+        // Tests that an error on a selector thread other than the first one stops the whole server, rather than leave
+        // the connections given to that thread unserved
+        final Set<Thread> serverThreads = Collections.synchronizedSet(new HashSet<Thread>());
+        final AtomicInteger accepted = new AtomicInteger();
+        InetSocketAddress address = new InetSocketAddress("localhost", 4245);
+        // The selector threads take on the context of the thread that starts the server
+        Context.propagate(new Context(UnitTestParams.get()));
+        NioServer server = new NioServer(new StreamConnectionFactory() {
+            @Override
+            public StreamConnection getNewConnection(InetAddress inetAddress, int port) {
+                // The second connection is given to the second selector thread
+                if (accepted.getAndIncrement() == 0)
+                    return new ByteConnection(serverThreads, 0);
+                return new ByteConnection(serverThreads, 0) {
+                    @Override
+                    public void connectionOpened() {
+                        throw new RuntimeException("Fail the selector thread");
+                    }
+                };
+            }
+        }, address, 2);
+        server.startAsync();
+        server.awaitRunning();
+        NioClientManager manager = null;
+        if (clientType == 0) {
+            manager = new NioClientManager();
+            manager.startAsync().awaitRunning();
+        }
+
+        List<ByteConnection> clients = new ArrayList<ByteConnection>();
+        for (int i = 0; i < 2; i++) {
+            ByteConnection client = new ByteConnection(Collections.synchronizedSet(new HashSet<Thread>()), 100);
+            if (clientType == 0)
+                manager.openConnection(address, client);
+            else if (clientType == 1)
+                channels.openConnection(address, client);
+            else if (clientType == 2)
+                new NioClient(address, client, 100);
+            else
+                new BlockingClient(address, client, 100, SocketFactory.getDefault(), null);
+            client.opened.get();
+            clients.add(client);
+        }
+
+        try {
+            server.awaitTerminated(5, TimeUnit.SECONDS);
+            // Both connections were closed, including the one on the first selector thread
+            for (ByteConnection client : clients)
+                client.closed.get(5, TimeUnit.SECONDS);
+        } finally {
+            if (manager != null)
+                manager.stopAsync().awaitTerminated();
+            server.stopAsync();
+        }
+    }
 }
@@ -233,6 +233,29 @@ public class ScriptTest {
         assertEquals("OP_0 push length", 0, stack.get(0).length);
     }
 
+    @Test
+    public void numbersEncodeLikeMPI() {
+        long[] values = { 0, 1, -1, 16, 127, 128, -128, 255, 256, 32767, 32768, -32768, 0x7fffffffL, -0x7fffffffL,
+                0xffffffffL, -0xfffffffeL, 0x7fffffffffL };
+        for (long value : values)
+            assertArrayEquals(Utils.reverseBytes(Utils.encodeMPI(BigInteger.valueOf(value), false)),
+                    Script.encodeNumber(value));
+    }
+
+    @Test
+    public void stackOperationsOnArrayStack() {
+        // 1 2 3 4 5 6 OP_2ROT OP_2SWAP OP_ROT 2 3 OP_ADD OP_ROLL leaves 4 1 5 6 2 3.
+        Script script = new Script(HEX.decode("51525354555671727b5253937a"));
+        LinkedList<byte[]> stack = new LinkedList<byte[]>();
+        Script.executeScript(null, 0, script, stack, Script.ALL_VERIFY_FLAGS);
+        List<Long> numbers = new ArrayList<Long>();
+        for (byte[] element : stack)
+            numbers.add(Utils.decodeMPI(Utils.reverseBytes(element), false).longValue());
+        assertEquals(Arrays.asList(4L, 1L, 5L, 6L, 2L, 3L), numbers);
+        // The compiled form is kept for the next run.
+        assertSame(script.compile(), script.compile());
+    }
+
     private Script parseScriptString(String string) throws IOException {
         String[] words = string.split("[ \\t\\n]");
         
@@ -0,0 +1,152 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.blockchainj.script;
+
+import org.blockchainj.core.*;
+import org.blockchainj.params.UnitTestParams;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SignatureCacheTest {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+
+    private SignatureCache previous;
+    private SignatureCache cache;
+
+    @Before
+    public void setUp() {
+        Context.propagate(new Context(PARAMS));
+        previous = Script.getSignatureCache();
+        cache = new SignatureCache(10);
+        Script.setSignatureCache(cache);
+    }
+
+    @After
+    public void tearDown() {
+        Script.setSignatureCache(previous);
+    }
+
+    @Test
+    public void validSignaturesAreCached() {
+        ECKey key = new ECKey();
+        Sha256Hash hash = Sha256Hash.of(new byte[] { 1 });
+        ECKey.ECDSASignature sig = key.sign(hash);
+        byte[] sigBytes = sig.encodeToDER();
+        assertTrue(cache.verify(hash.getBytes(), sigBytes, sig, key.getPubKey()));
+        assertEquals(1, cache.getMisses());
+        assertTrue(cache.verify(hash.getBytes(), sigBytes, sig, key.getPubKey()));
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.size());
+
+        // A different key or hash is not a hit.
+        assertFalse(cache.verify(hash.getBytes(), sigBytes, sig, new ECKey().getPubKey()));
+        assertFalse(cache.verify(Sha256Hash.of(new byte[] { 2 }).getBytes(), sigBytes, sig, key.getPubKey()));
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void bounded() {
+        ECKey key = new ECKey();
+        for (int i = 0; i < 50; i++) {
+            Sha256Hash hash = Sha256Hash.of(new byte[] { (byte) i });
+            ECKey.ECDSASignature sig = key.sign(hash);
+            assertTrue(cache.verify(hash.getBytes(), sig.encodeToDER(), sig, key.getPubKey()));
+        }
+        assertTrue(cache.size() <= 10);
+    }
+
+    @Test
+    public void checkSigUsesCache() {
+        ECKey key = new ECKey();
+        Script scriptPubKey = ScriptBuilder.createOutputScript(key);
+        Transaction tx = new Transaction(PARAMS);
+        tx.addOutput(Coin.COIN, new ECKey());
+        tx.addSignedInput(new TransactionOutPoint(PARAMS, 0, Sha256Hash.ZERO_HASH), scriptPubKey, key);
+        Script scriptSig = tx.getInput(0).getScriptSig();
+
+        scriptSig.correctlySpends(tx, 0, scriptPubKey);
+        assertEquals(0, cache.getHits());
+        scriptSig.correctlySpends(tx, 0, scriptPubKey);
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void batchFillsCache() {
+        Transaction tx = new Transaction(PARAMS);
+        tx.addOutput(Coin.COIN, new ECKey());
+        ECKey key = new ECKey();
+        Script toAddress = ScriptBuilder.createOutputScript(key.toAddress(PARAMS));
+        Script toKey = ScriptBuilder.createOutputScript(key);
+        Script multiSig = ScriptBuilder.createMultiSigOutputScript(1, java.util.Arrays.asList(key));
+        Script[] scripts = { toAddress, toKey, toAddress };
+        for (int i = 0; i < scripts.length; i++) {
+            TransactionOutPoint outPoint = new TransactionOutPoint(PARAMS, i, Sha256Hash.ZERO_HASH);
+            // The last input is signed by the wrong key. The signature is valid for that key, but the script will not
+            // accept the key.
+            tx.addSignedInput(outPoint, scripts[i], i == 2 ? new ECKey() : key, Transaction.SigHash.ALL, true);
+        }
+        tx.addInput(new TransactionInput(PARAMS, tx, new byte[0], new TransactionOutPoint(PARAMS, 3, Sha256Hash.ZERO_HASH)));
+
+        SignatureCache.Batch batch = cache.newBatch();
+        for (int i = 0; i < scripts.length; i++)
+            batch.add(tx, i, scripts[i]);
+        batch.add(tx, 3, multiSig);
+        assertEquals(3, batch.size());
+        batch.verify();
+        assertEquals(3, cache.size());
+
+        tx.getInput(0).getScriptSig().correctlySpends(tx, 0, toAddress);
+        tx.getInput(1).getScriptSig().correctlySpends(tx, 1, toKey);
+        assertEquals(2, cache.getHits());
+        assertEquals(0, cache.getMisses());
+        try {
+            tx.getInput(2).getScriptSig().correctlySpends(tx, 2, toAddress);
+            fail();
+        } catch (ScriptException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void batchSkipsCachedSignatures() {
+        ECKey key = new ECKey();
+        Script scriptPubKey = ScriptBuilder.createOutputScript(key.toAddress(PARAMS));
+        Transaction tx = new Transaction(PARAMS);
+        tx.addOutput(Coin.COIN, new ECKey());
+        for (int i = 0; i < 2; i++)
+            tx.addSignedInput(new TransactionOutPoint(PARAMS, i, Sha256Hash.ZERO_HASH), scriptPubKey, key,
+                    Transaction.SigHash.ALL, true);
+        // The first input was checked before, say when the transaction was relayed.
+        tx.getInput(0).getScriptSig().correctlySpends(tx, 0, scriptPubKey);
+        assertEquals(1, cache.getMisses());
+
+        SignatureCache.Batch batch = cache.newBatch();
+        batch.add(tx, 0, scriptPubKey);
+        batch.add(tx, 1, scriptPubKey);
+        assertEquals(1, batch.size());
+        batch.verify();
+        assertEquals(2, cache.size());
+
+        for (int i = 0; i < 2; i++)
+            tx.getInput(i).getScriptSig().correctlySpends(tx, i, scriptPubKey);
+        assertEquals(2, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+}
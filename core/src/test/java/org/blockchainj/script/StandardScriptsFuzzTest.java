@@ -0,0 +1,224 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.blockchainj.script;
+
+import org.blockchainj.core.*;
+import org.blockchainj.core.Transaction.SigHash;
+import org.blockchainj.crypto.TransactionSignature;
+import org.blockchainj.params.MainNetParams;
+import org.blockchainj.script.Script.VerifyFlag;
+import org.blockchainj.utils.BlockFileLoader;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.*;
+
+import static org.blockchainj.core.Utils.HEX;
+import static org.junit.Assert.*;
+
+/**
+ * Checks that the template fast paths of {@link Script#correctlySpends(Transaction, long, Script, Set)} come to the
+ * same outcome as the interpreter, on randomly built and mangled spends and on spends from the start of the chain.
+ */
+public class StandardScriptsFuzzTest {
+    private static final NetworkParameters PARAMS = MainNetParams.get();
+    private static final List<Set<VerifyFlag>> FLAGS = Arrays.<Set<VerifyFlag>>asList(
+            EnumSet.noneOf(VerifyFlag.class),
+            EnumSet.of(VerifyFlag.P2SH),
+            EnumSet.of(VerifyFlag.P2SH, VerifyFlag.STRICTENC, VerifyFlag.NULLDUMMY),
+            Script.ALL_VERIFY_FLAGS);
+
+    private final Random random = new Random(42);
+    private final List<ECKey> keys = new ArrayList<ECKey>();
+    private SignatureCache signatureCache;
+
+    @Before
+    public void setUp() {
+        Context.propagate(new Context(PARAMS));
+        for (int i = 0; i < 6; i++)
+            keys.add(new ECKey());
+        // Every signature is really checked on both paths.
+        signatureCache = Script.getSignatureCache();
+        Script.setSignatureCache(null);
+    }
+
+    @After
+    public void tearDown() {
+        Script.setSignatureCache(signatureCache);
+    }
+
+    @Test
+    public void randomSpends() throws Exception {
+        int templated = 0;
+        int fellBack = 0;
+        for (int i = 0; i < 200; i++) {
+            Transaction tx = new Transaction(PARAMS);
+            tx.addOutput(Coin.COIN, keys.get(0));
+            if (random.nextBoolean())
+                tx.addOutput(Coin.CENT, keys.get(1));
+            byte[] prevTx = new byte[32];
+            random.nextBytes(prevTx);
+            tx.addInput(new TransactionInput(PARAMS, tx, new byte[0],
+                    new TransactionOutPoint(PARAMS, random.nextInt(3), Sha256Hash.wrap(prevTx))));
+            SigHash hashType = SigHash.values()[random.nextInt(3)];
+            boolean anyoneCanPay = random.nextBoolean();
+
+            Script scriptPubKey;
+            Script scriptSig;
+            switch (random.nextInt(3)) {
+            case 0: {
+                ECKey key = randomKey();
+                scriptPubKey = ScriptBuilder.createOutputScript(key.toAddress(PARAMS));
+                TransactionSignature sig = tx.calculateSignature(0, signingKey(key), scriptPubKey, hashType, anyoneCanPay);
+                scriptSig = ScriptBuilder.createInputScript(sig, random.nextInt(10) == 0 ? randomKey() : key);
+                break;
+            }
+            case 1: {
+                ECKey key = randomKey();
+                scriptPubKey = ScriptBuilder.createOutputScript(key);
+                scriptSig = ScriptBuilder.createInputScript(
+                        tx.calculateSignature(0, signingKey(key), scriptPubKey, hashType, anyoneCanPay));
+                break;
+            }
+            default: {
+                List<ECKey> multiSigKeys = keys.subList(0, 1 + random.nextInt(3));
+                int threshold = 1 + random.nextInt(multiSigKeys.size());
+                Script redeemScript = ScriptBuilder.createRedeemScript(threshold, multiSigKeys);
+                scriptPubKey = ScriptBuilder.createP2SHOutputScript(redeemScript);
+                List<TransactionSignature> sigs = new ArrayList<TransactionSignature>();
+                for (int k = 0; k < threshold; k++)
+                    sigs.add(tx.calculateSignature(0, signingKey(multiSigKeys.get(k)), redeemScript, hashType,
+                            anyoneCanPay));
+                if (random.nextInt(5) == 0)
+                    Collections.reverse(sigs);
+                scriptSig = ScriptBuilder.createP2SHMultiSigInputScript(sigs, redeemScript);
+                break;
+            }
+            }
+
+            byte[] program = scriptSig.getProgram();
+            if (random.nextBoolean())
+                program = mangle(program);
+            try {
+                scriptSig = new Script(program);
+            } catch (ScriptException e) {
+                continue; // Not even parseable.
+            }
+            for (Set<VerifyFlag> flags : FLAGS) {
+                String interpreted = outcome(scriptSig, tx, 0, scriptPubKey, flags, false);
+                assertEquals(HEX.encode(program) + " " + flags, interpreted, outcome(scriptSig, tx, 0, scriptPubKey, flags, true));
+                if (decidedByTemplate(scriptSig, tx, 0, scriptPubKey, flags))
+                    templated++;
+                else
+                    fellBack++;
+            }
+        }
+        // Both the fast paths and the fallback to the interpreter were compared.
+        assertTrue(templated > 300);
+        assertTrue(fellBack > 50);
+    }
+
+    @Test
+    public void firstSpendsOfTheChain() throws Exception {
+        File blockFile = new File(getClass().getResource("/org/blockchainj/core/first-100k-blocks.dat").getFile());
+        Map<TransactionOutPoint, Script> outputs = new HashMap<TransactionOutPoint, Script>();
+        int spends = 0;
+        for (Block block : new BlockFileLoader(PARAMS, Arrays.asList(blockFile))) {
+            for (Transaction tx : block.getTransactions()) {
+                for (int i = 0; i < tx.getInputs().size() && !tx.isCoinBase(); i++) {
+                    TransactionInput input = tx.getInput(i);
+                    Script scriptPubKey = outputs.remove(input.getOutpoint());
+                    assertNotNull(scriptPubKey);
+                    Set<VerifyFlag> flags = FLAGS.get(spends % FLAGS.size());
+                    assertEquals(outcome(input.getScriptSig(), tx, i, scriptPubKey, flags, false),
+                            outcome(input.getScriptSig(), tx, i, scriptPubKey, flags, true));
+                    // And the scriptSig of the previous input claiming this output.
+                    if (i > 0) {
+                        Script other = tx.getInput(i - 1).getScriptSig();
+                        assertEquals(outcome(other, tx, i, scriptPubKey, flags, false),
+                                outcome(other, tx, i, scriptPubKey, flags, true));
+                    }
+                    spends++;
+                }
+                for (int i = 0; i < tx.getOutputs().size(); i++)
+                    outputs.put(new TransactionOutPoint(PARAMS, i, tx.getHash()), tx.getOutput(i).getScriptPubKey());
+            }
+        }
+        assertTrue(spends > 0);
+    }
+
+    // Signs with the given key most of the time, and with the wrong one otherwise.
+    private ECKey signingKey(ECKey key) {
+        return random.nextInt(8) == 0 ? randomKey() : key;
+    }
+
+    private ECKey randomKey() {
+        return keys.get(random.nextInt(keys.size()));
+    }
+
+    // Damages the given program in one of a few ways.
+    private byte[] mangle(byte[] program) {
+        byte[] mangled = Arrays.copyOf(program, program.length);
+        switch (random.nextInt(5)) {
+        case 0:
+            mangled[random.nextInt(mangled.length)] ^= 1 << random.nextInt(8);
+            return mangled;
+        case 1:
+            return Arrays.copyOf(program, random.nextInt(program.length));
+        case 2:
+            // Opcodes that can appear at the start of a scriptSig, pushes or not.
+            int[] opcodes = { ScriptOpCodes.OP_0, ScriptOpCodes.OP_1, ScriptOpCodes.OP_1NEGATE, ScriptOpCodes.OP_16,
+                    ScriptOpCodes.OP_NOP, ScriptOpCodes.OP_DUP, ScriptOpCodes.OP_RESERVED };
+            byte[] prefixed = new byte[program.length + 1];
+            prefixed[0] = (byte) opcodes[random.nextInt(opcodes.length)];
+            System.arraycopy(program, 0, prefixed, 1, program.length);
+            return prefixed;
+        case 3:
+            // Change the sighash type of the first signature.
+            if (program.length > 1 && program[0] > 0 && program[0] < ScriptOpCodes.OP_PUSHDATA1 && program[0] < program.length)
+                mangled[program[0]] = (byte) random.nextInt(256);
+            else if (program.length > 2 && program[1] > 0 && program[1] < ScriptOpCodes.OP_PUSHDATA1 && program[1] + 1 < program.length)
+                mangled[program[1] + 1] = (byte) random.nextInt(256);
+            return mangled;
+        default:
+            byte[] extended = Arrays.copyOf(program, program.length + 2);
+            extended[program.length] = 1;
+            extended[program.length + 1] = (byte) random.nextInt(256);
+            return extended;
+        }
+    }
+
+    // Whether the fast path came to an outcome, rather than leaving the scripts to the interpreter.
+    private static boolean decidedByTemplate(Script scriptSig, Transaction tx, int index, Script scriptPubKey,
+                                             Set<VerifyFlag> flags) {
+        try {
+            return scriptSig.correctlySpendsTemplate(tx, index, scriptPubKey, flags);
+        } catch (Exception e) {
+            return true;
+        }
+    }
+
+    private static String outcome(Script scriptSig, Transaction tx, int index, Script scriptPubKey,
+                                  Set<VerifyFlag> flags, boolean templates) {
+        try {
+            scriptSig.correctlySpends(tx, index, scriptPubKey, flags, templates);
+            return "OK";
+        } catch (Exception e) {
+            return e.getClass().getName();
+        }
+    }
+}
@@ -0,0 +1,217 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.blockchainj.store;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import org.blockchainj.core.*;
+import org.blockchainj.params.UnitTestParams;
+import org.blockchainj.script.ScriptBuilder;
+import org.iq80.leveldb.DB;
+import org.iq80.leveldb.Options;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Set;
+
+import static org.fusesource.leveldbjni.JniDBFactory.factory;
+import static org.junit.Assert.*;
+
+public class LevelDBFullPrunedBlockStoreTest {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+
+    @Test
+    public void migratesOpenOutputsToCompactFormat() throws Exception {
+        File dir = File.createTempFile("leveldbfullprunedblockstore", null);
+        dir.delete();
+        Context.propagate(new Context(PARAMS));
+        ECKey key = new ECKey();
+        Address address = key.toAddress(PARAMS);
+        UTXO out = new UTXO(Sha256Hash.of(new byte[] { 1 }), 1, Coin.COIN, 7, false,
+                ScriptBuilder.createOutputScript(address));
+        LevelDBFullPrunedBlockStore store = new LevelDBFullPrunedBlockStore(PARAMS, dir.getPath(), 10);
+        store.addUnspentTransactionOutput(out);
+        store.close();
+
+        // Turn it into a version 1 store, which kept outputs in the UTXO.serializeToStream format.
+        DB db = factory.open(dir, new Options());
+        byte[] key37 = ByteBuffer.allocate(37).put((byte) LevelDBFullPrunedBlockStore.KeyType.OPENOUT_ALL.ordinal())
+                .put(out.getHash().getBytes()).putInt((int) out.getIndex()).array();
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        out.serializeToStream(bos);
+        db.put(key37, bos.toByteArray());
+        db.delete(new byte[] { (byte) LevelDBFullPrunedBlockStore.KeyType.VERSION_SETTING.ordinal() });
+        db.close();
+
+        store = new LevelDBFullPrunedBlockStore(PARAMS, dir.getPath(), 10);
+        try {
+            UTXO read = store.getTransactionOutput(out.getHash(), out.getIndex());
+            assertEquals(out, read);
+            assertEquals(out.getValue(), read.getValue());
+            assertArrayEquals(out.getScript().getProgram(), read.getScript().getProgram());
+            // The address is derived for UTXOProvider callers.
+            List<UTXO> outputs = store.getOpenTransactionOutputs(Lists.newArrayList(address));
+            assertEquals(1, outputs.size());
+            assertEquals(address.toString(), outputs.get(0).getAddress());
+        } finally {
+            store.close();
+            for (File f : dir.listFiles())
+                f.delete();
+            dir.delete();
+        }
+    }
+
+    @Test
+    public void writesBackUnspentOutputs() throws Exception {
+        File dir = File.createTempFile("leveldbfullprunedblockstore", null);
+        dir.delete();
+        Context.propagate(new Context(PARAMS));
+        Address address = new ECKey().toAddress(PARAMS);
+        UTXO first = new UTXO(Sha256Hash.of(new byte[] { 1 }), 0, Coin.COIN, 1, false,
+                ScriptBuilder.createOutputScript(address));
+        UTXO second = new UTXO(Sha256Hash.of(new byte[] { 2 }), 0, Coin.COIN, 2, false,
+                ScriptBuilder.createOutputScript(address));
+        byte[] firstKey = ByteBuffer.allocate(37).put((byte) LevelDBFullPrunedBlockStore.KeyType.OPENOUT_ALL.ordinal())
+                .put(first.getHash().getBytes()).putInt(0).array();
+        // Flush once two outputs are dirty.
+        long flushBytes = 2 * (UTXOCache.ENTRY_OVERHEAD_BYTES + first.getScript().getProgram().length);
+        LevelDBFullPrunedBlockStore store = new LevelDBFullPrunedBlockStore(PARAMS, dir.getPath(), 10, 1048576,
+                1048576, 1048576, flushBytes, Long.MAX_VALUE, false, Integer.MAX_VALUE);
+        try {
+            UTXOCache cache = store.getUTXOCache();
+            long flushes = cache.getFlushes();
+            store.beginDatabaseBatchWrite();
+            store.addUnspentTransactionOutput(first);
+            store.commitDatabaseBatchWrite();
+            assertNull(store.db.get(firstKey));
+            assertEquals(first, store.getTransactionOutput(first.getHash(), 0));
+            assertEquals(1, store.getOpenTransactionOutputs(Lists.newArrayList(address)).size());
+
+            // Spent before it was flushed, so it never reaches the database.
+            store.beginDatabaseBatchWrite();
+            store.removeUnspentTransactionOutput(first);
+            store.addUnspentTransactionOutput(second);
+            store.commitDatabaseBatchWrite();
+            assertEquals(1, cache.getUnflushedSpends());
+            assertNull(store.getTransactionOutput(first.getHash(), 0));
+            assertEquals(flushes, cache.getFlushes());
+
+            store.beginDatabaseBatchWrite();
+            store.addUnspentTransactionOutput(first);
+            store.commitDatabaseBatchWrite();
+            assertEquals(flushes + 1, cache.getFlushes());
+            assertNotNull(store.db.get(firstKey));
+            assertEquals(2, store.getOpenTransactionOutputs(Lists.newArrayList(address)).size());
+            assertEquals(0, cache.getFlushedDeletes());
+        } finally {
+            store.close();
+        }
+        store = new LevelDBFullPrunedBlockStore(PARAMS, dir.getPath(), 10);
+        try {
+            assertEquals(second, store.getTransactionOutput(second.getHash(), 0));
+            assertTrue(store.hasUnspentOutputs(first.getHash(), 1));
+        } finally {
+            store.close();
+            for (File f : dir.listFiles())
+                f.delete();
+            dir.delete();
+        }
+    }
+
+    @Test
+    public void openOutputsFromOneSnapshot() throws Exception {
+        File dir = File.createTempFile("leveldbfullprunedblockstore", null);
+        dir.delete();
+        Context.propagate(new Context(PARAMS));
+        Address a = new ECKey().toAddress(PARAMS);
+        Address b = new ECKey().toAddress(PARAMS);
+        Address other = new ECKey().toAddress(PARAMS);
+        LevelDBFullPrunedBlockStore store = new LevelDBFullPrunedBlockStore(PARAMS, dir.getPath(), 10);
+        try {
+            List<UTXO> flushed = Lists.newArrayList();
+            for (int i = 0; i < 6; i++) {
+                Address to = i % 3 == 0 ? a : i % 3 == 1 ? b : other;
+                flushed.add(new UTXO(Sha256Hash.of(new byte[] { (byte) i }), i, Coin.COIN, i, false,
+                        ScriptBuilder.createOutputScript(to)));
+            }
+            store.addUnspentTransactionOutputs(flushed);
+            store.flushUTXOCache();
+            // One flushed output to a is spent, and another one to b is added, without a flush.
+            UTXO unflushed = new UTXO(Sha256Hash.of(new byte[] { 10 }), 0, Coin.CENT, 10, false,
+                    ScriptBuilder.createOutputScript(b));
+            store.removeUnspentTransactionOutput(flushed.get(0));
+            store.addUnspentTransactionOutput(unflushed);
+
+            LevelDBFullPrunedBlockStore.OpenOutputIterator iterator =
+                    store.getOpenTransactionOutputsIterator(Lists.newArrayList(b, a));
+            // Changes after the iterator was created are not seen, even once flushed.
+            store.removeUnspentTransactionOutput(flushed.get(3));
+            store.flushUTXOCache();
+            Set<UTXO> found = Sets.newHashSet();
+            while (iterator.hasNext()) {
+                UTXO out = iterator.next();
+                assertTrue(found.add(out));
+                assertEquals(out.getScript().getToAddress(PARAMS).toString(), out.getAddress());
+            }
+            assertEquals(Sets.newHashSet(flushed.get(1), flushed.get(3), flushed.get(4), unflushed), found);
+
+            assertEquals(Sets.newHashSet(flushed.get(1), flushed.get(4), unflushed),
+                    Sets.newHashSet(store.getOpenTransactionOutputs(Lists.newArrayList(a, b))));
+        } finally {
+            store.close();
+            for (File f : dir.listFiles())
+                f.delete();
+            dir.delete();
+        }
+    }
+
+    @Test
+    public void reconnectsBlocksAfterCrash() throws Exception {
+        File dir = File.createTempFile("leveldbfullprunedblockstore", null);
+        dir.delete();
+        Context.propagate(new Context(PARAMS));
+        final int blockCount = 2;
+        LevelDBFullPrunedBlockStore store = new LevelDBFullPrunedBlockStore(PARAMS, dir.getPath(), blockCount);
+        try {
+            FullPrunedBlockChain chain = new FullPrunedBlockChain(PARAMS, store);
+            Block rollingBlock = PARAMS.getGenesisBlock();
+            for (int i = 0; i < 3 * blockCount; i++) {
+                rollingBlock = rollingBlock.createNextBlock(null);
+                assertTrue(chain.add(rollingBlock));
+            }
+            // The unspent outputs were never flushed, so neither was the verified chain head that goes with them.
+            // Crash by closing the database without close(), which would flush them.
+            store.db.close();
+
+            store = new LevelDBFullPrunedBlockStore(PARAMS, dir.getPath(), blockCount);
+            assertEquals(0, store.getVerifiedChainHead().getHeight());
+            assertEquals(3 * blockCount, store.getChainHead().getHeight());
+            // The blocks above the verified chain head are reconnected from their undo blocks.
+            chain = new FullPrunedBlockChain(PARAMS, store);
+            rollingBlock = rollingBlock.createNextBlock(null);
+            assertTrue(chain.add(rollingBlock));
+            assertEquals(3 * blockCount + 1, chain.getBestChainHeight());
+            assertEquals(3 * blockCount + 1, store.getVerifiedChainHead().getHeight());
+        } finally {
+            store.close();
+            for (File f : dir.listFiles())
+                f.delete();
+            dir.delete();
+        }
+    }
+}
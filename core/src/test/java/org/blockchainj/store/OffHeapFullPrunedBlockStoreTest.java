@@ -0,0 +1,128 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.blockchainj.store;
+
+import org.blockchainj.core.*;
+import org.blockchainj.params.UnitTestParams;
+import org.blockchainj.script.ScriptBuilder;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class OffHeapFullPrunedBlockStoreTest {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+
+    @Test
+    public void tableMatchesHashMap() throws Exception {
+        // Few segments and slots so that probe runs, resizes and free list reuse all happen.
+        OffHeapUTXOTable table = new OffHeapUTXOTable(2, 128 * 1024);
+        Map<ByteBuffer, byte[]> expected = new HashMap<ByteBuffer, byte[]>();
+        Random random = new Random(1);
+        for (int i = 0; i < 50000; i++) {
+            // Keys from a small space, so that many operations hit existing ones.
+            byte[] key = new byte[OffHeapUTXOTable.KEY_LENGTH];
+            key[0] = (byte) random.nextInt(40);
+            key[1] = (byte) random.nextInt(40);
+            key[35] = (byte) random.nextInt(4);
+            ByteBuffer wrapped = ByteBuffer.wrap(key);
+            if (random.nextInt(3) == 0) {
+                assertEquals(expected.remove(wrapped) != null, table.remove(key));
+            } else {
+                int maxLength = random.nextInt(500) == 0 ? 70000 : random.nextInt(10) == 0 ? 2000 : 60;
+                byte[] value = new byte[random.nextInt(maxLength)];
+                random.nextBytes(value);
+                table.put(key, value);
+                expected.put(wrapped, value);
+            }
+        }
+        assertEquals(expected.size(), table.size());
+        for (Map.Entry<ByteBuffer, byte[]> entry : expected.entrySet())
+            assertArrayEquals(entry.getValue(), table.get(entry.getKey().array()));
+        final Map<ByteBuffer, byte[]> visited = new HashMap<ByteBuffer, byte[]>();
+        table.forEach(new OffHeapUTXOTable.Visitor() {
+            @Override
+            public void visit(byte[] key, byte[] value) {
+                assertNull(visited.put(ByteBuffer.wrap(key), value));
+            }
+        });
+        assertEquals(expected.keySet(), visited.keySet());
+
+        File file = File.createTempFile("offheaputxotable", null);
+        try {
+            FileOutputStream fos = new FileOutputStream(file);
+            table.write(fos.getChannel());
+            fos.close();
+            FileInputStream fis = new FileInputStream(file);
+            OffHeapUTXOTable read = OffHeapUTXOTable.read(fis.getChannel());
+            fis.close();
+            assertEquals(expected.size(), read.size());
+            assertEquals(table.getRecordBytes(), read.getRecordBytes());
+            for (Map.Entry<ByteBuffer, byte[]> entry : expected.entrySet())
+                assertArrayEquals(entry.getValue(), read.get(entry.getKey().array()));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void snapshot() throws Exception {
+        File file = File.createTempFile("offheapfullprunedblockstore", null);
+        file.delete();
+        Context.propagate(new Context(PARAMS));
+        UTXO kept = new UTXO(Sha256Hash.of(new byte[] { 1 }), 3, Coin.COIN, 5, true,
+                ScriptBuilder.createOutputScript(new ECKey()));
+        UTXO spent = new UTXO(Sha256Hash.of(new byte[] { 2 }), 0, Coin.CENT, 6, false,
+                ScriptBuilder.createOutputScript(new ECKey().toAddress(PARAMS)));
+        UTXO uncommitted = new UTXO(Sha256Hash.of(new byte[] { 3 }), 0, Coin.CENT, 7, false,
+                ScriptBuilder.createOutputScript(new ECKey().toAddress(PARAMS)));
+        OffHeapFullPrunedBlockStore store = new OffHeapFullPrunedBlockStore(PARAMS, 10, file, 4, 128 * 1024);
+        StoredBlock genesis = store.getChainHead();
+        store.addUnspentTransactionOutput(kept);
+        store.addUnspentTransactionOutput(spent);
+        store.beginDatabaseBatchWrite();
+        store.removeUnspentTransactionOutput(spent);
+        store.addUnspentTransactionOutput(uncommitted);
+        assertNull(store.getTransactionOutput(spent.getHash(), 0));
+        store.commitDatabaseBatchWrite();
+        store.beginDatabaseBatchWrite();
+        store.removeUnspentTransactionOutput(uncommitted);
+        store.abortDatabaseBatchWrite();
+        assertEquals(2, store.getUnspentOutputCount());
+        store.close();
+
+        store = new OffHeapFullPrunedBlockStore(PARAMS, 10, file);
+        try {
+            assertEquals(2, store.getUnspentOutputCount());
+            UTXO read = store.getTransactionOutput(kept.getHash(), 3);
+            assertEquals(kept, read);
+            assertEquals(kept.getValue(), read.getValue());
+            assertTrue(read.isCoinbase());
+            assertArrayEquals(kept.getScript().getProgram(), read.getScript().getProgram());
+            assertNull(store.getTransactionOutput(spent.getHash(), 0));
+            assertNotNull(store.getTransactionOutput(uncommitted.getHash(), 0));
+            assertEquals(genesis, store.getVerifiedChainHead());
+            assertNotNull(store.getUndoBlock(genesis.getHeader().getHash()));
+        } finally {
+            store.close();
+            file.delete();
+        }
+    }
+}
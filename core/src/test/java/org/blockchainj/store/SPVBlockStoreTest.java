@@ -24,8 +24,15 @@ import org.blockchainj.params.UnitTestParams;
 import org.junit.Test;
 
 import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 public class SPVBlockStoreTest {
 
@@ -35,6 +42,7 @@ public class SPVBlockStoreTest {
         File f = File.createTempFile("spvblockstore", null);
         f.delete();
         f.deleteOnExit();
+        new File(f.getPath() + SPVBlockStore.INDEX_FILE_SUFFIX).deleteOnExit();
         SPVBlockStore store = new SPVBlockStore(params, f);
 
         Address to = new ECKey().toAddress(params);
@@ -58,4 +66,138 @@ public class SPVBlockStoreTest {
         StoredBlock chainHead = store.getChainHead();
         assertEquals(b1, chainHead);
     }
+
+    @Test
+    public void indexFollowsRing() throws Exception {
+        NetworkParameters params = UnitTestParams.get();
+        File f = File.createTempFile("spvblockstore", null);
+        f.delete();
+        f.deleteOnExit();
+        File indexFile = new File(f.getPath() + SPVBlockStore.INDEX_FILE_SUFFIX);
+        indexFile.deleteOnExit();
+        final int capacity = 10;
+        SPVBlockStore store = new SPVBlockStore(params, f, capacity);
+
+        // Wrap around the ring a couple of times, so that most headers get overwritten.
+        Address to = new ECKey().toAddress(params);
+        List<StoredBlock> blocks = new ArrayList<StoredBlock>();
+        StoredBlock prev = store.getChainHead();
+        blocks.add(prev);
+        for (int i = 0; i < capacity * 2 + 5; i++) {
+            prev = prev.build(prev.getHeader().createNextBlock(to).cloneAsHeader());
+            store.put(prev);
+            blocks.add(prev);
+        }
+        store.setChainHead(prev);
+        store.close();
+
+        // A fresh store object has no cache, so lookups are answered from the index.
+        store = new SPVBlockStore(params, f, capacity);
+        assertStoreHolds(store, blocks, capacity);
+        store.close();
+
+        // A missing or damaged index is rebuilt from the ring.
+        assertTrue(indexFile.delete());
+        store = new SPVBlockStore(params, f, capacity);
+        assertStoreHolds(store, blocks, capacity);
+        store.close();
+        RandomAccessFile raf = new RandomAccessFile(indexFile, "rw");
+        raf.seek(0);
+        raf.write(new byte[64]);
+        raf.close();
+        store = new SPVBlockStore(params, f, capacity);
+        assertStoreHolds(store, blocks, capacity);
+        store.close();
+    }
+
+    @Test
+    public void concurrentReadsDuringPuts() throws Exception {
+        NetworkParameters params = UnitTestParams.get();
+        File f = File.createTempFile("spvblockstore", null);
+        f.delete();
+        f.deleteOnExit();
+        new File(f.getPath() + SPVBlockStore.INDEX_FILE_SUFFIX).deleteOnExit();
+        final SPVBlockStore store = new SPVBlockStore(params, f, 100);
+        Address to = new ECKey().toAddress(params);
+        final List<StoredBlock> blocks = new ArrayList<StoredBlock>();
+        StoredBlock prev = store.getChainHead();
+        for (int i = 0; i < 20; i++) {
+            prev = prev.build(prev.getHeader().createNextBlock(to).cloneAsHeader());
+            store.put(prev);
+            blocks.add(prev);
+        }
+
+        // Readers look up the first headers, which stay in the ring, whilst more are written.
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        List<Thread> readers = new ArrayList<Thread>();
+        for (int t = 0; t < 4; t++) {
+            Thread reader = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        while (running.get())
+                            for (StoredBlock block : blocks)
+                                assertEquals(block, store.get(block.getHeader().getHash()));
+                    } catch (Throwable e) {
+                        failure.set(e);
+                    }
+                }
+            };
+            reader.start();
+            readers.add(reader);
+        }
+        for (int i = 0; i < 60; i++) {
+            prev = prev.build(prev.getHeader().createNextBlock(to).cloneAsHeader());
+            store.put(prev);
+            store.setChainHead(prev);
+            assertEquals(prev, store.get(prev.getHeader().getHash()));
+        }
+        running.set(false);
+        for (Thread reader : readers)
+            reader.join();
+        assertNull(failure.get());
+        assertEquals(prev, store.getChainHead());
+        store.close();
+    }
+
+    @Test
+    public void putRunOfHeaders() throws Exception {
+        NetworkParameters params = UnitTestParams.get();
+        File f = File.createTempFile("spvblockstore", null);
+        f.delete();
+        f.deleteOnExit();
+        new File(f.getPath() + SPVBlockStore.INDEX_FILE_SUFFIX).deleteOnExit();
+        final int capacity = 10;
+        SPVBlockStore store = new SPVBlockStore(params, f, capacity);
+
+        // A run longer than the ring wraps around within the one write.
+        Address to = new ECKey().toAddress(params);
+        List<StoredBlock> blocks = new ArrayList<StoredBlock>();
+        StoredBlock prev = store.getChainHead();
+        blocks.add(prev);
+        for (int i = 0; i < capacity + 5; i++) {
+            prev = prev.build(prev.getHeader().createNextBlock(to).cloneAsHeader());
+            blocks.add(prev);
+        }
+        store.put(blocks.subList(1, blocks.size()));
+        store.setChainHead(prev);
+        store.close();
+
+        store = new SPVBlockStore(params, f, capacity);
+        assertStoreHolds(store, blocks, capacity);
+        store.close();
+    }
+
+    private void assertStoreHolds(SPVBlockStore store, List<StoredBlock> blocks, int capacity) throws Exception {
+        int firstHeld = blocks.size() - capacity;
+        for (int i = 0; i < blocks.size(); i++) {
+            StoredBlock block = blocks.get(i);
+            if (i < firstHeld)
+                assertNull(store.get(block.getHeader().getHash()));
+            else
+                assertEquals(block, store.get(block.getHeader().getHash()));
+        }
+        assertEquals(blocks.get(blocks.size() - 1), store.getChainHead());
+    }
 }
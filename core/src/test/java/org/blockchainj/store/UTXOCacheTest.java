@@ -0,0 +1,92 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.blockchainj.store;
+
+import org.blockchainj.core.Coin;
+import org.blockchainj.core.ECKey;
+import org.blockchainj.core.Sha256Hash;
+import org.blockchainj.core.UTXO;
+import org.blockchainj.script.ScriptBuilder;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class UTXOCacheTest {
+    private static final UTXO OUT = new UTXO(Sha256Hash.of(new byte[] { 1 }), 0, Coin.COIN, 1, false,
+            ScriptBuilder.createOutputScript(new ECKey()));
+    private static final int ENTRY_SIZE = UTXOCache.ENTRY_OVERHEAD_BYTES + OUT.getScript().getProgram().length;
+
+    private static ByteBuffer key(int i) {
+        return ByteBuffer.wrap(new byte[] { (byte) i });
+    }
+
+    @Test
+    public void evictsCleanEntriesByBytes() {
+        UTXOCache cache = new UTXOCache(ENTRY_SIZE * 3, ENTRY_SIZE * 3, Long.MAX_VALUE);
+        for (int i = 0; i < 5; i++)
+            cache.fill(key(i), OUT, cache.getGeneration());
+        assertEquals(3, cache.size());
+        assertEquals(ENTRY_SIZE * 3, cache.getBytes());
+        assertEquals(2, cache.getEvictions());
+        assertNull(cache.get(key(0)));
+        assertNotNull(cache.get(key(4)));
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+
+        // Dirty entries push clean ones out, but are never evicted themselves.
+        for (int i = 10; i < 14; i++)
+            cache.add(key(i), OUT, true);
+        assertEquals(4, cache.size());
+        assertEquals(4, cache.getDirtySize());
+        assertTrue(cache.needsFlush());
+    }
+
+    @Test
+    public void spendBeforeFlush() {
+        UTXOCache cache = new UTXOCache(Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE);
+        cache.add(key(1), OUT, true);
+        cache.add(key(2), OUT, false);
+        cache.spend(key(1), OUT);
+        cache.spend(key(2), OUT);
+        // Only the output the database may have needs a delete.
+        assertNull(cache.getDirty(key(1)));
+        assertTrue(cache.getDirty(key(2)).spent);
+        assertEquals(1, cache.getUnflushedSpends());
+        // A flushed output is in the database, so spending it needs a delete again.
+        cache.add(key(3), OUT, true);
+        cache.flushed();
+        assertEquals(1, cache.getFlushedWrites());
+        assertEquals(1, cache.getFlushedDeletes());
+        assertEquals(0, cache.getDirtySize());
+        cache.spend(key(3), OUT);
+        assertTrue(cache.getDirty(key(3)).spent);
+        assertEquals(1, cache.getUnflushedSpends());
+    }
+
+    @Test
+    public void staleFill() {
+        UTXOCache cache = new UTXOCache(Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE);
+        int generation = cache.getGeneration();
+        cache.spend(key(1), OUT);
+        // A read that started before the spend does not bring the output back.
+        cache.fill(key(1), OUT, generation);
+        assertTrue(cache.get(key(1)).spent);
+        cache.flushed();
+        cache.fill(key(1), OUT, generation);
+        assertNull(cache.get(key(1)));
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.blockchainj.utils;
+
+import org.blockchainj.core.BlockChain;
+import org.blockchainj.core.Context;
+import org.blockchainj.core.NetworkParameters;
+import org.blockchainj.core.Utils;
+import org.blockchainj.params.MainNetParams;
+import org.blockchainj.store.MemoryBlockStore;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ParallelBlockImporterTest {
+    private static final NetworkParameters PARAMS = MainNetParams.get();
+
+    private final List<byte[]> blocks = new ArrayList<byte[]>();
+    private File shuffled;
+
+    @Before
+    public void setUp() throws Exception {
+        Context.propagate(new Context(PARAMS));
+        File blockFile = new File(getClass().getResource("/org/blockchainj/core/first-100k-blocks.dat").getFile());
+        BlockFileLoader loader = new BlockFileLoader(PARAMS, Arrays.asList(blockFile));
+        byte[] bytes;
+        while ((bytes = loader.nextBlockBytes()) != null)
+            blocks.add(bytes);
+        assertTrue(blocks.size() > 100);
+
+        // The blocks out of order, but not too far, with some junk between records.
+        List<byte[]> records = new ArrayList<byte[]>(blocks);
+        for (int i = 1; i + 7 < records.size(); i += 7)
+            Collections.reverse(records.subList(i, i + 7));
+        shuffled = File.createTempFile("blk", ".dat");
+        shuffled.deleteOnExit();
+        FileOutputStream out = new FileOutputStream(shuffled);
+        for (int i = 0; i < records.size(); i++) {
+            byte[] header = new byte[8];
+            Utils.uint32ToByteArrayBE(PARAMS.getPacketMagic(), header, 0);
+            Utils.uint32ToByteArrayLE(records.get(i).length, header, 4);
+            out.write(header);
+            out.write(records.get(i));
+            if (i % 10 == 0)
+                out.write(new byte[i % 3]);
+        }
+        out.close();
+    }
+
+    @Test
+    public void importsOutOfOrderBlocks() throws Exception {
+        BlockChain chain = new BlockChain(PARAMS, new MemoryBlockStore(PARAMS));
+        int imported = new ParallelBlockImporter(PARAMS, chain, 3, 4, 100).importBlocks(Arrays.asList(shuffled));
+        // All but the genesis block.
+        assertEquals(blocks.size() - 1, imported);
+        assertEquals(blocks.size() - 1, chain.getBestChainHeight());
+        assertTrue(chain.drainOrphanBlocks().isEmpty());
+    }
+
+    @Test
+    public void waitingBlocksGoToTheChainWhenThereAreTooMany() throws Exception {
+        BlockChain chain = new BlockChain(PARAMS, new MemoryBlockStore(PARAMS));
+        int imported = new ParallelBlockImporter(PARAMS, chain, 2, 1, 0).importBlocks(Arrays.asList(shuffled));
+        assertEquals(blocks.size() - 1, imported);
+        // The chain connects the orphans once their parents arrive.
+        assertEquals(blocks.size() - 1, chain.getBestChainHeight());
+    }
+
+    @Test
+    public void loaderReadsAllRecords() throws Exception {
+        BlockFileLoader loader = new BlockFileLoader(PARAMS, Arrays.asList(shuffled, new File("does-not-exist")));
+        int count = 0;
+        while (loader.hasNext()) {
+            loader.next();
+            count++;
+        }
+        assertEquals(blocks.size(), count);
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.blockchainj.utils;
+
+import org.blockchainj.core.Context;
+import org.blockchainj.params.UnitTestParams;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import static org.junit.Assert.*;
+
+public class ParallelLoopTest {
+    private ParallelLoop loop;
+
+    @Before
+    public void setUp() {
+        // The threads of the loop take on the context of the thread that creates them.
+        Context.propagate(new Context(UnitTestParams.get()));
+        loop = new ParallelLoop(4);
+    }
+
+    @After
+    public void tearDown() {
+        loop.shutdown();
+    }
+
+    @Test
+    public void runsEveryIndexOnce() throws Exception {
+        final AtomicIntegerArray runs = new AtomicIntegerArray(1001);
+        final Set<Thread> threads = Collections.synchronizedSet(new HashSet<Thread>());
+        loop.run(runs.length(), 10, new ParallelLoop.Body() {
+            @Override
+            public void run(int from, int to) {
+                threads.add(Thread.currentThread());
+                for (int i = from; i < to; i++)
+                    runs.incrementAndGet(i);
+            }
+        });
+        for (int i = 0; i < runs.length(); i++)
+            assertEquals(1, runs.get(i));
+        assertTrue(threads.contains(Thread.currentThread()));
+        assertTrue(threads.size() > 1);
+    }
+
+    @Test
+    public void smallLoopsAreNotSplit() throws Exception {
+        final Set<Thread> threads = Collections.synchronizedSet(new HashSet<Thread>());
+        loop.run(15, 10, new ParallelLoop.Body() {
+            @Override
+            public void run(int from, int to) {
+                assertEquals(0, from);
+                assertEquals(15, to);
+                threads.add(Thread.currentThread());
+            }
+        });
+        assertEquals(Collections.singleton(Thread.currentThread()), threads);
+    }
+
+    @Test
+    public void nestedLoopsRunOnTheirThread() throws Exception {
+        loop.run(100, 10, new ParallelLoop.Body() {
+            @Override
+            public void run(int from, int to) throws Exception {
+                final Thread outer = Thread.currentThread();
+                loop.run(100, 10, new ParallelLoop.Body() {
+                    @Override
+                    public void run(int from, int to) {
+                        assertEquals(outer, Thread.currentThread());
+                    }
+                });
+            }
+        });
+    }
+
+    @Test(expected = IOException.class)
+    public void rethrows() throws Exception {
+        loop.run(100, 10, new ParallelLoop.Body() {
+            @Override
+            public void run(int from, int to) throws IOException {
+                if (from > 0)
+                    throw new IOException();
+            }
+        });
+    }
+}
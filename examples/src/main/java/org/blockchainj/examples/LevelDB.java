@@ -31,7 +31,8 @@ public class LevelDB {
          */
         FullPrunedBlockStore store = new LevelDBFullPrunedBlockStore(
                 MainNetParams.get(), args[0], 1000, 100 * 1024 * 1024l,
-                10 * 1024 * 1024, 100000, true, 390000);
+                10 * 1024 * 1024, 512 * 1024 * 1024l, 256 * 1024 * 1024l,
+                10 * 60 * 1000l, true, 390000);
 
         FullPrunedBlockChain vChain = new FullPrunedBlockChain(
                 MainNetParams.get(), store);
@@ -54,6 +54,7 @@ public class RestoreFromSeed {
         File chainFile = new File("restore-from-seed.spvchain");
         if (chainFile.exists()) {
             chainFile.delete();
+            new File(chainFile.getPath() + SPVBlockStore.INDEX_FILE_SUFFIX).delete();
         }
 
         // Setting up the BlochChain, the BlocksStore and connecting to the network.
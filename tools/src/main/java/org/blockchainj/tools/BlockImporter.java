@@ -19,13 +19,15 @@ import org.blockchainj.params.MainNetParams;
 import org.blockchainj.params.TestNet3Params;
 import org.blockchainj.store.*;
 import org.blockchainj.utils.BlockFileLoader;
+import org.blockchainj.utils.ParallelBlockImporter;
 import com.google.common.base.Preconditions;
 
 import java.io.File;
 
-/** Very thin wrapper around {@link org.blockchainj.utils.BlockFileLoader} */
+/** Very thin wrapper around {@link org.blockchainj.utils.ParallelBlockImporter} */
 public class BlockImporter {
-    public static void main(String[] args) throws BlockStoreException, VerificationException, PrunedException {
+    public static void main(String[] args)
+            throws BlockStoreException, VerificationException, PrunedException, InterruptedException {
         System.out.println("USAGE: BlockImporter (prod|test) (H2|Disk|MemFull|Mem|SPV) [blockStore]");
         System.out.println("       blockStore is required unless type is Mem or MemFull");
         System.out.println("       eg BlockImporter prod H2 /home/user/blockchainj.h2store");
@@ -62,9 +64,8 @@ public class BlockImporter {
         else
             chain = new BlockChain(params, store);
         
-        BlockFileLoader loader = new BlockFileLoader(params, BlockFileLoader.getReferenceClientBlockFileList());
-        
-        for (Block block : loader)
-            chain.add(block);
+        int imported = new ParallelBlockImporter(params, chain)
+                .importBlocks(BlockFileLoader.getReferenceClientBlockFileList());
+        System.out.println("Imported " + imported + " blocks, chain height is " + chain.getBestChainHeight());
     }
 }
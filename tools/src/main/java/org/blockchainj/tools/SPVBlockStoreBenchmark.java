@@ -0,0 +1,138 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.blockchainj.tools;
+
+import org.blockchainj.core.*;
+import org.blockchainj.params.UnitTestParams;
+import org.blockchainj.store.SPVBlockStore;
+import org.blockchainj.utils.BriefLogFormatter;
+
+import java.io.File;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Measures how {@link SPVBlockStore#get(Sha256Hash)} throughput scales with the number of reading threads. The store is
+ * filled with synthetic headers and then read at random from 1, 2, 4... threads up to the number of cores, with a
+ * writer optionally appending headers at the same time. Most lookups miss the block cache and go to the index.
+ */
+public class SPVBlockStoreBenchmark {
+    public static void main(String[] args) throws Exception {
+        BriefLogFormatter.initWithSilentBlockchainJ();
+        System.out.println("USAGE: SPVBlockStoreBenchmark [headers] [seconds per run] [writer]");
+        System.out.println("       eg SPVBlockStoreBenchmark 100000 5 writer");
+        final int numHeaders = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        final int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        final boolean withWriter = args.length > 2 && args[2].equals("writer");
+
+        NetworkParameters params = UnitTestParams.get();
+        Context.propagate(new Context(params));
+        File file = File.createTempFile("spvbenchmark", null);
+        file.delete();
+        file.deleteOnExit();
+        new File(file.getPath() + SPVBlockStore.INDEX_FILE_SUFFIX).deleteOnExit();
+        // Leave room for the writer so that the headers being read are not overwritten.
+        final SPVBlockStore store = new SPVBlockStore(params, file, numHeaders * 2);
+
+        System.out.println("Storing " + numHeaders + " headers");
+        final List<StoredBlock> blocks = new ArrayList<StoredBlock>(numHeaders);
+        StoredBlock prev = store.getChainHead();
+        for (int i = 0; i < numHeaders; i++) {
+            prev = nextHeader(params, prev, i);
+            store.put(prev);
+            blocks.add(prev);
+        }
+        store.setChainHead(prev);
+        // The writer carries on from where it got to in the previous run, and stops after numHeaders headers so that
+        // it never overwrites the ones being read.
+        final AtomicReference<StoredBlock> writerHead = new AtomicReference<StoredBlock>(prev);
+
+        int maxThreads = Runtime.getRuntime().availableProcessors();
+        double singleThreaded = 0;
+        for (int threads = 1; threads <= maxThreads; threads = threads < maxThreads ? Math.min(threads * 2, maxThreads) : threads + 1) {
+            final AtomicBoolean running = new AtomicBoolean(true);
+            final AtomicLong reads = new AtomicLong();
+            final CountDownLatch done = new CountDownLatch(threads);
+            for (int t = 0; t < threads; t++) {
+                final Random random = new Random(t);
+                new Thread("SPVBlockStore reader " + t) {
+                    @Override
+                    public void run() {
+                        long count = 0;
+                        try {
+                            while (running.get()) {
+                                StoredBlock block = blocks.get(random.nextInt(blocks.size()));
+                                if (store.get(block.getHeader().getHash()) == null)
+                                    throw new IllegalStateException("Lost header " + block);
+                                count++;
+                            }
+                        } catch (Exception e) {
+                            e.printStackTrace();
+                        } finally {
+                            reads.addAndGet(count);
+                            done.countDown();
+                        }
+                    }
+                }.start();
+            }
+            Thread writer = null;
+            if (withWriter) {
+                writer = new Thread("SPVBlockStore writer") {
+                    @Override
+                    public void run() {
+                        try {
+                            while (running.get() && writerHead.get().getHeight() < numHeaders * 2) {
+                                StoredBlock head = writerHead.get();
+                                head = nextHeader(store.getParams(), head, head.getHeight());
+                                store.put(head);
+                                writerHead.set(head);
+                                Thread.sleep(1);
+                            }
+                        } catch (Exception e) {
+                            e.printStackTrace();
+                        }
+                    }
+                };
+                writer.start();
+            }
+            Thread.sleep(seconds * 1000L);
+            running.set(false);
+            done.await();
+            if (writer != null)
+                writer.join();
+
+            double perSecond = reads.get() / (double) seconds;
+            if (threads == 1)
+                singleThreaded = perSecond;
+            System.out.println(String.format("%3d threads: %,12.0f reads/s  %5.2fx", threads, perSecond,
+                    perSecond / singleThreaded));
+        }
+        store.close();
+    }
+
+    // Headers are not solved, the store does not check proof of work.
+    private static StoredBlock nextHeader(NetworkParameters params, StoredBlock prev, long nonce) {
+        Block header = new Block(params, Block.BLOCK_VERSION_GENESIS, prev.getHeader().getHash(), Sha256Hash.ZERO_HASH,
+                prev.getHeader().getTimeSeconds() + 600, prev.getHeader().getDifficultyTarget(), nonce,
+                new ArrayList<Transaction>()).cloneAsHeader();
+        return new StoredBlock(header, prev.getChainWork().add(BigInteger.ONE), prev.getHeight() + 1);
+    }
+}